@@ -0,0 +1,186 @@
+package org.code_revue.dhcp.device;
+
+import org.code_revue.dhcp.util.AddressUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Implementation of {@link org.code_revue.dhcp.device.DeviceRegistry} for very large networks of Ethernet devices. The
+ * devices are stored in a {@link org.code_revue.dhcp.device.LeaseTable}, and every call hands out a fresh
+ * {@link org.code_revue.dhcp.device.NetworkDevice} view of the device's slot, so two calls for the same device return
+ * different objects that read and write the same state. Devices with any other length of hardware address are handed
+ * to a {@link org.code_revue.dhcp.device.SimpleDeviceRegistry}. The secondary indexes are
+ * {@link org.code_revue.dhcp.device.PackedDeviceIndexes}, so they don't hold any objects per device either.
+ * <p>
+ * {@link #getAllDevices()} creates a view per device, so avoid it on large tables and use
+ * {@link #visitDevices(LeaseQuery, LeaseQuery.Visitor)} instead.
+ * </p>
+ *
+ * @author Mike Fanning
+ */
+public class CompactDeviceRegistry implements DeviceRegistry {
+
+    private static final Logger logger = LoggerFactory.getLogger(CompactDeviceRegistry.class);
+
+    public static final int DEFAULT_EXPECTED_DEVICES = 1024;
+
+    private static final int ETHERNET_ADDRESS_LENGTH = 6;
+
+    private final LeaseTable table;
+
+    private final DeviceRegistry fallback = new SimpleDeviceRegistry();
+
+    private final PackedDeviceIndexes indexes;
+
+    /**
+     * Creates a new registry with room for {@link #DEFAULT_EXPECTED_DEVICES} devices on the heap. It will grow as
+     * necessary.
+     */
+    public CompactDeviceRegistry() {
+        this(DEFAULT_EXPECTED_DEVICES, false);
+    }
+
+    /**
+     * Creates a new registry.
+     * @param expectedDevices Number of devices the registry should hold without resizing
+     * @param direct True to keep the hardware address and secondary indexes outside the Java heap
+     */
+    public CompactDeviceRegistry(int expectedDevices, boolean direct) {
+        this.table = new LeaseTable(expectedDevices, direct);
+        this.indexes = new PackedDeviceIndexes(expectedDevices, direct);
+    }
+
+    @Override
+    public Collection<NetworkDevice> getAllDevices() {
+        List<NetworkDevice> answer = new ArrayList<>();
+        synchronized (table) {
+            for (int slot = 0; slot < table.size(); slot++) {
+                answer.add(table.view(slot));
+            }
+        }
+        answer.addAll(fallback.getAllDevices());
+        return answer;
+    }
+
+    @Override
+    public NetworkDevice getDevice(byte[] hardwareAddress) {
+        if (hardwareAddress.length != ETHERNET_ADDRESS_LENGTH) {
+            return fallback.getDevice(hardwareAddress);
+        }
+        long key = AddressUtils.hardwareAddressToLong(hardwareAddress);
+        synchronized (table) {
+            int slot = table.find(key);
+            if (slot < 0) {
+                if (logger.isDebugEnabled()) {
+                    logger.debug("Device not found, creating new record for {}",
+                            AddressUtils.hardwareAddressToString(hardwareAddress));
+                }
+                slot = table.findOrAdd(key);
+            }
+            return table.view(slot);
+        }
+    }
+
+    @Override
+    public NetworkDevice resetDevice(byte[] hardwareAddress) {
+        if (hardwareAddress.length != ETHERNET_ADDRESS_LENGTH) {
+            return fallback.resetDevice(hardwareAddress);
+        }
+        NetworkDevice device = getDevice(hardwareAddress);
+        device.setStatus(DeviceStatus.DISCOVERED);
+        indexes.update(AddressUtils.hardwareAddressToLong(hardwareAddress), device);
+        return device;
+    }
+
+    /**
+     * Stores a device. Views handed out by this registry are already up to date, any other device is copied into the
+     * table.
+     * @param device Device to be updated
+     * @return View of the stored device, see {@link DeviceRegistry#updateDevice(NetworkDevice)}
+     */
+    @Override
+    public NetworkDevice updateDevice(NetworkDevice device) {
+        if (device.getHardwareAddress().length != ETHERNET_ADDRESS_LENGTH) {
+            return fallback.updateDevice(device);
+        }
+        NetworkDevice stored = table.slotOf(device) >= 0 ? device : table.view(table.store(device));
+        indexes.update(AddressUtils.hardwareAddressToLong(device.getHardwareAddress()), stored);
+        return stored;
+    }
+
+    @Override
+    public NetworkDevice getDeviceByIpAddress(byte[] ipAddress) {
+        NetworkDevice device = find(indexes.getByIpAddress(ipAddress));
+        return null == device ? fallback.getDeviceByIpAddress(ipAddress) : device;
+    }
+
+    @Override
+    public NetworkDevice getDeviceByClientId(byte[] clientId) {
+        NetworkDevice device = find(indexes.getByClientId(clientId));
+        return PackedDeviceIndexes.hasClientId(device, clientId) ? device : fallback.getDeviceByClientId(clientId);
+    }
+
+    @Override
+    public NetworkDevice getDeviceByHostName(String hostName) {
+        NetworkDevice device = find(indexes.getByHostName(hostName));
+        return PackedDeviceIndexes.hasHostName(device, hostName) ? device : fallback.getDeviceByHostName(hostName);
+    }
+
+    /**
+     * Filters the table's arrays directly, so only the matching devices are copied out.
+     */
+    @Override
+    public void visitDevices(LeaseQuery query, LeaseQuery.Visitor visitor) {
+        List<NetworkDevice> matches = new ArrayList<>();
+        int slot = 0;
+        while (slot < table.size()) {
+            matches.clear();
+            slot = table.scan(slot, LeaseQuery.CHUNK_SIZE, query, matches);
+            for (NetworkDevice device: matches) {
+                if (!visitor.visit(device)) {
+                    return;
+                }
+            }
+        }
+        fallback.visitDevices(query, visitor);
+    }
+
+    /**
+     * Number of devices in the registry, including the ones with non-Ethernet hardware addresses.
+     * @return Number of devices
+     */
+    public int size() {
+        return table.size() + fallback.getAllDevices().size();
+    }
+
+    /**
+     * Number of bytes used by the table and the secondary indexes, see {@link LeaseTable#getFootprint()}.
+     * @return Size of the registry in bytes, not counting devices with non-Ethernet hardware addresses
+     */
+    public long getFootprint() {
+        return table.getFootprint() + indexes.getFootprint();
+    }
+
+    /**
+     * Table holding the Ethernet devices.
+     * @return Lease table
+     */
+    public LeaseTable getLeaseTable() {
+        return table;
+    }
+
+    private NetworkDevice find(long hardwareAddress) {
+        if (PackedDeviceIndexes.MISSING == hardwareAddress) {
+            return null;
+        }
+        synchronized (table) {
+            int slot = table.find(hardwareAddress);
+            return slot < 0 ? null : table.view(slot);
+        }
+    }
+
+}
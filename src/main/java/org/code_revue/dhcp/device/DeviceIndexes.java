@@ -0,0 +1,181 @@
+package org.code_revue.dhcp.device;
+
+import org.code_revue.dhcp.message.DhcpOption;
+import org.code_revue.dhcp.message.DhcpOptionType;
+import org.code_revue.dhcp.util.AddressUtils;
+import org.code_revue.dhcp.util.IntHashMap;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Secondary indexes for a {@link org.code_revue.dhcp.device.DeviceRegistry}, so devices can be found by something other
+ * than their hardware address:
+ * <ul>
+ *     <li>the IP address they hold, if they are in the {@link DeviceStatus#OFFERED} or
+ *     {@link DeviceStatus#ACKNOWLEDGED} state, kept in an {@link org.code_revue.dhcp.util.IntHashMap}</li>
+ *     <li>the {@link DhcpOptionType#CLIENT_ID} option in their options</li>
+ *     <li>the {@link DhcpOptionType#HOST_NAME} option in their options, ignoring case</li>
+ * </ul>
+ * Registries call {@link #update(NetworkDevice)} whenever a device is updated or reset. The keys a device was last
+ * indexed under are remembered, so an update moves all of its entries in one step under a write lock, and lookups never
+ * see a device under a mix of old and new keys.
+ *
+ * @author Mike Fanning
+ */
+public class DeviceIndexes {
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    // Guarded by lock.
+    private final IntHashMap<NetworkDevice> byIpAddress = new IntHashMap<>();
+    private final Map<ByteBuffer, NetworkDevice> byClientId = new HashMap<>();
+    private final Map<String, NetworkDevice> byHostName = new HashMap<>();
+    private final Map<ByteBuffer, Keys> keys = new HashMap<>();
+
+    /**
+     * Re-indexes a device under its current IP address, client identifier and host name.
+     * @param device Device that was updated or reset
+     */
+    public void update(NetworkDevice device) {
+        ByteBuffer hardwareAddress = ByteBuffer.wrap(device.getHardwareAddress().clone());
+        Keys current = new Keys(device);
+
+        lock.writeLock().lock();
+        try {
+            Keys previous = keys.remove(hardwareAddress);
+            if (null != previous) {
+                remove(previous, device.getHardwareAddress());
+            }
+            if (!current.isEmpty()) {
+                keys.put(hardwareAddress, current);
+                put(current, device);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Drops a device from the indexes, e.g. because it was evicted from the registry.
+     * @param hardwareAddress Hardware address of the device
+     */
+    public void remove(byte[] hardwareAddress) {
+        lock.writeLock().lock();
+        try {
+            Keys previous = keys.remove(ByteBuffer.wrap(hardwareAddress));
+            if (null != previous) {
+                remove(previous, hardwareAddress);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Find the device holding an IP address.
+     * @param ipAddress IP address
+     * @return Device, or null if no device holds the address
+     */
+    public NetworkDevice getByIpAddress(byte[] ipAddress) {
+        int address = AddressUtils.convertToInt(ipAddress);
+        lock.readLock().lock();
+        try {
+            return byIpAddress.get(address);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Find the device with a client identifier.
+     * @param clientId Data of the client identifier option
+     * @return Device, or null if none has the identifier
+     */
+    public NetworkDevice getByClientId(byte[] clientId) {
+        lock.readLock().lock();
+        try {
+            return byClientId.get(ByteBuffer.wrap(clientId));
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Find the device with a host name.
+     * @param hostName Host name, case doesn't matter
+     * @return Device, or null if none has the host name
+     */
+    public NetworkDevice getByHostName(String hostName) {
+        lock.readLock().lock();
+        try {
+            return byHostName.get(hostName.toLowerCase(Locale.ROOT));
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // Must be called while holding the write lock.
+    private void put(Keys current, NetworkDevice device) {
+        if (0 != current.ipAddress) {
+            byIpAddress.put(current.ipAddress, device);
+        }
+        if (null != current.clientId) {
+            byClientId.put(current.clientId, device);
+        }
+        if (null != current.hostName) {
+            byHostName.put(current.hostName, device);
+        }
+    }
+
+    /**
+     * Removes entries for the old keys, unless another device has claimed the key since.
+     */
+    private void remove(Keys previous, byte[] hardwareAddress) {
+        if (0 != previous.ipAddress && owns(byIpAddress.get(previous.ipAddress), hardwareAddress)) {
+            byIpAddress.remove(previous.ipAddress);
+        }
+        if (null != previous.clientId && owns(byClientId.get(previous.clientId), hardwareAddress)) {
+            byClientId.remove(previous.clientId);
+        }
+        if (null != previous.hostName && owns(byHostName.get(previous.hostName), hardwareAddress)) {
+            byHostName.remove(previous.hostName);
+        }
+    }
+
+    private static boolean owns(NetworkDevice device, byte[] hardwareAddress) {
+        return null != device && Arrays.equals(device.getHardwareAddress(), hardwareAddress);
+    }
+
+    private static class Keys {
+
+        private final int ipAddress;
+        private final ByteBuffer clientId;
+        private final String hostName;
+
+        private Keys(NetworkDevice device) {
+            byte[] ip = device.getIpAddress();
+            boolean holdsAddress = DeviceStatus.OFFERED.equals(device.getStatus()) ||
+                    DeviceStatus.ACKNOWLEDGED.equals(device.getStatus());
+            this.ipAddress = holdsAddress && null != ip ? AddressUtils.convertToInt(ip) : 0;
+
+            Map<DhcpOptionType, DhcpOption> options = device.getOptions();
+            DhcpOption clientIdOption = null == options ? null : options.get(DhcpOptionType.CLIENT_ID);
+            this.clientId = null == clientIdOption ? null : ByteBuffer.wrap(clientIdOption.getOptionData().clone());
+            DhcpOption hostNameOption = null == options ? null : options.get(DhcpOptionType.HOST_NAME);
+            this.hostName = null == hostNameOption ? null :
+                    new String(hostNameOption.getOptionData(), StandardCharsets.US_ASCII).toLowerCase(Locale.ROOT);
+        }
+
+        private boolean isEmpty() {
+            return 0 == ipAddress && null == clientId && null == hostName;
+        }
+    }
+
+}
@@ -29,10 +29,43 @@ public interface DeviceRegistry {
     public NetworkDevice resetDevice(byte[] hardwareAddress);
 
     /**
-     * Updates a device in the registry.
+     * Stores a device in the registry, replacing any device with the same hardware address.
      * @param device Device to be updated
-     * @return Updated information about device
+     * @return The device as the registry now holds it. This is the device passed in, unless the registry keeps devices
+     *         in its own storage, like {@link org.code_revue.dhcp.device.CompactDeviceRegistry}, in which case it is a
+     *         view of the stored copy. Callers that go on changing the device should use the returned one.
      */
     public NetworkDevice updateDevice(NetworkDevice device);
 
+    /**
+     * Find the device that holds an IP address, i.e. has been offered or acknowledged it.
+     * @param ipAddress IP address
+     * @return Device holding the address, or null if there is none
+     */
+    public NetworkDevice getDeviceByIpAddress(byte[] ipAddress);
+
+    /**
+     * Find a device by the {@link org.code_revue.dhcp.message.DhcpOptionType#CLIENT_ID} option stored with it.
+     * @param clientId Data of the client identifier option
+     * @return Device with the identifier, or null if there is none
+     */
+    public NetworkDevice getDeviceByClientId(byte[] clientId);
+
+    /**
+     * Find a device by the {@link org.code_revue.dhcp.message.DhcpOptionType#HOST_NAME} option stored with it,
+     * ignoring case.
+     * @param hostName Host name
+     * @return Device with the host name, or null if there is none
+     */
+    public NetworkDevice getDeviceByHostName(String hostName);
+
+    /**
+     * Streams copies of the devices matching a query to a visitor, in no particular order. Unlike
+     * {@link #getAllDevices()} this reads the registry a chunk at a time, so memory use doesn't grow with the size of
+     * the registry. Use {@link LeaseQuery#page(DeviceRegistry)} to get the matches in pages instead.
+     * @param query Filters to apply
+     * @param visitor Receives the matching devices
+     */
+    public void visitDevices(LeaseQuery query, LeaseQuery.Visitor visitor);
+
 }
@@ -0,0 +1,41 @@
+package org.code_revue.dhcp.device;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * One page of the devices matching a {@link LeaseQuery}.
+ *
+ * @author Mike Fanning
+ */
+public class LeasePage {
+
+    private final List<NetworkDevice> devices;
+    private final byte[] nextCursor;
+
+    LeasePage(List<NetworkDevice> devices, byte[] nextCursor) {
+        this.devices = Collections.unmodifiableList(devices);
+        this.nextCursor = nextCursor;
+    }
+
+    /**
+     * Get the devices on this page, in hardware address order.
+     * @return Copies of the devices
+     */
+    public List<NetworkDevice> getDevices() {
+        return devices;
+    }
+
+    /**
+     * Get the cursor for the next page, to pass to {@link LeaseQuery#after(byte[])}.
+     * @return Cursor, or null if this is the last page
+     */
+    public byte[] getNextCursor() {
+        return null == nextCursor ? null : nextCursor.clone();
+    }
+
+    public boolean hasMore() {
+        return null != nextCursor;
+    }
+
+}
@@ -0,0 +1,285 @@
+package org.code_revue.dhcp.device;
+
+import org.code_revue.dhcp.util.AddressUtils;
+import org.code_revue.dhcp.util.Subnet;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Selects devices from a {@link DeviceRegistry} by status, subnet, lease expiration and hardware address prefix, for
+ * admin tools and dashboards that can't afford to copy a whole registry. Set the filters with the fluent setters, then
+ * either stream every match with {@link DeviceRegistry#visitDevices(LeaseQuery, Visitor)}, or fetch the matches a
+ * page at a time with {@link #page(DeviceRegistry)}.
+ * <p>
+ * Pages are ordered by hardware address: shorter addresses first, then byte by byte. Each page carries a cursor, the
+ * hardware address of its last device, which is passed to {@link #after(byte[])} to get the next page. Every page is a
+ * fresh scan of the registry that keeps at most {@link #getPageSize()} devices, so memory stays bounded no matter how
+ * big the registry is, and devices that change between pages show up in their new state.
+ * </p>
+ * <p>
+ * Registries hand the visitor detached copies of their devices, so the visitor can take its time without getting in
+ * the way of the engine. Only matching devices are copied: registries check the live device first, including the
+ * cursor, and check the copy again in case the device changed in between, so a page deep into a large registry
+ * allocates nothing for the devices before its cursor. The registry is scanned in chunks of {@link #CHUNK_SIZE}
+ * devices and its locks are only held while a chunk is read, so a query never holds up packet processing for long. A
+ * {@link CompactDeviceRegistry} reads each device atomically; the other registries copy devices field by field, so a
+ * device that is being changed at that moment can come out half updated.
+ * </p>
+ *
+ * @author Mike Fanning
+ */
+public class LeaseQuery {
+
+    public static final int DEFAULT_PAGE_SIZE = 100;
+
+    /**
+     * Number of devices a registry should read under its lock at a time.
+     */
+    public static final int CHUNK_SIZE = 4096;
+
+    /**
+     * Orders hardware addresses the way pages are ordered.
+     */
+    public static final Comparator<byte[]> HARDWARE_ADDRESS_ORDER = new Comparator<byte[]>() {
+        @Override
+        public int compare(byte[] a, byte[] b) {
+            if (a.length != b.length) {
+                return a.length < b.length ? -1 : 1;
+            }
+            for (int i = 0; i < a.length; i++) {
+                int diff = (a[i] & 0xff) - (b[i] & 0xff);
+                if (0 != diff) {
+                    return diff;
+                }
+            }
+            return 0;
+        }
+    };
+
+    /**
+     * Receives the devices matching a query.
+     */
+    public interface Visitor {
+
+        /**
+         * Called for each matching device, in no particular order.
+         * @param device Copy of the device, which the visitor may keep
+         * @return False to stop the scan
+         */
+        public boolean visit(NetworkDevice device);
+
+    }
+
+    private EnumSet<DeviceStatus> statuses;
+    private Subnet subnet;
+    private long expiresFrom = Long.MIN_VALUE;
+    private long expiresTo = Long.MAX_VALUE;
+    private byte[] prefix;
+    private byte[] after;
+    private int pageSize = DEFAULT_PAGE_SIZE;
+
+    // Filters over packed Ethernet addresses, see matches(long, DeviceStatus, int, long).
+    private long prefixBits = 0;
+    private long prefixMask = 0;
+    private long afterBits = -1;
+
+    /**
+     * Only match devices in one of the supplied states.
+     * @param first A state
+     * @param rest Any other states
+     * @return This query
+     */
+    public LeaseQuery status(DeviceStatus first, DeviceStatus... rest) {
+        this.statuses = EnumSet.of(first, rest);
+        return this;
+    }
+
+    /**
+     * Only match devices holding an address in a subnet.
+     * @param subnet Subnet, or null for any address
+     * @return This query
+     */
+    public LeaseQuery subnet(Subnet subnet) {
+        this.subnet = subnet;
+        return this;
+    }
+
+    /**
+     * Only match devices whose lease expires in a window, e.g. to find the leases that run out in the next hour.
+     * @param from Start of the window, inclusive, or null for no lower bound
+     * @param to End of the window, exclusive, or null for no upper bound
+     * @return This query
+     */
+    public LeaseQuery expiringBetween(Date from, Date to) {
+        this.expiresFrom = null == from ? Long.MIN_VALUE : from.getTime();
+        this.expiresTo = null == to ? Long.MAX_VALUE : to.getTime();
+        return this;
+    }
+
+    /**
+     * Only match devices whose hardware address starts with some bytes, e.g. a vendor's OUI.
+     * @param prefix Leading bytes of the hardware address, or null for any address
+     * @return This query
+     */
+    public LeaseQuery hardwareAddressPrefix(byte[] prefix) {
+        this.prefix = null == prefix ? null : prefix.clone();
+        this.prefixBits = 0;
+        this.prefixMask = 0;
+        if (null != prefix && prefix.length <= 6) {
+            for (int i = 0; i < prefix.length; i++) {
+                int shift = 8 * (5 - i);
+                prefixBits |= (prefix[i] & 0xffL) << shift;
+                prefixMask |= 0xffL << shift;
+            }
+        }
+        return this;
+    }
+
+    /**
+     * Only match devices that come after a cursor in page order.
+     * @param cursor Cursor from {@link LeasePage#getNextCursor()}, or null to start from the beginning
+     * @return This query
+     */
+    public LeaseQuery after(byte[] cursor) {
+        this.after = null == cursor ? null : cursor.clone();
+        this.afterBits = null != cursor && 6 == cursor.length ? AddressUtils.hardwareAddressToLong(cursor) : -1;
+        return this;
+    }
+
+    /**
+     * Set the maximum number of devices in a page. Default is {@link #DEFAULT_PAGE_SIZE}.
+     * @param pageSize Page size
+     * @return This query
+     */
+    public LeaseQuery pageSize(int pageSize) {
+        if (pageSize <= 0) {
+            throw new IllegalArgumentException("Page size must be positive");
+        }
+        this.pageSize = pageSize;
+        return this;
+    }
+
+    public int getPageSize() {
+        return pageSize;
+    }
+
+    /**
+     * Check whether a device matches the query.
+     * @param device Device to check
+     * @return True if it matches
+     */
+    public boolean matches(NetworkDevice device) {
+        byte[] hardwareAddress = device.getHardwareAddress();
+        if (null == hardwareAddress) {
+            return false;
+        }
+        if (null != after && HARDWARE_ADDRESS_ORDER.compare(hardwareAddress, after) <= 0) {
+            return false;
+        }
+        if (null != prefix) {
+            if (hardwareAddress.length < prefix.length) {
+                return false;
+            }
+            for (int i = 0; i < prefix.length; i++) {
+                if (hardwareAddress[i] != prefix[i]) {
+                    return false;
+                }
+            }
+        }
+        byte[] ipAddress = device.getIpAddress();
+        return matches(device.getStatus(), null == ipAddress ? 0 : AddressUtils.convertToInt(ipAddress),
+                device.getLeaseExpirationMillis());
+    }
+
+    /**
+     * Check whether a device with an Ethernet hardware address matches the query, without creating any objects.
+     * @param hardwareAddress Hardware address packed with {@link AddressUtils#hardwareAddressToLong(byte[])}
+     * @param status Status of the device
+     * @param ipAddress IP address of the device, or 0 if it doesn't have one
+     * @param expirationMillis Lease expiration of the device, or 0 if it doesn't have one
+     * @return True if it matches
+     */
+    public boolean matches(long hardwareAddress, DeviceStatus status, int ipAddress, long expirationMillis) {
+        if (null != after && (6 != after.length ? 6 < after.length : hardwareAddress <= afterBits)) {
+            return false;
+        }
+        if (null != prefix && (prefix.length > 6 || (hardwareAddress & prefixMask) != prefixBits)) {
+            return false;
+        }
+        return matches(status, ipAddress, expirationMillis);
+    }
+
+    private boolean matches(DeviceStatus status, int ipAddress, long expirationMillis) {
+        if (null != statuses && !statuses.contains(status)) {
+            return false;
+        }
+        if (null != subnet && (0 == ipAddress || !subnet.contains(ipAddress))) {
+            return false;
+        }
+        if (Long.MIN_VALUE != expiresFrom || Long.MAX_VALUE != expiresTo) {
+            if (0 == expirationMillis || expirationMillis < expiresFrom || expirationMillis >= expiresTo) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Fetches the first page of matching devices after the cursor.
+     * @param registry Registry to query
+     * @return Page of devices, in hardware address order
+     */
+    public LeasePage page(DeviceRegistry registry) {
+        final PriorityQueue<NetworkDevice> page = new PriorityQueue<>(pageSize + 1, new Comparator<NetworkDevice>() {
+            @Override
+            public int compare(NetworkDevice a, NetworkDevice b) {
+                // Largest first, so the head is the one to drop when the page overflows.
+                return HARDWARE_ADDRESS_ORDER.compare(b.getHardwareAddress(), a.getHardwareAddress());
+            }
+        });
+        final boolean[] more = new boolean[1];
+        registry.visitDevices(this, new Visitor() {
+            @Override
+            public boolean visit(NetworkDevice device) {
+                page.add(device);
+                if (page.size() > pageSize) {
+                    page.poll();
+                    more[0] = true;
+                }
+                return true;
+            }
+        });
+
+        List<NetworkDevice> devices = new ArrayList<>(page);
+        Collections.sort(devices, new Comparator<NetworkDevice>() {
+            @Override
+            public int compare(NetworkDevice a, NetworkDevice b) {
+                return HARDWARE_ADDRESS_ORDER.compare(a.getHardwareAddress(), b.getHardwareAddress());
+            }
+        });
+        byte[] cursor = more[0] ? devices.get(devices.size() - 1).getHardwareAddress() : null;
+        return new LeasePage(devices, cursor);
+    }
+
+    /**
+     * Creates a detached copy of a device, sharing its options map, which registries never change in place.
+     * @param device Device to copy
+     * @return Copy of the device
+     */
+    public static NetworkDevice copy(NetworkDevice device) {
+        NetworkDevice copy = new NetworkDevice();
+        copy.setStatus(device.getStatus());
+        copy.setHardwareAddress(device.getHardwareAddress());
+        copy.setIpAddress(device.getIpAddress());
+        copy.setLeaseExpirationMillis(device.getLeaseExpirationMillis());
+        copy.setOptions(device.getOptions());
+        return copy;
+    }
+
+}
@@ -0,0 +1,435 @@
+package org.code_revue.dhcp.device;
+
+import org.code_revue.dhcp.message.ByteArrayOption;
+import org.code_revue.dhcp.message.DhcpOption;
+import org.code_revue.dhcp.message.DhcpOptionSet;
+import org.code_revue.dhcp.message.DhcpOptionType;
+import org.code_revue.dhcp.util.AddressUtils;
+import org.code_revue.dhcp.util.LongHashIndex;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compact storage for the state of a large number of Ethernet devices. Instead of one {@link NetworkDevice} object per
+ * device, with its own <code>Date</code>, address arrays and option map, every device gets a slot in a set of parallel
+ * primitive arrays: the packed hardware address, the status, the IP address, the lease expiration in epoch seconds,
+ * the id of its shared option set and its per device options. A device costs {@link #BYTES_PER_DEVICE} bytes in the
+ * arrays plus its entry in the {@link org.code_revue.dhcp.util.LongHashIndex} that maps hardware addresses to slots.
+ * <p>
+ * Devices are handed out as {@link NetworkDevice} views over a slot, which are cheap to create and read and write the
+ * arrays directly. Options are split like a {@link org.code_revue.dhcp.message.DhcpOptionSet}: the part that is the
+ * same for many devices ({@link DhcpOptionSet#getShared()}) is interned in the table and referred to by id, so a
+ * network of clients with the same configuration only stores it once. The few options that differ for every device,
+ * like the client identifier and host name ({@link DhcpOptionSet#isPerDevice(DhcpOptionType)}), are encoded into one
+ * small byte array per device, the only object a device has for the garbage collector to trace. Lease expirations are
+ * kept to the second.
+ * </p>
+ * <p>
+ * Slots are never freed, a device keeps its slot after it has been reset. Shared option set ids aren't freed either,
+ * but there is only one for each distinct configuration. All methods synchronize on the table.
+ * </p>
+ *
+ * @author Mike Fanning
+ */
+public class LeaseTable {
+
+    /**
+     * Bytes of array storage per device: hardware address, status, IP address, expiration, shared option set id and
+     * a (compressed) reference to the per device options.
+     */
+    public static final int BYTES_PER_DEVICE = 8 + 1 + 4 + 4 + 4 + 4;
+
+    // Array header and alignment of a per device options array, for the footprint.
+    private static final int ARRAY_OVERHEAD = 16;
+
+    private static final int MIN_CAPACITY = 16;
+    private static final DeviceStatus[] STATUSES = DeviceStatus.values();
+
+    private final LongHashIndex index;
+
+    // Guarded by this.
+    private long[] hardwareAddresses;
+    private byte[] statuses;
+    private int[] ipAddresses;
+    private int[] expirations;
+    private int[] optionSets;
+    // Per device options as (code, length, data) triples, or null if the device has none.
+    private byte[][] localOptions;
+    private long localOptionBytes = 0;
+    private int size = 0;
+
+    private final List<DhcpOptionSet> optionSetList = new ArrayList<>();
+    private final Map<DhcpOptionSet, Integer> optionSetIds = new HashMap<>();
+
+    /**
+     * Creates a new table with room for the supplied number of devices. It will grow as necessary.
+     * @param expectedDevices Number of devices the table should hold without resizing
+     * @param direct True to keep the hardware address index outside the Java heap
+     */
+    public LeaseTable(int expectedDevices, boolean direct) {
+        int capacity = Math.max(MIN_CAPACITY, expectedDevices);
+        this.index = new LongHashIndex(capacity, direct);
+        this.hardwareAddresses = new long[capacity];
+        this.statuses = new byte[capacity];
+        this.ipAddresses = new int[capacity];
+        this.expirations = new int[capacity];
+        this.optionSets = new int[capacity];
+        this.localOptions = new byte[capacity][];
+        optionSetList.add(DhcpOptionSet.EMPTY);
+        optionSetIds.put(DhcpOptionSet.EMPTY, 0);
+    }
+
+    /**
+     * Find the slot of a device.
+     * @param hardwareAddress Hardware address packed with {@link AddressUtils#hardwareAddressToLong(byte[])}
+     * @return Slot of the device, or -1 if it isn't in the table
+     */
+    public synchronized int find(long hardwareAddress) {
+        return (int) index.get(hardwareAddress, -1);
+    }
+
+    /**
+     * Find the slot of a device, giving it a new slot in the {@link DeviceStatus#DISCOVERED} state if it isn't in the
+     * table yet.
+     * @param hardwareAddress Hardware address packed with {@link AddressUtils#hardwareAddressToLong(byte[])}
+     * @return Slot of the device
+     */
+    public synchronized int findOrAdd(long hardwareAddress) {
+        int slot = (int) index.get(hardwareAddress, -1);
+        if (slot >= 0) {
+            return slot;
+        }
+        if (size == hardwareAddresses.length) {
+            grow();
+        }
+        slot = size++;
+        hardwareAddresses[slot] = hardwareAddress;
+        statuses[slot] = (byte) DeviceStatus.DISCOVERED.ordinal();
+        index.put(hardwareAddress, slot);
+        return slot;
+    }
+
+    /**
+     * Creates a view of a slot. Changes made through the view go straight to the table.
+     * @param slot Slot of the device
+     * @return View of the device
+     */
+    public synchronized NetworkDevice view(int slot) {
+        checkSlot(slot);
+        return new DeviceView(slot);
+    }
+
+    /**
+     * Copies the state of a device into its slot, adding it to the table if necessary.
+     * @param device Device with an Ethernet hardware address
+     * @return Slot of the device
+     */
+    public synchronized int store(NetworkDevice device) {
+        int slot = findOrAdd(AddressUtils.hardwareAddressToLong(device.getHardwareAddress()));
+        setStatus(slot, device.getStatus());
+        setIpAddress(slot, device.getIpAddress());
+        setLeaseExpirationMillis(slot, device.getLeaseExpirationMillis());
+        setOptions(slot, device.getOptions());
+        return slot;
+    }
+
+    public synchronized byte[] getHardwareAddress(int slot) {
+        checkSlot(slot);
+        return AddressUtils.longToHardwareAddress(hardwareAddresses[slot]);
+    }
+
+    public synchronized DeviceStatus getStatus(int slot) {
+        checkSlot(slot);
+        return STATUSES[statuses[slot]];
+    }
+
+    public synchronized void setStatus(int slot, DeviceStatus status) {
+        checkSlot(slot);
+        statuses[slot] = (byte) (null == status ? DeviceStatus.DISCOVERED : status).ordinal();
+    }
+
+    /**
+     * Get the IP address of a device.
+     * @param slot Slot of the device
+     * @return IP address, or null if the device doesn't have one
+     */
+    public synchronized byte[] getIpAddress(int slot) {
+        checkSlot(slot);
+        return 0 == ipAddresses[slot] ? null : AddressUtils.convertToByteArray(ipAddresses[slot]);
+    }
+
+    /**
+     * Set the IP address of a device. 0.0.0.0 is treated the same as null.
+     * @param slot Slot of the device
+     * @param ipAddress IP address, or null
+     */
+    public synchronized void setIpAddress(int slot, byte[] ipAddress) {
+        checkSlot(slot);
+        ipAddresses[slot] = null == ipAddress ? 0 : AddressUtils.convertToInt(ipAddress);
+    }
+
+    /**
+     * Get the lease expiration of a device, to the second.
+     * @param slot Slot of the device
+     * @return Expiration in milliseconds since the epoch, or 0 if the device doesn't have one
+     */
+    public synchronized long getLeaseExpirationMillis(int slot) {
+        checkSlot(slot);
+        return (expirations[slot] & 0xffffffffL) * 1000;
+    }
+
+    /**
+     * Set the lease expiration of a device. Milliseconds are dropped, and times outside of the range of unsigned 32 bit
+     * epoch seconds (1970 to 2106) are clamped to it.
+     * @param slot Slot of the device
+     * @param leaseExpiration Expiration in milliseconds since the epoch, or 0
+     */
+    public synchronized void setLeaseExpirationMillis(int slot, long leaseExpiration) {
+        checkSlot(slot);
+        if (0 == leaseExpiration) {
+            expirations[slot] = 0;
+        } else {
+            expirations[slot] = (int) Math.min(Math.max(leaseExpiration / 1000, 1), 0xffffffffL);
+        }
+    }
+
+    /**
+     * Same as {@link #getLeaseExpirationMillis(int)}, as a {@link java.util.Date}.
+     * @param slot Slot of the device
+     * @return Expiration, or null if the device doesn't have one
+     */
+    public Date getLeaseExpiration(int slot) {
+        long millis = getLeaseExpirationMillis(slot);
+        return 0 == millis ? null : new Date(millis);
+    }
+
+    public void setLeaseExpiration(int slot, Date leaseExpiration) {
+        setLeaseExpirationMillis(slot, null == leaseExpiration ? 0 : leaseExpiration.getTime());
+    }
+
+    /**
+     * Get the options that were last sent to a device.
+     * @param slot Slot of the device
+     * @return Read-only map of options. If the device has no per device options, this is the set shared with every
+     *         other device that was sent the same options.
+     */
+    public synchronized Map<DhcpOptionType, DhcpOption> getOptions(int slot) {
+        checkSlot(slot);
+        DhcpOptionSet shared = optionSetList.get(optionSets[slot]);
+        byte[] local = localOptions[slot];
+        if (null == local) {
+            return shared;
+        }
+        List<DhcpOption> options = new ArrayList<>(shared.size() + 3);
+        options.addAll(shared.values());
+        for (int i = 0; i < local.length; i += 2 + (local[i + 1] & 0xff)) {
+            options.add(new ByteArrayOption(DhcpOptionType.getByNumericCode(local[i]), local, i + 2,
+                    local[i + 1] & 0xff));
+        }
+        return DhcpOptionSet.of(options);
+    }
+
+    /**
+     * Set the options sent to a device. The shared part is interned, the per device options are stored with the slot.
+     * @param slot Slot of the device
+     * @param options Options, or null for none
+     */
+    public synchronized void setOptions(int slot, Map<DhcpOptionType, DhcpOption> options) {
+        checkSlot(slot);
+        DhcpOptionSet set = DhcpOptionSet.of(options);
+        DhcpOptionSet shared = set.getShared();
+        optionSets[slot] = intern(shared);
+
+        byte[] local = null;
+        if (set != shared) {
+            int length = 0;
+            for (DhcpOption option: set.values()) {
+                if (DhcpOptionSet.isPerDevice(option.getType())) {
+                    length += 2 + option.getOptionData().length;
+                }
+            }
+            local = new byte[length];
+            int i = 0;
+            for (DhcpOption option: set.values()) {
+                if (DhcpOptionSet.isPerDevice(option.getType())) {
+                    byte[] data = option.getOptionData();
+                    if (data.length > 255) {
+                        throw new IllegalArgumentException("Option " + option.getType() + " is too long");
+                    }
+                    local[i++] = (byte) option.getType().getNumericCode();
+                    local[i++] = (byte) data.length;
+                    System.arraycopy(data, 0, local, i, data.length);
+                    i += data.length;
+                }
+            }
+        }
+        localOptionBytes += footprintOf(local) - footprintOf(localOptions[slot]);
+        localOptions[slot] = local;
+    }
+
+    /**
+     * Copies out the devices in a range of slots that match a query.
+     * @param from First slot to look at
+     * @param count Maximum number of slots to look at
+     * @param query Filters to apply
+     * @param matches Receives detached copies of the matching devices
+     * @return Slot after the last one looked at
+     */
+    public synchronized int scan(int from, int count, LeaseQuery query, List<NetworkDevice> matches) {
+        int to = (int) Math.min(size, (long) from + count);
+        for (int slot = Math.max(from, 0); slot < to; slot++) {
+            long expiration = (expirations[slot] & 0xffffffffL) * 1000;
+            if (query.matches(hardwareAddresses[slot], STATUSES[statuses[slot]], ipAddresses[slot], expiration)) {
+                NetworkDevice device = new NetworkDevice();
+                device.setHardwareAddress(getHardwareAddress(slot));
+                device.setStatus(getStatus(slot));
+                device.setIpAddress(getIpAddress(slot));
+                device.setLeaseExpirationMillis(expiration);
+                device.setOptions(getOptions(slot));
+                matches.add(device);
+            }
+        }
+        return Math.max(to, from);
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    /**
+     * Number of distinct shared option sets that have been stored. Per device options aren't counted, so this is the
+     * number of distinct configurations devices have been sent, plus one for the empty set.
+     * @return Number of option sets
+     */
+    public synchronized int getOptionSetCount() {
+        return optionSetList.size();
+    }
+
+    /**
+     * Number of bytes used by the arrays, the per device options and the hardware address index, not counting the
+     * shared option sets.
+     * @return Size of the table in bytes
+     */
+    public synchronized long getFootprint() {
+        return (long) hardwareAddresses.length * BYTES_PER_DEVICE + localOptionBytes + index.getFootprint();
+    }
+
+    /**
+     * Check whether a device is a view of a slot in this table.
+     * @param device Device to check
+     * @return Slot of the device, or -1 if it isn't a view of this table
+     */
+    int slotOf(NetworkDevice device) {
+        if (device instanceof DeviceView && this == ((DeviceView) device).getTable()) {
+            return ((DeviceView) device).slot;
+        }
+        return -1;
+    }
+
+    private void checkSlot(int slot) {
+        if (slot < 0 || slot >= size) {
+            throw new IndexOutOfBoundsException("Invalid slot " + slot);
+        }
+    }
+
+    private void grow() {
+        int capacity = hardwareAddresses.length * 2;
+        hardwareAddresses = Arrays.copyOf(hardwareAddresses, capacity);
+        statuses = Arrays.copyOf(statuses, capacity);
+        ipAddresses = Arrays.copyOf(ipAddresses, capacity);
+        expirations = Arrays.copyOf(expirations, capacity);
+        optionSets = Arrays.copyOf(optionSets, capacity);
+        localOptions = Arrays.copyOf(localOptions, capacity);
+    }
+
+    /**
+     * Get the id of a shared option set, giving it a new one if it hasn't been seen before.
+     */
+    private int intern(DhcpOptionSet shared) {
+        Integer id = optionSetIds.get(shared);
+        if (null == id) {
+            id = optionSetList.size();
+            optionSetList.add(shared);
+            optionSetIds.put(shared, id);
+        }
+        return id;
+    }
+
+    private static long footprintOf(byte[] local) {
+        return null == local ? 0 : (ARRAY_OVERHEAD + local.length + 7) & ~7L;
+    }
+
+    /**
+     * {@link NetworkDevice} backed by a slot in the table.
+     */
+    private class DeviceView extends NetworkDevice {
+
+        private final int slot;
+
+        private DeviceView(int slot) {
+            this.slot = slot;
+        }
+
+        @Override
+        public DeviceStatus getStatus() {
+            return LeaseTable.this.getStatus(slot);
+        }
+
+        @Override
+        public void setStatus(DeviceStatus status) {
+            LeaseTable.this.setStatus(slot, status);
+        }
+
+        @Override
+        public byte[] getHardwareAddress() {
+            return LeaseTable.this.getHardwareAddress(slot);
+        }
+
+        @Override
+        public void setHardwareAddress(byte[] hardwareAddress) {
+            if (!Arrays.equals(hardwareAddress, getHardwareAddress())) {
+                throw new UnsupportedOperationException("Can't change the hardware address of a stored device");
+            }
+        }
+
+        @Override
+        public byte[] getIpAddress() {
+            return LeaseTable.this.getIpAddress(slot);
+        }
+
+        @Override
+        public void setIpAddress(byte[] ipAddress) {
+            LeaseTable.this.setIpAddress(slot, ipAddress);
+        }
+
+        @Override
+        public long getLeaseExpirationMillis() {
+            return LeaseTable.this.getLeaseExpirationMillis(slot);
+        }
+
+        @Override
+        public void setLeaseExpirationMillis(long leaseExpiration) {
+            LeaseTable.this.setLeaseExpirationMillis(slot, leaseExpiration);
+        }
+
+        @Override
+        public Map<DhcpOptionType, DhcpOption> getOptions() {
+            return LeaseTable.this.getOptions(slot);
+        }
+
+        @Override
+        public void setOptions(Map<DhcpOptionType, DhcpOption> options) {
+            LeaseTable.this.setOptions(slot, options);
+        }
+
+        private LeaseTable getTable() {
+            return LeaseTable.this;
+        }
+    }
+
+}
@@ -0,0 +1,222 @@
+package org.code_revue.dhcp.device;
+
+import org.code_revue.dhcp.util.AddressUtils;
+import org.code_revue.dhcp.util.LongHashIndex;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Implementation of {@link org.code_revue.dhcp.device.DeviceRegistry} for networks of Ethernet devices. 48 bit hardware
+ * addresses are packed into a <code>long</code> and looked up in a {@link org.code_revue.dhcp.util.LongHashIndex},
+ * which maps them to a position in an array of devices, so finding a device is a hash and a short probe without
+ * creating a String or boxed key. The index can be kept off-heap. Devices with any other length of hardware address
+ * are handed to a {@link org.code_revue.dhcp.device.SimpleDeviceRegistry}.
+ * <p>
+ * Lookups of existing devices only take a read lock, so they can run in parallel; creating or replacing a device takes
+ * the write lock.
+ * </p>
+ *
+ * @author Mike Fanning
+ */
+public class LongKeyDeviceRegistry implements DeviceRegistry {
+
+    private static final Logger logger = LoggerFactory.getLogger(LongKeyDeviceRegistry.class);
+
+    public static final int DEFAULT_EXPECTED_DEVICES = 1024;
+
+    private static final int ETHERNET_ADDRESS_LENGTH = 6;
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    // Guarded by lock.
+    private final LongHashIndex index;
+    private NetworkDevice[] devices;
+    private int count = 0;
+
+    private final DeviceRegistry fallback = new SimpleDeviceRegistry();
+
+    private final DeviceIndexes indexes = new DeviceIndexes();
+
+    /**
+     * Creates a new registry with room for {@link #DEFAULT_EXPECTED_DEVICES} devices on the heap. It will grow as
+     * necessary.
+     */
+    public LongKeyDeviceRegistry() {
+        this(DEFAULT_EXPECTED_DEVICES, false);
+    }
+
+    /**
+     * Creates a new registry.
+     * @param expectedDevices Number of devices the registry should hold without resizing
+     * @param direct True to keep the index outside the Java heap
+     */
+    public LongKeyDeviceRegistry(int expectedDevices, boolean direct) {
+        this.index = new LongHashIndex(expectedDevices, direct);
+        this.devices = new NetworkDevice[Math.max(16, expectedDevices)];
+    }
+
+    @Override
+    public Collection<NetworkDevice> getAllDevices() {
+        List<NetworkDevice> answer;
+        lock.readLock().lock();
+        try {
+            answer = new ArrayList<>(Arrays.asList(devices).subList(0, count));
+        } finally {
+            lock.readLock().unlock();
+        }
+        answer.addAll(fallback.getAllDevices());
+        return answer;
+    }
+
+    @Override
+    public NetworkDevice getDevice(byte[] hardwareAddress) {
+        if (hardwareAddress.length != ETHERNET_ADDRESS_LENGTH) {
+            return fallback.getDevice(hardwareAddress);
+        }
+        long key = AddressUtils.hardwareAddressToLong(hardwareAddress);
+
+        lock.readLock().lock();
+        try {
+            int position = (int) index.get(key, -1);
+            if (position >= 0) {
+                return devices[position];
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+
+        lock.writeLock().lock();
+        try {
+            int position = (int) index.get(key, -1);
+            if (position >= 0) {
+                return devices[position];
+            }
+            if (logger.isDebugEnabled()) {
+                logger.debug("Device not found, creating new record for {}",
+                        AddressUtils.hardwareAddressToString(hardwareAddress));
+            }
+            NetworkDevice device = new NetworkDevice();
+            device.setStatus(DeviceStatus.DISCOVERED);
+            device.setHardwareAddress(hardwareAddress);
+            add(key, device);
+            return device;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public NetworkDevice resetDevice(byte[] hardwareAddress) {
+        if (hardwareAddress.length != ETHERNET_ADDRESS_LENGTH) {
+            return fallback.resetDevice(hardwareAddress);
+        }
+        NetworkDevice device = getDevice(hardwareAddress);
+        device.setStatus(DeviceStatus.DISCOVERED);
+        indexes.update(device);
+        return device;
+    }
+
+    @Override
+    public NetworkDevice updateDevice(NetworkDevice device) {
+        byte[] hardwareAddress = device.getHardwareAddress();
+        if (hardwareAddress.length != ETHERNET_ADDRESS_LENGTH) {
+            return fallback.updateDevice(device);
+        }
+        long key = AddressUtils.hardwareAddressToLong(hardwareAddress);
+
+        lock.writeLock().lock();
+        try {
+            int position = (int) index.get(key, -1);
+            if (position >= 0) {
+                devices[position] = device;
+            } else {
+                add(key, device);
+            }
+            indexes.update(device);
+            return device;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public NetworkDevice getDeviceByIpAddress(byte[] ipAddress) {
+        NetworkDevice device = indexes.getByIpAddress(ipAddress);
+        return null == device ? fallback.getDeviceByIpAddress(ipAddress) : device;
+    }
+
+    @Override
+    public NetworkDevice getDeviceByClientId(byte[] clientId) {
+        NetworkDevice device = indexes.getByClientId(clientId);
+        return null == device ? fallback.getDeviceByClientId(clientId) : device;
+    }
+
+    @Override
+    public NetworkDevice getDeviceByHostName(String hostName) {
+        NetworkDevice device = indexes.getByHostName(hostName);
+        return null == device ? fallback.getDeviceByHostName(hostName) : device;
+    }
+
+    @Override
+    public void visitDevices(LeaseQuery query, LeaseQuery.Visitor visitor) {
+        NetworkDevice[] chunk = new NetworkDevice[LeaseQuery.CHUNK_SIZE];
+        int position = 0;
+        while (true) {
+            int length;
+            lock.readLock().lock();
+            try {
+                length = Math.min(chunk.length, count - position);
+                if (length > 0) {
+                    System.arraycopy(devices, position, chunk, 0, length);
+                }
+            } finally {
+                lock.readLock().unlock();
+            }
+            if (length <= 0) {
+                break;
+            }
+            position += length;
+            for (int i = 0; i < length; i++) {
+                if (!query.matches(chunk[i])) {
+                    continue;
+                }
+                NetworkDevice copy = LeaseQuery.copy(chunk[i]);
+                if (query.matches(copy) && !visitor.visit(copy)) {
+                    return;
+                }
+            }
+        }
+        fallback.visitDevices(query, visitor);
+    }
+
+    /**
+     * Number of devices in the registry, including the ones with non-Ethernet hardware addresses.
+     * @return Number of devices
+     */
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return count + fallback.getAllDevices().size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // Must be called while holding the write lock.
+    private void add(long key, NetworkDevice device) {
+        if (count == devices.length) {
+            devices = Arrays.copyOf(devices, devices.length * 2);
+        }
+        devices[count] = device;
+        index.put(key, count);
+        count++;
+    }
+
+}
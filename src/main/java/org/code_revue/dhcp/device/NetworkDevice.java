@@ -1,16 +1,17 @@
 package org.code_revue.dhcp.device;
 
 import org.code_revue.dhcp.message.DhcpOption;
+import org.code_revue.dhcp.message.DhcpOptionSet;
 import org.code_revue.dhcp.message.DhcpOptionType;
 
 import java.util.Date;
-import java.util.HashMap;
 import java.util.Map;
 
 /**
  * Instances of this class represent a network device that has communicated with the DHCP server in some way. Right now
  * it has a bunch of basic information about the status of the device (i.e. where it is in the DHCP process), what
- * hardware address it has, when its lease is going to expire, etc. For now it is just a simple bean.
+ * hardware address it has, when its lease is going to expire, etc. For now it is just a simple bean, which
+ * {@link LeaseTable} overrides to provide views of its slots.
  *
  * @author Mike Fanning
  */
@@ -22,9 +23,10 @@ public class NetworkDevice {
 
     private byte[] ipAddress;
 
-    private Date leaseExpiration;
+    // Milliseconds since the epoch, 0 if the device doesn't have a lease.
+    private long leaseExpiration;
 
-    private Map<DhcpOptionType, DhcpOption> options = new HashMap<>();
+    private DhcpOptionSet options;
 
     /**
      * Tracks the state of the device through the DHCP configuration process. See
@@ -60,27 +62,55 @@ public class NetworkDevice {
         this.ipAddress = ipAddress;
     }
 
-    public Date getLeaseExpiration() {
+    /**
+     * When the lease or offer held by the device runs out.
+     * @return Milliseconds since the epoch, or 0 if the device doesn't have an expiration
+     */
+    public long getLeaseExpirationMillis() {
         return leaseExpiration;
     }
 
-    public void setLeaseExpiration(Date leaseExpiration) {
+    /**
+     * When the lease or offer held by the device runs out.
+     * @param leaseExpiration Milliseconds since the epoch, or 0 to clear the expiration
+     */
+    public void setLeaseExpirationMillis(long leaseExpiration) {
         this.leaseExpiration = leaseExpiration;
     }
 
+    /**
+     * Same as {@link #getLeaseExpirationMillis()}, as a newly allocated {@link java.util.Date}.
+     * @return Expiration, or null if the device doesn't have one
+     */
+    public Date getLeaseExpiration() {
+        long millis = getLeaseExpirationMillis();
+        return 0 == millis ? null : new Date(millis);
+    }
+
+    /**
+     * Same as {@link #setLeaseExpirationMillis(long)}.
+     * @param leaseExpiration Expiration, or null to clear it
+     */
+    public void setLeaseExpiration(Date leaseExpiration) {
+        setLeaseExpirationMillis(null == leaseExpiration ? 0 : leaseExpiration.getTime());
+    }
+
     /**
      * The last set of DHCP options that were sent to a client as part of an Offer, Acknowledgement or Inform message.
+     * The map is read-only, set a new one to change the options.
      * @return
      */
     public Map<DhcpOptionType, DhcpOption> getOptions() {
-        return options;
+        return null == options ? DhcpOptionSet.EMPTY : options;
     }
 
     /**
      * The last set of DHCP options that were sent to a client as part of an Offer, Acknowledgement or Inform message.
+     * The options are copied into a {@link org.code_revue.dhcp.message.DhcpOptionSet}, so devices that were sent the
+     * same options share them.
      * @param options
      */
     public void setOptions(Map<DhcpOptionType, DhcpOption> options) {
-        this.options = options;
+        this.options = null == options ? null : DhcpOptionSet.of(options);
     }
 }
@@ -0,0 +1,230 @@
+package org.code_revue.dhcp.device;
+
+import org.code_revue.dhcp.message.DhcpOption;
+import org.code_revue.dhcp.message.DhcpOptionType;
+import org.code_revue.dhcp.util.AddressUtils;
+import org.code_revue.dhcp.util.LongHashIndex;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * The same secondary indexes as {@link org.code_revue.dhcp.device.DeviceIndexes}, for registries of Ethernet devices
+ * that identify them by their hardware address packed with {@link AddressUtils#hardwareAddressToLong(byte[])}. Nothing
+ * is kept per device but entries in {@link org.code_revue.dhcp.util.LongHashIndex}es: the IP address, a 64 bit hash of
+ * the client identifier and a 64 bit hash of the lower case host name each map to the packed hardware address, and
+ * three more indexes map the hardware address back to the keys it was last indexed under, so an update can move its
+ * entries. A device with all three keys costs six index entries, no objects.
+ * <p>
+ * Lookups return the packed hardware address, and the registry fetches the device itself, which lets a registry index
+ * devices that aren't in memory. Two client identifiers or host names can hash to the same value, in which case the
+ * device updated last wins, so registries should check the device they fetch with {@link #hasClientId} or
+ * {@link #hasHostName}.
+ * </p>
+ *
+ * @author Mike Fanning
+ */
+public class PackedDeviceIndexes {
+
+    /**
+     * Returned by lookups when no device has the key.
+     */
+    public static final long MISSING = -1;
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    // Guarded by lock.
+    private final LongHashIndex byIpAddress;
+    private final LongHashIndex byClientId;
+    private final LongHashIndex byHostName;
+    private final LongHashIndex ipAddresses;
+    private final LongHashIndex clientIds;
+    private final LongHashIndex hostNames;
+
+    /**
+     * Creates new indexes on the heap.
+     * @param expectedDevices Number of devices with an address the indexes should hold without resizing
+     */
+    public PackedDeviceIndexes(int expectedDevices) {
+        this(expectedDevices, false);
+    }
+
+    /**
+     * Creates new indexes. The client identifier and host name indexes start small, not every network uses them.
+     * @param expectedDevices Number of devices with an address the indexes should hold without resizing
+     * @param direct True to keep the indexes outside the Java heap
+     */
+    public PackedDeviceIndexes(int expectedDevices, boolean direct) {
+        this.byIpAddress = new LongHashIndex(expectedDevices, direct);
+        this.ipAddresses = new LongHashIndex(expectedDevices, direct);
+        this.byClientId = new LongHashIndex(0, direct);
+        this.clientIds = new LongHashIndex(0, direct);
+        this.byHostName = new LongHashIndex(0, direct);
+        this.hostNames = new LongHashIndex(0, direct);
+    }
+
+    /**
+     * Re-indexes a device under its current IP address, client identifier and host name.
+     * @param hardwareAddress Packed hardware address of the device
+     * @param device Device that was updated or reset
+     */
+    public void update(long hardwareAddress, NetworkDevice device) {
+        long ipAddress = ipAddressKey(device);
+        byte[] clientId = optionData(device, DhcpOptionType.CLIENT_ID);
+        byte[] hostName = optionData(device, DhcpOptionType.HOST_NAME);
+
+        lock.writeLock().lock();
+        try {
+            move(hardwareAddress, ipAddresses, byIpAddress, 0 != ipAddress, ipAddress);
+            move(hardwareAddress, clientIds, byClientId, null != clientId, null == clientId ? 0 : hash(clientId));
+            move(hardwareAddress, hostNames, byHostName, null != hostName,
+                    null == hostName ? 0 : hash(lowerCase(hostName)));
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Drops a device from the indexes.
+     * @param hardwareAddress Packed hardware address of the device
+     */
+    public void remove(long hardwareAddress) {
+        lock.writeLock().lock();
+        try {
+            move(hardwareAddress, ipAddresses, byIpAddress, false, 0);
+            move(hardwareAddress, clientIds, byClientId, false, 0);
+            move(hardwareAddress, hostNames, byHostName, false, 0);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Find the device holding an IP address.
+     * @param ipAddress IP address
+     * @return Packed hardware address, or {@link #MISSING} if no device holds the address
+     */
+    public long getByIpAddress(byte[] ipAddress) {
+        return get(byIpAddress, AddressUtils.convertToInt(ipAddress) & 0xffffffffL);
+    }
+
+    /**
+     * Find the device with a client identifier.
+     * @param clientId Data of the client identifier option
+     * @return Packed hardware address, or {@link #MISSING} if no device has the identifier's hash
+     */
+    public long getByClientId(byte[] clientId) {
+        return get(byClientId, hash(clientId));
+    }
+
+    /**
+     * Find the device with a host name.
+     * @param hostName Host name, case doesn't matter
+     * @return Packed hardware address, or {@link #MISSING} if no device has the host name's hash
+     */
+    public long getByHostName(String hostName) {
+        return get(byHostName, hash(hostName.toLowerCase(Locale.ROOT)));
+    }
+
+    /**
+     * Number of bytes used by the indexes.
+     * @return Size of the indexes in bytes
+     */
+    public long getFootprint() {
+        lock.readLock().lock();
+        try {
+            return byIpAddress.getFootprint() + byClientId.getFootprint() + byHostName.getFootprint() +
+                    ipAddresses.getFootprint() + clientIds.getFootprint() + hostNames.getFootprint();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Check that a device found by {@link #getByClientId(byte[])} really has the client identifier.
+     * @param device Device, may be null
+     * @param clientId Data of the client identifier option
+     * @return True if the device has the client identifier
+     */
+    public static boolean hasClientId(NetworkDevice device, byte[] clientId) {
+        return null != device && Arrays.equals(clientId, optionData(device, DhcpOptionType.CLIENT_ID));
+    }
+
+    /**
+     * Check that a device found by {@link #getByHostName(String)} really has the host name.
+     * @param device Device, may be null
+     * @param hostName Host name, case doesn't matter
+     * @return True if the device has the host name
+     */
+    public static boolean hasHostName(NetworkDevice device, String hostName) {
+        byte[] data = null == device ? null : optionData(device, DhcpOptionType.HOST_NAME);
+        return null != data && lowerCase(data).equals(hostName.toLowerCase(Locale.ROOT));
+    }
+
+    private long get(LongHashIndex index, long key) {
+        lock.readLock().lock();
+        try {
+            return index.get(key, MISSING);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Moves a device's entry in one of the indexes from the key it was last indexed under to its current key. Must be
+     * called while holding the write lock.
+     */
+    private static void move(long hardwareAddress, LongHashIndex keys, LongHashIndex index, boolean present,
+                             long key) {
+        if (keys.containsKey(hardwareAddress)) {
+            long previous = keys.get(hardwareAddress, 0);
+            // Unless another device has claimed the key since.
+            if (index.get(previous, MISSING) == hardwareAddress) {
+                index.remove(previous);
+            }
+            keys.remove(hardwareAddress);
+        }
+        if (present) {
+            keys.put(hardwareAddress, key);
+            index.put(key, hardwareAddress);
+        }
+    }
+
+    private static long ipAddressKey(NetworkDevice device) {
+        byte[] ip = device.getIpAddress();
+        boolean holdsAddress = DeviceStatus.OFFERED.equals(device.getStatus()) ||
+                DeviceStatus.ACKNOWLEDGED.equals(device.getStatus());
+        return holdsAddress && null != ip ? AddressUtils.convertToInt(ip) & 0xffffffffL : 0;
+    }
+
+    private static byte[] optionData(NetworkDevice device, DhcpOptionType type) {
+        Map<DhcpOptionType, DhcpOption> options = device.getOptions();
+        DhcpOption option = null == options ? null : options.get(type);
+        return null == option ? null : option.getOptionData();
+    }
+
+    private static String lowerCase(byte[] hostName) {
+        return new String(hostName, StandardCharsets.US_ASCII).toLowerCase(Locale.ROOT);
+    }
+
+    private static long hash(String value) {
+        return hash(value.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * 64 bit FNV-1a, kept clear of {@link LongHashIndex#EMPTY_KEY}.
+     */
+    private static long hash(byte[] value) {
+        long hash = 0xcbf29ce484222325L;
+        for (byte b: value) {
+            hash ^= b & 0xff;
+            hash *= 0x100000001b3L;
+        }
+        return LongHashIndex.EMPTY_KEY == hash ? 0 : hash;
+    }
+
+}
@@ -0,0 +1,20 @@
+package org.code_revue.dhcp.device;
+
+/**
+ * A {@link org.code_revue.dhcp.device.DeviceRegistry} that may have to go to slower storage to find a device, and can
+ * be told ahead of time that a device is about to be needed. {@link org.code_revue.dhcp.server.ShardedEngine} calls
+ * {@link #prefetch(byte[])} on the receive thread as messages arrive, so the device is usually loaded by the time the
+ * shard thread gets to the message.
+ *
+ * @author Mike Fanning
+ */
+public interface PrefetchingDeviceRegistry extends DeviceRegistry {
+
+    /**
+     * Starts loading a device in the background if it isn't already in memory. This must never block; if the registry
+     * is too busy to load the device, the request is dropped and {@link #getDevice(byte[])} loads it when it is asked.
+     * @param hardwareAddress Hardware address (MAC) of the device
+     */
+    public void prefetch(byte[] hardwareAddress);
+
+}
@@ -1,40 +1,124 @@
 package org.code_revue.dhcp.device;
 
 import org.code_revue.dhcp.util.AddressUtils;
+import org.code_revue.dhcp.util.Clock;
+import org.code_revue.dhcp.util.CoarseClock;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Collection;
-import java.util.Map;
+import java.util.List;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 /**
  * Implementation of {@link org.code_revue.dhcp.device.DeviceRegistry} using in memory map of devices, indexed by
- * hardware address.
+ * hardware address, with {@link org.code_revue.dhcp.device.DeviceIndexes} for the other lookups.
+ * <p>
+ * {@link #getDevice(byte[])} creates a record for every hardware address it hasn't seen, so the registry is bounded to
+ * keep a flood of spoofed addresses from growing it without limit. Devices in the {@link DeviceStatus#DISCOVERED}
+ * state hold nothing the server needs, and are evicted when they have been idle for longer than the idle time to
+ * live, or when the registry is full. Devices holding an offer or a lease are never evicted. Eviction uses the
+ * second chance ("clock") algorithm: every stored device sits in a ring with a reference bit that lookups set, and the
+ * hand clears the bits it passes and evicts the first evictable device whose bit is already clear. The hand moves at
+ * most {@link #MAX_FORCED_SWEEP_STEPS} entries to make room, and not at all when the registry knows none of its devices
+ * are evictable, so a flood against a registry that is full of leases costs the same per message as any other lookup.
+ * If no device is evicted, unknown devices are handed out without being stored until they are updated.
+ * </p>
+ *
  * @author Mike Fanning
  */
 public class SimpleDeviceRegistry implements DeviceRegistry {
 
     private static final Logger logger = LoggerFactory.getLogger(SimpleDeviceRegistry.class);
 
-    private Map<String, NetworkDevice> devices = new ConcurrentHashMap<>();
+    public static final int DEFAULT_CAPACITY = 100000;
+    public static final long DEFAULT_IDLE_TTL = 10 * 60 * 1000;
+
+    /**
+     * Maximum number of ring entries the hand moves over to evict a device when the registry is full.
+     */
+    public static final int MAX_FORCED_SWEEP_STEPS = 32;
+
+    // Number of ring entries checked for idle devices each time a new device is stored.
+    private static final int SWEEP_STEPS = 2;
+
+    private final ConcurrentMap<String, Entry> devices = new ConcurrentHashMap<>();
+
+    private final DeviceIndexes indexes = new DeviceIndexes();
+
+    private final int capacity;
+    private final long idleTtl;
+
+    private volatile Clock clock = CoarseClock.getInstance();
+
+    // Guarded by itself.
+    private final ArrayDeque<Entry> ring = new ArrayDeque<>();
+    private long evictedCount = 0;
+    private long rejectedCount = 0;
+    // Devices in the ring that were DISCOVERED when the registry last saw them.
+    private int evictableCount = 0;
+
+    /**
+     * Creates a registry holding up to {@link #DEFAULT_CAPACITY} devices, which evicts devices that have been
+     * discovered and left alone for {@link #DEFAULT_IDLE_TTL} milliseconds.
+     */
+    public SimpleDeviceRegistry() {
+        this(DEFAULT_CAPACITY, DEFAULT_IDLE_TTL);
+    }
+
+    /**
+     * Creates a new registry.
+     * @param capacity Maximum number of devices to store, not counting devices that can't be evicted
+     * @param idleTtl Milliseconds after which an idle device in the {@link DeviceStatus#DISCOVERED} state is evicted,
+     *                or 0 to only evict when the registry is full
+     */
+    public SimpleDeviceRegistry(int capacity, long idleTtl) {
+        if (capacity <= 0 || idleTtl < 0) {
+            throw new IllegalArgumentException("Invalid capacity or idle time to live");
+        }
+        this.capacity = capacity;
+        this.idleTtl = idleTtl;
+    }
 
     @Override
     public Collection<NetworkDevice> getAllDevices() {
-        return devices.values();
+        List<NetworkDevice> answer = new ArrayList<>(devices.size());
+        for (Entry entry: devices.values()) {
+            answer.add(entry.device);
+        }
+        return answer;
     }
 
     @Override
     public NetworkDevice getDevice(byte[] hardwareAddress) {
         String address = AddressUtils.hardwareAddressToString(hardwareAddress);
         logger.debug("Retrieving network device with hardware address {}", address);
-        NetworkDevice device = devices.get(address);
-        if (null == device) {
-            logger.debug("Device not found, creating new record for {}", address);
-            device = new NetworkDevice();
-            device.setStatus(DeviceStatus.DISCOVERED);
-            device.setHardwareAddress(hardwareAddress);
-            devices.put(address, device);
+        Entry entry = devices.get(address);
+        if (null != entry) {
+            touch(entry);
+            return entry.device;
+        }
+
+        logger.debug("Device not found, creating new record for {}", address);
+        NetworkDevice device = new NetworkDevice();
+        device.setStatus(DeviceStatus.DISCOVERED);
+        device.setHardwareAddress(hardwareAddress);
+        synchronized (ring) {
+            long now = clock.currentTimeMillis();
+            entry = devices.get(address);
+            if (null != entry) {
+                return entry.device;
+            }
+            sweep(SWEEP_STEPS, false, now);
+            if (ring.size() >= capacity && (0 == evictableCount || 0 == sweep(MAX_FORCED_SWEEP_STEPS, true, now))) {
+                // Nothing can be evicted, the engine stores the device if it gets anywhere.
+                rejectedCount++;
+                return device;
+            }
+            insert(address, device, now);
         }
         return device;
     }
@@ -44,11 +128,226 @@ public class SimpleDeviceRegistry implements DeviceRegistry {
         logger.debug("Resetting networked device status {}", hardwareAddress);
         NetworkDevice device = getDevice(hardwareAddress);
         device.setStatus(DeviceStatus.DISCOVERED);
+        synchronized (ring) {
+            Entry entry = devices.get(AddressUtils.hardwareAddressToString(hardwareAddress));
+            if (null != entry) {
+                recount(entry);
+            }
+        }
+        indexes.update(device);
         return device;
     }
 
+    /**
+     * Stores a device. Devices are always stored, even when the registry is full, since they usually hold an offer or
+     * lease by the time they are updated. This takes the eviction lock, so a device can't be evicted while its update
+     * is in flight.
+     */
     @Override
     public NetworkDevice updateDevice(NetworkDevice device) {
-        return devices.put(AddressUtils.hardwareAddressToString(device.getHardwareAddress()), device);
+        String address = AddressUtils.hardwareAddressToString(device.getHardwareAddress());
+        synchronized (ring) {
+            long now = clock.currentTimeMillis();
+            Entry entry = devices.get(address);
+            if (null == entry) {
+                if (ring.size() >= capacity && evictableCount > 0) {
+                    sweep(MAX_FORCED_SWEEP_STEPS, true, now);
+                }
+                insert(address, device, now);
+            } else {
+                entry.device = device;
+                recount(entry);
+                touch(entry);
+            }
+        }
+        indexes.update(device);
+        return device;
     }
+
+    @Override
+    public NetworkDevice getDeviceByIpAddress(byte[] ipAddress) {
+        return indexes.getByIpAddress(ipAddress);
+    }
+
+    @Override
+    public NetworkDevice getDeviceByClientId(byte[] clientId) {
+        return indexes.getByClientId(clientId);
+    }
+
+    @Override
+    public NetworkDevice getDeviceByHostName(String hostName) {
+        return indexes.getByHostName(hostName);
+    }
+
+    /**
+     * Walks the map without locking it, like any iteration over a concurrent map.
+     */
+    @Override
+    public void visitDevices(LeaseQuery query, LeaseQuery.Visitor visitor) {
+        for (Entry entry: devices.values()) {
+            if (!query.matches(entry.device)) {
+                continue;
+            }
+            // The engine may have changed the device since it was matched.
+            NetworkDevice copy = LeaseQuery.copy(entry.device);
+            if (query.matches(copy) && !visitor.visit(copy)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Evicts every device that has been idle for longer than the idle time to live. Storing new devices already evicts
+     * a few at a time, so this only needs to be called to reclaim memory after a flood has stopped.
+     * @return Number of devices evicted
+     */
+    public int evictIdle() {
+        if (0 == idleTtl) {
+            return 0;
+        }
+        synchronized (ring) {
+            return sweep(ring.size(), false, clock.currentTimeMillis());
+        }
+    }
+
+    /**
+     * Number of devices that are stored.
+     * @return Number of devices
+     */
+    public int size() {
+        synchronized (ring) {
+            return ring.size();
+        }
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public long getIdleTtl() {
+        return idleTtl;
+    }
+
+    /**
+     * Total number of devices that have been evicted.
+     * @return Number of evicted devices
+     */
+    public long getEvictedCount() {
+        synchronized (ring) {
+            return evictedCount;
+        }
+    }
+
+    /**
+     * Number of stored devices that can be evicted, as of the last time each was stored, reset or passed by the hand.
+     * @return Number of devices in the {@link DeviceStatus#DISCOVERED} state
+     */
+    public int getEvictableCount() {
+        synchronized (ring) {
+            return evictableCount;
+        }
+    }
+
+    /**
+     * Total number of unknown devices that were handed out without being stored because the registry was full.
+     * @return Number of devices
+     */
+    public long getRejectedCount() {
+        synchronized (ring) {
+            return rejectedCount;
+        }
+    }
+
+    public Clock getClock() {
+        return clock;
+    }
+
+    /**
+     * Set the source of the time devices were last seen at. Default is the shared
+     * {@link org.code_revue.dhcp.util.CoarseClock}.
+     * @param clock Clock
+     */
+    public void setClock(Clock clock) {
+        this.clock = clock;
+    }
+
+    private void touch(Entry entry) {
+        // Skip the writes when nothing changed, lookups of busy devices shouldn't contend on the cache line.
+        if (!entry.referenced) {
+            entry.referenced = true;
+        }
+        long now = clock.currentTimeMillis();
+        if (entry.lastSeen != now) {
+            entry.lastSeen = now;
+        }
+    }
+
+    // Must be called while holding the ring lock.
+    private void insert(String address, NetworkDevice device, long now) {
+        Entry entry = new Entry(address, device, now);
+        devices.put(address, entry);
+        ring.addLast(entry);
+        recount(entry);
+    }
+
+    /**
+     * Brings the count of evictable devices up to date with an entry's device. Must be called while holding the ring
+     * lock.
+     */
+    private void recount(Entry entry) {
+        boolean evictable = DeviceStatus.DISCOVERED.equals(entry.device.getStatus());
+        if (evictable != entry.evictable) {
+            entry.evictable = evictable;
+            evictableCount += evictable ? 1 : -1;
+        }
+    }
+
+    /**
+     * Moves the hand over up to the supplied number of entries, evicting idle devices. If force is set, the first
+     * evictable device with a clear reference bit is evicted too, and the sweep stops there. Must be called while
+     * holding the ring lock.
+     */
+    private int sweep(int steps, boolean force, long now) {
+        int evicted = 0;
+        for (int i = 0; i < steps && !ring.isEmpty(); i++) {
+            Entry entry = ring.pollFirst();
+            recount(entry);
+            boolean idle = idleTtl > 0 && now - entry.lastSeen >= idleTtl;
+            if (entry.evictable && (idle || (force && !entry.referenced))) {
+                devices.remove(entry.key, entry);
+                entry.evictable = false;
+                evictableCount--;
+                indexes.remove(entry.device.getHardwareAddress());
+                evicted++;
+                if (force) {
+                    break;
+                }
+            } else {
+                entry.referenced = false;
+                ring.addLast(entry);
+            }
+        }
+        if (evicted > 0) {
+            evictedCount += evicted;
+            logger.debug("Evicted {} idle device(s)", evicted);
+        }
+        return evicted;
+    }
+
+    private static class Entry {
+
+        private final String key;
+        private volatile NetworkDevice device;
+        private volatile boolean referenced = true;
+        private volatile long lastSeen;
+        // Guarded by the ring lock.
+        private boolean evictable = false;
+
+        private Entry(String key, NetworkDevice device, long lastSeen) {
+            this.key = key;
+            this.device = device;
+            this.lastSeen = lastSeen;
+        }
+    }
+
 }
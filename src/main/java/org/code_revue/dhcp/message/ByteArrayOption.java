@@ -64,4 +64,25 @@ public class ByteArrayOption implements DhcpOption {
     public byte[] getOptionData() {
         return data;
     }
+
+    /**
+     * Options are equal if they have the same type and data, which is what lets
+     * {@link org.code_revue.dhcp.message.DhcpOptionSet} intern them.
+     */
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof DhcpOption)) {
+            return false;
+        }
+        DhcpOption other = (DhcpOption) o;
+        return type == other.getType() && Arrays.equals(data, other.getOptionData());
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * type.hashCode() + Arrays.hashCode(data);
+    }
 }
@@ -0,0 +1,252 @@
+package org.code_revue.dhcp.message;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.EnumMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Immutable set of DHCP options, keyed by type. Almost every device on a subnet is sent the same router, DNS server,
+ * subnet mask and lease time options, so option sets are split in two: the options that are the same for many devices
+ * are interned in a canonical table and shared, and the few options that are different for every device, like
+ * {@link DhcpOptionType#REQUESTED_IP_ADDR}, are kept in a small array that refers to the shared set. A device then
+ * costs a reference and a handful of options instead of its own hash map.
+ * <p>
+ * Options are kept in arrays ordered by type, and lookups scan them, which is faster than hashing for the dozen or so
+ * options a device has. The canonical table holds at most {@link #MAX_INTERNED} sets; beyond that sets are still
+ * immutable but no longer shared, since that many distinct configurations means something is wrong.
+ * </p>
+ *
+ * @author Mike Fanning
+ */
+public final class DhcpOptionSet extends AbstractMap<DhcpOptionType, DhcpOption> {
+
+    public static final int MAX_INTERNED = 4096;
+
+    public static final DhcpOptionSet EMPTY = new DhcpOptionSet(new DhcpOption[0], null);
+
+    private static final ConcurrentMap<DhcpOptionSet, DhcpOptionSet> interned = new ConcurrentHashMap<>();
+
+    private final DhcpOption[] options;
+    private final DhcpOptionSet shared;
+
+    // Racy but idempotent, like String.hashCode.
+    private int hash;
+
+    private DhcpOptionSet(DhcpOption[] options, DhcpOptionSet shared) {
+        this.options = options;
+        this.shared = shared;
+    }
+
+    /**
+     * Get the option set with the same options as a map.
+     * @param options Options keyed by type, or null
+     * @return Option set, the map itself if it already is one
+     */
+    public static DhcpOptionSet of(Map<DhcpOptionType, DhcpOption> options) {
+        if (null == options) {
+            return EMPTY;
+        }
+        if (options instanceof DhcpOptionSet) {
+            return (DhcpOptionSet) options;
+        }
+        return of(options.values());
+    }
+
+    /**
+     * Get the option set with the supplied options. If there are several options of the same type, the last one wins.
+     * @param options Options, e.g. from a {@link org.code_revue.dhcp.message.DhcpMessageBuilder}
+     * @return Option set
+     */
+    public static DhcpOptionSet of(Collection<? extends DhcpOption> options) {
+        Map<DhcpOptionType, DhcpOption> sorted = new EnumMap<>(DhcpOptionType.class);
+        for (DhcpOption option: options) {
+            if (null != option) {
+                sorted.put(option.getType(), option);
+            }
+        }
+
+        int local = 0;
+        for (DhcpOptionType type: sorted.keySet()) {
+            if (isPerDevice(type)) {
+                local++;
+            }
+        }
+        DhcpOption[] common = new DhcpOption[sorted.size() - local];
+        DhcpOption[] perDevice = new DhcpOption[local];
+        int c = 0, p = 0;
+        for (DhcpOption option: sorted.values()) {
+            if (isPerDevice(option.getType())) {
+                perDevice[p++] = option;
+            } else {
+                common[c++] = option;
+            }
+        }
+
+        DhcpOptionSet base = intern(new DhcpOptionSet(common, null));
+        return 0 == local ? base : new DhcpOptionSet(perDevice, base);
+    }
+
+    /**
+     * Check whether options of a type are kept per device instead of being interned, because they are usually
+     * different for every device.
+     * @param type Option type
+     * @return True for the requested IP address, client identifier and host name
+     */
+    public static boolean isPerDevice(DhcpOptionType type) {
+        return DhcpOptionType.REQUESTED_IP_ADDR == type || DhcpOptionType.CLIENT_ID == type ||
+                DhcpOptionType.HOST_NAME == type;
+    }
+
+    /**
+     * Number of option sets in the canonical table.
+     * @return Number of interned sets
+     */
+    public static int getInternedCount() {
+        return interned.size();
+    }
+
+    private static DhcpOptionSet intern(DhcpOptionSet set) {
+        if (0 == set.options.length) {
+            return EMPTY;
+        }
+        DhcpOptionSet canonical = interned.get(set);
+        if (null == canonical) {
+            if (interned.size() >= MAX_INTERNED) {
+                return set;
+            }
+            canonical = interned.putIfAbsent(set, set);
+            if (null == canonical) {
+                canonical = set;
+            }
+        }
+        return canonical;
+    }
+
+    /**
+     * Get a set with an option added, replacing any option of the same type. This set is left alone.
+     * @param option Option to add, or null to leave the set as it is
+     * @return Option set
+     */
+    public DhcpOptionSet with(DhcpOption option) {
+        if (null == option) {
+            return this;
+        }
+        if (option.equals(get(option.getType()))) {
+            return this;
+        }
+        DhcpOption[] all = new DhcpOption[size() + 1];
+        int i = 0;
+        for (DhcpOption existing: values()) {
+            all[i++] = existing;
+        }
+        all[i] = option;
+        return of(Arrays.asList(all));
+    }
+
+    /**
+     * Get the part of this set that is shared with other devices, i.e. without the per device options.
+     * @return Interned option set
+     */
+    public DhcpOptionSet getShared() {
+        return null == shared ? this : shared;
+    }
+
+    @Override
+    public DhcpOption get(Object key) {
+        for (DhcpOption option: options) {
+            if (option.getType() == key) {
+                return option;
+            }
+        }
+        return null == shared ? null : shared.get(key);
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return null != get(key);
+    }
+
+    @Override
+    public int size() {
+        return options.length + (null == shared ? 0 : shared.size());
+    }
+
+    @Override
+    public Set<Entry<DhcpOptionType, DhcpOption>> entrySet() {
+        return new AbstractSet<Entry<DhcpOptionType, DhcpOption>>() {
+            @Override
+            public Iterator<Entry<DhcpOptionType, DhcpOption>> iterator() {
+                return new EntryIterator();
+            }
+
+            @Override
+            public int size() {
+                return DhcpOptionSet.this.size();
+            }
+        };
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (o instanceof DhcpOptionSet && null == shared && null == ((DhcpOptionSet) o).shared) {
+            return Arrays.equals(options, ((DhcpOptionSet) o).options);
+        }
+        return super.equals(o);
+    }
+
+    @Override
+    public int hashCode() {
+        int h = hash;
+        if (0 == h) {
+            for (DhcpOption option: options) {
+                h += option.getType().hashCode() ^ option.hashCode();
+            }
+            if (null != shared) {
+                h += shared.hashCode();
+            }
+            hash = h;
+        }
+        return h;
+    }
+
+    private class EntryIterator implements Iterator<Entry<DhcpOptionType, DhcpOption>> {
+
+        private int index = 0;
+        private final Iterator<Entry<DhcpOptionType, DhcpOption>> rest =
+                null == shared ? null : shared.entrySet().iterator();
+
+        @Override
+        public boolean hasNext() {
+            return index < options.length || (null != rest && rest.hasNext());
+        }
+
+        @Override
+        public Entry<DhcpOptionType, DhcpOption> next() {
+            if (index < options.length) {
+                DhcpOption option = options[index++];
+                return new SimpleImmutableEntry<>(option.getType(), option);
+            }
+            if (null == rest) {
+                throw new NoSuchElementException();
+            }
+            return rest.next();
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException("Option sets are immutable");
+        }
+    }
+
+}
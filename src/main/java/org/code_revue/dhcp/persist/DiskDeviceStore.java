@@ -0,0 +1,603 @@
+package org.code_revue.dhcp.persist;
+
+import org.code_revue.dhcp.device.DeviceStatus;
+import org.code_revue.dhcp.device.NetworkDevice;
+import org.code_revue.dhcp.util.AddressUtils;
+import org.code_revue.dhcp.util.LongHashIndex;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+
+/**
+ * Keeps devices with Ethernet hardware addresses in a local file, for a
+ * {@link org.code_revue.dhcp.persist.TieredDeviceRegistry} to hold the devices that don't fit in memory. Devices are
+ * appended as framed {@link org.code_revue.dhcp.persist.LeaseRecord}s, in the same format as a
+ * {@link org.code_revue.dhcp.persist.LeaseJournal}, and a {@link org.code_revue.dhcp.util.LongHashIndex} maps each
+ * packed hardware address to the offset and length of its latest record, so a device is read back with one positional
+ * read. Writing a device again leaves its old record behind as garbage; once there is more garbage than live data the
+ * file is due to be compacted, by copying the live records to a new file and moving it over the old one.
+ * <p>
+ * The index is rebuilt by scanning the file when the store is opened, and a torn record at the end of the file is cut
+ * off. Writes are not forced to disk: this is a cache of cold devices, and a
+ * {@link org.code_revue.dhcp.persist.LeaseStore} is what makes leases survive a crash.
+ * </p>
+ * <p>
+ * Reads take a read lock and use positional reads, so any number of them can run at once; writes take the write lock,
+ * and compactions only take it to copy the last few records and swap the files.
+ * </p>
+ *
+ * @author Mike Fanning
+ */
+public class DiskDeviceStore implements Closeable {
+
+    private static final Logger logger = LoggerFactory.getLogger(DiskDeviceStore.class);
+
+    public static final long MIN_COMPACTION_BYTES = 1 << 20;
+
+    private static final int ETHERNET_ADDRESS_LENGTH = 6;
+    private static final int FRAME_OVERHEAD = 8;
+    private static final int SCAN_BUFFER_SIZE = 1 << 16;
+    private static final int SIZE_BITS = 24;
+    private static final int VISIT_CHUNK_SIZE = 1024;
+    private static final int COMPACTION_CHUNK_SIZE = 1 << 20;
+
+    private final Path path;
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private final AtomicInteger activeVisits = new AtomicInteger(0);
+    private final ReentrantLock compactionLock = new ReentrantLock();
+
+    // Guarded by lock.
+    private FileChannel channel;
+    private LongHashIndex index = new LongHashIndex(1024);
+    private long end;
+    private long liveBytes = 0;
+    private long garbageBytes = 0;
+    private long compactionCount = 0;
+
+    // Only used while holding the write lock.
+    private final CRC32 crc = new CRC32();
+
+    /**
+     * Opens a store, creating the file if necessary, and indexes the devices in it.
+     * @param path File to keep devices in
+     * @throws IOException If the file can't be opened or read
+     */
+    public DiskDeviceStore(Path path) throws IOException {
+        this.path = path;
+        this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        long start = System.nanoTime();
+        end = scan(channel, 0, channel.size(), new RecordHandler() {
+            @Override
+            public boolean handle(long offset, int size, LeaseRecord record) {
+                long previous = index.get(key(record), -1);
+                if (previous >= 0) {
+                    garbageBytes += sizeOf(previous);
+                    liveBytes -= sizeOf(previous);
+                }
+                index.put(key(record), pack(offset, size));
+                liveBytes += size;
+                return true;
+            }
+        });
+        if (end < channel.size()) {
+            logger.warn("Device store {} ends with {} unreadable bytes, truncating it", path, channel.size() - end);
+            channel.truncate(end);
+        }
+        logger.info("Opened device store {} with {} devices in {} ms", path, index.size(),
+                (System.nanoTime() - start) / 1000000);
+    }
+
+    /**
+     * Check whether the store has a device.
+     * @param hardwareAddress Hardware address packed with {@link AddressUtils#hardwareAddressToLong(byte[])}
+     * @return True if the device is in the store
+     */
+    public boolean contains(long hardwareAddress) {
+        lock.readLock().lock();
+        try {
+            return index.containsKey(hardwareAddress);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Reads a device.
+     * @param hardwareAddress Hardware address packed with {@link AddressUtils#hardwareAddressToLong(byte[])}
+     * @return New device object, or null if the store doesn't have the device
+     * @throws IOException If the device can't be read or its record is corrupt
+     */
+    public NetworkDevice read(long hardwareAddress) throws IOException {
+        lock.readLock().lock();
+        try {
+            checkOpen();
+            long location = index.get(hardwareAddress, -1);
+            if (location < 0) {
+                return null;
+            }
+            ByteBuffer buffer = ByteBuffer.allocate(sizeOf(location));
+            long position = offsetOf(location);
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, position + buffer.position()) < 0) {
+                    throw new IOException("Device store " + path + " is shorter than its index");
+                }
+            }
+            int size = buffer.getInt(0);
+            CRC32 checksum = new CRC32();
+            checksum.update(buffer.array(), 4, size);
+            if (size != buffer.capacity() - FRAME_OVERHEAD || (int) checksum.getValue() != buffer.getInt(4 + size)) {
+                throw new IOException("Corrupt device record at offset " + position + " of " + path);
+            }
+            try {
+                return toDevice(LeaseRecord.readFrom(ByteBuffer.wrap(buffer.array(), 4, size)));
+            } catch (IllegalArgumentException e) {
+                throw new IOException("Unreadable device record at offset " + position + " of " + path, e);
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Writes a device, replacing any earlier copy. This never compacts the file, see {@link #isCompactionDue()}.
+     * @param device Device with an Ethernet hardware address
+     * @throws IOException If the device can't be written
+     * @throws java.lang.IllegalArgumentException If the hardware address isn't 6 bytes long
+     */
+    public void write(NetworkDevice device) throws IOException {
+        lock.writeLock().lock();
+        try {
+            checkOpen();
+            LeaseRecord record = new LeaseRecord(toEvent(device.getStatus()), 0, device);
+            long key = AddressUtils.hardwareAddressToLong(record.getHardwareAddress());
+            ByteBuffer buffer = ByteBuffer.allocate(LeaseJournal.getFramedSize(record));
+            LeaseJournal.writeFramed(record, buffer, crc);
+            buffer.flip();
+            int size = buffer.remaining();
+            long offset = end;
+            while (buffer.hasRemaining()) {
+                channel.write(buffer, offset + buffer.position());
+            }
+            end += size;
+
+            long previous = index.get(key, -1);
+            if (previous >= 0) {
+                garbageBytes += sizeOf(previous);
+                liveBytes -= sizeOf(previous);
+            }
+            index.put(key, pack(offset, size));
+            liveBytes += size;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Visits every device in the store, in the order they were last written. Devices are read in chunks and the
+     * visitor is called without holding any lock, so it may write to the store, but devices written during the walk
+     * may be missed. {@link #isCompactionDue()} is false until the walk is over.
+     * @param visitor Receives new device objects, and can stop the walk
+     * @throws IOException If the file can't be read, or was compacted with {@link #compact()} during the walk
+     */
+    public void visitDevices(Visitor visitor) throws IOException {
+        final List<NetworkDevice> chunk = new ArrayList<>(VISIT_CHUNK_SIZE);
+        long offset = 0;
+        long generation = -1;
+        activeVisits.incrementAndGet();
+        try {
+            while (true) {
+                lock.readLock().lock();
+                try {
+                    checkOpen();
+                    if (generation >= 0 && generation != compactionCount) {
+                        throw new IOException("Device store " + path + " was compacted during a walk");
+                    }
+                    generation = compactionCount;
+                    offset = scan(channel, offset, end, new RecordHandler() {
+                        @Override
+                        public boolean handle(long position, int size, LeaseRecord record) {
+                            if (chunk.size() == VISIT_CHUNK_SIZE) {
+                                return false;
+                            }
+                            if (index.get(key(record), -1) == pack(position, size)) {
+                                chunk.add(toDevice(record));
+                            }
+                            return true;
+                        }
+                    });
+                } finally {
+                    lock.readLock().unlock();
+                }
+
+                if (chunk.isEmpty()) {
+                    return;
+                }
+                for (NetworkDevice device: chunk) {
+                    if (!visitor.visit(device)) {
+                        return;
+                    }
+                }
+                chunk.clear();
+            }
+        } finally {
+            activeVisits.decrementAndGet();
+        }
+    }
+
+    /**
+     * Check whether the file holds more garbage than live data, and isn't being walked by
+     * {@link #visitDevices(Visitor)}. Writes never compact the file themselves; whoever owns the store should call
+     * {@link #compact()} on a background thread when this returns true.
+     * @return True if the file is due for compaction
+     */
+    public boolean isCompactionDue() {
+        lock.readLock().lock();
+        try {
+            return null != channel && 0 == activeVisits.get() &&
+                    garbageBytes > Math.max(liveBytes, MIN_COMPACTION_BYTES);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Rewrites the file with only the latest record of each device. The live records are copied to a new file a chunk
+     * at a time under the read lock, so reads and writes carry on meanwhile, and the new file is forced to disk. Only
+     * the records written since the last chunk are copied under the write lock, before the new file is moved over the
+     * old one and its channel takes over. One compaction runs at a time.
+     * @throws IOException If the new file can't be written or moved into place, in which case the old one is still used
+     */
+    public void compact() throws IOException {
+        compactionLock.lock();
+        try {
+            long start = System.nanoTime();
+            Path temporary = path.resolveSibling(path.getFileName() + ".compact");
+            final FileChannel out = FileChannel.open(temporary, StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            boolean swapped = false;
+            try {
+                final LongHashIndex compacted;
+                lock.readLock().lock();
+                try {
+                    checkOpen();
+                    compacted = new LongHashIndex(index.size());
+                } finally {
+                    lock.readLock().unlock();
+                }
+                final ByteBuffer buffer = ByteBuffer.allocate(SCAN_BUFFER_SIZE);
+                final long[] position = { 0 };
+                final long[] garbage = { 0 };
+                final long[] budget = { 0 };
+                RecordHandler copier = new RecordHandler() {
+                    @Override
+                    public boolean handle(long offset, int size, LeaseRecord record) throws IOException {
+                        if (budget[0] <= 0) {
+                            return false;
+                        }
+                        budget[0] -= size;
+                        if (index.get(key(record), -1) != pack(offset, size)) {
+                            return true;
+                        }
+                        // The copy made by an earlier chunk was replaced since.
+                        long copied = compacted.get(key(record), -1);
+                        if (copied >= 0) {
+                            garbage[0] += sizeOf(copied);
+                        }
+                        ByteBuffer target = buffer;
+                        if (size > buffer.remaining()) {
+                            flush(out, buffer, position);
+                            if (size > buffer.capacity()) {
+                                target = ByteBuffer.allocate(size);
+                            }
+                        }
+                        compacted.put(key(record), pack(position[0] + buffer.position(), size));
+                        LeaseJournal.writeFramed(record, target, crc);
+                        if (target != buffer) {
+                            flush(out, target, position);
+                        }
+                        return true;
+                    }
+                };
+
+                long from = 0;
+                while (true) {
+                    lock.readLock().lock();
+                    try {
+                        checkOpen();
+                        if (end - from <= COMPACTION_CHUNK_SIZE) {
+                            break;
+                        }
+                        budget[0] = COMPACTION_CHUNK_SIZE;
+                        from = copy(copier, from, end, budget);
+                    } finally {
+                        lock.readLock().unlock();
+                    }
+                }
+                flush(out, buffer, position);
+                out.force(false);
+
+                lock.writeLock().lock();
+                try {
+                    checkOpen();
+                    budget[0] = Long.MAX_VALUE;
+                    long before = end;
+                    copy(copier, from, end, budget);
+                    flush(out, buffer, position);
+                    out.force(false);
+                    Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+                    FileChannel old = channel;
+                    channel = out;
+                    swapped = true;
+                    index = compacted;
+                    end = position[0];
+                    garbageBytes = garbage[0];
+                    liveBytes = end - garbageBytes;
+                    compactionCount++;
+                    logger.debug("Compacted device store {} from {} to {} bytes in {} ms", path, before, end,
+                            (System.nanoTime() - start) / 1000000);
+                    try {
+                        old.close();
+                    } catch (IOException e) {
+                        logger.warn("Could not close the old channel of device store " + path, e);
+                    }
+                } finally {
+                    lock.writeLock().unlock();
+                }
+            } finally {
+                if (!swapped) {
+                    try {
+                        out.close();
+                        Files.deleteIfExists(temporary);
+                    } catch (IOException e) {
+                        logger.warn("Could not remove " + temporary, e);
+                    }
+                }
+            }
+        } finally {
+            compactionLock.unlock();
+        }
+    }
+
+    /**
+     * Number of devices in the store.
+     * @return Number of devices
+     */
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return index.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Number of bytes taken up by the latest record of each device.
+     * @return Live bytes
+     */
+    public long getLiveBytes() {
+        lock.readLock().lock();
+        try {
+            return liveBytes;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Number of bytes taken up by records that have been replaced, and will be dropped by the next compaction.
+     * @return Garbage bytes
+     */
+    public long getGarbageBytes() {
+        lock.readLock().lock();
+        try {
+            return garbageBytes;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public long getCompactionCount() {
+        lock.readLock().lock();
+        try {
+            return compactionCount;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public Path getPath() {
+        return path;
+    }
+
+    @Override
+    public void close() throws IOException {
+        lock.writeLock().lock();
+        try {
+            if (null != channel) {
+                channel.close();
+                channel = null;
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Callback for {@link #visitDevices(Visitor)}.
+     */
+    public interface Visitor {
+
+        /**
+         * Called for each device in the store.
+         * @param device Device read from the store
+         * @return True to carry on, false to stop
+         */
+        public boolean visit(NetworkDevice device);
+
+    }
+
+    private interface RecordHandler {
+
+        /**
+         * Called for each intact record, with its offset and framed size.
+         * @return True to carry on, false to stop the scan
+         */
+        public boolean handle(long offset, int size, LeaseRecord record) throws IOException;
+
+    }
+
+    /**
+     * Runs a compaction's copier over part of the file, until it runs out of budget. Must be called while holding the
+     * lock.
+     * @return Offset of the first record that wasn't copied, or the limit
+     * @throws IOException If a record can't be read, which would leave it out of the new file
+     */
+    private long copy(RecordHandler copier, long from, long limit, long[] budget) throws IOException {
+        long next = scan(channel, from, limit, copier);
+        if (next < limit && budget[0] > 0) {
+            throw new IOException("Device store " + path + " has a corrupt record at offset " + next);
+        }
+        return next;
+    }
+
+    private void checkOpen() {
+        if (null == channel) {
+            throw new IllegalStateException("Device store is closed");
+        }
+    }
+
+    /**
+     * Reads the file sequentially through a small buffer, rather than mapping it, so a store can grow past what can be
+     * mapped in one piece. Records for anything but Ethernet addresses are skipped.
+     * @param from Offset of the first record to read
+     * @return Offset of the record the handler stopped at or the first torn or corrupt record, or the limit if every
+     *         record was read
+     */
+    private long scan(FileChannel in, long from, long limit, RecordHandler handler) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(SCAN_BUFFER_SIZE);
+        buffer.flip();
+        long offset = from;
+        long readPosition = from;
+        CRC32 checksum = new CRC32();
+        while (offset < limit) {
+            if (buffer.remaining() < 4) {
+                readPosition = fill(in, buffer, readPosition, limit);
+                if (buffer.remaining() < 4) {
+                    break;
+                }
+            }
+            int size = buffer.getInt(buffer.position());
+            if (size <= 0 || size > limit - offset - FRAME_OVERHEAD) {
+                break;
+            }
+            int framed = size + FRAME_OVERHEAD;
+            if (buffer.remaining() < framed) {
+                if (framed > buffer.capacity()) {
+                    ByteBuffer larger = ByteBuffer.allocate(framed);
+                    larger.put(buffer);
+                    larger.flip();
+                    buffer = larger;
+                }
+                readPosition = fill(in, buffer, readPosition, limit);
+                if (buffer.remaining() < framed) {
+                    break;
+                }
+            }
+
+            int start = buffer.position();
+            checksum.reset();
+            checksum.update(buffer.array(), start + 4, size);
+            if ((int) checksum.getValue() != buffer.getInt(start + 4 + size)) {
+                logger.warn("Device store {} has a corrupt record at offset {}", path, offset);
+                break;
+            }
+            LeaseRecord record;
+            try {
+                record = LeaseRecord.readFrom(ByteBuffer.wrap(buffer.array(), start + 4, size));
+            } catch (IllegalArgumentException e) {
+                logger.warn("Device store " + path + " has an unreadable record at offset " + offset, e);
+                break;
+            }
+            if (ETHERNET_ADDRESS_LENGTH == record.getHardwareAddress().length &&
+                    !handler.handle(offset, framed, record)) {
+                break;
+            }
+            buffer.position(start + framed);
+            offset += framed;
+        }
+        return offset;
+    }
+
+    private static long fill(FileChannel in, ByteBuffer buffer, long position, long limit) throws IOException {
+        buffer.compact();
+        if (buffer.remaining() > limit - position) {
+            buffer.limit(buffer.position() + (int) (limit - position));
+        }
+        int read;
+        while (buffer.hasRemaining() && (read = in.read(buffer, position)) > 0) {
+            position += read;
+        }
+        buffer.flip();
+        return position;
+    }
+
+    private static void flush(FileChannel out, ByteBuffer buffer, long[] position) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            position[0] += out.write(buffer, position[0]);
+        }
+        buffer.clear();
+    }
+
+    private static LeaseEvent toEvent(DeviceStatus status) {
+        if (DeviceStatus.OFFERED.equals(status)) {
+            return LeaseEvent.OFFER;
+        } else if (DeviceStatus.ACKNOWLEDGED.equals(status)) {
+            return LeaseEvent.ACK;
+        }
+        return LeaseEvent.RELEASE;
+    }
+
+    private static NetworkDevice toDevice(LeaseRecord record) {
+        NetworkDevice device = new NetworkDevice();
+        device.setHardwareAddress(record.getHardwareAddress());
+        record.applyTo(device);
+        return device;
+    }
+
+    private static long key(LeaseRecord record) {
+        return AddressUtils.hardwareAddressToLong(record.getHardwareAddress());
+    }
+
+    private static long pack(long offset, int size) {
+        return offset << SIZE_BITS | size;
+    }
+
+    private static long offsetOf(long location) {
+        return location >>> SIZE_BITS;
+    }
+
+    private static int sizeOf(long location) {
+        return (int) (location & ((1 << SIZE_BITS) - 1));
+    }
+
+}
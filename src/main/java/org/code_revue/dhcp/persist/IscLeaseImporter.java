@@ -0,0 +1,257 @@
+package org.code_revue.dhcp.persist;
+
+import org.code_revue.dhcp.device.DeviceRegistry;
+import org.code_revue.dhcp.device.NetworkDevice;
+import org.code_revue.dhcp.server.DhcpAddressPool;
+import org.code_revue.dhcp.server.LeaseReaper;
+import org.code_revue.dhcp.util.AddressUtils;
+import org.code_revue.dhcp.util.Clock;
+import org.code_revue.dhcp.util.IntHashMap;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Brings the bindings of an ISC dhcpd server into a {@link org.code_revue.dhcp.device.DeviceRegistry} and
+ * {@link org.code_revue.dhcp.server.DhcpAddressPool}, so clients keep their addresses when the servers are swapped.
+ * The lease file is read with an {@link org.code_revue.dhcp.persist.IscLeaseParser}, and only the latest declaration
+ * for each address and each client is kept, indexed by primitive address. Leases that are active and haven't expired
+ * are then stored in the registry, and their addresses are claimed from the pool in bulk.
+ * <p>
+ * Leases for addresses outside the pool are imported too, but can't be claimed. A lease for an address that a
+ * different device in the registry already holds is skipped. Set a journal to make the imported leases durable, and a
+ * reaper to expire them.
+ * </p>
+ *
+ * @author Mike Fanning
+ */
+public class IscLeaseImporter {
+
+    private static final Logger logger = LoggerFactory.getLogger(IscLeaseImporter.class);
+
+    private static final int CLAIM_BATCH = 4096;
+
+    private final DeviceRegistry registry;
+    private final DhcpAddressPool pool;
+
+    private IscLeaseParser parser = new IscLeaseParser();
+    private LeaseJournal journal;
+    private LeaseReaper reaper;
+    private Clock clock = Clock.SYSTEM;
+
+    /**
+     * Creates a new importer.
+     * @param registry Registry to store the leases in
+     * @param pool Pool to claim the leased addresses from
+     */
+    public IscLeaseImporter(DeviceRegistry registry, DhcpAddressPool pool) {
+        this.registry = registry;
+        this.pool = pool;
+    }
+
+    /**
+     * Imports a lease file.
+     * @param path Lease file
+     * @return Summary of the import
+     * @throws IOException If the file can't be read or parsed
+     */
+    public Summary importLeases(Path path) throws IOException {
+        long start = System.nanoTime();
+        final IntHashMap<LeaseRecord> byIpAddress = new IntHashMap<>();
+        final Map<ByteBuffer, Integer> byClient = new HashMap<>();
+        long entries = parser.parse(path, new LeaseJournal.Handler() {
+            @Override
+            public void handle(LeaseRecord record) {
+                int address = AddressUtils.convertToInt(record.getIpAddress());
+                if (0 == address) {
+                    return;
+                }
+                if (LeaseEvent.ACK != record.getEvent()) {
+                    byIpAddress.remove(address);
+                    return;
+                }
+                // A client only holds its most recent lease.
+                Integer previous = byClient.put(ByteBuffer.wrap(record.getHardwareAddress()), address);
+                if (null != previous && previous != address) {
+                    LeaseRecord other = byIpAddress.get(previous);
+                    if (null != other && Arrays.equals(other.getHardwareAddress(), record.getHardwareAddress())) {
+                        byIpAddress.remove(previous);
+                    }
+                }
+                byIpAddress.put(address, record);
+            }
+        });
+        long parsed = System.nanoTime();
+
+        long now = clock.currentTimeMillis();
+        int imported = 0, expired = 0, skipped = 0;
+        long claimed = 0;
+        int[] claims = new int[CLAIM_BATCH];
+        int pending = 0;
+        for (LeaseRecord record: byIpAddress.values()) {
+            if (0 != record.getLeaseExpiration() && record.getLeaseExpiration() <= now) {
+                expired++;
+                continue;
+            }
+            if (0 == record.getHardwareAddress().length) {
+                skipped++;
+                continue;
+            }
+            NetworkDevice holder = registry.getDeviceByIpAddress(record.getIpAddress());
+            if (null != holder && !Arrays.equals(holder.getHardwareAddress(), record.getHardwareAddress())) {
+                skipped++;
+                continue;
+            }
+
+            NetworkDevice device = registry.getDevice(record.getHardwareAddress());
+            record.applyTo(device);
+            registry.updateDevice(device);
+            if (null != journal) {
+                journal.append(record);
+            }
+            if (null != reaper) {
+                reaper.scheduleLease(device);
+            }
+            imported++;
+
+            claims[pending++] = AddressUtils.convertToInt(record.getIpAddress());
+            if (CLAIM_BATCH == pending) {
+                claimed += pool.borrowAddresses(claims, 0, pending);
+                pending = 0;
+            }
+        }
+        claimed += pool.borrowAddresses(claims, 0, pending);
+        long end = System.nanoTime();
+
+        Summary summary = new Summary(entries, imported, expired, skipped, claimed, end - start);
+        logger.info("Imported {} of {} ISC leases from {} in {} ms ({} entries/s; parse {} ms, apply {} ms), {} " +
+                "addresses claimed from the pool", imported, entries, path, (end - start) / 1000000,
+                summary.getEntriesPerSecond(), (parsed - start) / 1000000, (end - parsed) / 1000000, claimed);
+        if (expired > 0 || skipped > 0) {
+            logger.info("Skipped {} expired leases and {} leases without a usable client", expired, skipped);
+        }
+        return summary;
+    }
+
+    public IscLeaseParser getParser() {
+        return parser;
+    }
+
+    /**
+     * Set the parser used to read lease files, e.g. to change the chunk size or number of threads.
+     * @param parser Lease file parser
+     */
+    public void setParser(IscLeaseParser parser) {
+        this.parser = parser;
+    }
+
+    public LeaseJournal getJournal() {
+        return journal;
+    }
+
+    /**
+     * Set a journal to record the imported leases in, so they survive a restart.
+     * @param journal Lease journal, or null to disable
+     */
+    public void setJournal(LeaseJournal journal) {
+        this.journal = journal;
+    }
+
+    public LeaseReaper getReaper() {
+        return reaper;
+    }
+
+    /**
+     * Set a reaper to schedule the expiration of the imported leases with.
+     * @param reaper Lease reaper, or null to disable
+     */
+    public void setReaper(LeaseReaper reaper) {
+        this.reaper = reaper;
+    }
+
+    public Clock getClock() {
+        return clock;
+    }
+
+    /**
+     * Set the source of the current time, which decides which leases have already expired. Default is
+     * {@link Clock#SYSTEM}.
+     * @param clock Clock
+     */
+    public void setClock(Clock clock) {
+        this.clock = clock;
+    }
+
+    /**
+     * Counts from an import.
+     */
+    public static class Summary {
+
+        private final long entries;
+        private final int imported;
+        private final int expired;
+        private final int skipped;
+        private final long claimed;
+        private final long elapsedNanos;
+
+        private Summary(long entries, int imported, int expired, int skipped, long claimed, long elapsedNanos) {
+            this.entries = entries;
+            this.imported = imported;
+            this.expired = expired;
+            this.skipped = skipped;
+            this.claimed = claimed;
+            this.elapsedNanos = elapsedNanos;
+        }
+
+        /**
+         * Number of lease declarations in the file, including the ones later declarations replaced.
+         * @return Number of entries
+         */
+        public long getEntries() {
+            return entries;
+        }
+
+        /**
+         * Number of leases stored in the registry.
+         * @return Number of leases
+         */
+        public int getImported() {
+            return imported;
+        }
+
+        public int getExpired() {
+            return expired;
+        }
+
+        /**
+         * Number of leases skipped because they had no hardware address or another device held the address.
+         * @return Number of leases
+         */
+        public int getSkipped() {
+            return skipped;
+        }
+
+        /**
+         * Number of imported addresses claimed from the pool. The rest were outside the pool or already borrowed.
+         * @return Number of addresses
+         */
+        public long getClaimed() {
+            return claimed;
+        }
+
+        public long getElapsedNanos() {
+            return elapsedNanos;
+        }
+
+        public long getEntriesPerSecond() {
+            return entries * 1000000000L / Math.max(elapsedNanos, 1);
+        }
+    }
+
+}
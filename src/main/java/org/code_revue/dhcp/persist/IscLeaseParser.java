@@ -0,0 +1,469 @@
+package org.code_revue.dhcp.persist;
+
+import org.code_revue.dhcp.message.ByteArrayOption;
+import org.code_revue.dhcp.message.DhcpOption;
+import org.code_revue.dhcp.message.DhcpOptionType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Streaming parser for the lease database of ISC dhcpd (<code>dhcpd.leases</code>). The file is split into chunks at
+ * lease declarations, the chunks are memory mapped and parsed in parallel, and the leases are handed to a
+ * {@link org.code_revue.dhcp.persist.LeaseJournal.Handler} in the order they appear in the file. Only a few chunks
+ * are in flight at a time, so memory use depends on the chunk size and the number of threads, not on the size of the
+ * file.
+ * <p>
+ * Each <code>lease</code> declaration becomes a {@link org.code_revue.dhcp.persist.LeaseRecord}: an
+ * {@link LeaseEvent#ACK} if its binding state is active (or it has no binding state, as in old files), or a
+ * {@link LeaseEvent#RELEASE} otherwise. Since dhcpd appends a new declaration every time a lease changes, a later
+ * record for an address replaces the earlier ones. The client identifier (<code>uid</code>) and
+ * <code>client-hostname</code> are kept as options. Everything else in the file, like host declarations and failover
+ * state, is skipped.
+ * </p>
+ *
+ * @author Mike Fanning
+ */
+public class IscLeaseParser {
+
+    private static final Logger logger = LoggerFactory.getLogger(IscLeaseParser.class);
+
+    public static final int DEFAULT_CHUNK_SIZE = 8 * 1024 * 1024;
+
+    private static final byte[] LEASE_DECLARATION = "\nlease ".getBytes(StandardCharsets.US_ASCII);
+    private static final int BOUNDARY_WINDOW = 64 * 1024;
+    private static final byte[] NO_ADDRESS = new byte[0];
+
+    private final int chunkSize;
+    private final int threads;
+
+    private long entryCount = 0;
+
+    /**
+     * Creates a parser with chunks of {@link #DEFAULT_CHUNK_SIZE} bytes and a thread per processor.
+     */
+    public IscLeaseParser() {
+        this(DEFAULT_CHUNK_SIZE, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Creates a new parser.
+     * @param chunkSize Approximate number of bytes parsed as a unit
+     * @param threads Number of threads parsing chunks
+     */
+    public IscLeaseParser(int chunkSize, int threads) {
+        if (chunkSize <= 0 || threads <= 0) {
+            throw new IllegalArgumentException("Chunk size and threads must be positive");
+        }
+        this.chunkSize = chunkSize;
+        this.threads = threads;
+    }
+
+    /**
+     * Parses a lease file.
+     * @param path Lease file
+     * @param handler Receives the leases in file order, on the calling thread
+     * @return Number of lease declarations
+     * @throws IOException If the file can't be read or isn't a lease file
+     */
+    public long parse(Path path, LeaseJournal.Handler handler) throws IOException {
+        long start = System.nanoTime();
+        long count = 0;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            List<Long> boundaries = findBoundaries(channel);
+            Deque<Future<List<LeaseRecord>>> pending = new ArrayDeque<>();
+            for (int i = 0; i + 1 < boundaries.size(); i++) {
+                final MappedByteBuffer chunk = channel.map(FileChannel.MapMode.READ_ONLY, boundaries.get(i),
+                        boundaries.get(i + 1) - boundaries.get(i));
+                pending.add(executor.submit(new Callable<List<LeaseRecord>>() {
+                    @Override
+                    public List<LeaseRecord> call() throws IOException {
+                        return new ChunkParser(chunk).parse();
+                    }
+                }));
+                if (pending.size() >= 2 * threads) {
+                    count += deliver(pending.poll(), handler);
+                }
+            }
+            while (!pending.isEmpty()) {
+                count += deliver(pending.poll(), handler);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        long elapsed = Math.max(System.nanoTime() - start, 1);
+        logger.info("Parsed {} leases from {} in {} ms ({} leases/s)", count, path, elapsed / 1000000,
+                count * 1000000000L / elapsed);
+        synchronized (this) {
+            entryCount += count;
+        }
+        return count;
+    }
+
+    /**
+     * Total number of lease declarations parsed by this parser.
+     * @return Number of leases
+     */
+    public synchronized long getEntryCount() {
+        return entryCount;
+    }
+
+    private static int deliver(Future<List<LeaseRecord>> future, LeaseJournal.Handler handler) throws IOException {
+        List<LeaseRecord> records;
+        try {
+            records = future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while parsing leases", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("Error parsing leases", e.getCause());
+        }
+        for (LeaseRecord record: records) {
+            handler.handle(record);
+        }
+        return records.size();
+    }
+
+    /**
+     * Splits the file into chunks that start at the beginning of a line with a lease declaration, so no declaration
+     * straddles two chunks.
+     */
+    private List<Long> findBoundaries(FileChannel channel) throws IOException {
+        long size = channel.size();
+        List<Long> boundaries = new ArrayList<>();
+        boundaries.add(0L);
+        ByteBuffer window = ByteBuffer.allocate(BOUNDARY_WINDOW);
+        long position = chunkSize;
+        while (position < size) {
+            long boundary = -1;
+            long searchFrom = position - 1;
+            while (boundary < 0 && searchFrom < size) {
+                window.clear();
+                int read = channel.read(window, searchFrom);
+                if (read <= 0) {
+                    break;
+                }
+                int match = indexOf(window, read, LEASE_DECLARATION);
+                if (match >= 0) {
+                    boundary = searchFrom + match + 1;
+                } else {
+                    // Overlap the windows so a declaration split between them is still found.
+                    searchFrom += Math.max(1, read - LEASE_DECLARATION.length + 1);
+                }
+            }
+            if (boundary < 0) {
+                break;
+            }
+            boundaries.add(boundary);
+            position = boundary + chunkSize;
+        }
+        boundaries.add(size);
+        return boundaries;
+    }
+
+    private static int indexOf(ByteBuffer buffer, int length, byte[] pattern) {
+        outer:
+        for (int i = 0; i + pattern.length <= length; i++) {
+            for (int j = 0; j < pattern.length; j++) {
+                if (buffer.get(i + j) != pattern[j]) {
+                    continue outer;
+                }
+            }
+            return i;
+        }
+        return -1;
+    }
+
+    /**
+     * Days from 1970-01-01 to a date in the proleptic Gregorian calendar.
+     */
+    static long daysFromCivil(int year, int month, int day) {
+        year -= month <= 2 ? 1 : 0;
+        long era = (year >= 0 ? year : year - 399) / 400;
+        long yearOfEra = year - era * 400;
+        long dayOfYear = (153 * (month + (month > 2 ? -3 : 9)) + 2) / 5 + day - 1;
+        long dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+        return era * 146097 + dayOfEra - 719468;
+    }
+
+    /**
+     * Tokenizes and parses one chunk. dhcpd writes dates in UTC as "weekday yyyy/mm/dd hh:mm:ss", or as "epoch
+     * seconds" with db-time-format local.
+     */
+    private static class ChunkParser {
+
+        private final ByteBuffer data;
+        private final List<LeaseRecord> records = new ArrayList<>();
+        private final List<String> statement = new ArrayList<>();
+
+        private ChunkParser(ByteBuffer data) {
+            this.data = data;
+        }
+
+        private List<LeaseRecord> parse() throws IOException {
+            String token;
+            while (null != (token = next())) {
+                if ("lease".equals(token)) {
+                    parseLease();
+                } else {
+                    skipStatement(token);
+                }
+            }
+            return records;
+        }
+
+        private void parseLease() throws IOException {
+            String address = next();
+            if (null == address || !"{".equals(next())) {
+                throw new IOException("Malformed lease declaration " + address);
+            }
+            byte[] ipAddress = parseAddress(address);
+            byte[] hardwareAddress = NO_ADDRESS;
+            long starts = 0, ends = 0;
+            boolean active = true;
+            Map<DhcpOptionType, DhcpOption> options = new EnumMap<>(DhcpOptionType.class);
+
+            while (readStatement()) {
+                String keyword = statement.get(0);
+                int size = statement.size();
+                if ("starts".equals(keyword)) {
+                    starts = parseTime(statement);
+                } else if ("ends".equals(keyword)) {
+                    ends = parseTime(statement);
+                } else if ("binding".equals(keyword) && size == 3 && "state".equals(statement.get(1))) {
+                    active = "active".equals(statement.get(2));
+                } else if ("hardware".equals(keyword) && size == 3) {
+                    hardwareAddress = parseHex(statement.get(2));
+                } else if ("uid".equals(keyword) && size == 2) {
+                    options.put(DhcpOptionType.CLIENT_ID,
+                            new ByteArrayOption(DhcpOptionType.CLIENT_ID, parseData(statement.get(1))));
+                } else if ("client-hostname".equals(keyword) && size == 2) {
+                    options.put(DhcpOptionType.HOST_NAME,
+                            new ByteArrayOption(DhcpOptionType.HOST_NAME, parseData(statement.get(1))));
+                }
+            }
+            records.add(new LeaseRecord(active ? LeaseEvent.ACK : LeaseEvent.RELEASE, starts, hardwareAddress,
+                    ipAddress, ends, options));
+        }
+
+        /**
+         * Reads the tokens of the next statement in a block, skipping nested blocks like "on expiry { ... }".
+         * @return False at the end of the block
+         */
+        private boolean readStatement() throws IOException {
+            statement.clear();
+            String token;
+            while (null != (token = next())) {
+                if ("}".equals(token)) {
+                    if (statement.isEmpty()) {
+                        return false;
+                    }
+                    throw new IOException("Unterminated statement " + statement);
+                } else if (";".equals(token)) {
+                    if (!statement.isEmpty()) {
+                        return true;
+                    }
+                } else if ("{".equals(token)) {
+                    skipBlock();
+                    statement.clear();
+                } else {
+                    statement.add(token);
+                }
+            }
+            throw new IOException("Unexpected end of lease file");
+        }
+
+        private void skipStatement(String token) throws IOException {
+            while (null != token && !";".equals(token)) {
+                if ("{".equals(token)) {
+                    skipBlock();
+                    return;
+                }
+                token = next();
+            }
+        }
+
+        private void skipBlock() throws IOException {
+            int depth = 1;
+            String token;
+            while (depth > 0 && null != (token = next())) {
+                if ("{".equals(token)) {
+                    depth++;
+                } else if ("}".equals(token)) {
+                    depth--;
+                }
+            }
+            if (depth > 0) {
+                throw new IOException("Unexpected end of lease file");
+            }
+        }
+
+        /**
+         * Returns the next token: a brace, a semicolon, a quoted string (with its quotes and escapes left in) or a
+         * run of other characters. Comments are skipped.
+         */
+        private String next() {
+            while (data.hasRemaining()) {
+                byte b = data.get();
+                if ('#' == b) {
+                    while (data.hasRemaining() && '\n' != data.get()) {
+                        // Skip to the end of the line
+                    }
+                } else if ('{' == b || '}' == b || ';' == b) {
+                    return String.valueOf((char) b);
+                } else if ('"' == b) {
+                    int start = data.position() - 1;
+                    boolean escaped = false;
+                    while (data.hasRemaining()) {
+                        byte c = data.get();
+                        if (escaped) {
+                            escaped = false;
+                        } else if ('\\' == c) {
+                            escaped = true;
+                        } else if ('"' == c) {
+                            break;
+                        }
+                    }
+                    return text(start, data.position());
+                } else if (b > ' ') {
+                    int start = data.position() - 1;
+                    while (data.hasRemaining()) {
+                        byte c = data.get(data.position());
+                        if (c <= ' ' || '{' == c || '}' == c || ';' == c || '"' == c || '#' == c) {
+                            break;
+                        }
+                        data.get();
+                    }
+                    return text(start, data.position());
+                }
+            }
+            return null;
+        }
+
+        private String text(int start, int end) {
+            char[] chars = new char[end - start];
+            for (int i = 0; i < chars.length; i++) {
+                chars[i] = (char) (data.get(start + i) & 0xff);
+            }
+            return new String(chars);
+        }
+
+        private static byte[] parseAddress(String address) throws IOException {
+            String[] parts = address.split("\\.");
+            if (4 != parts.length) {
+                throw new IOException("Invalid lease address " + address);
+            }
+            byte[] answer = new byte[4];
+            try {
+                for (int i = 0; i < 4; i++) {
+                    int part = Integer.parseInt(parts[i]);
+                    if (part < 0 || part > 255) {
+                        throw new IOException("Invalid lease address " + address);
+                    }
+                    answer[i] = (byte) part;
+                }
+            } catch (NumberFormatException e) {
+                throw new IOException("Invalid lease address " + address, e);
+            }
+            return answer;
+        }
+
+        private static long parseTime(List<String> statement) throws IOException {
+            try {
+                if (2 == statement.size() && "never".equals(statement.get(1))) {
+                    return 0;
+                } else if (3 == statement.size() && "epoch".equals(statement.get(1))) {
+                    return Long.parseLong(statement.get(2)) * 1000;
+                } else if (4 == statement.size()) {
+                    String[] date = statement.get(2).split("/");
+                    String[] time = statement.get(3).split(":");
+                    if (3 == date.length && 3 == time.length) {
+                        long days = daysFromCivil(Integer.parseInt(date[0]), Integer.parseInt(date[1]),
+                                Integer.parseInt(date[2]));
+                        long seconds = days * 86400 + Integer.parseInt(time[0]) * 3600 +
+                                Integer.parseInt(time[1]) * 60 + Integer.parseInt(time[2]);
+                        return seconds * 1000;
+                    }
+                }
+            } catch (NumberFormatException e) {
+                throw new IOException("Invalid time " + statement, e);
+            }
+            throw new IOException("Invalid time " + statement);
+        }
+
+        /**
+         * Parses colon separated hex bytes, like 0:1a:2b:3c:4d:5e.
+         */
+        private static byte[] parseHex(String text) throws IOException {
+            String[] parts = text.split(":");
+            byte[] answer = new byte[parts.length];
+            try {
+                for (int i = 0; i < parts.length; i++) {
+                    answer[i] = (byte) Integer.parseInt(parts[i], 16);
+                }
+            } catch (NumberFormatException e) {
+                throw new IOException("Invalid hex data " + text, e);
+            }
+            return answer;
+        }
+
+        /**
+         * Parses data that is either a quoted string with C style octal escapes or colon separated hex bytes.
+         */
+        private static byte[] parseData(String text) throws IOException {
+            if (!text.startsWith("\"")) {
+                return parseHex(text);
+            }
+            ByteArrayOutputStream out = new ByteArrayOutputStream(text.length());
+            for (int i = 1; i < text.length() - 1; i++) {
+                char c = text.charAt(i);
+                if ('\\' != c) {
+                    out.write(c);
+                    continue;
+                }
+                char escaped = text.charAt(++i);
+                if (escaped >= '0' && escaped <= '7') {
+                    int value = 0, digits = 0;
+                    while (digits < 3 && i < text.length() - 1 && text.charAt(i) >= '0' && text.charAt(i) <= '7') {
+                        value = value * 8 + text.charAt(i) - '0';
+                        i++;
+                        digits++;
+                    }
+                    i--;
+                    out.write(value);
+                } else if ('n' == escaped) {
+                    out.write('\n');
+                } else if ('t' == escaped) {
+                    out.write('\t');
+                } else {
+                    out.write(escaped);
+                }
+            }
+            return out.toByteArray();
+        }
+    }
+
+}
@@ -0,0 +1,174 @@
+package org.code_revue.dhcp.persist;
+
+import org.code_revue.dhcp.device.DeviceRegistry;
+import org.code_revue.dhcp.device.DeviceStatus;
+import org.code_revue.dhcp.device.LeaseQuery;
+import org.code_revue.dhcp.device.NetworkDevice;
+import org.code_revue.dhcp.message.DhcpOption;
+import org.code_revue.dhcp.message.DhcpOptionType;
+import org.code_revue.dhcp.util.AddressUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * Writes the acknowledged leases of a {@link org.code_revue.dhcp.device.DeviceRegistry} in the lease file format of
+ * ISC dhcpd, so a server can be rolled back to dhcpd without clients losing their addresses. Devices are streamed
+ * from the registry with {@link DeviceRegistry#visitDevices(LeaseQuery, LeaseQuery.Visitor)}, so memory use doesn't
+ * depend on the number of leases. The file is written next to its destination and moved into place when complete.
+ * <p>
+ * dhcpd only knows Ethernet style hardware addresses, so leases of devices with other hardware addresses are written
+ * without one and rely on the client identifier, if there is one. The start of a lease is worked out from its
+ * expiration and the lease time that was sent to the client.
+ * </p>
+ *
+ * @author Mike Fanning
+ */
+public class IscLeaseWriter {
+
+    private static final Logger logger = LoggerFactory.getLogger(IscLeaseWriter.class);
+
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    /**
+     * Writes a lease file.
+     * @param registry Registry to export
+     * @param path Lease file to create or replace
+     * @return Number of leases written
+     * @throws IOException If the file can't be written
+     */
+    public long write(DeviceRegistry registry, Path path) throws IOException {
+        long start = System.nanoTime();
+        final long now = System.currentTimeMillis();
+        Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+        final long[] count = new long[1];
+        try (BufferedWriter writer = Files.newBufferedWriter(tmp, StandardCharsets.US_ASCII)) {
+            writer.write("# The format of this file is documented in the dhcpd.leases(5) manual page.\n\n");
+            final BufferedWriter out = writer;
+            final IOException[] failure = new IOException[1];
+            registry.visitDevices(new LeaseQuery().status(DeviceStatus.ACKNOWLEDGED), new LeaseQuery.Visitor() {
+                @Override
+                public boolean visit(NetworkDevice device) {
+                    try {
+                        if (writeLease(out, device, now)) {
+                            count[0]++;
+                        }
+                        return true;
+                    } catch (IOException e) {
+                        failure[0] = e;
+                        return false;
+                    }
+                }
+            });
+            if (null != failure[0]) {
+                throw failure[0];
+            }
+        }
+        Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        long elapsed = Math.max(System.nanoTime() - start, 1);
+        logger.info("Exported {} leases to {} in {} ms ({} leases/s)", count[0], path, elapsed / 1000000,
+                count[0] * 1000000000L / elapsed);
+        return count[0];
+    }
+
+    private static boolean writeLease(Writer out, NetworkDevice device, long now) throws IOException {
+        if (null == device.getIpAddress()) {
+            return false;
+        }
+        long ends = device.getLeaseExpirationMillis();
+        long starts = now;
+        DhcpOption leaseTime = device.getOptions().get(DhcpOptionType.IP_ADDR_LEASE_TIME);
+        if (0 != ends && null != leaseTime && 4 == leaseTime.getOptionData().length) {
+            starts = ends - (AddressUtils.convertToInt(leaseTime.getOptionData()) & 0xffffffffL) * 1000;
+        }
+
+        StringBuilder lease = new StringBuilder(256);
+        lease.append("lease ").append(AddressUtils.convertToString(device.getIpAddress())).append(" {\n");
+        lease.append("  starts ").append(formatTime(starts)).append(";\n");
+        lease.append("  ends ").append(0 == ends ? "never" : formatTime(ends)).append(";\n");
+        lease.append("  binding state active;\n");
+        lease.append("  next binding state free;\n");
+        byte[] hardwareAddress = device.getHardwareAddress();
+        if (6 == hardwareAddress.length) {
+            lease.append("  hardware ethernet ").append(AddressUtils.hardwareAddressToString(hardwareAddress))
+                    .append(";\n");
+        }
+        DhcpOption clientId = device.getOptions().get(DhcpOptionType.CLIENT_ID);
+        if (null != clientId && clientId.getOptionData().length > 0) {
+            lease.append("  uid ").append(formatHex(clientId.getOptionData())).append(";\n");
+        }
+        DhcpOption hostName = device.getOptions().get(DhcpOptionType.HOST_NAME);
+        if (null != hostName) {
+            lease.append("  client-hostname ").append(formatString(hostName.getOptionData())).append(";\n");
+        }
+        lease.append("}\n");
+        out.write(lease.toString());
+        return true;
+    }
+
+    /**
+     * Formats a time the way dhcpd does: day of the week (0 is Sunday) and UTC date and time.
+     */
+    static String formatTime(long millis) {
+        long seconds = floorDiv(millis, 1000);
+        long days = floorDiv(seconds, 86400);
+        long secondOfDay = seconds - days * 86400;
+
+        // Inverse of IscLeaseParser.daysFromCivil.
+        long z = days + 719468;
+        long era = (z >= 0 ? z : z - 146096) / 146097;
+        long dayOfEra = z - era * 146097;
+        long yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096) / 365;
+        long dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+        long mp = (5 * dayOfYear + 2) / 153;
+        long day = dayOfYear - (153 * mp + 2) / 5 + 1;
+        long month = mp < 10 ? mp + 3 : mp - 9;
+        long year = yearOfEra + era * 400 + (month <= 2 ? 1 : 0);
+
+        // 1970-01-01 was a Thursday.
+        long weekday = days + 4 - floorDiv(days + 4, 7) * 7;
+        return String.format("%d %04d/%02d/%02d %02d:%02d:%02d", weekday, year, month, day,
+                secondOfDay / 3600, secondOfDay / 60 % 60, secondOfDay % 60);
+    }
+
+    private static long floorDiv(long x, long y) {
+        long quotient = x / y;
+        return (x % y != 0 && (x < 0) != (y < 0)) ? quotient - 1 : quotient;
+    }
+
+    private static String formatHex(byte[] data) {
+        StringBuilder builder = new StringBuilder(data.length * 3);
+        for (int i = 0; i < data.length; i++) {
+            if (i > 0) {
+                builder.append(':');
+            }
+            builder.append(Integer.toHexString(data[i] & 0xff));
+        }
+        return builder.toString();
+    }
+
+    private static String formatString(byte[] data) {
+        StringBuilder builder = new StringBuilder(data.length + 2).append('"');
+        for (byte b: data) {
+            int c = b & 0xff;
+            if ('"' == c || '\\' == c) {
+                builder.append('\\').append((char) c);
+            } else if (c < ' ' || c > '~') {
+                builder.append('\\').append(HEX_DIGITS[c >> 6]).append(HEX_DIGITS[(c >> 3) & 7])
+                        .append(HEX_DIGITS[c & 7]);
+            } else {
+                builder.append((char) c);
+            }
+        }
+        return builder.append('"').toString();
+    }
+
+}
@@ -0,0 +1,570 @@
+package org.code_revue.dhcp.persist;
+
+import org.code_revue.dhcp.device.DeviceRegistry;
+import org.code_revue.dhcp.device.DeviceStatus;
+import org.code_revue.dhcp.device.LeaseQuery;
+import org.code_revue.dhcp.device.NetworkDevice;
+import org.code_revue.dhcp.device.SimpleDeviceRegistry;
+import org.code_revue.dhcp.message.ByteArrayOption;
+import org.code_revue.dhcp.message.DhcpOption;
+import org.code_revue.dhcp.message.DhcpOptionType;
+import org.code_revue.dhcp.util.AddressUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Implementation of {@link org.code_revue.dhcp.device.DeviceRegistry} that keeps devices in a table of an embedded SQL
+ * database, such as H2 or SQLite in file mode, so that sites can query leases with ordinary SQL tools. Only
+ * <code>java.sql</code> is used; the JDBC driver of the chosen database has to be on the class path.
+ * <p>
+ * The database is never on the path of a DHCP message. Every device is loaded into an in-memory registry when the
+ * registry is created, and lookups are served from there. {@link #updateDevice(NetworkDevice)} and
+ * {@link #resetDevice(byte[])} update the in-memory registry and queue a copy of the device; a device that changes
+ * again before it is written just replaces its queued copy, so a busy client costs one row write per flush however many
+ * messages it sends. A background writer flushes the queue every flush interval, in transactions of up to
+ * {@link #getBatchSize()} devices, each a batch of deletes followed by a batch of inserts, which works the same on
+ * every database. If a flush fails it is rolled back and the devices are queued again, unless they have changed since.
+ * </p>
+ * <p>
+ * The table is created if it doesn't exist:
+ * </p>
+ * <pre>
+ * CREATE TABLE dhcp_device (
+ *     hardware_address VARCHAR(47) PRIMARY KEY,   -- e.g. 02:00:00:00:00:01
+ *     status VARCHAR(16) NOT NULL,                -- DISCOVERED, OFFERED or ACKNOWLEDGED
+ *     ip_address VARCHAR(15),                     -- e.g. 10.0.0.2
+ *     lease_expiration BIGINT NOT NULL,           -- milliseconds since the epoch, 0 for none
+ *     host_name VARCHAR(255),
+ *     options BLOB                                -- code, length and data of each option
+ * )
+ * </pre>
+ *
+ * @author Mike Fanning
+ */
+public class JdbcDeviceRegistry implements DeviceRegistry, Closeable {
+
+    private static final Logger logger = LoggerFactory.getLogger(JdbcDeviceRegistry.class);
+
+    public static final String TABLE = "dhcp_device";
+    public static final long DEFAULT_FLUSH_INTERVAL = 100;
+    public static final int DEFAULT_BATCH_SIZE = 500;
+
+    // Time the writer waits before retrying after a failed flush.
+    private static final long RETRY_DELAY = 1000;
+
+    private static final String CREATE_SQL = "CREATE TABLE IF NOT EXISTS " + TABLE + " (" +
+            "hardware_address VARCHAR(47) PRIMARY KEY, status VARCHAR(16) NOT NULL, ip_address VARCHAR(15), " +
+            "lease_expiration BIGINT NOT NULL, host_name VARCHAR(255), options BLOB)";
+    private static final String SELECT_SQL = "SELECT hardware_address, status, ip_address, lease_expiration, " +
+            "options FROM " + TABLE;
+    private static final String DELETE_SQL = "DELETE FROM " + TABLE + " WHERE hardware_address = ?";
+    private static final String INSERT_SQL = "INSERT INTO " + TABLE + " (hardware_address, status, ip_address, " +
+            "lease_expiration, host_name, options) VALUES (?, ?, ?, ?, ?, ?)";
+
+    private final Connection connection;
+    private final DeviceRegistry cache;
+    private final long flushInterval;
+    private final int batchSize;
+    private final Thread writer;
+
+    private final Object lock = new Object();
+
+    // Held while using the connection, so batches are written one at a time and in order.
+    private final Object writeLock = new Object();
+
+    // Guarded by lock.
+    private Map<String, NetworkDevice> pending = new LinkedHashMap<>();
+    private boolean running = true;
+    private long queuedCount = 0;
+    private long coalescedCount = 0;
+    private long flushCount = 0;
+    private long failedFlushCount = 0;
+    private long writtenCount = 0;
+    private long totalFlushNanos = 0;
+    private long lastFlushNanos = 0;
+    private long maxFlushNanos = 0;
+
+    /**
+     * Opens a database with {@link java.sql.DriverManager} and loads its devices into a
+     * {@link org.code_revue.dhcp.device.SimpleDeviceRegistry}.
+     * @param url JDBC URL, e.g. <code>jdbc:h2:/var/lib/dhcp/leases</code> or
+     *            <code>jdbc:sqlite:/var/lib/dhcp/leases.db</code>
+     * @throws SQLException If the database can't be opened or read
+     */
+    public JdbcDeviceRegistry(String url) throws SQLException {
+        this(DriverManager.getConnection(url), new SimpleDeviceRegistry(), DEFAULT_FLUSH_INTERVAL, DEFAULT_BATCH_SIZE);
+    }
+
+    /**
+     * Creates a registry over an open connection, which it takes over and closes when it is closed.
+     * @param connection Connection to the database, only used by this registry
+     * @param cache In-memory registry to serve lookups from, should be empty
+     * @param flushInterval Milliseconds between flushes of the write queue
+     * @param batchSize Maximum number of devices written per transaction
+     * @throws SQLException If the table can't be created or read
+     */
+    public JdbcDeviceRegistry(Connection connection, DeviceRegistry cache, long flushInterval, int batchSize)
+            throws SQLException {
+        if (flushInterval <= 0 || batchSize <= 0) {
+            throw new IllegalArgumentException("Invalid flush interval or batch size");
+        }
+        this.connection = connection;
+        this.cache = cache;
+        this.flushInterval = flushInterval;
+        this.batchSize = batchSize;
+        load();
+
+        writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                writeBehind();
+            }
+        }, "dhcp-jdbc-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    private void load() throws SQLException {
+        long start = System.nanoTime();
+        int count = 0;
+        connection.setAutoCommit(false);
+        try (Statement statement = connection.createStatement()) {
+            statement.execute(CREATE_SQL);
+            connection.commit();
+            try (ResultSet rows = statement.executeQuery(SELECT_SQL)) {
+                while (rows.next()) {
+                    NetworkDevice device = new NetworkDevice();
+                    try {
+                        device.setHardwareAddress(parseHardwareAddress(rows.getString(1)));
+                        device.setStatus(DeviceStatus.valueOf(rows.getString(2)));
+                        String ipAddress = rows.getString(3);
+                        device.setIpAddress(null == ipAddress ? null : AddressUtils.convertToByteArray(ipAddress));
+                        device.setLeaseExpirationMillis(rows.getLong(4));
+                        device.setOptions(decodeOptions(rows.getBytes(5)));
+                    } catch (IllegalArgumentException e) {
+                        logger.warn("Skipping unreadable device " + rows.getString(1) + " in " + TABLE, e);
+                        continue;
+                    }
+                    cache.updateDevice(device);
+                    count++;
+                }
+            }
+            connection.commit();
+        }
+        logger.info("Loaded {} devices from {} in {} ms", count, TABLE, (System.nanoTime() - start) / 1000000);
+    }
+
+    @Override
+    public Collection<NetworkDevice> getAllDevices() {
+        return cache.getAllDevices();
+    }
+
+    @Override
+    public NetworkDevice getDevice(byte[] hardwareAddress) {
+        return cache.getDevice(hardwareAddress);
+    }
+
+    @Override
+    public NetworkDevice resetDevice(byte[] hardwareAddress) {
+        NetworkDevice device = cache.resetDevice(hardwareAddress);
+        enqueue(device);
+        return device;
+    }
+
+    @Override
+    public NetworkDevice updateDevice(NetworkDevice device) {
+        NetworkDevice stored = cache.updateDevice(device);
+        enqueue(stored);
+        return stored;
+    }
+
+    @Override
+    public NetworkDevice getDeviceByIpAddress(byte[] ipAddress) {
+        return cache.getDeviceByIpAddress(ipAddress);
+    }
+
+    @Override
+    public NetworkDevice getDeviceByClientId(byte[] clientId) {
+        return cache.getDeviceByClientId(clientId);
+    }
+
+    @Override
+    public NetworkDevice getDeviceByHostName(String hostName) {
+        return cache.getDeviceByHostName(hostName);
+    }
+
+    @Override
+    public void visitDevices(LeaseQuery query, LeaseQuery.Visitor visitor) {
+        cache.visitDevices(query, visitor);
+    }
+
+    /**
+     * Queues a snapshot of the device, since the engine keeps changing the original.
+     */
+    private void enqueue(NetworkDevice device) {
+        NetworkDevice copy = LeaseQuery.copy(device);
+        String key = AddressUtils.hardwareAddressToString(device.getHardwareAddress());
+        synchronized (lock) {
+            if (!running) {
+                throw new IllegalStateException("Device registry is closed");
+            }
+            queuedCount++;
+            if (null != pending.put(key, copy)) {
+                coalescedCount++;
+            }
+        }
+    }
+
+    private void writeBehind() {
+        long delay = flushInterval;
+        while (true) {
+            synchronized (lock) {
+                try {
+                    if (running) {
+                        lock.wait(delay);
+                    }
+                } catch (InterruptedException e) {
+                    break;
+                }
+                if (!running) {
+                    break;
+                }
+            }
+            delay = flushPending() ? flushInterval : RETRY_DELAY;
+        }
+        logger.debug("JDBC device writer stopped");
+    }
+
+    /**
+     * Writes every queued device to the database and waits for it to commit.
+     * @throws SQLException If the devices can't be written, in which case they are queued again
+     */
+    public void flush() throws SQLException {
+        synchronized (writeLock) {
+            write(takePending());
+        }
+    }
+
+    /**
+     * Flushes the queue, logging any failure.
+     * @return False if the flush failed
+     */
+    private boolean flushPending() {
+        try {
+            flush();
+            return true;
+        } catch (SQLException e) {
+            logger.error("Could not write devices to " + TABLE + ", will retry", e);
+            return false;
+        }
+    }
+
+    private Map<String, NetworkDevice> takePending() {
+        synchronized (lock) {
+            Map<String, NetworkDevice> batch = pending;
+            pending = new LinkedHashMap<>();
+            return batch;
+        }
+    }
+
+    // Must be called while holding the write lock.
+    private void write(Map<String, NetworkDevice> batch) throws SQLException {
+        if (batch.isEmpty()) {
+            return;
+        }
+        long start = System.nanoTime();
+        List<Map.Entry<String, NetworkDevice>> entries = new ArrayList<>(batch.entrySet());
+        int written = 0;
+        try (PreparedStatement delete = connection.prepareStatement(DELETE_SQL);
+             PreparedStatement insert = connection.prepareStatement(INSERT_SQL)) {
+            for (int from = 0; from < entries.size(); from += batchSize) {
+                List<Map.Entry<String, NetworkDevice>> chunk =
+                        entries.subList(from, Math.min(entries.size(), from + batchSize));
+                try {
+                    for (Map.Entry<String, NetworkDevice> entry: chunk) {
+                        delete.setString(1, entry.getKey());
+                        delete.addBatch();
+                        bind(insert, entry.getKey(), entry.getValue());
+                        insert.addBatch();
+                    }
+                    delete.executeBatch();
+                    insert.executeBatch();
+                    connection.commit();
+                    written += chunk.size();
+                } catch (SQLException | RuntimeException e) {
+                    rollback();
+                    requeue(entries.subList(from, entries.size()));
+                    synchronized (lock) {
+                        failedFlushCount++;
+                    }
+                    throw e;
+                }
+            }
+        } finally {
+            long elapsed = System.nanoTime() - start;
+            synchronized (lock) {
+                flushCount++;
+                writtenCount += written;
+                totalFlushNanos += elapsed;
+                lastFlushNanos = elapsed;
+                maxFlushNanos = Math.max(maxFlushNanos, elapsed);
+            }
+        }
+        logger.debug("Wrote {} devices to {} in {} us", written, TABLE, (System.nanoTime() - start) / 1000);
+    }
+
+    private void rollback() {
+        try {
+            connection.rollback();
+        } catch (SQLException e) {
+            logger.warn("Could not roll back failed device write", e);
+        }
+    }
+
+    /**
+     * Puts devices that couldn't be written back in the queue, unless a newer copy has been queued since.
+     */
+    private void requeue(List<Map.Entry<String, NetworkDevice>> entries) {
+        synchronized (lock) {
+            Map<String, NetworkDevice> merged = new LinkedHashMap<>();
+            for (Map.Entry<String, NetworkDevice> entry: entries) {
+                merged.put(entry.getKey(), entry.getValue());
+            }
+            merged.putAll(pending);
+            pending = merged;
+        }
+    }
+
+    private static void bind(PreparedStatement insert, String hardwareAddress, NetworkDevice device)
+            throws SQLException {
+        insert.setString(1, hardwareAddress);
+        DeviceStatus status = device.getStatus();
+        insert.setString(2, (null == status ? DeviceStatus.DISCOVERED : status).name());
+        byte[] ipAddress = device.getIpAddress();
+        if (null == ipAddress) {
+            insert.setNull(3, Types.VARCHAR);
+        } else {
+            insert.setString(3, AddressUtils.convertToString(ipAddress));
+        }
+        insert.setLong(4, device.getLeaseExpirationMillis());
+        Map<DhcpOptionType, DhcpOption> options = device.getOptions();
+        DhcpOption hostName = options.get(DhcpOptionType.HOST_NAME);
+        if (null == hostName) {
+            insert.setNull(5, Types.VARCHAR);
+        } else {
+            insert.setString(5, new String(hostName.getOptionData(), StandardCharsets.US_ASCII));
+        }
+        insert.setBytes(6, encodeOptions(options));
+    }
+
+    /**
+     * Stops the writer, flushes the queue and closes the connection.
+     * @throws IOException If the last flush fails or the connection can't be closed
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (lock) {
+            if (!running) {
+                return;
+            }
+            running = false;
+            lock.notifyAll();
+        }
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        try {
+            try {
+                flush();
+            } finally {
+                synchronized (writeLock) {
+                    connection.close();
+                }
+            }
+        } catch (SQLException e) {
+            throw new IOException("Could not close device database", e);
+        }
+    }
+
+    /**
+     * Number of devices waiting to be written. Each device is queued at most once, however often it changes.
+     * @return Write queue depth
+     */
+    public int getQueueDepth() {
+        synchronized (lock) {
+            return pending.size();
+        }
+    }
+
+    /**
+     * Number of device changes queued, including the ones that replaced an earlier change to the same device.
+     * @return Number of queued changes
+     */
+    public long getQueuedCount() {
+        synchronized (lock) {
+            return queuedCount;
+        }
+    }
+
+    /**
+     * Number of device changes that replaced a queued change to the same device, i.e. row writes saved.
+     * @return Number of coalesced changes
+     */
+    public long getCoalescedCount() {
+        synchronized (lock) {
+            return coalescedCount;
+        }
+    }
+
+    /**
+     * Number of times the queue was written to the database, including failed attempts.
+     * @return Number of flushes
+     */
+    public long getFlushCount() {
+        synchronized (lock) {
+            return flushCount;
+        }
+    }
+
+    public long getFailedFlushCount() {
+        synchronized (lock) {
+            return failedFlushCount;
+        }
+    }
+
+    /**
+     * Number of device rows written.
+     * @return Number of rows
+     */
+    public long getWrittenCount() {
+        synchronized (lock) {
+            return writtenCount;
+        }
+    }
+
+    /**
+     * Time the last flush took, from the first statement to the last commit.
+     * @param unit Unit of the result
+     * @return Flush latency
+     */
+    public long getLastFlushTime(TimeUnit unit) {
+        synchronized (lock) {
+            return unit.convert(lastFlushNanos, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    /**
+     * Average time a flush took.
+     * @param unit Unit of the result
+     * @return Average flush latency, or 0 if nothing has been flushed
+     */
+    public long getAverageFlushTime(TimeUnit unit) {
+        synchronized (lock) {
+            return 0 == flushCount ? 0 : unit.convert(totalFlushNanos / flushCount, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    public long getMaxFlushTime(TimeUnit unit) {
+        synchronized (lock) {
+            return unit.convert(maxFlushNanos, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    public long getFlushInterval() {
+        return flushInterval;
+    }
+
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    /**
+     * Get the in-memory registry lookups are served from.
+     * @return Cache registry
+     */
+    public DeviceRegistry getCache() {
+        return cache;
+    }
+
+    /**
+     * Encodes options as their code, length and data, like the options of a DHCP message.
+     */
+    static byte[] encodeOptions(Map<DhcpOptionType, DhcpOption> options) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (DhcpOption option: options.values()) {
+            byte[] data = option.getOptionData();
+            out.write(option.getType().getNumericCode());
+            out.write(data.length);
+            out.write(data, 0, data.length);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Decodes options written by {@link #encodeOptions(Map)}, skipping codes this version doesn't know about.
+     * @throws java.lang.IllegalArgumentException If the data is truncated
+     */
+    static Map<DhcpOptionType, DhcpOption> decodeOptions(byte[] encoded) {
+        Map<DhcpOptionType, DhcpOption> options = new EnumMap<>(DhcpOptionType.class);
+        if (null == encoded) {
+            return options;
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(encoded);
+        while (buffer.hasRemaining()) {
+            if (buffer.remaining() < 2) {
+                throw new IllegalArgumentException("Truncated options");
+            }
+            int code = buffer.get() & 0xff;
+            byte[] data = new byte[buffer.get() & 0xff];
+            if (buffer.remaining() < data.length) {
+                throw new IllegalArgumentException("Truncated options");
+            }
+            buffer.get(data);
+            try {
+                DhcpOptionType type = DhcpOptionType.getByNumericCode(code);
+                options.put(type, new ByteArrayOption(type, data));
+            } catch (IllegalArgumentException e) {
+                // Unknown option, skip it.
+            }
+        }
+        return options;
+    }
+
+    private static byte[] parseHardwareAddress(String text) {
+        if (text.isEmpty()) {
+            return new byte[0];
+        }
+        String[] parts = text.split(":");
+        byte[] address = new byte[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            if (parts[i].length() != 2) {
+                throw new IllegalArgumentException("Invalid hardware address " + text);
+            }
+            address[i] = (byte) Integer.parseInt(parts[i], 16);
+        }
+        return address;
+    }
+
+}
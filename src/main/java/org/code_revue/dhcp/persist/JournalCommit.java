@@ -0,0 +1,129 @@
+package org.code_revue.dhcp.persist;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Handle for a record appended to a {@link org.code_revue.dhcp.persist.LeaseJournal}. The commit is done once the
+ * record has either been forced to disk, or the write has failed. Listeners are run exactly once when that happens,
+ * on the journal's writer thread, or straight away on the calling thread if the commit is already done, so they should
+ * be quick.
+ *
+ * @author Mike Fanning
+ */
+public class JournalCommit {
+
+    private static final Logger logger = LoggerFactory.getLogger(JournalCommit.class);
+
+    private boolean done = false;
+    private IOException failure;
+    private List<Runnable> listeners;
+
+    JournalCommit() {
+    }
+
+    /**
+     * Creates a commit that is already durable, for records that didn't need to be written.
+     * @return Completed commit
+     */
+    public static JournalCommit completed() {
+        JournalCommit commit = new JournalCommit();
+        commit.complete(null);
+        return commit;
+    }
+
+    public synchronized boolean isDone() {
+        return done;
+    }
+
+    /**
+     * Check whether the record made it to disk.
+     * @return True if the commit is done and didn't fail
+     */
+    public synchronized boolean isDurable() {
+        return done && null == failure;
+    }
+
+    /**
+     * Get the reason the record couldn't be written.
+     * @return Exception, or null if the commit hasn't failed
+     */
+    public synchronized IOException getFailure() {
+        return failure;
+    }
+
+    /**
+     * Waits until the commit is done.
+     * @return True if the record is durable
+     * @throws InterruptedException If the thread is interrupted while waiting
+     */
+    public synchronized boolean await() throws InterruptedException {
+        while (!done) {
+            wait();
+        }
+        return null == failure;
+    }
+
+    /**
+     * Waits until the commit is done, or the timeout runs out.
+     * @param timeout Maximum time to wait
+     * @param unit Unit of the timeout
+     * @return True if the record is durable
+     * @throws InterruptedException If the thread is interrupted while waiting
+     */
+    public synchronized boolean await(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        long remaining;
+        while (!done && (remaining = deadline - System.nanoTime()) > 0) {
+            TimeUnit.NANOSECONDS.timedWait(this, remaining);
+        }
+        return done && null == failure;
+    }
+
+    /**
+     * Runs a task when the commit is done. Use {@link #isDurable()} in the task to find out whether the write
+     * succeeded.
+     * @param listener Task to run
+     */
+    public void addListener(Runnable listener) {
+        synchronized (this) {
+            if (!done) {
+                if (null == listeners) {
+                    listeners = new ArrayList<>(1);
+                }
+                listeners.add(listener);
+                return;
+            }
+        }
+        listener.run();
+    }
+
+    void complete(IOException failure) {
+        List<Runnable> toRun;
+        synchronized (this) {
+            if (done) {
+                return;
+            }
+            this.done = true;
+            this.failure = failure;
+            toRun = listeners;
+            listeners = null;
+            notifyAll();
+        }
+        if (null != toRun) {
+            for (Runnable listener: toRun) {
+                try {
+                    listener.run();
+                } catch (RuntimeException e) {
+                    logger.error("Error running commit listener", e);
+                }
+            }
+        }
+    }
+
+}
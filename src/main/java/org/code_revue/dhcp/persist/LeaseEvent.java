@@ -0,0 +1,41 @@
+package org.code_revue.dhcp.persist;
+
+/**
+ * Lease state transitions that are recorded in a {@link org.code_revue.dhcp.persist.LeaseJournal}. The numeric code is
+ * what is written to the journal, so existing codes must never change.
+ *
+ * @author Mike Fanning
+ */
+public enum LeaseEvent {
+    OFFER(1),
+    ACK(2),
+    RENEW(3),
+    RELEASE(4),
+    DECLINE(5),
+    EXPIRE(6);
+
+    private final int numericCode;
+
+    private LeaseEvent(int numericCode) {
+        this.numericCode = numericCode;
+    }
+
+    public int getNumericCode() {
+        return numericCode;
+    }
+
+    /**
+     * Get the event for a numeric code.
+     * @param code Code read from a journal
+     * @return Event
+     * @throws java.lang.IllegalArgumentException If there is no event with the supplied code
+     */
+    public static LeaseEvent getByNumericCode(int code) {
+        for (LeaseEvent event: values()) {
+            if (event.numericCode == code) {
+                return event;
+            }
+        }
+        throw new IllegalArgumentException("Invalid lease event code " + code);
+    }
+}
@@ -0,0 +1,464 @@
+package org.code_revue.dhcp.persist;
+
+import org.code_revue.dhcp.device.NetworkDevice;
+import org.code_revue.dhcp.util.Clock;
+import org.code_revue.dhcp.util.CoarseClock;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only write-ahead journal of lease state transitions, so that bindings survive a restart. Records are encoded
+ * on the calling thread and handed to a single writer thread, which gathers everything that arrives within the commit
+ * window into one write and one <code>fsync</code>. Every {@link #append(LeaseEvent, NetworkDevice)} returns a
+ * {@link org.code_revue.dhcp.persist.JournalCommit} that is done once its record is on disk, so a server can hold back
+ * a reply until the lease it describes can't be lost, while many replies share the cost of forcing the file.
+ * <p>
+ * The journal can be switched to a new file with {@link #rotate(Path)} without holding up writers, which is how a
+ * {@link org.code_revue.dhcp.persist.LeaseStore} freezes a segment to compact into a snapshot.
+ * </p>
+ * <p>
+ * Each record is framed by its length and followed by a CRC-32 of its contents. {@link #replay(Path, Handler)} stops at
+ * the first incomplete or corrupt record, which is what a crash in the middle of a write leaves behind. Anything
+ * appended after such a record would be unreadable, so opening a journal, or rotating to an existing file, cuts the
+ * file back to its last intact record before appending to it. Once a write fails, the journal stops accepting records
+ * for the same reason.
+ * </p>
+ *
+ * @author Mike Fanning
+ */
+public class LeaseJournal implements Closeable {
+
+    private static final Logger logger = LoggerFactory.getLogger(LeaseJournal.class);
+
+    public static final long DEFAULT_COMMIT_WINDOW_MICROS = 2000;
+    public static final int MAX_BATCH_BYTES = 1 << 20;
+
+    private static final int FRAME_OVERHEAD = 8;
+
+    private static final Handler IGNORE = new Handler() {
+        @Override
+        public void handle(LeaseRecord record) {
+        }
+    };
+
+    private final long commitWindowNanos;
+    private final Thread writer;
+
+    private final Object lock = new Object();
+
+    // Only changed by the writer thread once it is running.
+    private volatile Path path;
+    private volatile Clock clock = CoarseClock.getInstance();
+    private FileChannel channel;
+
+    // Guarded by lock.
+    private List<ByteBuffer> pendingRecords = new ArrayList<>();
+    private List<JournalCommit> pendingCommits = new ArrayList<>();
+    private int pendingBytes = 0;
+    private boolean closed = false;
+    private Rotation rotation;
+    private int rotationIndex;
+    private IOException failure;
+    private long recordCount = 0;
+    private long syncCount = 0;
+
+    /**
+     * Opens a journal with a commit window of {@link #DEFAULT_COMMIT_WINDOW_MICROS} microseconds, creating the file if
+     * necessary. New records are appended after the last intact record in the file.
+     * @param path Journal file
+     * @throws IOException If the file can't be opened
+     */
+    public LeaseJournal(Path path) throws IOException {
+        this(path, DEFAULT_COMMIT_WINDOW_MICROS, TimeUnit.MICROSECONDS);
+    }
+
+    /**
+     * Opens a journal, creating the file if necessary. A torn or corrupt record at the end of the file, and anything
+     * after it, is cut off, and new records are appended after the last intact record.
+     * @param path Journal file
+     * @param commitWindow How long the writer waits for more records after the first one of a batch arrives. Zero
+     *                     means a batch is written as soon as the writer is free, so only records that arrive during
+     *                     the previous write share a sync.
+     * @param unit Unit of the commit window
+     * @throws IOException If the file can't be opened
+     */
+    public LeaseJournal(Path path, long commitWindow, TimeUnit unit) throws IOException {
+        if (commitWindow < 0) {
+            throw new IllegalArgumentException("Commit window can't be negative");
+        }
+        this.path = path;
+        this.commitWindowNanos = unit.toNanos(commitWindow);
+        this.channel = openForAppend(path);
+
+        writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                writeRecords();
+            }
+        }, "lease-journal-" + path.getFileName());
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Appends a record of a device's current state.
+     * @param event Transition the device just went through
+     * @param device Device after the transition
+     * @return Handle that is done when the record is durable
+     */
+    public JournalCommit append(LeaseEvent event, NetworkDevice device) {
+        return append(new LeaseRecord(event, clock.currentTimeMillis(), device));
+    }
+
+    /**
+     * Appends a record.
+     * @param record Record to append
+     * @return Handle that is done when the record is durable
+     * @throws java.lang.IllegalStateException If the journal has been closed
+     */
+    public JournalCommit append(LeaseRecord record) {
+        ByteBuffer buffer = ByteBuffer.allocate(getFramedSize(record));
+        writeFramed(record, buffer, new CRC32());
+        buffer.flip();
+
+        JournalCommit commit = new JournalCommit();
+        IOException failed;
+        synchronized (lock) {
+            if (closed) {
+                throw new IllegalStateException("Lease journal is closed");
+            }
+            failed = failure;
+            if (null == failed) {
+                pendingRecords.add(buffer);
+                pendingCommits.add(commit);
+                pendingBytes += buffer.remaining();
+                if (1 == pendingRecords.size() || pendingBytes >= MAX_BATCH_BYTES) {
+                    lock.notifyAll();
+                }
+            }
+        }
+        if (null != failed) {
+            commit.complete(failed);
+        }
+        return commit;
+    }
+
+    /**
+     * Switches the journal to a new file. Records appended before this call go to the current file, records appended
+     * after it go to the new one. Once the returned commit is done, the current file has been forced and closed and
+     * can be read or deleted.
+     * @param next New journal file, created if necessary
+     * @return Handle that is done when the switch has happened
+     * @throws IOException If the new file can't be opened
+     * @throws java.lang.IllegalStateException If the journal is closed or a rotation is already in progress
+     */
+    public JournalCommit rotate(Path next) throws IOException {
+        FileChannel nextChannel = openForAppend(next);
+        JournalCommit commit = new JournalCommit();
+        synchronized (lock) {
+            if (closed || null != rotation) {
+                nextChannel.close();
+                throw new IllegalStateException(closed ? "Lease journal is closed" : "Rotation already in progress");
+            }
+            rotation = new Rotation(next, nextChannel, commit);
+            rotationIndex = pendingRecords.size();
+            lock.notifyAll();
+        }
+        return commit;
+    }
+
+    /**
+     * Writes any pending records, stops the writer and closes the file.
+     * @throws IOException If the file can't be closed
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (lock) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            lock.notifyAll();
+        }
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        channel.close();
+    }
+
+    public Path getPath() {
+        return path;
+    }
+
+    public Clock getClock() {
+        return clock;
+    }
+
+    /**
+     * Set the source of the timestamps of records appended with {@link #append(LeaseEvent, NetworkDevice)}. Default is
+     * the shared {@link org.code_revue.dhcp.util.CoarseClock}.
+     * @param clock Clock
+     */
+    public void setClock(Clock clock) {
+        this.clock = clock;
+    }
+
+    /**
+     * Number of records that have been written to disk.
+     * @return Number of records
+     */
+    public long getRecordCount() {
+        synchronized (lock) {
+            return recordCount;
+        }
+    }
+
+    /**
+     * Number of times the file has been forced to disk. Records per sync is a measure of how well group commit is
+     * working.
+     * @return Number of syncs
+     */
+    public long getSyncCount() {
+        synchronized (lock) {
+            return syncCount;
+        }
+    }
+
+    private void writeRecords() {
+        while (true) {
+            List<ByteBuffer> records;
+            List<JournalCommit> commits;
+            Rotation rotate;
+            int rotateIndex;
+            synchronized (lock) {
+                try {
+                    while (pendingRecords.isEmpty() && null == rotation && !closed) {
+                        lock.wait();
+                    }
+                    if (pendingRecords.isEmpty() && null == rotation) {
+                        return;
+                    }
+                    long deadline = System.nanoTime() + commitWindowNanos;
+                    long remaining;
+                    while (!closed && null == rotation && pendingBytes < MAX_BATCH_BYTES &&
+                            (remaining = deadline - System.nanoTime()) > 0) {
+                        TimeUnit.NANOSECONDS.timedWait(lock, remaining);
+                    }
+                } catch (InterruptedException e) {
+                    logger.warn("Lease journal writer interrupted, writing pending records");
+                    closed = true;
+                }
+                records = pendingRecords;
+                commits = pendingCommits;
+                rotate = rotation;
+                rotateIndex = rotationIndex;
+                pendingRecords = new ArrayList<>();
+                pendingCommits = new ArrayList<>();
+                pendingBytes = 0;
+                rotation = null;
+            }
+
+            IOException error = null;
+            int syncs = 0;
+            try {
+                if (null == rotate) {
+                    write(records, 0, records.size());
+                    syncs++;
+                } else {
+                    if (rotateIndex > 0) {
+                        write(records, 0, rotateIndex);
+                        syncs++;
+                    }
+                    channel.close();
+                    channel = rotate.channel;
+                    path = rotate.path;
+                    if (rotateIndex < records.size()) {
+                        write(records, rotateIndex, records.size());
+                        syncs++;
+                    }
+                    logger.info("Lease journal rotated to {}", path);
+                }
+            } catch (IOException e) {
+                logger.error("Error writing lease journal " + path, e);
+                error = e;
+            }
+
+            synchronized (lock) {
+                if (null == error) {
+                    recordCount += records.size();
+                    syncCount += syncs;
+                } else {
+                    failure = error;
+                    for (JournalCommit commit: pendingCommits) {
+                        commit.complete(error);
+                    }
+                    pendingRecords.clear();
+                    pendingCommits.clear();
+                    pendingBytes = 0;
+                }
+            }
+            for (JournalCommit commit: commits) {
+                commit.complete(error);
+            }
+            if (null != rotate) {
+                rotate.commit.complete(error);
+            }
+        }
+    }
+
+    /**
+     * Opens a journal file for writing, cutting it back to its last intact record so that new records can be replayed.
+     */
+    private static FileChannel openForAppend(Path path) throws IOException {
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        try {
+            long intact = replay(path, IGNORE);
+            if (intact < channel.size()) {
+                logger.warn("Cutting {} byte(s) after the last intact record off lease journal {}",
+                        channel.size() - intact, path);
+                channel.truncate(intact);
+                channel.force(false);
+            }
+            channel.position(intact);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        return channel;
+    }
+
+    private void write(List<ByteBuffer> records, int from, int to) throws IOException {
+        ByteBuffer[] buffers = records.subList(from, to).toArray(new ByteBuffer[to - from]);
+        long remaining = 0;
+        for (ByteBuffer buffer: buffers) {
+            remaining += buffer.remaining();
+        }
+        while (remaining > 0) {
+            remaining -= channel.write(buffers);
+        }
+        channel.force(false);
+    }
+
+    private static class Rotation {
+
+        private final Path path;
+        private final FileChannel channel;
+        private final JournalCommit commit;
+
+        private Rotation(Path path, FileChannel channel, JournalCommit commit) {
+            this.path = path;
+            this.channel = channel;
+            this.commit = commit;
+        }
+    }
+
+    /**
+     * Number of bytes a record takes up in a journal, including its length and checksum.
+     */
+    static int getFramedSize(LeaseRecord record) {
+        return record.getEncodedSize() + FRAME_OVERHEAD;
+    }
+
+    /**
+     * Writes a record with its length and checksum.
+     * @param record Record to write
+     * @param buffer Heap buffer with at least {@link #getFramedSize(LeaseRecord)} bytes remaining
+     * @param crc Checksum to use, it is reset first
+     */
+    static void writeFramed(LeaseRecord record, ByteBuffer buffer, CRC32 crc) {
+        int size = record.getEncodedSize();
+        buffer.putInt(size);
+        int start = buffer.position();
+        record.writeTo(buffer);
+        crc.reset();
+        crc.update(buffer.array(), buffer.arrayOffset() + start, size);
+        buffer.putInt((int) crc.getValue());
+    }
+
+    /**
+     * Callback for {@link #replay(Path, Handler)}.
+     */
+    public interface Handler {
+
+        /**
+         * Called for each record, in the order they were written.
+         * @param record Record read from the journal
+         */
+        public void handle(LeaseRecord record);
+
+    }
+
+    /**
+     * Reads every intact record in a journal.
+     * @param path Journal file
+     * @param handler Receives the records
+     * @return Number of bytes of intact records, i.e. the offset of the first torn or corrupt record, if any
+     * @throws IOException If the file can't be read
+     */
+    public static long replay(Path path, Handler handler) throws IOException {
+        if (!Files.exists(path)) {
+            return 0;
+        }
+        try (FileChannel in = FileChannel.open(path, StandardOpenOption.READ)) {
+            ByteBuffer buffer = in.map(FileChannel.MapMode.READ_ONLY, 0, in.size());
+            return replay(buffer, handler);
+        }
+    }
+
+    /**
+     * Reads every intact record in a buffer holding journal data, starting at its position.
+     * @param buffer Journal data
+     * @param handler Receives the records
+     * @return Number of bytes of intact records
+     */
+    public static long replay(ByteBuffer buffer, Handler handler) {
+        int start = buffer.position();
+        CRC32 crc = new CRC32();
+        byte[] scratch = new byte[256];
+        while (buffer.remaining() >= FRAME_OVERHEAD) {
+            int recordStart = buffer.position();
+            int size = buffer.getInt();
+            if (size <= 0 || size > buffer.remaining() - 4) {
+                logger.warn("Lease journal ends with a torn record at offset {}", recordStart - start);
+                return recordStart - start;
+            }
+
+            crc.reset();
+            if (scratch.length < size) {
+                scratch = new byte[Math.max(size, scratch.length * 2)];
+            }
+            ByteBuffer record = buffer.slice();
+            record.limit(size);
+            record.get(scratch, 0, size);
+            crc.update(scratch, 0, size);
+            buffer.position(recordStart + 4 + size);
+            if ((int) crc.getValue() != buffer.getInt()) {
+                logger.warn("Lease journal has a corrupt record at offset {}", recordStart - start);
+                return recordStart - start;
+            }
+
+            try {
+                handler.handle(LeaseRecord.readFrom(ByteBuffer.wrap(scratch, 0, size)));
+            } catch (IllegalArgumentException e) {
+                logger.warn("Lease journal has an unreadable record at offset " + (recordStart - start), e);
+                return recordStart - start;
+            }
+        }
+        return buffer.position() - start;
+    }
+
+}
@@ -0,0 +1,185 @@
+package org.code_revue.dhcp.persist;
+
+import org.code_revue.dhcp.device.DeviceStatus;
+import org.code_revue.dhcp.device.NetworkDevice;
+import org.code_revue.dhcp.message.ByteArrayOption;
+import org.code_revue.dhcp.message.DhcpOption;
+import org.code_revue.dhcp.message.DhcpOptionType;
+import org.code_revue.dhcp.util.AddressUtils;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * A lease state transition as it is stored in a {@link org.code_revue.dhcp.persist.LeaseJournal}: the event, when it
+ * happened, and the state of the device afterwards. Options are encoded the way they appear in a DHCP message (code,
+ * length, data), so they take no more room than on the wire.
+ *
+ * @author Mike Fanning
+ */
+public class LeaseRecord {
+
+    private static final byte[] NO_ADDRESS = new byte[4];
+
+    private final LeaseEvent event;
+    private final long timestamp;
+    private final byte[] hardwareAddress;
+    private final byte[] ipAddress;
+    private final long leaseExpiration;
+    private final Map<DhcpOptionType, DhcpOption> options;
+
+    /**
+     * Creates a record of the current state of a device.
+     * @param event Transition the device just went through
+     * @param timestamp Time of the transition in milliseconds
+     * @param device Device after the transition
+     */
+    public LeaseRecord(LeaseEvent event, long timestamp, NetworkDevice device) {
+        this(event, timestamp, device.getHardwareAddress(), device.getIpAddress(), device.getLeaseExpirationMillis(),
+                device.getOptions());
+    }
+
+    public LeaseRecord(LeaseEvent event, long timestamp, byte[] hardwareAddress, byte[] ipAddress,
+                       long leaseExpiration, Map<DhcpOptionType, DhcpOption> options) {
+        if (null == event || null == hardwareAddress || hardwareAddress.length > 255) {
+            throw new IllegalArgumentException("Invalid lease record");
+        }
+        this.event = event;
+        this.timestamp = timestamp;
+        this.hardwareAddress = hardwareAddress;
+        this.ipAddress = ipAddress;
+        this.leaseExpiration = leaseExpiration;
+        this.options = null == options ? Collections.<DhcpOptionType, DhcpOption>emptyMap() : options;
+    }
+
+    public LeaseEvent getEvent() {
+        return event;
+    }
+
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    public byte[] getHardwareAddress() {
+        return hardwareAddress;
+    }
+
+    /**
+     * Get the IP address the device held after the transition.
+     * @return IP address, or null if it didn't have one
+     */
+    public byte[] getIpAddress() {
+        return ipAddress;
+    }
+
+    /**
+     * Get the lease expiration of the device after the transition.
+     * @return Expiration in milliseconds, or 0 if it didn't have one
+     */
+    public long getLeaseExpiration() {
+        return leaseExpiration;
+    }
+
+    public Map<DhcpOptionType, DhcpOption> getOptions() {
+        return options;
+    }
+
+    /**
+     * Status a device is in after this transition.
+     * @return Device status
+     */
+    public DeviceStatus getStatus() {
+        switch (event) {
+            case OFFER:
+                return DeviceStatus.OFFERED;
+            case ACK:
+            case RENEW:
+                return DeviceStatus.ACKNOWLEDGED;
+            default:
+                return DeviceStatus.DISCOVERED;
+        }
+    }
+
+    /**
+     * Copies the state recorded here to a device.
+     * @param device Device with the same hardware address
+     */
+    public void applyTo(NetworkDevice device) {
+        device.setStatus(getStatus());
+        device.setIpAddress(ipAddress);
+        device.setLeaseExpirationMillis(leaseExpiration);
+        device.setOptions(options);
+    }
+
+    /**
+     * Number of bytes {@link #writeTo(ByteBuffer)} will write.
+     * @return Encoded size
+     */
+    public int getEncodedSize() {
+        int size = 1 + 8 + 1 + hardwareAddress.length + 4 + 8 + 1;
+        for (DhcpOption option: options.values()) {
+            size += 2 + option.getOptionData().length;
+        }
+        return size;
+    }
+
+    /**
+     * Encodes the record.
+     * @param buffer Buffer with at least {@link #getEncodedSize()} bytes remaining
+     */
+    public void writeTo(ByteBuffer buffer) {
+        buffer.put((byte) event.getNumericCode());
+        buffer.putLong(timestamp);
+        buffer.put((byte) hardwareAddress.length);
+        buffer.put(hardwareAddress);
+        buffer.put(null == ipAddress ? NO_ADDRESS : ipAddress);
+        buffer.putLong(leaseExpiration);
+        buffer.put((byte) options.size());
+        for (DhcpOption option: options.values()) {
+            byte[] data = option.getOptionData();
+            buffer.put((byte) option.getType().getNumericCode());
+            buffer.put((byte) data.length);
+            buffer.put(data);
+        }
+    }
+
+    /**
+     * Decodes a record written by {@link #writeTo(ByteBuffer)}. Options with codes this version doesn't know about are
+     * skipped.
+     * @param buffer Buffer positioned at the start of the record
+     * @return Record
+     * @throws java.lang.IllegalArgumentException If the record is malformed
+     */
+    public static LeaseRecord readFrom(ByteBuffer buffer) {
+        try {
+            LeaseEvent event = LeaseEvent.getByNumericCode(buffer.get() & 0xff);
+            long timestamp = buffer.getLong();
+            byte[] hardwareAddress = new byte[buffer.get() & 0xff];
+            buffer.get(hardwareAddress);
+            byte[] ipAddress = new byte[4];
+            buffer.get(ipAddress);
+            long leaseExpiration = buffer.getLong();
+            int optionCount = buffer.get() & 0xff;
+            Map<DhcpOptionType, DhcpOption> options = new EnumMap<>(DhcpOptionType.class);
+            for (int i = 0; i < optionCount; i++) {
+                int code = buffer.get() & 0xff;
+                byte[] data = new byte[buffer.get() & 0xff];
+                buffer.get(data);
+                try {
+                    DhcpOptionType type = DhcpOptionType.getByNumericCode(code);
+                    options.put(type, new ByteArrayOption(type, data));
+                } catch (IllegalArgumentException e) {
+                    // Unknown option, skip it.
+                }
+            }
+            return new LeaseRecord(event, timestamp, hardwareAddress,
+                    0 == AddressUtils.convertToInt(ipAddress) ? null : ipAddress, leaseExpiration, options);
+        } catch (BufferUnderflowException e) {
+            throw new IllegalArgumentException("Truncated lease record", e);
+        }
+    }
+
+}
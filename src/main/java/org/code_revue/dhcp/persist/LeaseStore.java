@@ -0,0 +1,457 @@
+package org.code_revue.dhcp.persist;
+
+import org.code_revue.dhcp.device.DeviceRegistry;
+import org.code_revue.dhcp.device.DeviceStatus;
+import org.code_revue.dhcp.device.NetworkDevice;
+import org.code_revue.dhcp.message.DhcpOption;
+import org.code_revue.dhcp.message.DhcpOptionType;
+import org.code_revue.dhcp.server.DhcpAddressPool;
+import org.code_revue.dhcp.server.LeaseReaper;
+import org.code_revue.dhcp.server.Reservation;
+import org.code_revue.dhcp.server.ReservationTable;
+import org.code_revue.dhcp.server.StandardEngine;
+import org.code_revue.dhcp.util.Clock;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AccessDeniedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * Keeps the lease state of a server in a directory, as a compact snapshot plus a sequence of
+ * {@link org.code_revue.dhcp.persist.LeaseJournal} segments named <code>leases-&lt;sequence&gt;.journal</code>. On
+ * startup, {@link #recover(DeviceRegistry, DhcpAddressPool, ReservationTable, LeaseReaper)} memory maps the snapshot,
+ * replays the segments written after it, restores the devices and claims their addresses in the pool, and then opens a
+ * fresh segment for the engine to journal to. The time spent in each phase is logged.
+ * <p>
+ * {@link #snapshot()} rotates the journal to a new segment and compacts the old snapshot and the frozen segments into a
+ * new snapshot, keeping only the latest state of each device that holds an unexpired address. The live registry is
+ * never read, so packet processing carries on while a snapshot is written; the snapshot is consistent because it is
+ * built from a closed prefix of the journal. The new snapshot replaces the old one with an atomic rename, after which
+ * the segments it covers are deleted. Pool state isn't stored separately, it is rebuilt from the leases.
+ * </p>
+ * <p>
+ * The snapshot starts with a header (magic number, format version, the last journal sequence it covers and the number
+ * of records), followed by records in the same framed, checksummed format as the journal.
+ * </p>
+ *
+ * @author Mike Fanning
+ */
+public class LeaseStore implements Closeable {
+
+    private static final Logger logger = LoggerFactory.getLogger(LeaseStore.class);
+
+    public static final String SNAPSHOT_FILE = "leases.snapshot";
+
+    private static final String JOURNAL_PREFIX = "leases-";
+    private static final String JOURNAL_SUFFIX = ".journal";
+    private static final int MAGIC = 0x444c5353;
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 4 + 4 + 8 + 4;
+    private static final int WRITE_BUFFER_SIZE = 1 << 20;
+
+    private final Path directory;
+    private final long commitWindowMicros;
+
+    private volatile Clock clock = Clock.SYSTEM;
+
+    // Guarded by this.
+    private LeaseJournal journal;
+    private long sequence;
+    private long snapshotSequence;
+    private ScheduledFuture<?> future;
+
+    /**
+     * Creates a store using journal segments with a commit window of
+     * {@link LeaseJournal#DEFAULT_COMMIT_WINDOW_MICROS} microseconds.
+     * @param directory Directory holding the snapshot and journal segments, created if necessary
+     */
+    public LeaseStore(Path directory) {
+        this(directory, LeaseJournal.DEFAULT_COMMIT_WINDOW_MICROS);
+    }
+
+    /**
+     * Creates a store.
+     * @param directory Directory holding the snapshot and journal segments, created if necessary
+     * @param commitWindowMicros Commit window of the journal segments in microseconds
+     */
+    public LeaseStore(Path directory, long commitWindowMicros) {
+        this.directory = directory;
+        this.commitWindowMicros = commitWindowMicros;
+    }
+
+    /**
+     * Restores the leases in the store and opens the journal, for a server without reservations. See
+     * {@link #recover(DeviceRegistry, DhcpAddressPool, ReservationTable, LeaseReaper)}.
+     * @param registry Registry to restore devices in
+     * @param pool Pool to claim leased addresses in
+     * @param reaper Reaper to schedule deadlines with, or null
+     * @return Journal the engine should record lease transitions in
+     * @throws IOException If the store can't be read or the journal can't be opened
+     */
+    public LeaseJournal recover(DeviceRegistry registry, DhcpAddressPool pool, LeaseReaper reaper) throws IOException {
+        return recover(registry, pool, null, reaper);
+    }
+
+    /**
+     * Restores the leases in the store and opens the journal. Devices holding an unexpired offer or lease are restored
+     * in the registry and their addresses are borrowed from the pool; if a reaper is supplied, their deadlines are
+     * scheduled with it. This must be called once, before the engine starts handling messages.
+     * <p>
+     * Reserved addresses are excluded from the pool, so a lease on one can't be borrowed back. Leases on an address
+     * reserved for the same client are restored without touching the pool, and leases on an address reserved for
+     * someone else are dropped. Load the reservations before calling this, so the table already excludes their
+     * addresses: an address that is borrowed by a restored lease when the reservations are loaded can't be excluded.
+     * </p>
+     * @param registry Registry to restore devices in
+     * @param pool Pool to claim leased addresses in
+     * @param reservations Reservations the engine uses, or null if there are none
+     * @param reaper Reaper to schedule deadlines with, or null
+     * @return Journal the engine should record lease transitions in
+     * @throws IOException If the store can't be read or the journal can't be opened
+     */
+    public synchronized LeaseJournal recover(DeviceRegistry registry, DhcpAddressPool pool,
+                                             ReservationTable reservations, LeaseReaper reaper) throws IOException {
+        if (null != journal) {
+            throw new IllegalStateException("Lease store has already been recovered");
+        }
+        Files.createDirectories(directory);
+        long start = System.nanoTime();
+
+        final Map<ByteBuffer, LeaseRecord> leases = new HashMap<>();
+        snapshotSequence = readSnapshot(leases);
+        long snapshotDone = System.nanoTime();
+        int snapshotCount = leases.size();
+
+        List<Long> segments = listSegments();
+        int journalRecords = replaySegments(segments, snapshotSequence, Long.MAX_VALUE, leases);
+        sequence = Math.max(snapshotSequence, segments.isEmpty() ? 0 : segments.get(segments.size() - 1));
+        long journalDone = System.nanoTime();
+
+        long now = clock.currentTimeMillis();
+        int restored = 0, expired = 0, unavailable = 0;
+        for (LeaseRecord record: leases.values()) {
+            if (record.getLeaseExpiration() <= now) {
+                expired++;
+                continue;
+            }
+            Reservation reservation = null == reservations ? null :
+                    reservations.getByIpAddress(record.getIpAddress());
+            if (null != reservation) {
+                if (reservation != reservations.find(record.getHardwareAddress(), getClientId(record))) {
+                    unavailable++;
+                    continue;
+                }
+            } else if (null == pool.borrowAddress(record.getIpAddress())) {
+                unavailable++;
+                continue;
+            }
+            NetworkDevice device = registry.getDevice(record.getHardwareAddress());
+            record.applyTo(device);
+            registry.updateDevice(device);
+            if (null != reaper) {
+                if (DeviceStatus.OFFERED.equals(device.getStatus())) {
+                    reaper.scheduleOffer(device, record.getTimestamp() + StandardEngine.DEFAULT_OFFER_TIMEOUT);
+                } else {
+                    reaper.scheduleLease(device);
+                }
+            }
+            restored++;
+        }
+        long restoreDone = System.nanoTime();
+
+        sequence++;
+        journal = new LeaseJournal(segmentPath(sequence), commitWindowMicros, TimeUnit.MICROSECONDS);
+        journal.setClock(clock);
+        long end = System.nanoTime();
+
+        logger.info("Recovered {} leases in {} ms: snapshot {} ms ({} leases), journal {} ms ({} records in {} " +
+                "segments), restore {} ms, open journal {} ms", restored, millis(end - start),
+                millis(snapshotDone - start), snapshotCount, millis(journalDone - snapshotDone), journalRecords,
+                segments.size(), millis(restoreDone - journalDone), millis(end - restoreDone));
+        if (expired > 0 || unavailable > 0) {
+            logger.info("Skipped {} expired leases and {} leases for addresses the pool couldn't supply or that are " +
+                    "reserved for another client", expired, unavailable);
+        }
+        return journal;
+    }
+
+    /**
+     * Rotates the journal and compacts the frozen segments into a new snapshot, deleting the segments afterwards. Only
+     * one snapshot is written at a time.
+     * @throws IOException If the snapshot can't be written
+     */
+    public synchronized void snapshot() throws IOException {
+        if (null == journal) {
+            throw new IllegalStateException("Lease store hasn't been recovered");
+        }
+        long frozen = sequence;
+        sequence++;
+        JournalCommit rotated = journal.rotate(segmentPath(sequence));
+        try {
+            if (!rotated.await()) {
+                throw rotated.getFailure();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while rotating lease journal", e);
+        }
+
+        long start = System.nanoTime();
+        Map<ByteBuffer, LeaseRecord> leases = new HashMap<>();
+        long previous = readSnapshot(leases);
+        List<Long> segments = listSegments();
+        int journalRecords = replaySegments(segments, previous, frozen, leases);
+        long loaded = System.nanoTime();
+
+        int written = writeSnapshot(leases, frozen);
+        snapshotSequence = frozen;
+        int deleted = 0;
+        for (long segment: segments) {
+            if (segment <= frozen) {
+                Files.delete(segmentPath(segment));
+                deleted++;
+            }
+        }
+        logger.info("Wrote lease snapshot of {} leases from {} journal records in {} ms (load {} ms, write {} " +
+                "ms), deleted {} journal segments", written, journalRecords, millis(System.nanoTime() - start),
+                millis(loaded - start), millis(System.nanoTime() - loaded), deleted);
+    }
+
+    /**
+     * Writes a snapshot periodically.
+     * @param executor Executor to run snapshots on
+     * @param period Time between snapshots
+     * @param unit Unit of the period
+     */
+    public synchronized void start(ScheduledExecutorService executor, long period, TimeUnit unit) {
+        if (null != future) {
+            throw new IllegalStateException("Snapshots are already scheduled");
+        }
+        future = executor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    snapshot();
+                } catch (IOException | RuntimeException e) {
+                    logger.error("Error writing lease snapshot", e);
+                }
+            }
+        }, period, period, unit);
+    }
+
+    /**
+     * Stops periodic snapshots.
+     */
+    public synchronized void stop() {
+        if (null != future) {
+            future.cancel(false);
+            future = null;
+        }
+    }
+
+    /**
+     * Stops periodic snapshots and closes the journal.
+     * @throws IOException If the journal can't be closed
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        stop();
+        if (null != journal) {
+            journal.close();
+        }
+    }
+
+    public Path getDirectory() {
+        return directory;
+    }
+
+    public Clock getClock() {
+        return clock;
+    }
+
+    /**
+     * Set the source of the current time, which decides which leases have expired during recovery and compaction and
+     * is passed on to the journal. Default is {@link Clock#SYSTEM}.
+     * @param clock Clock
+     */
+    public void setClock(Clock clock) {
+        this.clock = clock;
+    }
+
+    /**
+     * Journal that is currently being written.
+     * @return Lease journal, or null if the store hasn't been recovered
+     */
+    public synchronized LeaseJournal getJournal() {
+        return journal;
+    }
+
+    /**
+     * Sequence number of the last journal segment included in the snapshot.
+     * @return Snapshot sequence, 0 if there is no snapshot
+     */
+    public synchronized long getSnapshotSequence() {
+        return snapshotSequence;
+    }
+
+    private Path segmentPath(long segment) {
+        return directory.resolve(String.format("%s%016d%s", JOURNAL_PREFIX, segment, JOURNAL_SUFFIX));
+    }
+
+    private List<Long> listSegments() throws IOException {
+        List<Long> segments = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory,
+                JOURNAL_PREFIX + "*" + JOURNAL_SUFFIX)) {
+            for (Path path: stream) {
+                String name = path.getFileName().toString();
+                try {
+                    segments.add(Long.parseLong(name.substring(JOURNAL_PREFIX.length(),
+                            name.length() - JOURNAL_SUFFIX.length())));
+                } catch (NumberFormatException e) {
+                    logger.warn("Ignoring unexpected file {}", path);
+                }
+            }
+        }
+        Collections.sort(segments);
+        return segments;
+    }
+
+    /**
+     * Replays the segments with sequence numbers in (after, upTo] into the map of leases.
+     */
+    private int replaySegments(List<Long> segments, long after, long upTo, final Map<ByteBuffer, LeaseRecord> leases)
+            throws IOException {
+        final int[] count = new int[1];
+        for (long segment: segments) {
+            if (segment > after && segment <= upTo) {
+                LeaseJournal.replay(segmentPath(segment), new LeaseJournal.Handler() {
+                    @Override
+                    public void handle(LeaseRecord record) {
+                        apply(record, leases);
+                        count[0]++;
+                    }
+                });
+            }
+        }
+        return count[0];
+    }
+
+    private static byte[] getClientId(LeaseRecord record) {
+        DhcpOption clientId = null == record.getOptions() ? null : record.getOptions().get(DhcpOptionType.CLIENT_ID);
+        return null == clientId ? null : clientId.getOptionData();
+    }
+
+    private static void apply(LeaseRecord record, Map<ByteBuffer, LeaseRecord> leases) {
+        ByteBuffer key = ByteBuffer.wrap(record.getHardwareAddress());
+        if (DeviceStatus.DISCOVERED.equals(record.getStatus()) || null == record.getIpAddress()) {
+            leases.remove(key);
+        } else {
+            leases.put(key, record);
+        }
+    }
+
+    /**
+     * Loads the snapshot, if there is one, into the map of leases.
+     * @return Last journal sequence covered by the snapshot, 0 if there is none
+     */
+    private long readSnapshot(final Map<ByteBuffer, LeaseRecord> leases) throws IOException {
+        Path path = directory.resolve(SNAPSHOT_FILE);
+        if (!Files.exists(path)) {
+            return 0;
+        }
+        try (FileChannel in = FileChannel.open(path, StandardOpenOption.READ)) {
+            ByteBuffer buffer = in.map(FileChannel.MapMode.READ_ONLY, 0, in.size());
+            if (buffer.remaining() < HEADER_SIZE || MAGIC != buffer.getInt() || VERSION != buffer.getInt()) {
+                throw new IOException("Not a lease snapshot: " + path);
+            }
+            long covered = buffer.getLong();
+            int expected = buffer.getInt();
+            final int[] count = new int[1];
+            LeaseJournal.replay(buffer, new LeaseJournal.Handler() {
+                @Override
+                public void handle(LeaseRecord record) {
+                    apply(record, leases);
+                    count[0]++;
+                }
+            });
+            if (count[0] != expected) {
+                throw new IOException("Lease snapshot " + path + " is corrupt, read " + count[0] + " of " + expected +
+                        " records");
+            }
+            return covered;
+        }
+    }
+
+    private int writeSnapshot(Map<ByteBuffer, LeaseRecord> leases, long covered) throws IOException {
+        long now = clock.currentTimeMillis();
+        List<LeaseRecord> live = new ArrayList<>(leases.size());
+        for (LeaseRecord record: leases.values()) {
+            if (record.getLeaseExpiration() > now) {
+                live.add(record);
+            }
+        }
+
+        Path temp = directory.resolve(SNAPSHOT_FILE + ".tmp");
+        try (FileChannel out = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer buffer = ByteBuffer.allocate(WRITE_BUFFER_SIZE);
+            buffer.putInt(MAGIC).putInt(VERSION).putLong(covered).putInt(live.size());
+            CRC32 crc = new CRC32();
+            for (LeaseRecord record: live) {
+                if (buffer.remaining() < LeaseJournal.getFramedSize(record)) {
+                    drain(buffer, out);
+                }
+                LeaseJournal.writeFramed(record, buffer, crc);
+            }
+            drain(buffer, out);
+            out.force(true);
+        }
+        Files.move(temp, directory.resolve(SNAPSHOT_FILE), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        // The rename is only durable once the directory is, and the segments it covers are deleted next.
+        forceDirectory();
+        return live.size();
+    }
+
+    /**
+     * Forces the directory's entries to disk. Windows can't open a directory as a channel, and doesn't need to.
+     */
+    private void forceDirectory() throws IOException {
+        try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (AccessDeniedException e) {
+            logger.debug("Can't force lease store directory {}", directory, e);
+        }
+    }
+
+    private static void drain(ByteBuffer buffer, FileChannel out) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            out.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    private static long millis(long nanos) {
+        return TimeUnit.NANOSECONDS.toMillis(nanos);
+    }
+
+}
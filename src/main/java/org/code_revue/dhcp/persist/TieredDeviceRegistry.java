@@ -0,0 +1,819 @@
+package org.code_revue.dhcp.persist;
+
+import org.code_revue.dhcp.device.DeviceRegistry;
+import org.code_revue.dhcp.device.DeviceStatus;
+import org.code_revue.dhcp.device.LeaseQuery;
+import org.code_revue.dhcp.device.NetworkDevice;
+import org.code_revue.dhcp.device.PackedDeviceIndexes;
+import org.code_revue.dhcp.device.PrefetchingDeviceRegistry;
+import org.code_revue.dhcp.device.SimpleDeviceRegistry;
+import org.code_revue.dhcp.util.AddressUtils;
+import org.code_revue.dhcp.util.FrequencySketch;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Implementation of {@link org.code_revue.dhcp.device.DeviceRegistry} that keeps a bounded number of devices in memory
+ * and the rest in a {@link org.code_revue.dhcp.persist.DiskDeviceStore}, so a server can remember far more devices than
+ * it has memory for. Devices with any other length of hardware address than Ethernet's are handed to a
+ * {@link org.code_revue.dhcp.device.SimpleDeviceRegistry}.
+ * <p>
+ * The memory ("hot") tier uses the W-TinyLFU policy. New devices go into a small LRU window; when the window
+ * overflows, its least recently used device competes for a place in the main area, which is a segmented LRU of a
+ * probation segment and a protected segment for devices that have been looked up again. The candidate only gets in if
+ * a {@link org.code_revue.dhcp.util.FrequencySketch} says it has been looked up more often recently than the device it
+ * would push out. A flood of one-off hardware addresses therefore churns through the window without displacing the
+ * devices that keep coming back, which plain LRU can't manage. Devices that leave the hot tier are written to the disk
+ * store if they changed and hold anything worth keeping.
+ * </p>
+ * <p>
+ * Looking up a device that isn't in memory reads it from disk on the calling thread. To keep that off the critical
+ * path, {@link #prefetch(byte[])} starts the read on a background loader thread and never blocks, which is what
+ * {@link org.code_revue.dhcp.server.ShardedEngine} does on the receive thread as messages arrive; a lookup that finds
+ * a load in flight waits for it instead of reading the device again.
+ * </p>
+ * <p>
+ * Secondary lookups go through {@link org.code_revue.dhcp.device.PackedDeviceIndexes}, which map the IP address and
+ * hashes of the client identifier and host name of every device, hot or cold, to its packed hardware address, and
+ * then load the device itself. The indexes stay on the heap and grow with the number of devices on disk that have an
+ * address, client identifier or host name, but they hold no objects, only up to six hash index entries per device.
+ * </p>
+ * <p>
+ * Only changes passed to {@link #updateDevice(NetworkDevice)} or {@link #resetDevice(byte[])} reach the disk. Disk
+ * writes happen while holding the registry's lock, and are appends that aren't forced; reads don't. When the store
+ * has built up enough garbage it is compacted on a background compactor thread, which only holds the store's write
+ * lock, and so holds up the registry's writes, while it copies the records written during the compaction.
+ * </p>
+ *
+ * @see <a href="https://arxiv.org/abs/1512.00727">TinyLFU: A Highly Efficient Cache Admission Policy</a>
+ * @author Mike Fanning
+ */
+public class TieredDeviceRegistry implements PrefetchingDeviceRegistry, Closeable {
+
+    private static final Logger logger = LoggerFactory.getLogger(TieredDeviceRegistry.class);
+
+    public static final int DEFAULT_CAPACITY = 100000;
+    public static final int DEFAULT_LOAD_QUEUE_CAPACITY = 1024;
+
+    private static final int ETHERNET_ADDRESS_LENGTH = 6;
+
+    // Share of the hot tier used by the window, and share of the main area used by the protected segment.
+    private static final double WINDOW_RATIO = 0.01;
+    private static final double PROTECTED_RATIO = 0.8;
+
+    private static final int WINDOW = 0;
+    private static final int PROBATION = 1;
+    private static final int PROTECTED = 2;
+
+    private final DiskDeviceStore store;
+    private final int capacity;
+    private final int windowCapacity;
+    private final int protectedCapacity;
+    private final ThreadPoolExecutor loader;
+    private final ThreadPoolExecutor compactor;
+
+    private final DeviceRegistry fallback = new SimpleDeviceRegistry();
+    private final PackedDeviceIndexes indexes;
+
+    private final Runnable compaction = new Runnable() {
+        @Override
+        public void run() {
+            try {
+                if (store.isCompactionDue()) {
+                    store.compact();
+                }
+            } catch (IOException e) {
+                logger.error("Could not compact " + store.getPath(), e);
+            } catch (IllegalStateException e) {
+                logger.debug("Device store {} was closed during a compaction", store.getPath());
+            }
+        }
+    };
+
+    private final ReentrantLock lock = new ReentrantLock();
+
+    // Guarded by lock.
+    private final Map<Long, Node> nodes = new HashMap<>();
+    private final AccessQueue window = new AccessQueue();
+    private final AccessQueue probation = new AccessQueue();
+    private final AccessQueue protectedSegment = new AccessQueue();
+    private final FrequencySketch sketch;
+    private final Map<Long, FutureTask<NetworkDevice>> loading = new HashMap<>();
+    private boolean closed = false;
+    private long hitCount = 0;
+    private long missCount = 0;
+    private long loadCount = 0;
+    private long loadNanos = 0;
+    private long evictionCount = 0;
+    private long admissionRejectedCount = 0;
+    private long writeCount = 0;
+    private long prefetchDroppedCount = 0;
+
+    /**
+     * Creates a registry that keeps up to {@link #DEFAULT_CAPACITY} devices in memory.
+     * @param path File to keep cold devices in, created if necessary
+     * @throws IOException If the file can't be opened or read
+     */
+    public TieredDeviceRegistry(Path path) throws IOException {
+        this(path, DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Creates a registry, opening the disk store and indexing the devices in it.
+     * @param path File to keep cold devices in, created if necessary
+     * @param capacity Maximum number of devices to keep in memory, at least 2
+     * @throws IOException If the file can't be opened or read
+     */
+    public TieredDeviceRegistry(Path path, int capacity) throws IOException {
+        if (capacity < 2) {
+            throw new IllegalArgumentException("Capacity must be at least 2");
+        }
+        this.capacity = capacity;
+        this.windowCapacity = Math.max(1, (int) (capacity * WINDOW_RATIO));
+        this.protectedCapacity = (int) ((capacity - windowCapacity) * PROTECTED_RATIO);
+        this.sketch = new FrequencySketch(capacity);
+        this.indexes = new PackedDeviceIndexes(capacity);
+
+        this.store = new DiskDeviceStore(path);
+        store.visitDevices(new DiskDeviceStore.Visitor() {
+            @Override
+            public boolean visit(NetworkDevice device) {
+                indexes.update(AddressUtils.hardwareAddressToLong(device.getHardwareAddress()), device);
+                return true;
+            }
+        });
+
+        this.loader = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(DEFAULT_LOAD_QUEUE_CAPACITY), daemonThreads("dhcp-device-loader"));
+        // One compaction waiting behind the running one is plenty, it checks whether it is still due.
+        this.compactor = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(1),
+                daemonThreads("dhcp-device-compactor"), new ThreadPoolExecutor.DiscardPolicy());
+    }
+
+    /**
+     * Returns the devices in memory, then reads the rest from disk. This can take a while for a large store.
+     */
+    @Override
+    public Collection<NetworkDevice> getAllDevices() {
+        final List<NetworkDevice> answer = new ArrayList<>();
+        visitDevices(new LeaseQuery(), new LeaseQuery.Visitor() {
+            @Override
+            public boolean visit(NetworkDevice device) {
+                answer.add(device);
+                return true;
+            }
+        });
+        return answer;
+    }
+
+    @Override
+    public NetworkDevice getDevice(byte[] hardwareAddress) {
+        if (hardwareAddress.length != ETHERNET_ADDRESS_LENGTH) {
+            return fallback.getDevice(hardwareAddress);
+        }
+        long key = AddressUtils.hardwareAddressToLong(hardwareAddress);
+
+        FutureTask<NetworkDevice> task;
+        lock.lock();
+        try {
+            checkOpen();
+            sketch.increment(key);
+            Node node = access(key);
+            if (null != node) {
+                hitCount++;
+                return node.device;
+            }
+            missCount++;
+            task = loading.get(key);
+            if (null == task) {
+                if (!store.contains(key)) {
+                    return admitNew(key);
+                }
+                task = newLoad(key);
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        // Run the load here unless the loader has already started it, then wait for it.
+        task.run();
+        try {
+            return task.get();
+        } catch (ExecutionException e) {
+            logger.error("Could not load device " + AddressUtils.hardwareAddressToString(hardwareAddress),
+                    e.getCause());
+        } catch (CancellationException e) {
+            logger.debug("Load of device {} was cancelled", AddressUtils.hardwareAddressToString(hardwareAddress));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        // Hand out an empty device rather than fail the message, it's stored if it gets anywhere.
+        NetworkDevice device = new NetworkDevice();
+        device.setStatus(DeviceStatus.DISCOVERED);
+        device.setHardwareAddress(hardwareAddress);
+        return device;
+    }
+
+    /**
+     * Queues a load of a cold device on the loader thread. If the registry's lock is busy or the loader's queue is full
+     * the request is dropped, so this never blocks.
+     */
+    @Override
+    public void prefetch(byte[] hardwareAddress) {
+        if (hardwareAddress.length != ETHERNET_ADDRESS_LENGTH) {
+            return;
+        }
+        long key = AddressUtils.hardwareAddressToLong(hardwareAddress);
+        if (!lock.tryLock()) {
+            return;
+        }
+        try {
+            if (closed || nodes.containsKey(key) || loading.containsKey(key) || !store.contains(key)) {
+                return;
+            }
+            FutureTask<NetworkDevice> task = newLoad(key);
+            try {
+                loader.execute(task);
+            } catch (RejectedExecutionException e) {
+                loading.remove(key);
+                prefetchDroppedCount++;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public NetworkDevice resetDevice(byte[] hardwareAddress) {
+        if (hardwareAddress.length != ETHERNET_ADDRESS_LENGTH) {
+            return fallback.resetDevice(hardwareAddress);
+        }
+        NetworkDevice device = getDevice(hardwareAddress);
+        device.setStatus(DeviceStatus.DISCOVERED);
+        updateDevice(device);
+        return device;
+    }
+
+    @Override
+    public NetworkDevice updateDevice(NetworkDevice device) {
+        byte[] hardwareAddress = device.getHardwareAddress();
+        if (hardwareAddress.length != ETHERNET_ADDRESS_LENGTH) {
+            return fallback.updateDevice(device);
+        }
+        long key = AddressUtils.hardwareAddressToLong(hardwareAddress);
+
+        lock.lock();
+        try {
+            checkOpen();
+            Node node = access(key);
+            if (null != node) {
+                node.device = device;
+                node.dirty = true;
+                indexes.update(key, device);
+            } else {
+                // A load in flight for this device will find it here and drop what it read.
+                indexes.update(key, device);
+                admit(new Node(key, device, true));
+            }
+            return device;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public NetworkDevice getDeviceByIpAddress(byte[] ipAddress) {
+        NetworkDevice device = find(indexes.getByIpAddress(ipAddress));
+        return null == device ? fallback.getDeviceByIpAddress(ipAddress) : device;
+    }
+
+    @Override
+    public NetworkDevice getDeviceByClientId(byte[] clientId) {
+        NetworkDevice device = find(indexes.getByClientId(clientId));
+        return PackedDeviceIndexes.hasClientId(device, clientId) ? device : fallback.getDeviceByClientId(clientId);
+    }
+
+    @Override
+    public NetworkDevice getDeviceByHostName(String hostName) {
+        NetworkDevice device = find(indexes.getByHostName(hostName));
+        return PackedDeviceIndexes.hasHostName(device, hostName) ? device : fallback.getDeviceByHostName(hostName);
+    }
+
+    /**
+     * Visits the devices in memory, then reads the cold devices from disk without holding the registry's lock. Devices
+     * that move between the tiers during the walk may be missed or visited twice.
+     */
+    @Override
+    public void visitDevices(final LeaseQuery query, final LeaseQuery.Visitor visitor) {
+        final Set<Long> hot;
+        List<NetworkDevice> devices;
+        lock.lock();
+        try {
+            checkOpen();
+            hot = new HashSet<>(nodes.keySet());
+            devices = new ArrayList<>(nodes.size());
+            for (Node node: nodes.values()) {
+                devices.add(node.device);
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        for (NetworkDevice device: devices) {
+            if (!query.matches(device)) {
+                continue;
+            }
+            NetworkDevice copy = LeaseQuery.copy(device);
+            if (query.matches(copy) && !visitor.visit(copy)) {
+                return;
+            }
+        }
+
+        final boolean[] stopped = { false };
+        try {
+            store.visitDevices(new DiskDeviceStore.Visitor() {
+                @Override
+                public boolean visit(NetworkDevice device) {
+                    if (hot.contains(AddressUtils.hardwareAddressToLong(device.getHardwareAddress())) ||
+                            !query.matches(device) || visitor.visit(device)) {
+                        return true;
+                    }
+                    stopped[0] = true;
+                    return false;
+                }
+            });
+        } catch (IOException e) {
+            logger.error("Error reading devices from " + store.getPath(), e);
+        }
+        if (!stopped[0]) {
+            fallback.visitDevices(query, visitor);
+        }
+    }
+
+    /**
+     * Writes every device in memory that changed since it was last written to the disk store. Devices stay in memory.
+     * @throws IOException If a device can't be written
+     */
+    public void flush() throws IOException {
+        lock.lock();
+        try {
+            checkOpen();
+            for (Node node: nodes.values()) {
+                if (node.dirty) {
+                    write(node);
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Stops the loader and the compactor, writes the devices in memory that changed to disk and closes the store. A
+     * compaction in progress is abandoned, leaving the file as it was.
+     * @throws IOException If a device can't be written or the store can't be closed
+     */
+    @Override
+    public void close() throws IOException {
+        loader.shutdownNow();
+        // Not shutdownNow(), interrupting the compactor would close the store's channel under it.
+        compactor.shutdown();
+        lock.lock();
+        try {
+            if (closed) {
+                return;
+            }
+            try {
+                flush();
+            } finally {
+                closed = true;
+                store.close();
+            }
+        } finally {
+            lock.unlock();
+        }
+        logger.info("Closed tiered device registry, hit rate {}%", Math.round(getHitRate() * 100));
+    }
+
+    /**
+     * Number of devices in memory, not counting the ones with non-Ethernet hardware addresses.
+     * @return Number of hot devices
+     */
+    public int size() {
+        lock.lock();
+        try {
+            return nodes.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public DiskDeviceStore getStore() {
+        return store;
+    }
+
+    /**
+     * Number of lookups that found the device in memory.
+     * @return Number of hits
+     */
+    public long getHitCount() {
+        lock.lock();
+        try {
+            return hitCount;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Number of lookups that had to load the device from disk, wait for it to load, or create it.
+     * @return Number of misses
+     */
+    public long getMissCount() {
+        lock.lock();
+        try {
+            return missCount;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Share of lookups that found the device in memory.
+     * @return Hit rate between 0 and 1, or 0 if there haven't been any lookups
+     */
+    public double getHitRate() {
+        lock.lock();
+        try {
+            long total = hitCount + missCount;
+            return 0 == total ? 0 : (double) hitCount / total;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Number of devices read from disk, by lookups or prefetches.
+     * @return Number of loads
+     */
+    public long getLoadCount() {
+        lock.lock();
+        try {
+            return loadCount;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Average time it took to read a device from disk.
+     * @return Average load latency in nanoseconds, or 0 if nothing has been loaded
+     */
+    public long getAverageLoadNanos() {
+        lock.lock();
+        try {
+            return 0 == loadCount ? 0 : loadNanos / loadCount;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Number of devices that left the memory tier, whether or not they had to be written to disk.
+     * @return Number of evictions
+     */
+    public long getEvictionCount() {
+        lock.lock();
+        try {
+            return evictionCount;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Number of devices leaving the window that were evicted instead of the main area's victim, because they hadn't
+     * been looked up as often.
+     * @return Number of rejected candidates
+     */
+    public long getAdmissionRejectedCount() {
+        lock.lock();
+        try {
+            return admissionRejectedCount;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Number of devices written to the disk store.
+     * @return Number of writes
+     */
+    public long getWriteCount() {
+        lock.lock();
+        try {
+            return writeCount;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Number of prefetches dropped because the loader's queue was full.
+     * @return Number of dropped prefetches
+     */
+    public long getPrefetchDroppedCount() {
+        lock.lock();
+        try {
+            return prefetchDroppedCount;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Must be called while holding the lock.
+    private void checkOpen() {
+        if (closed) {
+            throw new IllegalStateException("Device registry is closed");
+        }
+    }
+
+    /**
+     * Finds a hot device and records the access: window and protected devices move to the back of their queue, and
+     * probation devices are promoted to the protected segment, pushing its least recently used device back to
+     * probation if it is full. Must be called while holding the lock.
+     */
+    private Node access(long key) {
+        Node node = nodes.get(key);
+        if (null == node) {
+            return null;
+        }
+        switch (node.segment) {
+            case WINDOW:
+                window.moveToBack(node);
+                break;
+            case PROBATION:
+                probation.remove(node);
+                node.segment = PROTECTED;
+                protectedSegment.addLast(node);
+                if (protectedSegment.size > protectedCapacity) {
+                    Node demoted = protectedSegment.first();
+                    protectedSegment.remove(demoted);
+                    demoted.segment = PROBATION;
+                    probation.addLast(demoted);
+                }
+                break;
+            default:
+                protectedSegment.moveToBack(node);
+        }
+        return node;
+    }
+
+    // Must be called while holding the lock.
+    private NetworkDevice admitNew(long key) {
+        NetworkDevice device = new NetworkDevice();
+        device.setStatus(DeviceStatus.DISCOVERED);
+        device.setHardwareAddress(AddressUtils.longToHardwareAddress(key));
+        admit(new Node(key, device, true));
+        return device;
+    }
+
+    /**
+     * Adds a device to the window. If that pushes a device out of the window, it takes a free place in the main area
+     * or competes with the main area's victim, and whichever has been looked up less often is evicted. Must be called
+     * while holding the lock.
+     */
+    private void admit(Node node) {
+        nodes.put(node.key, node);
+        node.segment = WINDOW;
+        window.addLast(node);
+        if (window.size <= windowCapacity) {
+            return;
+        }
+
+        Node candidate = window.first();
+        window.remove(candidate);
+        if (probation.size + protectedSegment.size < capacity - windowCapacity) {
+            candidate.segment = PROBATION;
+            probation.addLast(candidate);
+            return;
+        }
+
+        Node victim = probation.isEmpty() ? protectedSegment.first() : probation.first();
+        if (sketch.frequency(candidate.key) > sketch.frequency(victim.key)) {
+            evict(victim);
+            candidate.segment = PROBATION;
+            probation.addLast(candidate);
+        } else {
+            admissionRejectedCount++;
+            evict(candidate);
+        }
+    }
+
+    /**
+     * Drops a device from the hot tier, writing it to disk if it changed. It stays in the indexes, which were last
+     * updated along with what is on disk. Must be called while holding the lock.
+     */
+    private void evict(Node node) {
+        if (node.isLinked()) {
+            segmentOf(node).remove(node);
+        }
+        nodes.remove(node.key);
+        evictionCount++;
+        if (node.dirty) {
+            try {
+                write(node);
+            } catch (IOException e) {
+                logger.error("Could not write device " +
+                        AddressUtils.hardwareAddressToString(node.device.getHardwareAddress()) + " to disk", e);
+            }
+        }
+    }
+
+    private static ThreadFactory daemonThreads(final String name) {
+        return new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, name);
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+    }
+
+    // Must be called while holding the lock.
+    private AccessQueue segmentOf(Node node) {
+        switch (node.segment) {
+            case WINDOW:
+                return window;
+            case PROBATION:
+                return probation;
+            default:
+                return protectedSegment;
+        }
+    }
+
+    /**
+     * Writes a device to disk, unless it holds nothing worth keeping and isn't there already, which is the case for
+     * the devices of a flood of spoofed hardware addresses. Hands the store to the compactor if it is due. Must be
+     * called while holding the lock.
+     */
+    private void write(Node node) throws IOException {
+        NetworkDevice device = node.device;
+        boolean empty = DeviceStatus.DISCOVERED.equals(device.getStatus()) && null == device.getIpAddress() &&
+                device.getOptions().isEmpty();
+        if (!empty || store.contains(node.key)) {
+            store.write(device);
+            writeCount++;
+            if (store.isCompactionDue()) {
+                compactor.execute(compaction);
+            }
+        }
+        node.dirty = false;
+    }
+
+    // Must be called while holding the lock.
+    private FutureTask<NetworkDevice> newLoad(final long key) {
+        FutureTask<NetworkDevice> task = new FutureTask<>(new Callable<NetworkDevice>() {
+            @Override
+            public NetworkDevice call() throws IOException {
+                long start = System.nanoTime();
+                NetworkDevice device;
+                try {
+                    device = store.read(key);
+                } catch (IOException | RuntimeException e) {
+                    lock.lock();
+                    try {
+                        loading.remove(key);
+                    } finally {
+                        lock.unlock();
+                    }
+                    throw e;
+                }
+                long elapsed = System.nanoTime() - start;
+
+                lock.lock();
+                try {
+                    loading.remove(key);
+                    loadCount++;
+                    loadNanos += elapsed;
+                    Node node = nodes.get(key);
+                    if (null != node) {
+                        // Updated while the load was in flight.
+                        return node.device;
+                    }
+                    if (closed) {
+                        return device;
+                    }
+                    if (null == device) {
+                        return admitNew(key);
+                    }
+                    indexes.update(key, device);
+                    admit(new Node(key, device, false));
+                    return device;
+                } finally {
+                    lock.unlock();
+                }
+            }
+        });
+        loading.put(key, task);
+        return task;
+    }
+
+    /**
+     * Fetches a device found in the indexes, loading it from disk if it is cold.
+     */
+    private NetworkDevice find(long hardwareAddress) {
+        return PackedDeviceIndexes.MISSING == hardwareAddress ? null :
+                getDevice(AddressUtils.longToHardwareAddress(hardwareAddress));
+    }
+
+    private static class Node {
+
+        private final long key;
+        private NetworkDevice device;
+        private boolean dirty;
+        private int segment;
+        private Node previous;
+        private Node next;
+
+        private Node(long key, NetworkDevice device, boolean dirty) {
+            this.key = key;
+            this.device = device;
+            this.dirty = dirty;
+        }
+
+        private boolean isLinked() {
+            return null != next;
+        }
+    }
+
+    /**
+     * Doubly linked list of nodes in access order, least recently used first.
+     */
+    private static class AccessQueue {
+
+        private final Node head = new Node(0, null, false);
+        private int size = 0;
+
+        private AccessQueue() {
+            head.previous = head;
+            head.next = head;
+        }
+
+        private boolean isEmpty() {
+            return 0 == size;
+        }
+
+        private Node first() {
+            return head.next;
+        }
+
+        private void addLast(Node node) {
+            node.previous = head.previous;
+            node.next = head;
+            head.previous.next = node;
+            head.previous = node;
+            size++;
+        }
+
+        private void remove(Node node) {
+            node.previous.next = node.next;
+            node.next.previous = node.previous;
+            node.previous = null;
+            node.next = null;
+            size--;
+        }
+
+        private void moveToBack(Node node) {
+            remove(node);
+            addLast(node);
+        }
+    }
+
+}
@@ -0,0 +1,33 @@
+package org.code_revue.dhcp.server;
+
+/**
+ * Forward-only cursor over a set of IPv4 addresses, returned by
+ * {@link org.code_revue.dhcp.server.DhcpAddressPool#cursor(AddressState)}. Addresses are returned as primitive
+ * integers in the same format as {@link org.code_revue.dhcp.util.AddressUtils#convertToInt(byte[])}, so walking a large
+ * pool doesn't create any garbage. Usage is similar to a JDBC result set:
+ * <pre>
+ * {@code
+ * AddressCursor cursor = pool.cursor(AddressState.ALLOCATED);
+ * while (cursor.next()) {
+ *     int address = cursor.getAddress();
+ * }
+ * }
+ * </pre>
+ *
+ * @author Mike Fanning
+ */
+public interface AddressCursor {
+
+    /**
+     * Moves the cursor to the next address.
+     * @return True if there is another address, false if the cursor is exhausted
+     */
+    public boolean next();
+
+    /**
+     * Get the address the cursor is currently positioned on. Only valid after {@link #next()} has returned true.
+     * @return IPv4 address as an integer
+     */
+    public int getAddress();
+
+}
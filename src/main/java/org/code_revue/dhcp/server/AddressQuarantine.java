@@ -0,0 +1,222 @@
+package org.code_revue.dhcp.server;
+
+import org.code_revue.dhcp.util.AddressUtils;
+import org.code_revue.dhcp.util.Clock;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Arrays;
+
+/**
+ * Keeps addresses out of circulation for a while, e.g. after a client has declined them because something else on the
+ * network is already using them. Quarantined addresses stay borrowed from the
+ * {@link org.code_revue.dhcp.server.DhcpAddressPool}, so nobody can be offered them, and are returned to the pool once
+ * their quarantine time has passed.
+ * <p>
+ * Every address is held for the same amount of time, so addresses are released in the order they were quarantined and
+ * the quarantine is a simple FIFO ring buffer of primitive addresses and release times. Adding an address and checking
+ * for expired addresses are both O(1), apart from the addresses that are actually released, so
+ * {@link #releaseExpired()} is cheap enough to call on every DHCP message. Changing the quarantine time only affects
+ * addresses that are quarantined afterwards.
+ * </p>
+ *
+ * @author Mike Fanning
+ */
+public class AddressQuarantine {
+
+    private static final Logger logger = LoggerFactory.getLogger(AddressQuarantine.class);
+
+    public static final long DEFAULT_QUARANTINE_TIME = 10 * 60 * 1000;
+
+    private static final int INITIAL_CAPACITY = 16;
+
+    private final DhcpAddressPool pool;
+
+    private volatile long quarantineTime;
+
+    private volatile Clock clock = Clock.SYSTEM;
+
+    // Ring buffer, guarded by this.
+    private int[] addresses = new int[INITIAL_CAPACITY];
+    private long[] releaseTimes = new long[INITIAL_CAPACITY];
+    private int head = 0, size = 0;
+
+    private long quarantinedCount = 0, releasedCount = 0;
+
+    /**
+     * Creates a new quarantine that holds addresses for {@link #DEFAULT_QUARANTINE_TIME} milliseconds.
+     * @param pool Pool that quarantined addresses are returned to
+     */
+    public AddressQuarantine(DhcpAddressPool pool) {
+        this(pool, DEFAULT_QUARANTINE_TIME);
+    }
+
+    /**
+     * Creates a new quarantine.
+     * @param pool Pool that quarantined addresses are returned to
+     * @param quarantineTime Number of milliseconds to hold addresses for
+     */
+    public AddressQuarantine(DhcpAddressPool pool, long quarantineTime) {
+        this.pool = pool;
+        this.quarantineTime = quarantineTime;
+    }
+
+    /**
+     * Quarantine an address. The address must already be borrowed from the pool, which it stays until it is released.
+     * @param address IPv4 address
+     */
+    public void quarantine(byte[] address) {
+        quarantine(AddressUtils.convertToInt(address), clock.currentTimeMillis());
+    }
+
+    /**
+     * Quarantine an address.
+     * @param address IPv4 address in the format of {@link AddressUtils#convertToInt(byte[])}
+     * @param now Current time in milliseconds
+     */
+    public synchronized void quarantine(int address, long now) {
+        if (size == addresses.length) {
+            grow();
+        }
+        int tail = (head + size) % addresses.length;
+        addresses[tail] = address;
+        releaseTimes[tail] = now + quarantineTime;
+        size++;
+        quarantinedCount++;
+        logger.debug("Quarantined address {}", AddressUtils.convertToString(address));
+    }
+
+    /**
+     * Returns addresses whose quarantine time has passed to the pool.
+     * @return Number of addresses released
+     */
+    public int releaseExpired() {
+        return releaseExpired(clock.currentTimeMillis());
+    }
+
+    /**
+     * Returns addresses whose quarantine time has passed to the pool.
+     * @param now Current time in milliseconds
+     * @return Number of addresses released
+     */
+    public int releaseExpired(long now) {
+        int[] expired;
+        synchronized (this) {
+            int count = 0;
+            while (count < size && releaseTimes[(head + count) % addresses.length] <= now) {
+                count++;
+            }
+            if (0 == count) {
+                return 0;
+            }
+            expired = take(count);
+        }
+        return release(expired);
+    }
+
+    /**
+     * Returns every quarantined address to the pool, regardless of how long it has been held.
+     * @return Number of addresses released
+     */
+    public int releaseAll() {
+        int[] all;
+        synchronized (this) {
+            all = take(size);
+        }
+        return release(all);
+    }
+
+    // Must be called while holding the lock.
+    private int[] take(int count) {
+        int[] answer = new int[count];
+        for (int i = 0; i < count; i++) {
+            answer[i] = addresses[head];
+            head = (head + 1) % addresses.length;
+        }
+        size -= count;
+        releasedCount += count;
+        return answer;
+    }
+
+    private int release(int[] released) {
+        if (released.length > 0) {
+            logger.debug("Releasing {} quarantined address(es)", released.length);
+            pool.returnAddresses(released, 0, released.length);
+        }
+        return released.length;
+    }
+
+    private void grow() {
+        int[] newAddresses = new int[addresses.length * 2];
+        long[] newReleaseTimes = new long[releaseTimes.length * 2];
+        for (int i = 0; i < size; i++) {
+            newAddresses[i] = addresses[(head + i) % addresses.length];
+            newReleaseTimes[i] = releaseTimes[(head + i) % addresses.length];
+        }
+        addresses = newAddresses;
+        releaseTimes = newReleaseTimes;
+        head = 0;
+    }
+
+    /**
+     * Get the addresses that are currently quarantined, in the order they will be released.
+     * @return IPv4 addresses in the format of {@link AddressUtils#convertToInt(byte[])}
+     */
+    public synchronized int[] getAddresses() {
+        int[] answer = new int[size];
+        for (int i = 0; i < size; i++) {
+            answer[i] = addresses[(head + i) % addresses.length];
+        }
+        return answer;
+    }
+
+    /**
+     * Number of addresses that are currently quarantined.
+     * @return Quarantine size
+     */
+    public synchronized int size() {
+        return size;
+    }
+
+    /**
+     * Total number of addresses that have been quarantined.
+     * @return Number of quarantined addresses
+     */
+    public synchronized long getQuarantinedCount() {
+        return quarantinedCount;
+    }
+
+    /**
+     * Total number of addresses that have been released from quarantine.
+     * @return Number of released addresses
+     */
+    public synchronized long getReleasedCount() {
+        return releasedCount;
+    }
+
+    public long getQuarantineTime() {
+        return quarantineTime;
+    }
+
+    public void setQuarantineTime(long quarantineTime) {
+        this.quarantineTime = quarantineTime;
+    }
+
+    public Clock getClock() {
+        return clock;
+    }
+
+    /**
+     * Set the source of the current time for the methods that don't take one. Default is {@link Clock#SYSTEM}.
+     * @param clock Clock
+     */
+    public void setClock(Clock clock) {
+        this.clock = clock;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "AddressQuarantine{size=" + size + ", addresses=" + Arrays.toString(getAddresses()) + "}";
+    }
+
+}
@@ -0,0 +1,353 @@
+package org.code_revue.dhcp.server;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * Sorted set of IPv4 addresses stored as disjoint, non-adjacent ranges (extents) rather than individual addresses.
+ * Adjacent and overlapping ranges are merged as they are added, so memory usage scales with the fragmentation of the
+ * set instead of the number of addresses in it, and lookups, insertions and removals are O(log k) where k is the number
+ * of ranges.
+ * <p>
+ * Addresses are handled as unsigned values in a <code>long</code>, from 0 (0.0.0.0) to 0xffffffff (255.255.255.255),
+ * which keeps the natural ordering of the addresses without having to fiddle with the sign bit. Methods that search for
+ * an address return -1 if nothing is found.
+ * </p>
+ * <p>
+ * This class is not thread safe. Address pools that use it synchronize access themselves.
+ * </p>
+ *
+ * @author Mike Fanning
+ */
+public class AddressRangeSet {
+
+    public static final long MIN_ADDRESS = 0L;
+    public static final long MAX_ADDRESS = 0xffffffffL;
+
+    // Maps the first address of each range to the last address, inclusive.
+    private final TreeMap<Long, Long> ranges = new TreeMap<>();
+
+    private long size = 0;
+
+    /**
+     * Creates an empty set.
+     */
+    public AddressRangeSet() { }
+
+    /**
+     * Creates a copy of another set. The copy only costs one entry per range, regardless of the number of addresses.
+     * @param other Set to copy
+     */
+    public AddressRangeSet(AddressRangeSet other) {
+        ranges.putAll(other.ranges);
+        size = other.size;
+    }
+
+    /**
+     * Adds a range of addresses to the set.
+     * @param first First address, inclusive
+     * @param last Last address, inclusive
+     * @return Number of addresses that were not already present in the set
+     * @throws java.lang.IllegalArgumentException If the range is invalid
+     */
+    public long add(long first, long last) {
+        checkRange(first, last);
+
+        long lo = first, hi = last;
+        long added = last - first + 1;
+
+        Map.Entry<Long, Long> floor = ranges.floorEntry(first);
+        if (null != floor && floor.getValue() + 1 >= first) {
+            added -= Math.max(0, Math.min(floor.getValue(), last) - first + 1);
+            lo = floor.getKey();
+            hi = Math.max(hi, floor.getValue());
+            ranges.remove(floor.getKey());
+        }
+
+        Map.Entry<Long, Long> next = ranges.ceilingEntry(first);
+        while (null != next && next.getKey() <= hi + 1) {
+            added -= Math.max(0, Math.min(next.getValue(), last) - next.getKey() + 1);
+            hi = Math.max(hi, next.getValue());
+            ranges.remove(next.getKey());
+            next = ranges.ceilingEntry(first);
+        }
+
+        ranges.put(lo, hi);
+        size += added;
+        return added;
+    }
+
+    /**
+     * Adds a single address to the set.
+     * @param address Address to add
+     * @return True if the address was not already present
+     */
+    public boolean add(long address) {
+        return add(address, address) > 0;
+    }
+
+    /**
+     * Removes a range of addresses from the set, splitting existing ranges as necessary.
+     * @param first First address, inclusive
+     * @param last Last address, inclusive
+     * @return Number of addresses that were removed
+     * @throws java.lang.IllegalArgumentException If the range is invalid
+     */
+    public long remove(long first, long last) {
+        checkRange(first, last);
+
+        long removed = 0;
+
+        Map.Entry<Long, Long> floor = ranges.floorEntry(first);
+        if (null != floor && floor.getValue() >= first) {
+            long floorFirst = floor.getKey(), floorLast = floor.getValue();
+            if (floorFirst < first) {
+                ranges.put(floorFirst, first - 1);
+            } else {
+                ranges.remove(floorFirst);
+            }
+            if (floorLast > last) {
+                ranges.put(last + 1, floorLast);
+            }
+            removed += Math.min(floorLast, last) - first + 1;
+        }
+
+        Map.Entry<Long, Long> next = ranges.ceilingEntry(first);
+        while (null != next && next.getKey() <= last) {
+            ranges.remove(next.getKey());
+            if (next.getValue() > last) {
+                ranges.put(last + 1, next.getValue());
+                removed += last - next.getKey() + 1;
+            } else {
+                removed += next.getValue() - next.getKey() + 1;
+            }
+            next = ranges.ceilingEntry(first);
+        }
+
+        size -= removed;
+        return removed;
+    }
+
+    /**
+     * Removes a single address from the set.
+     * @param address Address to remove
+     * @return True if the address was present
+     */
+    public boolean remove(long address) {
+        return remove(address, address) > 0;
+    }
+
+    /**
+     * Adds all of the addresses in another set to this one.
+     * @param other Addresses to add
+     * @return Number of addresses that were not already present
+     */
+    public long addAll(AddressRangeSet other) {
+        long added = 0;
+        for (Map.Entry<Long, Long> range: other.ranges.entrySet()) {
+            added += add(range.getKey(), range.getValue());
+        }
+        return added;
+    }
+
+    /**
+     * Removes all of the addresses in another set from this one.
+     * @param other Addresses to remove
+     * @return Number of addresses that were removed
+     */
+    public long removeAll(AddressRangeSet other) {
+        long removed = 0;
+        for (Map.Entry<Long, Long> range: other.ranges.entrySet()) {
+            removed += remove(range.getKey(), range.getValue());
+        }
+        return removed;
+    }
+
+    /**
+     * Returns a new set containing the addresses of this set that fall within the supplied range.
+     * @param first First address, inclusive
+     * @param last Last address, inclusive
+     * @return Intersection of this set and the range
+     */
+    public AddressRangeSet intersection(long first, long last) {
+        checkRange(first, last);
+        AddressRangeSet answer = new AddressRangeSet();
+        Long from = ranges.floorKey(first);
+        if (null == from) {
+            from = first;
+        }
+        for (Map.Entry<Long, Long> range: ranges.subMap(from, true, last, true).entrySet()) {
+            long lo = Math.max(first, range.getKey());
+            long hi = Math.min(last, range.getValue());
+            if (lo <= hi) {
+                answer.ranges.put(lo, hi);
+                answer.size += hi - lo + 1;
+            }
+        }
+        return answer;
+    }
+
+    /**
+     * Counts the addresses of this set that fall within the supplied range.
+     * @param first First address, inclusive
+     * @param last Last address, inclusive
+     * @return Number of addresses in the set and the range
+     */
+    public long count(long first, long last) {
+        return intersection(first, last).size();
+    }
+
+    /**
+     * Removes all addresses from the set.
+     */
+    public void clear() {
+        ranges.clear();
+        size = 0;
+    }
+
+    /**
+     * Check whether an address is in the set.
+     * @param address Address to check
+     * @return True if the address is present
+     */
+    public boolean contains(long address) {
+        Map.Entry<Long, Long> floor = ranges.floorEntry(address);
+        return null != floor && floor.getValue() >= address;
+    }
+
+    /**
+     * Returns the lowest address in the set.
+     * @return Lowest address, or -1 if the set is empty
+     */
+    public long first() {
+        return ranges.isEmpty() ? -1 : ranges.firstKey();
+    }
+
+    /**
+     * Removes and returns the lowest address in the set.
+     * @return Lowest address, or -1 if the set is empty
+     */
+    public long pollFirst() {
+        Map.Entry<Long, Long> first = ranges.pollFirstEntry();
+        if (null == first) {
+            return -1;
+        }
+        if (first.getKey() < first.getValue()) {
+            ranges.put(first.getKey() + 1, first.getValue());
+        }
+        size--;
+        return first.getKey();
+    }
+
+    /**
+     * Returns the first address that is greater than or equal to the supplied address and present in the set. Works
+     * like {@link java.util.BitSet#nextSetBit(int)}.
+     * @param from Address to start searching from, inclusive
+     * @return Next address in the set, or -1 if there is none
+     */
+    public long nextPresent(long from) {
+        Map.Entry<Long, Long> floor = ranges.floorEntry(from);
+        if (null != floor && floor.getValue() >= from) {
+            return from;
+        }
+        Long next = ranges.higherKey(from);
+        return null == next ? -1 : next;
+    }
+
+    /**
+     * Returns the first address that is greater than or equal to the supplied address and not present in the set. Works
+     * like {@link java.util.BitSet#nextClearBit(int)}, so if the set contains everything up to
+     * {@link #MAX_ADDRESS} this will return a value that is larger than any valid address.
+     * @param from Address to start searching from, inclusive
+     * @return Next address not in the set
+     */
+    public long nextAbsent(long from) {
+        Map.Entry<Long, Long> floor = ranges.floorEntry(from);
+        if (null != floor && floor.getValue() >= from) {
+            return floor.getValue() + 1;
+        }
+        return from;
+    }
+
+    /**
+     * Number of addresses in the set. This is tracked as ranges are added and removed, so it doesn't require a scan.
+     * @return Number of addresses
+     */
+    public long size() {
+        return size;
+    }
+
+    /**
+     * Check whether the set is empty.
+     * @return True if there are no addresses in the set
+     */
+    public boolean isEmpty() {
+        return 0 == size;
+    }
+
+    /**
+     * Number of disjoint ranges used to store the set.
+     * @return Number of ranges
+     */
+    public int getRangeCount() {
+        return ranges.size();
+    }
+
+    /**
+     * Returns an unmodifiable view of the ranges in this set, mapping the first address in each range to the last,
+     * inclusive. The view is backed by the set, so callers must not modify the set while iterating over it.
+     * @return Ranges in the set, sorted by first address
+     */
+    public SortedMap<Long, Long> getRanges() {
+        return Collections.unmodifiableSortedMap(ranges);
+    }
+
+    /**
+     * Returns a cursor over the addresses in this set, in ascending order. The cursor is backed by the set, so callers
+     * that need to keep using the set should create the cursor from a copy.
+     * @return Cursor over the addresses in the set
+     */
+    public AddressCursor cursor() {
+        return new RangeCursor(ranges.entrySet().iterator());
+    }
+
+    private static class RangeCursor implements AddressCursor {
+
+        private final Iterator<Map.Entry<Long, Long>> it;
+        private long current = 0, last = -1;
+
+        private RangeCursor(Iterator<Map.Entry<Long, Long>> it) {
+            this.it = it;
+        }
+
+        @Override
+        public boolean next() {
+            if (current < last) {
+                current++;
+                return true;
+            }
+            if (!it.hasNext()) {
+                return false;
+            }
+            Map.Entry<Long, Long> range = it.next();
+            current = range.getKey();
+            last = range.getValue();
+            return true;
+        }
+
+        @Override
+        public int getAddress() {
+            return (int) current;
+        }
+    }
+
+    private static void checkRange(long first, long last) {
+        if (first < MIN_ADDRESS || last > MAX_ADDRESS || first > last) {
+            throw new IllegalArgumentException("Invalid address range " + first + " - " + last);
+        }
+    }
+
+}
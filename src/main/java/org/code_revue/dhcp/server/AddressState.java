@@ -0,0 +1,14 @@
+package org.code_revue.dhcp.server;
+
+/**
+ * The states an address in a {@link org.code_revue.dhcp.server.DhcpAddressPool} can be in. {@link #ALLOCATED}
+ * addresses have been borrowed from the pool, {@link #FREE} addresses are in the pool's range and available for
+ * borrowing, and {@link #EXCLUDED} addresses have been set aside and will never be handed out.
+ *
+ * @author Mike Fanning
+ */
+public enum AddressState {
+    ALLOCATED,
+    FREE,
+    EXCLUDED
+}
@@ -0,0 +1,50 @@
+package org.code_revue.dhcp.server;
+
+/**
+ * Decides where a {@link org.code_revue.dhcp.server.DhcpAddressPool} starts looking for a free address. Addresses are
+ * identified by their offset from the start of the pool, so strategies don't need to know how the pool stores its
+ * state. The pool searches upwards from the offset returned by {@link #select(long, byte[])}, wrapping around to the
+ * start of the range if necessary, and then tells the strategy which offset was actually borrowed.
+ * <p>
+ * Pools also report addresses that are borrowed or returned one at a time (individually or through the integer array
+ * bulk methods), so strategies can keep track of the state of the pool. Range operations are not reported.
+ * </p>
+ * <p>
+ * Pools call strategies while holding their lock, so implementations don't need to be thread safe as long as each
+ * instance is only used by one pool. They should be quick, though, since every borrow waits for them.
+ * </p>
+ *
+ * @author Mike Fanning
+ */
+public interface AllocationStrategy {
+
+    /**
+     * Choose the offset to start searching for a free address from.
+     * @param size Number of addresses in the pool, always greater than zero
+     * @param hardwareAddress Hardware address of the client the address is for, or null if unknown
+     * @return Offset between 0, inclusive, and size, exclusive
+     */
+    public long select(long size, byte[] hardwareAddress);
+
+    /**
+     * Called after an address has been borrowed, either using the offset from {@link #select(long, byte[])} or because
+     * a caller asked for that specific address.
+     * @param offset Offset of the address that was borrowed
+     */
+    public void borrowed(long offset);
+
+    /**
+     * Called after an address has been returned to the pool.
+     * @param offset Offset of the address that was returned
+     */
+    public void returned(long offset);
+
+    /**
+     * Check whether the address chosen by this strategy depends on the client's hardware address. Components that
+     * borrow addresses ahead of demand, like {@link org.code_revue.dhcp.server.ConflictDetector}, borrow on demand
+     * instead when this is true so that clients still get their preferred address.
+     * @return True if {@link #select(long, byte[])} uses the hardware address
+     */
+    public boolean isHardwareAware();
+
+}
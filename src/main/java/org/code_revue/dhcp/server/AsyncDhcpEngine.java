@@ -0,0 +1,33 @@
+package org.code_revue.dhcp.server;
+
+/**
+ * A {@link org.code_revue.dhcp.server.DhcpEngine} that can process payloads without blocking the caller.
+ * {@link org.code_revue.dhcp.server.DhcpServer} hands messages to engines implementing this interface and carries on
+ * receiving, and sends responses as the callbacks come in.
+ *
+ * @author Mike Fanning
+ */
+public interface AsyncDhcpEngine extends DhcpEngine {
+
+    /**
+     * Receives the result of processing a payload.
+     */
+    public interface Callback {
+
+        /**
+         * Called once per payload, on whatever thread processed it.
+         * @param response Response payload, or null if there is nothing to send
+         */
+        public void completed(DhcpPayload response);
+
+    }
+
+    /**
+     * Processes a payload in the background.
+     * @param payload Client address information and message data sent to the server
+     * @param callback Receives the response. It may not be called if the engine is overloaded or shut down, in which
+     *                 case the message is dropped and the client will retry.
+     */
+    public void processDhcpPayload(DhcpPayload payload, Callback callback);
+
+}
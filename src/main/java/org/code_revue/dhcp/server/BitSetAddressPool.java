@@ -1,27 +1,49 @@
 package org.code_revue.dhcp.server;
 
+import org.code_revue.dhcp.message.DhcpOption;
+import org.code_revue.dhcp.message.DhcpOptionType;
 import org.code_revue.dhcp.util.AddressUtils;
+import org.code_revue.dhcp.util.Subnet;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import java.util.ArrayList;
 import java.util.BitSet;
+import java.util.Collections;
 import java.util.List;
-import java.util.Set;
-import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.Map;
 
 /**
  * Implementation of {@link org.code_revue.dhcp.server.DhcpAddressPool} for IPv4 addresses. The pool hands out addresses
  * from a range, as defined by the start and end parameters of the constructor. It also has a set of excluded addresses
- * that the pool will not issue.
+ * that the pool will not issue. Exclusions are stored as ranges in an {@link org.code_revue.dhcp.server.AddressRangeSet}
+ * that is guarded by the same lock as the bit set, so excluding a large block of addresses costs a single entry.
+ * <p>
+ * The range of the pool can be changed while it is in use, see {@link #resize(byte[], byte[])}.
+ * </p>
  *
  * @author Mike Fanning
  */
 public class BitSetAddressPool implements DhcpAddressPool {
 
+    private static final Logger logger = LoggerFactory.getLogger(BitSetAddressPool.class);
+
     private int start, end;
     private BitSet flags;
 
-    // Comparator will keep the integer representation of the IP addresses in the appropriate order.
-    Set<Integer> exclusions = new ConcurrentSkipListSet<>(AddressUtils.ADDRESS_COMPARATOR);
+    // Unsigned representation of the addresses keeps them in the appropriate order. Guarded by this.
+    private final AddressRangeSet exclusions = new AddressRangeSet();
+
+    private final PoolUtilization utilization;
+
+    private AllocationStrategy strategy = new FirstFreeAllocationStrategy();
+
+    // Only one resize can run at a time. Always acquired before the pool's own lock.
+    private final Object resizeLock = new Object();
+
+    // Addresses whose flags changed while a resize is building the new bit set. Guarded by this.
+    private boolean resizing = false;
+    private final AddressRangeSet dirty = new AddressRangeSet();
 
     /**
      * Creates a new IPv4 address pool with the supplied start and end addresses.
@@ -49,6 +71,7 @@ public class BitSetAddressPool implements DhcpAddressPool {
         }
 
         this.flags = new BitSet(range);
+        this.utilization = new PoolUtilization(range);
     }
 
     /**
@@ -61,44 +84,47 @@ public class BitSetAddressPool implements DhcpAddressPool {
         this(AddressUtils.convertToByteArray(start), AddressUtils.convertToByteArray(end));
     }
 
+    /**
+     * Creates a new IPv4 address pool covering the host addresses of a subnet, so the network and broadcast addresses
+     * are never part of the range. Addresses of infrastructure listed in the options (see
+     * {@link org.code_revue.dhcp.util.Subnet#RESERVED_OPTIONS}) are excluded.
+     * @param subnet Subnet to hand out addresses from
+     * @param options DHCP options for the subnet, e.g. {@link StandardEngine#getConfiguration()}
+     * @throws java.lang.IllegalArgumentException If the options include a subnet mask that doesn't match the subnet
+     */
+    public BitSetAddressPool(Subnet subnet, Map<DhcpOptionType, DhcpOption> options) {
+        this(subnet.getFirstHost(), subnet.getLastHost());
+        for (int address: subnet.getReservedAddresses(options)) {
+            addExclusion(AddressUtils.convertToByteArray(address));
+        }
+    }
+
+    /**
+     * Creates a new IPv4 address pool covering the host addresses of a subnet.
+     * @param subnet Subnet to hand out addresses from
+     */
+    public BitSetAddressPool(Subnet subnet) {
+        this(subnet, Collections.<DhcpOptionType, DhcpOption>emptyMap());
+    }
+
     /**
      * Returns the starting address of the address pool represented as an integer.
      * @return
      */
-    public byte[] getStart() {
+    public synchronized byte[] getStart() {
         return AddressUtils.convertToByteArray(start);
     }
 
     /**
      * Change the beginning address of the pool. This will preserve the state of borrowed addresses if the new starting
      * address is less than (in IPv4 terms) the previous start address. Otherwise, the state of borrowed addresses will
-     * only be preserved for borrows that are greater than or equal to the new starting address.
+     * only be preserved for borrows that are greater than or equal to the new starting address. Borrowed addresses that
+     * fall outside the new range are logged, see {@link #resize(byte[], byte[])}.
      * @param address Starting IP address of the pool, inclusive
      */
     public void setStart(byte[] address) {
-        int newStart = AddressUtils.convertToInt(address);
-
-        synchronized (this) {
-            if (newStart == this.start) {
-                return;
-            }
-
-            if (newStart > this.end && !(newStart >= 0 && this.end < 0)) {
-                throw new IllegalArgumentException("Start Address is after End Address");
-            }
-
-            int range = this.end - newStart + 1;
-            if (range <= 0) {
-                throw new IllegalArgumentException("Address range is too large");
-            }
-
-            this.start = newStart;
-            BitSet newFlags = new BitSet(range);
-            // Copy flags, starting from the end and working towards the beginning.
-            for (int i = 0; i < Math.min(this.flags.length(), range); i++) {
-                newFlags.set(range - i - 1, this.flags.get(this.flags.length() - 1));
-            }
-            this.flags = newFlags;
+        synchronized (resizeLock) {
+            logDropped(resize(address, getEnd()));
         }
     }
 
@@ -106,36 +132,104 @@ public class BitSetAddressPool implements DhcpAddressPool {
      * Returns the ending address of the address pool represented as an integer.
      * @return
      */
-    public byte[] getEnd() {
+    public synchronized byte[] getEnd() {
         return AddressUtils.convertToByteArray(end);
     }
 
     /**
      * Change the ending address of the pool. This will preserve the state of borrowed addresses if the new end address
      * is greater than (in IPv4 terms) the previous end address. Otherwise, the state of borrowed addesses will only be
-     * preserved if the borrowed address is less than or equal to the new end address.
+     * preserved if the borrowed address is less than or equal to the new end address. Borrowed addresses that fall
+     * outside the new range are logged, see {@link #resize(byte[], byte[])}.
      * @param address Ending IP address of the pool, inclusive
      */
-    public synchronized void setEnd(byte[] address) {
-        int newEnd = AddressUtils.convertToInt(address);
-        synchronized (this) {
-            if (newEnd == this.end) {
-                return;
+    public void setEnd(byte[] address) {
+        synchronized (resizeLock) {
+            logDropped(resize(getStart(), address));
+        }
+    }
+
+    /**
+     * Changes the range of the pool while it stays in use. The new bit set is built from a snapshot of the current one
+     * without holding the pool's lock, so borrowers only wait while the snapshot is taken and while the new bit set is
+     * swapped in. Changes made to the pool in the meantime are recorded and replayed onto the new bit set before the
+     * swap. Bits are moved a word at a time rather than one by one.
+     * <p>
+     * If the pool shrinks, addresses that are still borrowed but fall outside the new range are no longer tracked by
+     * the pool and are returned to the caller, so that their leases can be dealt with.
+     * </p>
+     * @param newStart Starting IP address of the pool, inclusive
+     * @param newEnd Ending IP address of the pool, inclusive
+     * @return Borrowed (not excluded) addresses that are outside the new range
+     * @throws java.lang.IllegalArgumentException If the addresses are malformed, the start is after the end, or the
+     * range is too large
+     */
+    @Override
+    public AddressRangeSet resize(byte[] newStart, byte[] newEnd) {
+        if (newStart.length != 4 || newEnd.length != 4) {
+            throw new IllegalArgumentException("Invalid IPv4 Address");
+        }
+        long lo = AddressUtils.convertToLong(newStart), hi = AddressUtils.convertToLong(newEnd);
+        if (lo > hi) {
+            throw new IllegalArgumentException("Start Address is after End Address");
+        }
+        if (hi - lo + 1 > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Address range is too large");
+        }
+        int newRange = (int) (hi - lo + 1);
+
+        synchronized (resizeLock) {
+            BitSet snapshot;
+            long oldStart;
+            synchronized (this) {
+                oldStart = start & 0xffffffffL;
+                if (oldStart == lo && (end & 0xffffffffL) == hi) {
+                    return new AddressRangeSet();
+                }
+                snapshot = (BitSet) flags.clone();
+                dirty.clear();
+                resizing = true;
             }
 
-            if (this.start > newEnd && !(this.start >= 0 && newEnd < 0)) {
-                throw new IllegalArgumentException("Start Address is after End Address");
+            // Everything from here to the swap runs without the pool lock, borrowers keep using the old bit set.
+            AddressRangeSet dropped = new AddressRangeSet();
+            BitSet newFlags;
+            try {
+                newFlags = relocate(snapshot, oldStart, lo, newRange, dropped);
+            } catch (RuntimeException e) {
+                synchronized (this) {
+                    resizing = false;
+                    dirty.clear();
+                }
+                throw e;
             }
 
-            int range = newEnd - this.start + 1;
-            if (range <= 0) {
-                throw new IllegalArgumentException("Address range is too large");
+            synchronized (this) {
+                // Replay changes that were made while the new bit set was being built.
+                for (Map.Entry<Long, Long> range: dirty.getRanges().entrySet()) {
+                    for (long addr = range.getKey(); addr <= range.getValue(); addr++) {
+                        boolean set = flags.get((int) (addr - oldStart));
+                        if (addr >= lo && addr <= hi) {
+                            newFlags.set((int) (addr - lo), set);
+                        } else if (set) {
+                            dropped.add(addr);
+                        } else {
+                            dropped.remove(addr);
+                        }
+                    }
+                }
+                resizing = false;
+                dirty.clear();
+
+                this.start = (int) lo;
+                this.end = (int) hi;
+                this.flags = newFlags;
+                setExclusionFlags(lo, hi);
+                recount();
+                dropped.removeAll(exclusions);
             }
 
-            this.end = newEnd;
-            BitSet newFlags = new BitSet(range);
-            newFlags.or(this.flags);
-            this.flags = newFlags;
+            return dropped;
         }
     }
 
@@ -144,16 +238,23 @@ public class BitSetAddressPool implements DhcpAddressPool {
      * @param address IPv4 address to exclude from the pool
      * @return If the address was not already excluded
      */
+    @Override
     public boolean addExclusion(byte[] address) {
         int addr = AddressUtils.convertToInt(address);
 
         synchronized (this) {
-            if (addr >= start && addr <= end) {
-                flags.set(addr - start);
+            boolean added = exclusions.add(addr & 0xffffffffL);
+            if (added && addr >= start && addr <= end) {
+                if (flags.get(addr - start)) {
+                    utilization.addExcluded(-1, 1);
+                } else {
+                    flags.set(addr - start);
+                    markDirty(addr - start, addr - start + 1);
+                    utilization.addExcluded(0, 1);
+                }
             }
+            return added;
         }
-
-        return exclusions.add(addr);
     }
 
     /**
@@ -162,17 +263,19 @@ public class BitSetAddressPool implements DhcpAddressPool {
      * @param address IPv4 address to remove from the exclusion list
      * @return If the address was previously excluded
      */
+    @Override
     public boolean removeExclusion(byte[] address) {
         int addr = AddressUtils.convertToInt(address);
-        boolean removed = exclusions.remove(addr);
 
         synchronized (this) {
+            boolean removed = exclusions.remove(addr & 0xffffffffL);
             if (removed && addr >= start && addr <= end) {
                 flags.clear(addr - start);
+                markDirty(addr - start, addr - start + 1);
+                utilization.addExcluded(0, -1);
             }
+            return removed;
         }
-
-        return removed;
     }
 
     /**
@@ -180,10 +283,13 @@ public class BitSetAddressPool implements DhcpAddressPool {
      * be sorted from least (0.0.0.0) to greatest (255.255.255.255).
      * @return Iterable of IPv4 addresses
      */
-    public Iterable<byte[]> getExclusions() {
+    @Override
+    public synchronized Iterable<byte[]> getExclusions() {
         List<byte[]> result = new ArrayList<>();
-        for (Integer i: exclusions) {
-            result.add(AddressUtils.convertToByteArray(i));
+        for (Map.Entry<Long, Long> range: exclusions.getRanges().entrySet()) {
+            for (long i = range.getKey(); i <= range.getValue(); i++) {
+                result.add(AddressUtils.convertToByteArray((int) i));
+            }
         }
         return result;
     }
@@ -194,17 +300,38 @@ public class BitSetAddressPool implements DhcpAddressPool {
      * @return IPv4 address
      * @throws java.lang.IndexOutOfBoundsException If there are no available addresses
      */
+    @Override
     public byte[] borrowAddress() {
+        return borrowAddressFor(null);
+    }
+
+    /**
+     * Borrow an address for a particular client. The {@link org.code_revue.dhcp.server.AllocationStrategy} decides
+     * where to start looking for a free address, and the search wraps around to the start of the range if it reaches
+     * the end.
+     * @param hardwareAddress Hardware address of the client, or null if unknown
+     * @return IPv4 address
+     * @throws java.lang.IndexOutOfBoundsException If there are no available addresses
+     */
+    @Override
+    public byte[] borrowAddressFor(byte[] hardwareAddress) {
 
         int address;
 
         synchronized (this) {
-            if (flags.cardinality() == (end - start + 1)) {
+            if (utilization.getFree() <= 0) {
                 throw new IndexOutOfBoundsException("No addresses are available");
             }
-            int offset = flags.nextClearBit(0);
+            int range = end - start + 1;
+            int offset = flags.nextClearBit((int) strategy.select(range, hardwareAddress));
+            if (offset >= range) {
+                offset = flags.nextClearBit(0);
+            }
             address = start + offset;
             flags.set(offset);
+            markDirty(offset, offset + 1);
+            strategy.borrowed(offset);
+            utilization.addUsed(1);
         }
 
         return AddressUtils.convertToByteArray(address);
@@ -217,6 +344,7 @@ public class BitSetAddressPool implements DhcpAddressPool {
      * @return Address or null if not available
      * @throws java.lang.IllegalArgumentException If address is malformed
      */
+    @Override
     public byte[] borrowAddress(byte[] address) {
         if (address.length != 4) {
             throw new IllegalArgumentException("Invalid Address");
@@ -229,6 +357,9 @@ public class BitSetAddressPool implements DhcpAddressPool {
                 return null;
             }
             flags.set(addr - start);
+            markDirty(addr - start, addr - start + 1);
+            strategy.borrowed(addr - start);
+            utilization.addUsed(1);
         }
         return address;
     }
@@ -237,19 +368,308 @@ public class BitSetAddressPool implements DhcpAddressPool {
      * Returns an address that has already been borrowed to the pool. If the address is within range, this will release
      * it and allow others to borrow it via the {@link #borrowAddress()} method. Note that returning an address that is
      * out of the range of the pool will not throw any exceptions. This should allow the start and end of the range to
-     * be modified without creating a bunch of exceptions when addresses are returned.
+     * be modified without creating a bunch of exceptions when addresses are returned. Excluded addresses stay excluded.
      * @param address
      * @throws java.lang.IllegalArgumentException If the address is malformed
      */
+    @Override
     public void returnAddress(byte[] address) {
         if (address.length != 4) {
             throw new IllegalArgumentException("Invalid Address");
         }
-        int offset = AddressUtils.convertToInt(address) - start;
+        int addr = AddressUtils.convertToInt(address);
+        synchronized (this) {
+            if (addr >= start && addr <= end && flags.get(addr - start) && !exclusions.contains(addr & 0xffffffffL)) {
+                flags.clear(addr - start);
+                markDirty(addr - start, addr - start + 1);
+                strategy.returned(addr - start);
+                utilization.addUsed(-1);
+            }
+        }
+    }
+
+    @Override
+    public int borrowAddresses(int[] addresses, int offset, int length) {
+        int count = 0;
         synchronized (this) {
-            if (offset > 0 && offset < flags.size()) {
-                flags.clear(offset);
+            for (int i = offset; i < offset + length; i++) {
+                int addr = addresses[i];
+                if (addr >= start && addr <= end && !flags.get(addr - start)) {
+                    flags.set(addr - start);
+                    markDirty(addr - start, addr - start + 1);
+                    strategy.borrowed(addr - start);
+                    count++;
+                }
             }
+            utilization.addUsed(count);
+        }
+        return count;
+    }
+
+    @Override
+    public int returnAddresses(int[] addresses, int offset, int length) {
+        int count = 0;
+        synchronized (this) {
+            for (int i = offset; i < offset + length; i++) {
+                int addr = addresses[i];
+                if (addr >= start && addr <= end && flags.get(addr - start) &&
+                        !exclusions.contains(addr & 0xffffffffL)) {
+                    flags.clear(addr - start);
+                    markDirty(addr - start, addr - start + 1);
+                    strategy.returned(addr - start);
+                    count++;
+                }
+            }
+            utilization.addUsed(-count);
+        }
+        return count;
+    }
+
+    @Override
+    public long borrowRange(byte[] first, byte[] last) {
+        long lo = AddressUtils.convertToLong(first), hi = AddressUtils.convertToLong(last);
+        synchronized (this) {
+            int[] offsets = clip(lo, hi);
+            if (null == offsets) {
+                return 0;
+            }
+            int from = offsets[0], to = offsets[1];
+            int previous = flags.get(from, to).cardinality();
+            flags.set(from, to);
+            markDirty(from, to);
+            utilization.addUsed((to - from) - previous);
+            return (to - from) - previous;
+        }
+    }
+
+    @Override
+    public long returnRange(byte[] first, byte[] last) {
+        long lo = AddressUtils.convertToLong(first), hi = AddressUtils.convertToLong(last);
+        synchronized (this) {
+            int[] offsets = clip(lo, hi);
+            if (null == offsets) {
+                return 0;
+            }
+            int from = offsets[0], to = offsets[1];
+            int previous = flags.get(from, to).cardinality();
+            flags.clear(from, to);
+            markDirty(from, to);
+            long excluded = setExclusionFlags(lo, hi);
+            utilization.addUsed(-(previous - excluded));
+            return previous - excluded;
+        }
+    }
+
+    @Override
+    public long addExclusionRange(byte[] first, byte[] last) {
+        long lo = AddressUtils.convertToLong(first), hi = AddressUtils.convertToLong(last);
+        synchronized (this) {
+            int[] offsets = clip(lo, hi);
+            if (null != offsets) {
+                long poolStart = start & 0xffffffffL;
+                long alreadyExcluded = exclusions.count(poolStart + offsets[0], poolStart + offsets[1] - 1);
+                long borrowed = flags.get(offsets[0], offsets[1]).cardinality() - alreadyExcluded;
+                flags.set(offsets[0], offsets[1]);
+                markDirty(offsets[0], offsets[1]);
+                utilization.addExcluded(-borrowed, (offsets[1] - offsets[0]) - alreadyExcluded);
+            }
+            return exclusions.add(lo, hi);
+        }
+    }
+
+    @Override
+    public long removeExclusionRange(byte[] first, byte[] last) {
+        long lo = AddressUtils.convertToLong(first), hi = AddressUtils.convertToLong(last);
+        synchronized (this) {
+            AddressRangeSet removed = exclusions.intersection(lo, hi);
+            exclusions.remove(lo, hi);
+            long cleared = 0;
+            for (Map.Entry<Long, Long> range: removed.getRanges().entrySet()) {
+                int[] offsets = clip(range.getKey(), range.getValue());
+                if (null != offsets) {
+                    flags.clear(offsets[0], offsets[1]);
+                    markDirty(offsets[0], offsets[1]);
+                    cleared += offsets[1] - offsets[0];
+                }
+            }
+            utilization.addExcluded(0, -cleared);
+            return removed.size();
+        }
+    }
+
+    @Override
+    public AddressCursor cursor(AddressState state) {
+        synchronized (this) {
+            switch (state) {
+                case ALLOCATED:
+                    BitSet allocated = (BitSet) flags.clone();
+                    for (Map.Entry<Long, Long> range: exclusions.getRanges().entrySet()) {
+                        int[] offsets = clip(range.getKey(), range.getValue());
+                        if (null != offsets) {
+                            allocated.clear(offsets[0], offsets[1]);
+                        }
+                    }
+                    return new BitSetCursor(allocated, start, end - start + 1, true);
+                case FREE:
+                    return new BitSetCursor((BitSet) flags.clone(), start, end - start + 1, false);
+                case EXCLUDED:
+                    return new AddressRangeSet(exclusions).cursor();
+                default:
+                    throw new IllegalArgumentException("Unknown address state " + state);
+            }
+        }
+    }
+
+    @Override
+    public synchronized AllocationStrategy getAllocationStrategy() {
+        return strategy;
+    }
+
+    @Override
+    public synchronized void setAllocationStrategy(AllocationStrategy strategy) {
+        if (null == strategy) {
+            throw new IllegalArgumentException("Allocation strategy cannot be null");
+        }
+        this.strategy = strategy;
+    }
+
+    @Override
+    public PoolUtilization getUtilization() {
+        return utilization;
+    }
+
+    /**
+     * Recalculates the utilization counts from scratch. This requires a scan of the flags, so it is only used after the
+     * range of the pool has changed. Must be called while holding the lock.
+     */
+    private void recount() {
+        long excluded = exclusions.count(start & 0xffffffffL, end & 0xffffffffL);
+        utilization.reset(end - start + 1, flags.cardinality() - excluded, excluded);
+    }
+
+    /**
+     * Records that the flags in a range of offsets have changed, if a resize is in progress. Must be called while
+     * holding the lock.
+     * @param from First offset, inclusive
+     * @param to Last offset, exclusive
+     */
+    private void markDirty(int from, int to) {
+        if (resizing) {
+            long poolStart = start & 0xffffffffL;
+            dirty.add(poolStart + from, poolStart + to - 1);
+        }
+    }
+
+    private void logDropped(AddressRangeSet dropped) {
+        if (!dropped.isEmpty()) {
+            logger.warn("{} borrowed address(es) are outside the new range of the pool: {}", dropped.size(),
+                    dropped.getRanges());
+        }
+    }
+
+    /**
+     * Moves the flags of a bit set to a new base address. The part of the bit set that overlaps the new range is
+     * extracted and shifted a word at a time, and set bits that fall outside the new range are added to the supplied
+     * set.
+     * @param old Flags relative to the old start address
+     * @param oldStart Old start address, unsigned
+     * @param newStart New start address, unsigned
+     * @param newRange Number of addresses in the new range
+     * @param dropped Receives the addresses of set bits outside the new range
+     * @return Flags relative to the new start address
+     */
+    static BitSet relocate(BitSet old, long oldStart, long newStart, int newRange, AddressRangeSet dropped) {
+        long shift = oldStart - newStart;
+        int length = old.length();
+        // Old offsets that are still inside the new range, last one exclusive.
+        int keepFrom = (int) Math.min(length, Math.max(0, -shift));
+        int keepTo = (int) Math.max(keepFrom, Math.min(length, newRange - shift));
+
+        for (int i = old.nextSetBit(0); i >= 0 && i < keepFrom; i = old.nextSetBit(i + 1)) {
+            dropped.add(oldStart + i);
+        }
+        for (int i = old.nextSetBit(keepTo); i >= 0; i = old.nextSetBit(i + 1)) {
+            dropped.add(oldStart + i);
+        }
+
+        if (keepFrom >= keepTo) {
+            return new BitSet(newRange);
+        }
+
+        long[] words = old.get(keepFrom, keepTo).toLongArray();
+        long destination = keepFrom + shift;
+        int wordShift = (int) (destination >>> 6), bitShift = (int) (destination & 63);
+        long[] shifted = new long[words.length + wordShift + 1];
+        for (int i = 0; i < words.length; i++) {
+            shifted[i + wordShift] |= words[i] << bitShift;
+            if (bitShift != 0) {
+                shifted[i + wordShift + 1] |= words[i] >>> (64 - bitShift);
+            }
+        }
+        return BitSet.valueOf(shifted);
+    }
+
+    /**
+     * Converts an unsigned address range into bit set offsets, clipped to the range of the pool. Must be called while
+     * holding the lock.
+     * @return Array containing the first offset, inclusive, and last offset, exclusive, or null if the range doesn't
+     * overlap the pool
+     */
+    private int[] clip(long first, long last) {
+        long poolStart = start & 0xffffffffL, poolEnd = end & 0xffffffffL;
+        long lo = Math.max(first, poolStart), hi = Math.min(last, poolEnd);
+        if (lo > hi) {
+            return null;
+        }
+        return new int[] { (int) (lo - poolStart), (int) (hi - poolStart + 1) };
+    }
+
+    /**
+     * Sets the flags for any exclusions in the supplied range. Must be called while holding the lock.
+     * @return Number of flags that were set
+     */
+    private long setExclusionFlags(long first, long last) {
+        long count = 0;
+        for (Map.Entry<Long, Long> range: exclusions.intersection(first, last).getRanges().entrySet()) {
+            int[] offsets = clip(range.getKey(), range.getValue());
+            if (null != offsets) {
+                flags.set(offsets[0], offsets[1]);
+                count += offsets[1] - offsets[0];
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Walks the set or clear bits of a private copy of the flags.
+     */
+    private static class BitSetCursor implements AddressCursor {
+
+        private final BitSet bits;
+        private final int base;
+        private final int limit;
+        private final boolean set;
+        private int position = -1;
+
+        private BitSetCursor(BitSet bits, int base, int limit, boolean set) {
+            this.bits = bits;
+            this.base = base;
+            this.limit = limit;
+            this.set = set;
+        }
+
+        @Override
+        public boolean next() {
+            if (position + 1 >= limit) {
+                return false;
+            }
+            position = set ? bits.nextSetBit(position + 1) : bits.nextClearBit(position + 1);
+            return position >= 0 && position < limit;
+        }
+
+        @Override
+        public int getAddress() {
+            return base + position;
         }
     }
 
@@ -0,0 +1,384 @@
+package org.code_revue.dhcp.server;
+
+import org.code_revue.dhcp.util.AddressUtils;
+import org.code_revue.dhcp.util.Clock;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs conflict probes ("ping before offer") against a {@link org.code_revue.dhcp.server.DhcpAddressPool} without
+ * blocking the thread that processes DHCP messages. The detector borrows a few candidate addresses from the pool ahead
+ * of demand and probes them in the background using the supplied {@link java.util.concurrent.Executor}, so that by the
+ * time a DHCP Discover message arrives there is usually a freshly probed address waiting. If no probed address is ready,
+ * the detector falls back to borrowing directly from the pool, skipping any addresses that recently answered a probe.
+ * <p>
+ * A fallback address is handed out before it has been probed. It is probed in the background straight away, and
+ * {@link #isConflict(byte[])} reports the result once it is in, which is how
+ * {@link org.code_revue.dhcp.server.StandardEngine} refuses to acknowledge an offered address that turned out to be in
+ * use. Only the prefetched addresses are guaranteed to have been probed before they are offered.
+ * </p>
+ * <p>
+ * Probe results are cached for {@link #getCacheTtl()} milliseconds. Addresses that answer a probe are put in an
+ * {@link org.code_revue.dhcp.server.AddressQuarantine}: they stay borrowed from the pool for
+ * {@link #getQuarantineTime()} milliseconds so that nobody else is offered them, and are then returned so they can be
+ * probed again.
+ * </p>
+ *
+ * @author Mike Fanning
+ */
+public class ConflictDetector {
+
+    private static final Logger logger = LoggerFactory.getLogger(ConflictDetector.class);
+
+    public static final int DEFAULT_PREFETCH = 4;
+    public static final long DEFAULT_CACHE_TTL = 60 * 1000;
+    public static final long DEFAULT_QUARANTINE_TIME = AddressQuarantine.DEFAULT_QUARANTINE_TIME;
+
+    // Number of times borrowAddress() will look at another candidate when it gets one that is stale or in use.
+    private static final int MAX_FALLBACK_ATTEMPTS = 8;
+
+    private final DhcpAddressPool pool;
+    private final ConflictProber prober;
+    private final Executor executor;
+
+    private int prefetch = DEFAULT_PREFETCH;
+    private long cacheTtl = DEFAULT_CACHE_TTL;
+    private volatile Clock clock = Clock.SYSTEM;
+
+    private final ConcurrentMap<Integer, ProbeResult> cache = new ConcurrentHashMap<>();
+    private final Queue<ProbeResult> ready = new ConcurrentLinkedQueue<>();
+    private final AddressQuarantine quarantine;
+
+    // Candidates that have been borrowed from the pool and are either being probed or waiting in the ready queue.
+    private final AtomicInteger outstanding = new AtomicInteger(0);
+
+    private final AtomicLong probeCount = new AtomicLong(0);
+    private final AtomicLong conflictCount = new AtomicLong(0);
+
+    /**
+     * Creates a new detector.
+     * @param pool Pool to borrow candidate addresses from
+     * @param prober Used to check whether an address is in use
+     * @param executor Runs the probes in the background
+     */
+    public ConflictDetector(DhcpAddressPool pool, ConflictProber prober, Executor executor) {
+        this(pool, prober, executor, new AddressQuarantine(pool, DEFAULT_QUARANTINE_TIME));
+    }
+
+    /**
+     * Creates a new detector that shares a quarantine with other components, e.g. the one
+     * {@link org.code_revue.dhcp.server.StandardEngine} uses for declined addresses.
+     * @param pool Pool to borrow candidate addresses from
+     * @param prober Used to check whether an address is in use
+     * @param executor Runs the probes in the background
+     * @param quarantine Holds addresses that answered a probe, must return addresses to the same pool
+     */
+    public ConflictDetector(DhcpAddressPool pool, ConflictProber prober, Executor executor,
+                            AddressQuarantine quarantine) {
+        this.pool = pool;
+        this.prober = prober;
+        this.executor = executor;
+        this.quarantine = quarantine;
+    }
+
+    /**
+     * Borrow an address that is believed to be free. This never waits for a probe: if no probed address is ready, an
+     * address is borrowed directly from the pool and probed after the fact, so that the cache knows about it if it turns
+     * out to be a conflict.
+     * @return IPv4 address, or null if the pool is exhausted
+     */
+    public byte[] borrowAddress() {
+        return borrowAddressFor(null);
+    }
+
+    /**
+     * Borrow an address for a particular client that is believed to be free. If the pool's
+     * {@link org.code_revue.dhcp.server.AllocationStrategy} picks addresses based on the client's hardware address,
+     * prefetched addresses would defeat it, so the address is borrowed from the pool on demand and probed after the
+     * fact. Otherwise this is the same as {@link #borrowAddress()}.
+     * @param hardwareAddress Hardware address of the client, or null if unknown
+     * @return IPv4 address, or null if the pool is exhausted
+     */
+    public byte[] borrowAddressFor(byte[] hardwareAddress) {
+        long now = clock.currentTimeMillis();
+        quarantine.releaseExpired(now);
+
+        if (null == hardwareAddress || !pool.getAllocationStrategy().isHardwareAware()) {
+            ProbeResult candidate = pollReady(now);
+            if (null == candidate) {
+                refill();
+                candidate = pollReady(now);
+            }
+            if (null != candidate) {
+                refill();
+                return AddressUtils.convertToByteArray(candidate.address);
+            }
+        }
+
+        for (int attempt = 0; attempt < MAX_FALLBACK_ATTEMPTS; attempt++) {
+            byte[] address;
+            try {
+                address = pool.borrowAddressFor(hardwareAddress);
+            } catch (IndexOutOfBoundsException e) {
+                return null;
+            }
+            if (null == address) {
+                return null;
+            }
+            if (!isConflict(address)) {
+                probeAfterOffer(address);
+                return address;
+            }
+            quarantine.quarantine(AddressUtils.convertToInt(address), now);
+        }
+
+        logger.warn("Could not find an address without a known conflict after {} attempts", MAX_FALLBACK_ATTEMPTS);
+        return null;
+    }
+
+    /**
+     * Check the cache for a recent probe that found the supplied address in use. This never sends a probe.
+     * @param address IPv4 address
+     * @return True if the address recently answered a probe
+     */
+    public boolean isConflict(byte[] address) {
+        ProbeResult result = cache.get(AddressUtils.convertToInt(address));
+        if (null == result) {
+            return false;
+        }
+        if (clock.currentTimeMillis() - result.time > cacheTtl) {
+            cache.remove(result.address, result);
+            return false;
+        }
+        return result.inUse;
+    }
+
+    /**
+     * Probes an address that is being offered without having been probed, e.g. one the client asked for, in the
+     * background. The result only goes into the cache, for {@link #isConflict(byte[])} to report; the address stays
+     * with whoever borrowed it.
+     * @param address IPv4 address
+     */
+    public void probeAfterOffer(byte[] address) {
+        final int addr = AddressUtils.convertToInt(address);
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    probe(addr);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            logger.debug("Conflict probe rejected by executor", e);
+        }
+    }
+
+    /**
+     * Starts probing candidate addresses until {@link #getPrefetch()} of them are outstanding. This is called
+     * automatically by {@link #borrowAddress()}, but can also be used to warm up the detector when the server starts.
+     */
+    public void refill() {
+        while (outstanding.get() < prefetch) {
+            byte[] address;
+            try {
+                address = pool.borrowAddress();
+            } catch (IndexOutOfBoundsException e) {
+                return;
+            }
+            if (null == address) {
+                return;
+            }
+            outstanding.incrementAndGet();
+            submitProbe(AddressUtils.convertToInt(address));
+        }
+    }
+
+    /**
+     * Returns any addresses that are waiting in the ready queue to the pool. Call this when the detector is taken out of
+     * service, otherwise the prefetched addresses will stay borrowed.
+     */
+    public void drain() {
+        ProbeResult candidate;
+        while (null != (candidate = ready.poll())) {
+            outstanding.decrementAndGet();
+            pool.returnAddress(AddressUtils.convertToByteArray(candidate.address));
+        }
+    }
+
+    private ProbeResult pollReady(long now) {
+        ProbeResult candidate;
+        for (int attempt = 0; attempt < MAX_FALLBACK_ATTEMPTS && null != (candidate = ready.poll()); attempt++) {
+            if (now - candidate.time <= cacheTtl) {
+                outstanding.decrementAndGet();
+                return candidate;
+            }
+            // Result is too old to trust, probe it again. It stays borrowed in the meantime.
+            submitProbe(candidate.address);
+        }
+        return null;
+    }
+
+    private void submitProbe(final int address) {
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    ProbeResult result = probe(address);
+                    if (result.inUse) {
+                        outstanding.decrementAndGet();
+                        quarantine.quarantine(address, result.time);
+                    } else {
+                        ready.add(result);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            logger.warn("Conflict probe rejected by executor, returning address to pool", e);
+            outstanding.decrementAndGet();
+            pool.returnAddress(AddressUtils.convertToByteArray(address));
+        }
+    }
+
+    private ProbeResult probe(int address) {
+        boolean inUse = false;
+        try {
+            inUse = prober.isInUse(AddressUtils.convertToByteArray(address));
+        } catch (IOException e) {
+            logger.warn("Error probing address {}", AddressUtils.convertToString(address), e);
+        }
+        probeCount.incrementAndGet();
+
+        ProbeResult result = new ProbeResult(address, inUse, clock.currentTimeMillis());
+        cache.put(address, result);
+        if (inUse) {
+            conflictCount.incrementAndGet();
+            logger.info("Address {} is already in use", AddressUtils.convertToString(address));
+        }
+        return result;
+    }
+
+    /**
+     * Get the number of addresses to keep probed ahead of demand.
+     * @return Number of prefetched addresses
+     */
+    public int getPrefetch() {
+        return prefetch;
+    }
+
+    /**
+     * Set the number of addresses to keep probed ahead of demand. Default is {@link #DEFAULT_PREFETCH}.
+     * @param prefetch Number of prefetched addresses
+     */
+    public void setPrefetch(int prefetch) {
+        this.prefetch = prefetch;
+    }
+
+    /**
+     * Get the number of milliseconds a probe result is trusted.
+     * @return Cache time to live in milliseconds
+     */
+    public long getCacheTtl() {
+        return cacheTtl;
+    }
+
+    /**
+     * Set the number of milliseconds a probe result is trusted. Default is {@link #DEFAULT_CACHE_TTL}.
+     * @param cacheTtl Cache time to live in milliseconds
+     */
+    public void setCacheTtl(long cacheTtl) {
+        this.cacheTtl = cacheTtl;
+    }
+
+    /**
+     * Get the number of milliseconds an address that answered a probe is kept out of the pool.
+     * @return Quarantine time in milliseconds
+     */
+    public long getQuarantineTime() {
+        return quarantine.getQuarantineTime();
+    }
+
+    /**
+     * Set the number of milliseconds an address that answered a probe is kept out of the pool. Default is
+     * {@link #DEFAULT_QUARANTINE_TIME}.
+     * @param quarantineTime Quarantine time in milliseconds
+     */
+    public void setQuarantineTime(long quarantineTime) {
+        quarantine.setQuarantineTime(quarantineTime);
+    }
+
+    public Clock getClock() {
+        return clock;
+    }
+
+    /**
+     * Set the source of the current time for probe results and quarantine times. Default is {@link Clock#SYSTEM}.
+     * @param clock Clock
+     */
+    public void setClock(Clock clock) {
+        this.clock = clock;
+    }
+
+    /**
+     * Get the number of probed addresses that are ready to be handed out.
+     * @return Number of ready addresses
+     */
+    public int getReadyCount() {
+        return ready.size();
+    }
+
+    /**
+     * Get the number of addresses that are currently quarantined.
+     * @return Number of quarantined addresses
+     */
+    public int getQuarantineSize() {
+        return quarantine.size();
+    }
+
+    /**
+     * Get the quarantine that holds addresses which answered a probe.
+     * @return Address quarantine
+     */
+    public AddressQuarantine getQuarantine() {
+        return quarantine;
+    }
+
+    /**
+     * Get the number of probes that have been sent.
+     * @return Number of probes
+     */
+    public long getProbeCount() {
+        return probeCount.get();
+    }
+
+    /**
+     * Get the number of probes that found an address in use.
+     * @return Number of conflicts
+     */
+    public long getConflictCount() {
+        return conflictCount.get();
+    }
+
+    private static class ProbeResult {
+
+        private final int address;
+        private final boolean inUse;
+        private final long time;
+
+        private ProbeResult(int address, boolean inUse, long time) {
+            this.address = address;
+            this.inUse = inUse;
+            this.time = time;
+        }
+    }
+
+}
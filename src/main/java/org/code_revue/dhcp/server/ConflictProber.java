@@ -0,0 +1,23 @@
+package org.code_revue.dhcp.server;
+
+import java.io.IOException;
+
+/**
+ * Checks whether an IP address is already in use on the network before the server offers it to a client. Probes are
+ * slow (they usually involve waiting for a timeout), so they are run in the background by a
+ * {@link org.code_revue.dhcp.server.ConflictDetector} rather than on the thread that processes DHCP messages.
+ *
+ * @author Mike Fanning
+ * @see <a href="https://www.ietf.org/rfc/rfc2131.txt">RFC 2131, section 2.2</a>
+ */
+public interface ConflictProber {
+
+    /**
+     * Check whether some other host is using the supplied address.
+     * @param address IPv4 address to probe
+     * @return True if the address responded, false otherwise
+     * @throws IOException If there was an error sending the probe
+     */
+    public boolean isInUse(byte[] address) throws IOException;
+
+}
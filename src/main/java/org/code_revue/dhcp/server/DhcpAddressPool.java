@@ -3,6 +3,14 @@ package org.code_revue.dhcp.server;
 /**
  * Can be used by other DHCP server components to manage IP addresses, allowing callers to borrow addresses and then
  * return them when they are released.
+ * <p>
+ * Besides single address operations, pools support bulk operations that claim, release or exclude whole ranges or
+ * arrays of addresses while acquiring the pool's lock only once, and cursors that walk the addresses in a particular
+ * {@link org.code_revue.dhcp.server.AddressState} as primitive integers. These are intended for pool maintenance, like
+ * reconciling the pool against a lease store at startup, where doing the same thing one address at a time is too slow.
+ * Bulk methods that take integer arrays use the format of
+ * {@link org.code_revue.dhcp.util.AddressUtils#convertToInt(byte[])}.
+ * </p>
  *
  * @author Mike Fanning
  */
@@ -16,6 +24,15 @@ public interface DhcpAddressPool {
      */
     public byte[] borrowAddress();
 
+    /**
+     * Borrows an address for a particular client. This works like {@link #borrowAddress()}, except that the pool's
+     * {@link org.code_revue.dhcp.server.AllocationStrategy} can use the client's hardware address to pick the address,
+     * e.g. so that a client gets the same address every time it asks for one.
+     * @param hardwareAddress Hardware address of the client, or null if unknown
+     * @return An IP address or null if the pool is empty
+     */
+    public byte[] borrowAddressFor(byte[] hardwareAddress);
+
     /**
      * Borrow a specific address from the pool. This makes the address ineligible for subsequent borrowing until it has
      * been returned to the pool via the {@link #returnAddress(byte[])} method. If the requested IP address is not
@@ -31,5 +48,114 @@ public interface DhcpAddressPool {
      * @param address IP address to return to the pool
      */
     public void returnAddress(byte[] address);
-    
+
+    /**
+     * Borrow a set of specific addresses from the pool in a single operation. Addresses that are not managed by the
+     * pool or have already been borrowed are skipped.
+     * @param addresses IPv4 addresses to borrow
+     * @param offset Index of the first address in the array
+     * @param length Number of addresses to borrow
+     * @return Number of addresses that were borrowed
+     */
+    public int borrowAddresses(int[] addresses, int offset, int length);
+
+    /**
+     * Return a set of addresses to the pool in a single operation.
+     * @param addresses IPv4 addresses to return
+     * @param offset Index of the first address in the array
+     * @param length Number of addresses to return
+     * @return Number of addresses that were released
+     */
+    public int returnAddresses(int[] addresses, int offset, int length);
+
+    /**
+     * Borrow every available address in a range.
+     * @param first First address in the range, inclusive
+     * @param last Last address in the range, inclusive
+     * @return Number of addresses that were borrowed
+     */
+    public long borrowRange(byte[] first, byte[] last);
+
+    /**
+     * Return every borrowed address in a range to the pool. Excluded addresses stay excluded.
+     * @param first First address in the range, inclusive
+     * @param last Last address in the range, inclusive
+     * @return Number of addresses that were released
+     */
+    public long returnRange(byte[] first, byte[] last);
+
+    /**
+     * Exclude an address from the pool, so that it will not be handed out to borrowers.
+     * @param address IP address to exclude
+     * @return True if the address was not already excluded
+     */
+    public boolean addExclusion(byte[] address);
+
+    /**
+     * Remove an address exclusion from the pool, allowing it to be borrowed again.
+     * @param address IP address to remove from the exclusion list
+     * @return True if the address was previously excluded
+     */
+    public boolean removeExclusion(byte[] address);
+
+    /**
+     * Exclude a range of addresses from the pool.
+     * @param first First address in the range, inclusive
+     * @param last Last address in the range, inclusive
+     * @return Number of addresses that were not already excluded
+     */
+    public long addExclusionRange(byte[] first, byte[] last);
+
+    /**
+     * Remove the exclusions for a range of addresses.
+     * @param first First address in the range, inclusive
+     * @param last Last address in the range, inclusive
+     * @return Number of addresses that were previously excluded
+     */
+    public long removeExclusionRange(byte[] first, byte[] last);
+
+    /**
+     * Get the addresses that are excluded from this pool, sorted from least to greatest.
+     * @return Excluded addresses
+     */
+    public Iterable<byte[]> getExclusions();
+
+    /**
+     * Returns a cursor over the addresses of the pool that are in the supplied state, in ascending order. The cursor
+     * works on a snapshot taken when this method is called, so the pool can keep changing while it is in use.
+     * @param state State of the addresses to return
+     * @return Cursor over the matching addresses
+     */
+    public AddressCursor cursor(AddressState state);
+
+    /**
+     * Changes the range of addresses managed by the pool. Borrowed addresses and exclusions inside the new range are
+     * preserved, and borrowed addresses that are outside the new range are returned so the caller can deal with their
+     * leases instead of them silently disappearing.
+     * @param start First address of the pool, inclusive
+     * @param end Last address of the pool, inclusive
+     * @return Borrowed addresses that are no longer in the range of the pool
+     */
+    public AddressRangeSet resize(byte[] start, byte[] end);
+
+    /**
+     * Get the utilization counts for this pool. These are maintained as the pool changes, so reading them is cheap,
+     * and the returned object can be used to register for watermark notifications.
+     * @return Utilization of this pool
+     */
+    public PoolUtilization getUtilization();
+
+    /**
+     * Get the strategy the pool uses to choose addresses.
+     * @return Allocation strategy
+     */
+    public AllocationStrategy getAllocationStrategy();
+
+    /**
+     * Change the strategy the pool uses to choose addresses. Pools use
+     * {@link org.code_revue.dhcp.server.FirstFreeAllocationStrategy} by default.
+     * @param strategy Allocation strategy, which should not be shared with other pools
+     */
+    public void setAllocationStrategy(AllocationStrategy strategy);
+
 }
@@ -1,5 +1,7 @@
 package org.code_revue.dhcp.server;
 
+import org.code_revue.dhcp.persist.JournalCommit;
+
 import java.net.SocketAddress;
 import java.nio.ByteBuffer;
 
@@ -16,6 +18,8 @@ public class DhcpPayload {
 
     private ByteBuffer data;
 
+    private JournalCommit commit;
+
     public DhcpPayload(SocketAddress address, ByteBuffer data) {
         this(address, false, data);
     }
@@ -74,4 +78,21 @@ public class DhcpPayload {
     public void setData(ByteBuffer data) {
         this.data = data;
     }
+
+    /**
+     * Get the journal commit that has to be durable before this payload is sent. Responses describing a lease that
+     * hasn't reached the {@link org.code_revue.dhcp.persist.LeaseJournal} yet carry one.
+     * @return Commit to wait for, or null if the payload can be sent straight away
+     */
+    public JournalCommit getCommit() {
+        return commit;
+    }
+
+    /**
+     * Set the journal commit that has to be durable before this payload is sent.
+     * @param commit
+     */
+    public void setCommit(JournalCommit commit) {
+        this.commit = commit;
+    }
 }
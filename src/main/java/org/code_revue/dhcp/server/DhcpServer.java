@@ -1,5 +1,6 @@
 package org.code_revue.dhcp.server;
 
+import org.code_revue.dhcp.persist.JournalCommit;
 import org.code_revue.dhcp.util.LoggerUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -31,7 +32,17 @@ import java.util.concurrent.atomic.AtomicLong;
  * </ol>
  * </p>
  * <p>
- * I guess at some point it might be nice to add somethin like Tomcat's Valves.
+ * Cross-cutting concerns like rate limiting, filtering and metrics don't belong in the receive loop. Wrap the engine
+ * in an {@link org.code_revue.dhcp.server.InterceptorChain} instead, which works a bit like Tomcat's Valves.
+ * </p>
+ * <p>
+ * Responses that carry a {@link org.code_revue.dhcp.persist.JournalCommit} are only sent once the commit is durable.
+ * The receive loop moves on to the next message in the meantime, which lets the journal sync many leases at once.
+ * </p>
+ * <p>
+ * If the engine is an {@link org.code_revue.dhcp.server.AsyncDhcpEngine}, like
+ * {@link org.code_revue.dhcp.server.ShardedEngine}, the receive loop only hands messages off to it and responses are
+ * sent from the engine's threads.
  * </p>
  *
  * @author Mike Fanning
@@ -116,17 +127,10 @@ public class DhcpServer implements Runnable {
                 }
 
                 DhcpPayload message = new DhcpPayload(address, messageBuffer);
-                DhcpPayload response = engine.processDhcpPayload(message);
-
-                if (null != response) {
-                    channel.socket().setBroadcast(response.isBroadcast());
-                    channel.send(response.getData(), response.getAddress());
-                    sendCount.incrementAndGet();
-
-                    logger.debug("Message sent to {}", response.getAddress());
-                    if (logger.isTraceEnabled()) {
-                        logger.trace("Message data:\n{}", LoggerUtils.prettyPrintDhcpMessage(response.getData()));
-                    }
+                if (engine instanceof AsyncDhcpEngine) {
+                    ((AsyncDhcpEngine) engine).processDhcpPayload(message, asyncResponder);
+                } else {
+                    respond(engine.processDhcpPayload(message));
                 }
 
             }  catch (AsynchronousCloseException e) {
@@ -146,6 +150,90 @@ public class DhcpServer implements Runnable {
 
     }
 
+    /**
+     * Sends a response now, or once its journal commit is durable.
+     * @param response Response from the engine, may be null
+     * @throws IOException If there is an error sending the message
+     */
+    private void respond(DhcpPayload response) throws IOException {
+        if (null == response) {
+            return;
+        }
+        JournalCommit commit = response.getCommit();
+        if (null == commit || commit.isDurable()) {
+            sendResponse(response);
+        } else {
+            // Don't hold up the caller, the journal writer sends the response once it is durable.
+            commit.addListener(new DeferredResponse(response));
+        }
+    }
+
+    /**
+     * Sends the responses of an {@link org.code_revue.dhcp.server.AsyncDhcpEngine}, on the engine's threads.
+     */
+    private final AsyncDhcpEngine.Callback asyncResponder = new AsyncDhcpEngine.Callback() {
+        @Override
+        public void completed(DhcpPayload response) {
+            if (!running) {
+                return;
+            }
+            try {
+                respond(response);
+            } catch (IOException e) {
+                logger.error("Error sending message", e);
+                errorCount.incrementAndGet();
+            }
+        }
+    };
+
+    /**
+     * Sends a response to a client. Sends can come from the receive loop, the engine's threads and the lease journal's
+     * writer thread, and the broadcast flag is set on the shared socket, so they are serialized.
+     * @param response Response to send
+     * @throws IOException If there is an error sending the message
+     */
+    private synchronized void sendResponse(DhcpPayload response) throws IOException {
+        channel.socket().setBroadcast(response.isBroadcast());
+        channel.send(response.getData(), response.getAddress());
+        sendCount.incrementAndGet();
+
+        logger.debug("Message sent to {}", response.getAddress());
+        if (logger.isTraceEnabled()) {
+            logger.trace("Message data:\n{}", LoggerUtils.prettyPrintDhcpMessage(response.getData()));
+        }
+    }
+
+    /**
+     * Sends a response once its journal commit is done, or drops it if the lease couldn't be recorded. A client that
+     * gets no reply will retry, which is better than handing out a lease the server may forget.
+     */
+    private class DeferredResponse implements Runnable {
+
+        private final DhcpPayload response;
+
+        private DeferredResponse(DhcpPayload response) {
+            this.response = response;
+        }
+
+        @Override
+        public void run() {
+            if (!response.getCommit().isDurable()) {
+                logger.error("Lease journal write failed, dropping response to {}", response.getAddress());
+                errorCount.incrementAndGet();
+                return;
+            }
+            if (!running) {
+                return;
+            }
+            try {
+                sendResponse(response);
+            } catch (IOException e) {
+                logger.error("Error sending message", e);
+                errorCount.incrementAndGet();
+            }
+        }
+    }
+
     /**
      * Stops the server. This will close and release any underlying resources.
      * @throws IOException
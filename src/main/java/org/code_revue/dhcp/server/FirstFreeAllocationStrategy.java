@@ -0,0 +1,27 @@
+package org.code_revue.dhcp.server;
+
+/**
+ * Always hands out the lowest free address in the pool. This is the default strategy: it keeps the borrowed addresses
+ * packed at the start of the range, at the cost of reusing the same few addresses over and over.
+ *
+ * @author Mike Fanning
+ */
+public class FirstFreeAllocationStrategy implements AllocationStrategy {
+
+    @Override
+    public long select(long size, byte[] hardwareAddress) {
+        return 0;
+    }
+
+    @Override
+    public void borrowed(long offset) { }
+
+    @Override
+    public void returned(long offset) { }
+
+    @Override
+    public boolean isHardwareAware() {
+        return false;
+    }
+
+}
@@ -0,0 +1,76 @@
+package org.code_revue.dhcp.server;
+
+/**
+ * Derives the preferred address of a client from a hash of its hardware address, so a device that comes back after its
+ * lease has expired usually gets the same address without the server having to remember it. If the preferred address
+ * is taken, the pool probes linearly for the next free address. Clients without a hardware address are handled by a
+ * fallback strategy.
+ * <p>
+ * The preferred address depends on the size of the pool, so changing the range of the pool will move most clients.
+ * </p>
+ *
+ * @author Mike Fanning
+ */
+public class HardwareHashAllocationStrategy implements AllocationStrategy {
+
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private final AllocationStrategy fallback;
+
+    /**
+     * Creates a new strategy that uses {@link org.code_revue.dhcp.server.FirstFreeAllocationStrategy} for clients
+     * without a hardware address.
+     */
+    public HardwareHashAllocationStrategy() {
+        this(new FirstFreeAllocationStrategy());
+    }
+
+    /**
+     * Creates a new strategy.
+     * @param fallback Used for clients without a hardware address
+     */
+    public HardwareHashAllocationStrategy(AllocationStrategy fallback) {
+        this.fallback = fallback;
+    }
+
+    @Override
+    public long select(long size, byte[] hardwareAddress) {
+        if (null == hardwareAddress || 0 == hardwareAddress.length) {
+            return fallback.select(size, hardwareAddress);
+        }
+        return (hash(hardwareAddress) >>> 1) % size;
+    }
+
+    @Override
+    public void borrowed(long offset) {
+        fallback.borrowed(offset);
+    }
+
+    @Override
+    public void returned(long offset) {
+        fallback.returned(offset);
+    }
+
+    @Override
+    public boolean isHardwareAware() {
+        return true;
+    }
+
+    /**
+     * 64 bit FNV-1a hash, followed by a final mix so that addresses which only differ in their last byte (which is
+     * common for devices from the same vendor) don't end up next to each other.
+     */
+    static long hash(byte[] hardwareAddress) {
+        long h = FNV_OFFSET_BASIS;
+        for (byte b: hardwareAddress) {
+            h ^= b & 0xff;
+            h *= FNV_PRIME;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        return h;
+    }
+
+}
@@ -0,0 +1,40 @@
+package org.code_revue.dhcp.server;
+
+import java.io.IOException;
+import java.net.InetAddress;
+
+/**
+ * {@link org.code_revue.dhcp.server.ConflictProber} that sends an echo request to the address and waits for a reply.
+ * This relies on {@link java.net.InetAddress#isReachable(int)}, which uses ICMP echo if the process has the privileges
+ * to open a raw socket and falls back to a TCP connection to the echo port otherwise. Hosts that drop both will not be
+ * detected.
+ *
+ * @author Mike Fanning
+ */
+public class IcmpConflictProber implements ConflictProber {
+
+    public static final int DEFAULT_TIMEOUT = 500;
+
+    private int timeout = DEFAULT_TIMEOUT;
+
+    @Override
+    public boolean isInUse(byte[] address) throws IOException {
+        return InetAddress.getByAddress(address).isReachable(timeout);
+    }
+
+    /**
+     * Get the number of milliseconds to wait for an echo reply.
+     * @return Timeout in milliseconds
+     */
+    public int getTimeout() {
+        return timeout;
+    }
+
+    /**
+     * Set the number of milliseconds to wait for an echo reply. Default is {@link #DEFAULT_TIMEOUT}.
+     * @param timeout Timeout in milliseconds
+     */
+    public void setTimeout(int timeout) {
+        this.timeout = timeout;
+    }
+}
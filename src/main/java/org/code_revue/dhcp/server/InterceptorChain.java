@@ -0,0 +1,370 @@
+package org.code_revue.dhcp.server;
+
+import org.code_revue.dhcp.message.DhcpMessageOverlay;
+import org.code_revue.dhcp.message.DhcpOption;
+import org.code_revue.dhcp.message.DhcpOptionType;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Wraps a {@link org.code_revue.dhcp.server.DhcpEngine} with an ordered chain of interceptors, a bit like Tomcat's
+ * Valves, so cross-cutting concerns like rate limiting, filtering, metrics and caching don't have to be written into
+ * the server or the engine.
+ * <p>
+ * Each interceptor's {@link Interceptor#before(Context)} hook is called in the order the interceptors were added. If
+ * one of them returns a response, the rest of the chain and the engine are skipped and that response is used.
+ * Otherwise the engine processes the payload. Then the {@link Interceptor#after(Context, DhcpPayload)} hooks of every
+ * interceptor whose before hook ran are called in reverse order, and each can replace the response. Exceptions thrown
+ * by an interceptor or the engine go straight to the caller.
+ * </p>
+ * <p>
+ * The interceptors share a {@link Context} for the payload, which parses the message and its options at most once
+ * however many interceptors look at them. There is one context per thread, reused from one payload to the next, so
+ * interceptors must not hold on to it. With no interceptors the payload goes straight to the engine. The time spent in
+ * each interceptor's hooks is recorded, see {@link #getTotalNanos(Interceptor)}.
+ * </p>
+ *
+ * @author Mike Fanning
+ */
+public class InterceptorChain implements DhcpEngine {
+
+    /**
+     * Hooks called around the engine for every payload. Interceptors may be called from several threads at once, e.g.
+     * by the shards of a {@link org.code_revue.dhcp.server.ShardedEngine}.
+     */
+    public interface Interceptor {
+
+        /**
+         * Called before the payload goes any further down the chain.
+         * @param context Payload being processed
+         * @return Response to send without going further, or null to carry on
+         */
+        public DhcpPayload before(Context context);
+
+        /**
+         * Called once the engine, or an interceptor further down the chain, has produced the response.
+         * @param context Payload being processed
+         * @param response Response so far, may be null
+         * @return Response to send, normally the one passed in
+         */
+        public DhcpPayload after(Context context, DhcpPayload response);
+
+    }
+
+    /**
+     * State shared by the interceptors while a payload is processed. The message and options are only parsed if an
+     * interceptor asks for them.
+     */
+    public static class Context {
+
+        private DhcpPayload payload;
+        private DhcpMessageOverlay message;
+        private Map<DhcpOptionType, DhcpOption> options;
+        private Map<String, Object> attributes;
+        private long startNanos;
+        private boolean shortCircuited;
+
+        private void reset(DhcpPayload payload) {
+            this.payload = payload;
+            this.startNanos = System.nanoTime();
+        }
+
+        private void clear() {
+            payload = null;
+            message = null;
+            options = null;
+            shortCircuited = false;
+            if (null != attributes) {
+                attributes.clear();
+            }
+        }
+
+        public DhcpPayload getPayload() {
+            return payload;
+        }
+
+        /**
+         * Replace the payload passed to the rest of the chain and the engine.
+         * @param payload Payload to process instead
+         */
+        public void setPayload(DhcpPayload payload) {
+            this.payload = payload;
+            this.message = null;
+            this.options = null;
+        }
+
+        /**
+         * Get an overlay of the payload's message.
+         * @return Message overlay, or null if the payload is too short to be a DHCP message
+         */
+        public DhcpMessageOverlay getMessage() {
+            if (null == message && DhcpMessageOverlay.HEADER_LENGTH <= payload.getData().capacity()) {
+                message = new DhcpMessageOverlay(payload.getData());
+            }
+            return message;
+        }
+
+        /**
+         * Get the options in the payload's message.
+         * @return Unmodifiable map of options, empty if the payload is too short to be a DHCP message
+         */
+        public Map<DhcpOptionType, DhcpOption> getOptions() {
+            if (null == options) {
+                DhcpMessageOverlay overlay = getMessage();
+                options = null == overlay ? Collections.<DhcpOptionType, DhcpOption>emptyMap() :
+                        Collections.unmodifiableMap(overlay.getOptions());
+            }
+            return options;
+        }
+
+        /**
+         * Get a value an interceptor stored for this payload.
+         * @param name Attribute name
+         * @return Attribute value, or null if it hasn't been set
+         */
+        public Object getAttribute(String name) {
+            return null == attributes ? null : attributes.get(name);
+        }
+
+        /**
+         * Store a value for this payload, e.g. for an interceptor's after hook or one further down the chain.
+         * Attributes are cleared once the payload has been processed.
+         * @param name Attribute name
+         * @param value Attribute value
+         */
+        public void setAttribute(String name, Object value) {
+            if (null == attributes) {
+                attributes = new HashMap<>();
+            }
+            attributes.put(name, value);
+        }
+
+        /**
+         * Get the time the chain started processing the payload.
+         * @return Start time from {@link System#nanoTime()}
+         */
+        public long getStartNanos() {
+            return startNanos;
+        }
+
+        /**
+         * Get the time since the chain started processing the payload.
+         * @return Elapsed time in nanoseconds
+         */
+        public long getElapsedNanos() {
+            return System.nanoTime() - startNanos;
+        }
+
+        /**
+         * Check whether an interceptor returned a response from its before hook, so the engine was skipped.
+         * @return True if the engine was skipped
+         */
+        public boolean isShortCircuited() {
+            return shortCircuited;
+        }
+    }
+
+    /**
+     * An interceptor and its statistics.
+     */
+    private static class Entry {
+
+        private final Interceptor interceptor;
+        private final AtomicLong invocationCount = new AtomicLong(0);
+        private final AtomicLong shortCircuitCount = new AtomicLong(0);
+        private final AtomicLong totalNanos = new AtomicLong(0);
+
+        private Entry(Interceptor interceptor) {
+            this.interceptor = interceptor;
+        }
+    }
+
+    private static final Entry[] NO_ENTRIES = new Entry[0];
+
+    private final DhcpEngine engine;
+
+    // Copy on write, so processing never locks.
+    private volatile Entry[] entries = NO_ENTRIES;
+
+    private final ThreadLocal<Context> contexts = new ThreadLocal<Context>() {
+        @Override
+        protected Context initialValue() {
+            return new Context();
+        }
+    };
+
+    /**
+     * Creates an empty chain around an engine.
+     * @param engine Engine that processes payloads no interceptor has responded to
+     */
+    public InterceptorChain(DhcpEngine engine) {
+        if (null == engine) {
+            throw new IllegalArgumentException("Engine is required");
+        }
+        this.engine = engine;
+    }
+
+    @Override
+    public DhcpPayload processDhcpPayload(DhcpPayload payload) {
+        Entry[] entries = this.entries;
+        if (0 == entries.length) {
+            return engine.processDhcpPayload(payload);
+        }
+
+        Context context = contexts.get();
+        context.reset(payload);
+        try {
+            DhcpPayload response = null;
+            int entered = 0;
+            while (null == response && entered < entries.length) {
+                Entry entry = entries[entered++];
+                long start = System.nanoTime();
+                response = entry.interceptor.before(context);
+                entry.totalNanos.addAndGet(System.nanoTime() - start);
+                entry.invocationCount.incrementAndGet();
+                if (null != response) {
+                    entry.shortCircuitCount.incrementAndGet();
+                    context.shortCircuited = true;
+                }
+            }
+
+            if (!context.shortCircuited) {
+                response = engine.processDhcpPayload(context.getPayload());
+            }
+
+            for (int i = entered - 1; i >= 0; i--) {
+                Entry entry = entries[i];
+                long start = System.nanoTime();
+                response = entry.interceptor.after(context, response);
+                entry.totalNanos.addAndGet(System.nanoTime() - start);
+            }
+            return response;
+        } finally {
+            context.clear();
+        }
+    }
+
+    @Override
+    public void setHardwareAddress(byte[] hardwareAddress) {
+        engine.setHardwareAddress(hardwareAddress);
+    }
+
+    @Override
+    public void setServerIpAddress(byte[] serverIpAddress) {
+        engine.setServerIpAddress(serverIpAddress);
+    }
+
+    public DhcpEngine getEngine() {
+        return engine;
+    }
+
+    /**
+     * Add an interceptor to the end of the chain, nearest the engine. Payloads already being processed aren't affected.
+     * @param interceptor Interceptor
+     */
+    public synchronized void addInterceptor(Interceptor interceptor) {
+        if (null == interceptor) {
+            throw new IllegalArgumentException("Interceptor is required");
+        }
+        if (-1 != indexOf(interceptor)) {
+            throw new IllegalArgumentException("Interceptor is already in the chain");
+        }
+        Entry[] updated = Arrays.copyOf(entries, entries.length + 1);
+        updated[entries.length] = new Entry(interceptor);
+        entries = updated;
+    }
+
+    /**
+     * Remove an interceptor from the chain, along with its statistics.
+     * @param interceptor Interceptor
+     * @return True if the interceptor was in the chain
+     */
+    public synchronized boolean removeInterceptor(Interceptor interceptor) {
+        int index = indexOf(interceptor);
+        if (-1 == index) {
+            return false;
+        }
+        Entry[] updated = new Entry[entries.length - 1];
+        System.arraycopy(entries, 0, updated, 0, index);
+        System.arraycopy(entries, index + 1, updated, index, updated.length - index);
+        entries = updated;
+        return true;
+    }
+
+    /**
+     * Get the interceptors in the order their before hooks are called.
+     * @return Unmodifiable list of interceptors
+     */
+    public List<Interceptor> getInterceptors() {
+        Entry[] entries = this.entries;
+        List<Interceptor> interceptors = new ArrayList<>(entries.length);
+        for (Entry entry: entries) {
+            interceptors.add(entry.interceptor);
+        }
+        return Collections.unmodifiableList(interceptors);
+    }
+
+    /**
+     * Number of payloads an interceptor's before hook has been called for.
+     * @param interceptor Interceptor in this chain
+     * @return Number of invocations
+     */
+    public long getInvocationCount(Interceptor interceptor) {
+        return entryFor(interceptor).invocationCount.get();
+    }
+
+    /**
+     * Number of payloads an interceptor responded to from its before hook, skipping the engine.
+     * @param interceptor Interceptor in this chain
+     * @return Number of short circuits
+     */
+    public long getShortCircuitCount(Interceptor interceptor) {
+        return entryFor(interceptor).shortCircuitCount.get();
+    }
+
+    /**
+     * Total time spent in an interceptor's before and after hooks.
+     * @param interceptor Interceptor in this chain
+     * @return Time in nanoseconds
+     */
+    public long getTotalNanos(Interceptor interceptor) {
+        return entryFor(interceptor).totalNanos.get();
+    }
+
+    /**
+     * Average time spent in an interceptor's hooks per payload.
+     * @param interceptor Interceptor in this chain
+     * @return Time in nanoseconds, 0 if it hasn't been called yet
+     */
+    public long getAverageNanos(Interceptor interceptor) {
+        Entry entry = entryFor(interceptor);
+        long count = entry.invocationCount.get();
+        return 0 == count ? 0 : entry.totalNanos.get() / count;
+    }
+
+    private int indexOf(Interceptor interceptor) {
+        Entry[] entries = this.entries;
+        for (int i = 0; i < entries.length; i++) {
+            if (entries[i].interceptor == interceptor) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private Entry entryFor(Interceptor interceptor) {
+        for (Entry entry: entries) {
+            if (entry.interceptor == interceptor) {
+                return entry;
+            }
+        }
+        throw new IllegalArgumentException("Interceptor is not in the chain");
+    }
+
+}
@@ -0,0 +1,254 @@
+package org.code_revue.dhcp.server;
+
+import org.code_revue.dhcp.device.DeviceRegistry;
+import org.code_revue.dhcp.device.DeviceStatus;
+import org.code_revue.dhcp.device.NetworkDevice;
+import org.code_revue.dhcp.persist.LeaseEvent;
+import org.code_revue.dhcp.persist.LeaseJournal;
+import org.code_revue.dhcp.util.AddressUtils;
+import org.code_revue.dhcp.util.Clock;
+import org.code_revue.dhcp.util.TimingWheel;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reclaims addresses whose leases have expired, and addresses that were offered to a client which never came back to
+ * request them. Deadlines are tracked in a {@link org.code_revue.dhcp.util.TimingWheel}, so scheduling, rescheduling
+ * and cancelling a deadline is O(1) no matter how many leases there are. Each call to {@link #reap()} advances the
+ * wheel, resets the expired devices in the {@link org.code_revue.dhcp.device.DeviceRegistry} and returns their
+ * addresses to the {@link org.code_revue.dhcp.server.DhcpAddressPool} in a single bulk call.
+ * <p>
+ * A deadline only reclaims an address if the device is still in the state it was in when the deadline was scheduled
+ * and still holds the same address, so a device that has moved on in the meantime is left alone.
+ * </p>
+ * <p>
+ * That check and the reset that follows aren't atomic with respect to the engine, so the reaper must run on the thread
+ * that processes the engine's messages. A {@link org.code_revue.dhcp.server.StandardEngine} with a reaper calls
+ * {@link #reap()} itself before it handles each Discover or Request. To reap more often than messages arrive, e.g.
+ * behind a {@link org.code_revue.dhcp.server.ShardedEngine}, pass the shard's reaper to
+ * {@link org.code_revue.dhcp.server.ShardedEngine#execute(int, Runnable)}. Running it on a thread of its own would let
+ * it wipe a lease that is renewed between the check and the reset, and hand the address out twice.
+ * </p>
+ *
+ * @author Mike Fanning
+ */
+public class LeaseReaper implements Runnable {
+
+    private static final Logger logger = LoggerFactory.getLogger(LeaseReaper.class);
+
+    public static final long DEFAULT_TICK = 1000;
+
+    private final DhcpAddressPool pool;
+    private final DeviceRegistry registry;
+    private final Clock clock;
+
+    // Guarded by this.
+    private final TimingWheel<Deadline> wheel;
+    private final Map<String, TimingWheel.Timeout<Deadline>> deadlines = new HashMap<>();
+    private long reapedCount = 0;
+
+    private volatile LeaseJournal journal;
+
+    /**
+     * Creates a new reaper with a resolution of {@link #DEFAULT_TICK} milliseconds.
+     * @param pool Pool to return expired addresses to
+     * @param registry Registry of the devices holding the addresses
+     */
+    public LeaseReaper(DhcpAddressPool pool, DeviceRegistry registry) {
+        this(pool, registry, DEFAULT_TICK);
+    }
+
+    /**
+     * Creates a new reaper.
+     * @param pool Pool to return expired addresses to
+     * @param registry Registry of the devices holding the addresses
+     * @param tickMillis Resolution of the deadlines in milliseconds
+     */
+    public LeaseReaper(DhcpAddressPool pool, DeviceRegistry registry, long tickMillis) {
+        this(pool, registry, tickMillis, Clock.SYSTEM);
+    }
+
+    /**
+     * Creates a new reaper that tells the time with the supplied clock, which should be the one the engine uses.
+     * @param pool Pool to return expired addresses to
+     * @param registry Registry of the devices holding the addresses
+     * @param tickMillis Resolution of the deadlines in milliseconds
+     * @param clock Source of the current time for {@link #reap()}
+     */
+    public LeaseReaper(DhcpAddressPool pool, DeviceRegistry registry, long tickMillis, Clock clock) {
+        this.pool = pool;
+        this.registry = registry;
+        this.clock = clock;
+        this.wheel = new TimingWheel<>(tickMillis, clock.currentTimeMillis());
+    }
+
+    /**
+     * Schedules the expiration of a device's lease, replacing any deadline the device already had. The deadline is
+     * taken from {@link NetworkDevice#getLeaseExpirationMillis()}.
+     * @param device Device in the {@link DeviceStatus#ACKNOWLEDGED} state
+     */
+    public void scheduleLease(NetworkDevice device) {
+        long leaseExpiration = device.getLeaseExpirationMillis();
+        if (0 == leaseExpiration) {
+            cancel(device.getHardwareAddress());
+            return;
+        }
+        schedule(device, leaseExpiration);
+    }
+
+    /**
+     * Schedules the expiration of an offer, replacing any deadline the device already had. If the device is still in the
+     * {@link DeviceStatus#OFFERED} state when the deadline passes, the offered address is reclaimed.
+     * @param device Device in the {@link DeviceStatus#OFFERED} state
+     * @param deadlineMillis Time at which the offer expires
+     */
+    public void scheduleOffer(NetworkDevice device, long deadlineMillis) {
+        schedule(device, deadlineMillis);
+    }
+
+    private synchronized void schedule(NetworkDevice device, long deadlineMillis) {
+        if (null == device.getIpAddress()) {
+            return;
+        }
+        Deadline deadline = new Deadline(device.getHardwareAddress(), device.getIpAddress(), device.getStatus());
+        TimingWheel.Timeout<Deadline> previous = deadlines.put(deadline.key, wheel.schedule(deadline, deadlineMillis));
+        if (null != previous) {
+            wheel.cancel(previous);
+        }
+    }
+
+    /**
+     * Cancels the deadline for a device, e.g. because it released its address.
+     * @param hardwareAddress Hardware address of the device
+     * @return True if the device had a deadline
+     */
+    public synchronized boolean cancel(byte[] hardwareAddress) {
+        TimingWheel.Timeout<Deadline> timeout = deadlines.remove(AddressUtils.hardwareAddressToString(hardwareAddress));
+        return null != timeout && wheel.cancel(timeout);
+    }
+
+    /**
+     * Reclaims the addresses of every deadline that has passed.
+     * @return Number of addresses returned to the pool
+     */
+    public int reap() {
+        return reap(clock.currentTimeMillis());
+    }
+
+    /**
+     * Reclaims the addresses of every deadline at or before the supplied time.
+     * @param nowMillis Current time in milliseconds
+     * @return Number of addresses returned to the pool
+     */
+    public int reap(long nowMillis) {
+        List<Deadline> expired = new ArrayList<>();
+        synchronized (this) {
+            wheel.advance(nowMillis, expired);
+            for (Deadline deadline: expired) {
+                deadlines.remove(deadline.key);
+            }
+        }
+        if (expired.isEmpty()) {
+            return 0;
+        }
+
+        int[] addresses = new int[expired.size()];
+        int count = 0;
+        for (Deadline deadline: expired) {
+            NetworkDevice device = registry.getDevice(deadline.hardwareAddress);
+            if (!deadline.status.equals(device.getStatus()) ||
+                    !Arrays.equals(deadline.ipAddress, device.getIpAddress())) {
+                continue;
+            }
+            if (DeviceStatus.ACKNOWLEDGED.equals(device.getStatus()) && device.getLeaseExpirationMillis() > nowMillis) {
+                // Renewed without being rescheduled, check again when the new lease runs out.
+                scheduleLease(device);
+                continue;
+            }
+            if (logger.isDebugEnabled()) {
+                logger.debug("{} for client {} expired, reclaiming {}",
+                        DeviceStatus.OFFERED.equals(deadline.status) ? "Offer" : "Lease",
+                        deadline.key, AddressUtils.convertToString(deadline.ipAddress));
+            }
+            registry.resetDevice(deadline.hardwareAddress);
+            device.setIpAddress(null);
+            registry.updateDevice(device);
+            if (null != journal) {
+                journal.append(LeaseEvent.EXPIRE, device);
+            }
+            addresses[count++] = AddressUtils.convertToInt(deadline.ipAddress);
+        }
+
+        if (count > 0) {
+            pool.returnAddresses(addresses, 0, count);
+            logger.info("Reclaimed {} expired address(es)", count);
+        }
+        synchronized (this) {
+            reapedCount += count;
+        }
+        return count;
+    }
+
+    @Override
+    public void run() {
+        try {
+            reap();
+        } catch (RuntimeException e) {
+            logger.error("Error reaping expired leases", e);
+        }
+    }
+
+    public Clock getClock() {
+        return clock;
+    }
+
+    public LeaseJournal getJournal() {
+        return journal;
+    }
+
+    /**
+     * Set a journal to record reclaimed leases and offers in, usually the same one the engine uses.
+     * @param journal Lease journal, or null to disable
+     */
+    public void setJournal(LeaseJournal journal) {
+        this.journal = journal;
+    }
+
+    /**
+     * Number of deadlines that are currently scheduled.
+     * @return Number of deadlines
+     */
+    public synchronized int getScheduledCount() {
+        return wheel.size();
+    }
+
+    /**
+     * Total number of addresses that have been reclaimed.
+     * @return Number of reclaimed addresses
+     */
+    public synchronized long getReapedCount() {
+        return reapedCount;
+    }
+
+    private static class Deadline {
+
+        private final String key;
+        private final byte[] hardwareAddress;
+        private final byte[] ipAddress;
+        private final DeviceStatus status;
+
+        private Deadline(byte[] hardwareAddress, byte[] ipAddress, DeviceStatus status) {
+            this.key = AddressUtils.hardwareAddressToString(hardwareAddress);
+            this.hardwareAddress = hardwareAddress;
+            this.ipAddress = ipAddress;
+            this.status = status;
+        }
+    }
+
+}
@@ -0,0 +1,139 @@
+package org.code_revue.dhcp.server;
+
+import org.code_revue.dhcp.util.LongHashIndex;
+
+/**
+ * Hands out addresses that have never been used first, and after that the address that was returned to the pool the
+ * longest time ago. Recently released addresses therefore rest as long as possible before they are reused, which gives
+ * stale ARP and DNS entries for them time to expire and makes it less likely that a client which comes back shortly
+ * after its lease ended finds its address taken.
+ * <p>
+ * Released addresses are kept in a FIFO ring buffer of offsets. Each entry carries a release sequence number, and an
+ * index maps the addresses that are still free to the sequence number of their latest release. Entries for addresses
+ * that were borrowed again, or borrowed and released again since, no longer match the index and are skipped lazily,
+ * and the queue is compacted when more than half of it is stale, so borrows and returns cost O(1) amortized.
+ * Addresses that are borrowed or returned through range operations aren't reported to strategies, so the order is
+ * approximate if those are used.
+ * </p>
+ *
+ * @author Mike Fanning
+ */
+public class LeastRecentlyReleasedAllocationStrategy implements AllocationStrategy {
+
+    private static final int INITIAL_CAPACITY = 16;
+    private static final long NOT_RELEASED = -1;
+
+    // Offsets at or above this have never been borrowed.
+    private long fresh = 0;
+
+    // Entries are the release sequence number in the high 32 bits and the offset in the low 32 bits.
+    private long[] queue = new long[INITIAL_CAPACITY];
+    private int head = 0, size = 0;
+    private int sequence = 0;
+
+    // Offsets that have been returned and not borrowed since, mapped to the sequence number of their latest release.
+    private final LongHashIndex released = new LongHashIndex(INITIAL_CAPACITY);
+
+    @Override
+    public long select(long size, byte[] hardwareAddress) {
+        if (fresh < size) {
+            return fresh;
+        }
+        while (this.size > 0) {
+            long entry = queue[head];
+            if (isLive(entry)) {
+                if (offsetOf(entry) < size) {
+                    return offsetOf(entry);
+                }
+                // Outside the range of the pool after a resize, forget about it.
+                released.remove(offsetOf(entry));
+            }
+            poll();
+        }
+        return 0;
+    }
+
+    @Override
+    public void borrowed(long offset) {
+        if (offset >= fresh) {
+            fresh = offset + 1;
+        }
+        if (released.remove(offset) && size > 0 && offsetOf(queue[head]) == offset) {
+            poll();
+        }
+    }
+
+    @Override
+    public void returned(long offset) {
+        if (offset > Integer.MAX_VALUE || released.containsKey(offset)) {
+            return;
+        }
+        if (size == queue.length) {
+            if (size > 2 * released.size()) {
+                compact();
+            } else {
+                grow();
+            }
+        }
+        long releaseSequence = sequence++ & 0xffffffffL;
+        queue[(head + size) % queue.length] = releaseSequence << 32 | offset;
+        size++;
+        released.put(offset, releaseSequence);
+    }
+
+    @Override
+    public boolean isHardwareAware() {
+        return false;
+    }
+
+    /**
+     * Number of released addresses that are waiting to be reused.
+     * @return Number of released addresses
+     */
+    public int getReleasedCount() {
+        return released.size();
+    }
+
+    private static int offsetOf(long entry) {
+        return (int) entry;
+    }
+
+    /**
+     * An entry is live if its address is still free and it is the entry for the address's latest release.
+     */
+    private boolean isLive(long entry) {
+        return released.get(offsetOf(entry), NOT_RELEASED) == entry >>> 32;
+    }
+
+    private void poll() {
+        head = (head + 1) % queue.length;
+        size--;
+    }
+
+    private void grow() {
+        long[] newQueue = new long[queue.length * 2];
+        for (int i = 0; i < size; i++) {
+            newQueue[i] = queue[(head + i) % queue.length];
+        }
+        queue = newQueue;
+        head = 0;
+    }
+
+    /**
+     * Drops entries for addresses that have been borrowed again, and older entries for addresses that were borrowed
+     * and returned again while an older entry was still in the queue. Only the entry for an address's latest release
+     * is kept, so it stays behind the addresses released before it.
+     */
+    private void compact() {
+        int count = 0;
+        for (int i = 0; i < size; i++) {
+            long entry = queue[(head + i) % queue.length];
+            if (isLive(entry)) {
+                queue[(head + count) % queue.length] = entry;
+                count++;
+            }
+        }
+        size = count;
+    }
+
+}
@@ -0,0 +1,51 @@
+package org.code_revue.dhcp.server;
+
+import org.code_revue.dhcp.util.AddressUtils;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * {@link org.code_revue.dhcp.server.ConflictProber} that doesn't touch the network. It reports an address as being in
+ * use if it has been registered via {@link #addHost(byte[])}, which makes it a handy stand-in for tests or lab setups
+ * where the squatting hosts are known ahead of time.
+ *
+ * @author Mike Fanning
+ */
+public class LocalConflictProber implements ConflictProber {
+
+    private final Set<Integer> hosts = new ConcurrentSkipListSet<>();
+
+    private final AtomicLong probeCount = new AtomicLong(0);
+
+    @Override
+    public boolean isInUse(byte[] address) {
+        probeCount.incrementAndGet();
+        return hosts.contains(AddressUtils.convertToInt(address));
+    }
+
+    /**
+     * Register a host that will answer probes.
+     * @param address IPv4 address of the host
+     */
+    public void addHost(byte[] address) {
+        hosts.add(AddressUtils.convertToInt(address));
+    }
+
+    /**
+     * Remove a host, so that its address will no longer answer probes.
+     * @param address IPv4 address of the host
+     */
+    public void removeHost(byte[] address) {
+        hosts.remove(AddressUtils.convertToInt(address));
+    }
+
+    /**
+     * Get the number of probes that have been sent to this prober.
+     * @return Number of probes
+     */
+    public long getProbeCount() {
+        return probeCount.get();
+    }
+}
@@ -0,0 +1,184 @@
+package org.code_revue.dhcp.server;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Keeps track of how many addresses in a {@link org.code_revue.dhcp.server.DhcpAddressPool} are used, excluded and
+ * free. Pools update the counts as addresses are borrowed, returned and excluded, so reading them never requires a scan
+ * of the pool, and notify {@link org.code_revue.dhcp.server.UtilizationListener}s when configurable watermarks are
+ * crossed.
+ * <p>
+ * Watermarks are expressed as a fraction of the addresses that can be handed out (i.e. the size of the pool minus the
+ * exclusions) and are converted into absolute counts whenever the size of the pool or the number of exclusions
+ * changes, so checking them on a borrow or return is a single comparison. The high and low watermarks provide
+ * hysteresis: once the high watermark has been reached, listeners won't hear about it again until the pool has drained
+ * back down to the low watermark.
+ * </p>
+ * <p>
+ * The update methods must only be called by the pool while it holds its lock. The getters and
+ * {@link #setWatermarks(double, double)} can be called from any thread; new watermarks take effect on the next update.
+ * By default no watermarks are set.
+ * </p>
+ *
+ * @author Mike Fanning
+ */
+public class PoolUtilization {
+
+    private volatile long size;
+    private volatile long used;
+    private volatile long excluded;
+
+    private volatile double highWatermark = Double.POSITIVE_INFINITY, lowWatermark = 0.0;
+    private volatile long highCount = Long.MAX_VALUE, lowCount = Long.MIN_VALUE;
+    private volatile boolean high = false;
+
+    private final List<UtilizationListener> listeners = new CopyOnWriteArrayList<>();
+
+    /**
+     * Creates a new object for a pool of the supplied size with nothing borrowed or excluded.
+     * @param size Number of addresses in the pool
+     */
+    public PoolUtilization(long size) {
+        this.size = size;
+    }
+
+    /**
+     * Number of addresses in the pool's range.
+     * @return Size of the pool
+     */
+    public long getSize() {
+        return size;
+    }
+
+    /**
+     * Number of addresses in the pool's range that have been borrowed.
+     * @return Number of used addresses
+     */
+    public long getUsed() {
+        return used;
+    }
+
+    /**
+     * Number of addresses in the pool's range that have been excluded.
+     * @return Number of excluded addresses
+     */
+    public long getExcluded() {
+        return excluded;
+    }
+
+    /**
+     * Number of addresses in the pool's range that are available for borrowing.
+     * @return Number of free addresses
+     */
+    public long getFree() {
+        return size - used - excluded;
+    }
+
+    /**
+     * Fraction of the addresses that can be handed out which are currently borrowed.
+     * @return Utilization between 0 and 1
+     */
+    public double getUtilization() {
+        long capacity = size - excluded;
+        return capacity <= 0 ? 1.0 : (double) used / capacity;
+    }
+
+    /**
+     * Check whether the high watermark has been reached and the pool hasn't drained back to the low watermark yet.
+     * @return True if the pool is above its high watermark
+     */
+    public boolean isHigh() {
+        return high;
+    }
+
+    /**
+     * Configure the watermarks. Setting the high watermark above 1 disables notifications.
+     * @param highWatermark Fraction of usable addresses at which listeners are told the pool is filling up
+     * @param lowWatermark Fraction of usable addresses at which listeners are told the pool has drained
+     * @throws java.lang.IllegalArgumentException If the low watermark is above the high watermark
+     */
+    public void setWatermarks(double highWatermark, double lowWatermark) {
+        if (lowWatermark > highWatermark) {
+            throw new IllegalArgumentException("Low watermark is above high watermark");
+        }
+        this.highWatermark = highWatermark;
+        this.lowWatermark = lowWatermark;
+        computeThresholds(size, excluded);
+    }
+
+    public double getHighWatermark() {
+        return highWatermark;
+    }
+
+    public double getLowWatermark() {
+        return lowWatermark;
+    }
+
+    public void addListener(UtilizationListener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(UtilizationListener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Adjusts the used count after addresses have been borrowed or returned.
+     * @param delta Number of addresses borrowed, or negative for returned addresses
+     */
+    void addUsed(long delta) {
+        used += delta;
+        checkWatermarks();
+    }
+
+    /**
+     * Adjusts the counts after addresses have been excluded or had their exclusion removed.
+     * @param usedDelta Change in the number of used addresses
+     * @param excludedDelta Change in the number of excluded addresses
+     */
+    void addExcluded(long usedDelta, long excludedDelta) {
+        used += usedDelta;
+        excluded += excludedDelta;
+        computeThresholds(size, excluded);
+        checkWatermarks();
+    }
+
+    /**
+     * Replaces all of the counts, normally after the range of the pool has changed.
+     */
+    void reset(long size, long used, long excluded) {
+        this.size = size;
+        this.used = used;
+        this.excluded = excluded;
+        computeThresholds(size, excluded);
+        checkWatermarks();
+    }
+
+    private void computeThresholds(long size, long excluded) {
+        long capacity = size - excluded;
+        highCount = highWatermark > 1.0 ? Long.MAX_VALUE : (long) Math.ceil(highWatermark * capacity);
+        lowCount = (long) Math.floor(lowWatermark * capacity);
+    }
+
+    private void checkWatermarks() {
+        if (!high) {
+            if (used >= highCount) {
+                high = true;
+                for (UtilizationListener listener: listeners) {
+                    listener.highWatermarkReached(this);
+                }
+            }
+        } else if (used <= lowCount) {
+            high = false;
+            for (UtilizationListener listener: listeners) {
+                listener.lowWatermarkReached(this);
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "used=" + used + ", excluded=" + excluded + ", free=" + getFree() + ", size=" + size;
+    }
+}
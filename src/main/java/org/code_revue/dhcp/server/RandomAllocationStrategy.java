@@ -0,0 +1,29 @@
+package org.code_revue.dhcp.server;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Starts looking for a free address at a random offset. Addresses are spread evenly over the pool and are hard to
+ * predict, but a client is unlikely to get the same address twice.
+ *
+ * @author Mike Fanning
+ */
+public class RandomAllocationStrategy implements AllocationStrategy {
+
+    @Override
+    public long select(long size, byte[] hardwareAddress) {
+        return (long) (ThreadLocalRandom.current().nextDouble() * size);
+    }
+
+    @Override
+    public void borrowed(long offset) { }
+
+    @Override
+    public void returned(long offset) { }
+
+    @Override
+    public boolean isHardwareAware() {
+        return false;
+    }
+
+}
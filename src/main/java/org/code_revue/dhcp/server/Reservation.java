@@ -0,0 +1,98 @@
+package org.code_revue.dhcp.server;
+
+import org.code_revue.dhcp.message.DhcpOption;
+import org.code_revue.dhcp.message.DhcpOptionType;
+import org.code_revue.dhcp.util.AddressUtils;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A fixed address, and optionally fixed configuration options, for a particular client. The client is identified by
+ * its hardware address, its client identifier (option 61), or both. Reservations are immutable and are kept in a
+ * {@link org.code_revue.dhcp.server.ReservationTable}.
+ *
+ * @author Mike Fanning
+ */
+public class Reservation {
+
+    private final byte[] hardwareAddress;
+    private final byte[] clientId;
+    private final byte[] ipAddress;
+    private final Map<DhcpOptionType, DhcpOption> options;
+
+    /**
+     * Creates a reservation without any options of its own.
+     * @param hardwareAddress Hardware address of the client
+     * @param ipAddress Address reserved for the client
+     */
+    public Reservation(byte[] hardwareAddress, byte[] ipAddress) {
+        this(hardwareAddress, null, ipAddress, Collections.<DhcpOption>emptyList());
+    }
+
+    /**
+     * Creates a new reservation.
+     * @param hardwareAddress Hardware address of the client, or null to match on the client identifier only
+     * @param clientId Client identifier, or null to match on the hardware address only
+     * @param ipAddress Address reserved for the client
+     * @param options Options to send the client instead of the engine's configuration
+     * @throws java.lang.IllegalArgumentException If there is neither a hardware address nor a client identifier, or the
+     * IP address is not a usable IPv4 address
+     */
+    public Reservation(byte[] hardwareAddress, byte[] clientId, byte[] ipAddress, List<DhcpOption> options) {
+        if (null == hardwareAddress && null == clientId) {
+            throw new IllegalArgumentException("Reservation needs a hardware address or client identifier");
+        }
+        if (null == ipAddress || ipAddress.length != 4 || 0 == AddressUtils.convertToInt(ipAddress)) {
+            throw new IllegalArgumentException("Invalid Address");
+        }
+        this.hardwareAddress = null == hardwareAddress ? null : hardwareAddress.clone();
+        this.clientId = null == clientId ? null : clientId.clone();
+        this.ipAddress = ipAddress.clone();
+        Map<DhcpOptionType, DhcpOption> optionMap = new EnumMap<>(DhcpOptionType.class);
+        for (DhcpOption option: options) {
+            optionMap.put(option.getType(), option);
+        }
+        this.options = Collections.unmodifiableMap(optionMap);
+    }
+
+    /**
+     * Get the hardware address of the client.
+     * @return Hardware address, or null if the reservation is for a client identifier
+     */
+    public byte[] getHardwareAddress() {
+        return null == hardwareAddress ? null : hardwareAddress.clone();
+    }
+
+    /**
+     * Get the client identifier of the client.
+     * @return Client identifier, or null if the reservation is for a hardware address
+     */
+    public byte[] getClientId() {
+        return null == clientId ? null : clientId.clone();
+    }
+
+    public byte[] getIpAddress() {
+        return ipAddress.clone();
+    }
+
+    /**
+     * Get the options that take the place of the engine's configuration for this client.
+     * @return Read-only map of options
+     */
+    public Map<DhcpOptionType, DhcpOption> getOptions() {
+        return options;
+    }
+
+    @Override
+    public String toString() {
+        return "Reservation{" +
+                (null == hardwareAddress ? "" : AddressUtils.hardwareAddressToString(hardwareAddress) + " ") +
+                (null == clientId ? "" : "client-id " + Arrays.toString(clientId) + " ") +
+                "-> " + AddressUtils.convertToString(ipAddress) + "}";
+    }
+
+}
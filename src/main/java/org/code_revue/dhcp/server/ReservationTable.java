@@ -0,0 +1,175 @@
+package org.code_revue.dhcp.server;
+
+import org.code_revue.dhcp.util.AddressUtils;
+import org.code_revue.dhcp.util.IntHashMap;
+import org.code_revue.dhcp.util.LongHashIndex;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Static address reservations, looked up by {@link org.code_revue.dhcp.server.StandardEngine} before it borrows from
+ * the address pool. Ethernet hardware addresses are packed into a {@link org.code_revue.dhcp.util.LongHashIndex} and
+ * reserved addresses are kept in an {@link org.code_revue.dhcp.util.IntHashMap}, so lookups take constant time and
+ * don't allocate, even with tens of thousands of reservations. Client identifiers and other hardware addresses are
+ * kept in ordinary hash maps.
+ * <p>
+ * The table is copy-on-write: {@link #reload(Collection)} builds a complete new set of indexes and swaps it in with a
+ * single volatile write, so lookups never wait for a reload and always see either the old or the new reservations.
+ * Reserved addresses are excluded from the pool, which keeps the pool from handing them to other clients, and the
+ * exclusions are updated on every reload. Only exclusions added by the table are ever removed by it. A dynamic lease
+ * on an address that becomes reserved is not revoked, but the engine refuses to renew it.
+ * </p>
+ *
+ * @author Mike Fanning
+ */
+public class ReservationTable {
+
+    private static final Logger logger = LoggerFactory.getLogger(ReservationTable.class);
+
+    private final DhcpAddressPool pool;
+
+    private volatile Snapshot snapshot = new Snapshot(Collections.<Reservation>emptyList());
+
+    // Guarded by this. Reserved addresses that this table excluded from the pool.
+    private final IntHashMap<Boolean> exclusions = new IntHashMap<>();
+
+    /**
+     * Creates an empty table.
+     * @param pool Pool to exclude the reserved addresses from, or null if the reserved addresses are outside of any pool
+     */
+    public ReservationTable(DhcpAddressPool pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * Find the reservation for a client. A reservation for the client identifier takes precedence over one for the
+     * hardware address, since that is how clients that send an identifier expect to be identified (RFC 2131).
+     * @param hardwareAddress Hardware address of the client
+     * @param clientId Client identifier, or null if the client didn't send one
+     * @return Reservation, or null if the client has none
+     */
+    public Reservation find(byte[] hardwareAddress, byte[] clientId) {
+        Snapshot current = snapshot;
+        if (null != clientId && !current.byClientId.isEmpty()) {
+            Reservation reservation = current.byClientId.get(ByteBuffer.wrap(clientId));
+            if (null != reservation) {
+                return reservation;
+            }
+        }
+        if (null == hardwareAddress) {
+            return null;
+        }
+        if (6 == hardwareAddress.length) {
+            long slot = current.byEthernetAddress.get(AddressUtils.hardwareAddressToLong(hardwareAddress), -1);
+            return slot < 0 ? null : current.reservations[(int) slot];
+        }
+        return current.byHardwareAddress.get(ByteBuffer.wrap(hardwareAddress));
+    }
+
+    /**
+     * Find the reservation for an address.
+     * @param ipAddress IPv4 address
+     * @return Reservation, or null if the address isn't reserved
+     */
+    public Reservation getByIpAddress(byte[] ipAddress) {
+        int address = AddressUtils.convertToInt(ipAddress);
+        return 0 == address ? null : snapshot.byIpAddress.get(address);
+    }
+
+    /**
+     * Replaces every reservation in the table. The new reservations are checked first, so if any of them clash the
+     * table and the pool are left as they were. Newly reserved addresses are excluded from the pool before the new
+     * reservations take effect, and addresses that are no longer reserved are let back into the pool afterwards.
+     * @param reservations New reservations
+     * @throws java.lang.IllegalArgumentException If two reservations have the same client or the same address
+     */
+    public synchronized void reload(Collection<Reservation> reservations) {
+        long begin = System.nanoTime();
+        Snapshot previous = snapshot;
+        Snapshot next = new Snapshot(reservations);
+
+        int excluded = 0, released = 0;
+        if (null != pool) {
+            for (Reservation reservation: next.reservations) {
+                int address = AddressUtils.convertToInt(reservation.getIpAddress());
+                if (null == exclusions.get(address) && pool.addExclusion(reservation.getIpAddress())) {
+                    exclusions.put(address, Boolean.TRUE);
+                    excluded++;
+                }
+            }
+        }
+
+        snapshot = next;
+
+        for (Reservation reservation: previous.reservations) {
+            int address = AddressUtils.convertToInt(reservation.getIpAddress());
+            if (null == next.byIpAddress.get(address) && null != exclusions.remove(address)) {
+                pool.removeExclusion(reservation.getIpAddress());
+                released++;
+            }
+        }
+
+        logger.info("Loaded {} reservation(s) in {} ms, {} address(es) newly excluded from the pool, {} released",
+                next.reservations.length, (System.nanoTime() - begin) / 1000000, excluded, released);
+    }
+
+    /**
+     * Get every reservation in the table.
+     * @return Unmodifiable list of reservations
+     */
+    public List<Reservation> getReservations() {
+        return Collections.unmodifiableList(Arrays.asList(snapshot.reservations));
+    }
+
+    public int size() {
+        return snapshot.reservations.length;
+    }
+
+    /**
+     * Immutable set of indexes over one generation of reservations.
+     */
+    private static class Snapshot {
+
+        private final Reservation[] reservations;
+        private final LongHashIndex byEthernetAddress;
+        private final Map<ByteBuffer, Reservation> byHardwareAddress = new HashMap<>();
+        private final Map<ByteBuffer, Reservation> byClientId = new HashMap<>();
+        private final IntHashMap<Reservation> byIpAddress;
+
+        private Snapshot(Collection<Reservation> reservations) {
+            this.reservations = new ArrayList<>(reservations).toArray(new Reservation[reservations.size()]);
+            this.byEthernetAddress = new LongHashIndex(this.reservations.length);
+            this.byIpAddress = new IntHashMap<>(this.reservations.length);
+            for (int i = 0; i < this.reservations.length; i++) {
+                Reservation reservation = this.reservations[i];
+                if (null != byIpAddress.put(AddressUtils.convertToInt(reservation.getIpAddress()), reservation)) {
+                    throw new IllegalArgumentException("Address is reserved more than once: " + reservation);
+                }
+                byte[] hardwareAddress = reservation.getHardwareAddress();
+                boolean added = true;
+                if (null != hardwareAddress && 6 == hardwareAddress.length) {
+                    added = byEthernetAddress.put(AddressUtils.hardwareAddressToLong(hardwareAddress), i);
+                } else if (null != hardwareAddress) {
+                    added = null == byHardwareAddress.put(ByteBuffer.wrap(hardwareAddress), reservation);
+                }
+                byte[] clientId = reservation.getClientId();
+                if (null != clientId) {
+                    added &= null == byClientId.put(ByteBuffer.wrap(clientId), reservation);
+                }
+                if (!added) {
+                    throw new IllegalArgumentException("Client has more than one reservation: " + reservation);
+                }
+            }
+        }
+    }
+
+}
@@ -0,0 +1,32 @@
+package org.code_revue.dhcp.server;
+
+/**
+ * Hands out addresses in order, continuing from the last address that was borrowed and wrapping around at the end of
+ * the range. Returned addresses are not reused until the cursor comes back around, which spreads the churn over the
+ * whole pool instead of concentrating it at the start.
+ *
+ * @author Mike Fanning
+ */
+public class RoundRobinAllocationStrategy implements AllocationStrategy {
+
+    private long next = 0;
+
+    @Override
+    public long select(long size, byte[] hardwareAddress) {
+        return next < size ? next : 0;
+    }
+
+    @Override
+    public void borrowed(long offset) {
+        next = offset + 1;
+    }
+
+    @Override
+    public void returned(long offset) { }
+
+    @Override
+    public boolean isHardwareAware() {
+        return false;
+    }
+
+}
@@ -1,17 +1,23 @@
 package org.code_revue.dhcp.server;
 
+import org.code_revue.dhcp.message.DhcpOption;
+import org.code_revue.dhcp.message.DhcpOptionType;
 import org.code_revue.dhcp.util.AddressUtils;
+import org.code_revue.dhcp.util.Subnet;
 
 import java.util.*;
 
 /**
  * Implementation of {@link org.code_revue.dhcp.server.DhcpAddressPool} that hands out IPv4 addresses within the
  * specified range, excluding addresses that have specifically been set aside via the "exclusions" mechanism. This
- * implementation is not thread safe, and will not throw any exceptions related to address ranges (e.g. when the start
- * address is after the end address), making it more suitable for ORM frameworks.
+ * implementation will not throw any exceptions related to address ranges (e.g. when the start address is after the end
+ * address), making it more suitable for ORM frameworks.
  * <p>
- * The {@link org.code_revue.dhcp.server.BitSetAddressPool} uses less memory in worst-case scenarios, but this shouldn't
- * be an issue unless there are severe memory constraints or a lot of hosts.
+ * Borrowed addresses and exclusions are both kept in {@link org.code_revue.dhcp.server.AddressRangeSet}s, so finding
+ * the next free address is a single O(log k) lookup instead of a walk over every borrowed address, and memory usage
+ * depends on how fragmented the pool is rather than how many addresses have been handed out. Because the borrowed set
+ * doesn't depend on the start and end addresses, the range can be changed at any time without copying anything. All
+ * methods are synchronized on the pool, so it is safe to share between threads.
  * </p>
  *
  * @author Mike Fanning
@@ -19,11 +25,16 @@ import java.util.*;
  */
 public class SetBasedAddressPool implements DhcpAddressPool {
 
-    private int start, end;
+    // Unsigned representation of the addresses, see AddressRangeSet.
+    private long start, end;
 
-    private NavigableSet<Integer> borrowed = new TreeSet<>();
+    private final AddressRangeSet borrowed = new AddressRangeSet();
 
-    private Set<Integer> exclusions = new HashSet<>();
+    private final AddressRangeSet exclusions = new AddressRangeSet();
+
+    private final PoolUtilization utilization = new PoolUtilization(1);
+
+    private AllocationStrategy strategy = new FirstFreeAllocationStrategy();
 
     /**
      * Creates an empty pool with no start/end addresses or exclusions.
@@ -40,42 +51,71 @@ public class SetBasedAddressPool implements DhcpAddressPool {
         setEnd(end);
     }
 
+    /**
+     * Creates a new IPv4 address pool covering the host addresses of a subnet, so the network and broadcast addresses
+     * are never part of the range. Addresses of infrastructure listed in the options (see
+     * {@link org.code_revue.dhcp.util.Subnet#RESERVED_OPTIONS}) are excluded.
+     * @param subnet Subnet to hand out addresses from
+     * @param options DHCP options for the subnet, e.g. {@link StandardEngine#getConfiguration()}
+     * @throws java.lang.IllegalArgumentException If the options include a subnet mask that doesn't match the subnet
+     */
+    public SetBasedAddressPool(Subnet subnet, Map<DhcpOptionType, DhcpOption> options) {
+        this(subnet.getFirstHost(), subnet.getLastHost());
+        for (int address: subnet.getReservedAddresses(options)) {
+            addExclusion(AddressUtils.convertToByteArray(address));
+        }
+    }
+
+    /**
+     * Creates a new IPv4 address pool covering the host addresses of a subnet.
+     * @param subnet Subnet to hand out addresses from
+     */
+    public SetBasedAddressPool(Subnet subnet) {
+        this(subnet, Collections.<DhcpOptionType, DhcpOption>emptyMap());
+    }
+
     @Override
     public byte[] borrowAddress() {
-        int addr = start;
-        Iterator<Integer> it = borrowed.iterator();
-        while (it.hasNext()) {
-            int next = it.next();
-            if (next == addr) {
-                addr++;
-            } else {
-                break;
-            }
-        }
+        return borrowAddressFor(null);
+    }
 
-        if (addr > end) {
+    @Override
+    public synchronized byte[] borrowAddressFor(byte[] hardwareAddress) {
+        if (start > end) {
             throw new IndexOutOfBoundsException("No addresses are available");
         }
+        long addr = borrowed.nextAbsent(start + strategy.select(end - start + 1, hardwareAddress));
+        if (addr > end) {
+            addr = borrowed.nextAbsent(start);
+            if (addr > end) {
+                throw new IndexOutOfBoundsException("No addresses are available");
+            }
+        }
         borrowed.add(addr);
-        return AddressUtils.convertToByteArray(addr);
+        strategy.borrowed(addr - start);
+        utilization.addUsed(1);
+        return AddressUtils.convertToByteArray((int) addr);
     }
 
     @Override
-    public byte[] borrowAddress(byte[] address) {
-        int addr = AddressUtils.convertToInt(address);
-        if (borrowed.contains(addr)) {
+    public synchronized byte[] borrowAddress(byte[] address) {
+        long addr = AddressUtils.convertToLong(address);
+        if (!borrowed.add(addr)) {
             return null;
         }
-
-        borrowed.add(addr);
+        if (inRange(addr)) {
+            strategy.borrowed(addr - start);
+            utilization.addUsed(1);
+        }
         return address;
     }
 
     @Override
-    public void returnAddress(byte[] address) {
-        int addr = AddressUtils.convertToInt(address);
-        if (!exclusions.contains(addr)) {
-            borrowed.remove(addr);
+    public synchronized void returnAddress(byte[] address) {
+        long addr = AddressUtils.convertToLong(address);
+        if (!exclusions.contains(addr) && borrowed.remove(addr) && inRange(addr)) {
+            strategy.returned(addr - start);
+            utilization.addUsed(-1);
         }
     }
 
@@ -83,32 +123,34 @@ public class SetBasedAddressPool implements DhcpAddressPool {
      * Get the beginning address of this DHCP pool, inclusive.
      * @return Start address
      */
-    public byte[] getStart() {
-        return AddressUtils.convertToByteArray(start);
+    public synchronized byte[] getStart() {
+        return AddressUtils.convertToByteArray((int) start);
     }
 
     /**
      * Set the first address of this DHCP pool, inclusive.
      * @param start Start address
      */
-    public void setStart(byte[] start) {
-        this.start = AddressUtils.convertToInt(start);
+    public synchronized void setStart(byte[] start) {
+        this.start = AddressUtils.convertToLong(start);
+        recount();
     }
 
     /**
      * Get the end address of this DHCP pool, inclusive.
      * @return End Address
      */
-    public byte[] getEnd() {
-        return AddressUtils.convertToByteArray(end);
+    public synchronized byte[] getEnd() {
+        return AddressUtils.convertToByteArray((int) end);
     }
 
     /**
      * Set the end address of this DHCP pool, inclusive.
      * @param end End Address
      */
-    public void setEnd(byte[] end) {
-        this.end = AddressUtils.convertToInt(end);
+    public synchronized void setEnd(byte[] end) {
+        this.end = AddressUtils.convertToLong(end);
+        recount();
     }
 
     /**
@@ -116,11 +158,14 @@ public class SetBasedAddressPool implements DhcpAddressPool {
      * {@link #borrowAddress(byte[])} methods are invoked.
      * @return Addresses that are excluded
      */
-    public Iterable<byte[]> getExclusions() {
+    @Override
+    public synchronized Iterable<byte[]> getExclusions() {
         // My special Iterator adapter that converted the integers to byte[] doesn't play nice with jsp. Argh.
         List<byte[]> answer = new ArrayList<>();
-        for (Integer e: exclusions) {
-            answer.add(AddressUtils.convertToByteArray(e));
+        for (Map.Entry<Long, Long> range: exclusions.getRanges().entrySet()) {
+            for (long e = range.getKey(); e <= range.getValue(); e++) {
+                answer.add(AddressUtils.convertToByteArray((int) e));
+            }
         }
         return answer;
     }
@@ -149,10 +194,15 @@ public class SetBasedAddressPool implements DhcpAddressPool {
      * @param address Excluded address
      * @return Indicates whether the exclusions was already present
      */
-    public boolean addExclusion(byte[] address) {
-        int addr = AddressUtils.convertToInt(address);
-        borrowAddress(address);
-        return exclusions.add(addr);
+    @Override
+    public synchronized boolean addExclusion(byte[] address) {
+        long addr = AddressUtils.convertToLong(address);
+        boolean newlyBorrowed = borrowed.add(addr);
+        boolean added = exclusions.add(addr);
+        if (added && inRange(addr)) {
+            utilization.addExcluded(newlyBorrowed ? 0 : -1, 1);
+        }
+        return added;
     }
 
     /**
@@ -161,10 +211,171 @@ public class SetBasedAddressPool implements DhcpAddressPool {
      * @param address Address to remove from exclusion list
      * @return True if the address was in the exclusion list, false otherwise
      */
-    public boolean removeExclusion(byte[] address) {
-        int addr = AddressUtils.convertToInt(address);
+    @Override
+    public synchronized boolean removeExclusion(byte[] address) {
+        long addr = AddressUtils.convertToLong(address);
         boolean removed = exclusions.remove(addr);
-        returnAddress(address);
+        if (removed) {
+            borrowed.remove(addr);
+            if (inRange(addr)) {
+                utilization.addExcluded(0, -1);
+            }
+        } else {
+            returnAddress(address);
+        }
         return removed;
     }
+
+    @Override
+    public synchronized int borrowAddresses(int[] addresses, int offset, int length) {
+        int count = 0, inRange = 0;
+        for (int i = offset; i < offset + length; i++) {
+            long addr = addresses[i] & 0xffffffffL;
+            if (borrowed.add(addr)) {
+                count++;
+                if (inRange(addr)) {
+                    strategy.borrowed(addr - start);
+                    inRange++;
+                }
+            }
+        }
+        utilization.addUsed(inRange);
+        return count;
+    }
+
+    @Override
+    public synchronized int returnAddresses(int[] addresses, int offset, int length) {
+        int count = 0, inRange = 0;
+        for (int i = offset; i < offset + length; i++) {
+            long addr = addresses[i] & 0xffffffffL;
+            if (!exclusions.contains(addr) && borrowed.remove(addr)) {
+                count++;
+                if (inRange(addr)) {
+                    strategy.returned(addr - start);
+                    inRange++;
+                }
+            }
+        }
+        utilization.addUsed(-inRange);
+        return count;
+    }
+
+    @Override
+    public synchronized long borrowRange(byte[] first, byte[] last) {
+        long added = borrowed.add(AddressUtils.convertToLong(first), AddressUtils.convertToLong(last));
+        recount();
+        return added;
+    }
+
+    @Override
+    public synchronized long returnRange(byte[] first, byte[] last) {
+        long lo = AddressUtils.convertToLong(first), hi = AddressUtils.convertToLong(last);
+        long released = borrowed.remove(lo, hi);
+        for (Map.Entry<Long, Long> range: exclusions.intersection(lo, hi).getRanges().entrySet()) {
+            released -= borrowed.add(range.getKey(), range.getValue());
+        }
+        recount();
+        return released;
+    }
+
+    @Override
+    public synchronized long addExclusionRange(byte[] first, byte[] last) {
+        long lo = AddressUtils.convertToLong(first), hi = AddressUtils.convertToLong(last);
+        borrowed.add(lo, hi);
+        long added = exclusions.add(lo, hi);
+        recount();
+        return added;
+    }
+
+    @Override
+    public synchronized long removeExclusionRange(byte[] first, byte[] last) {
+        long lo = AddressUtils.convertToLong(first), hi = AddressUtils.convertToLong(last);
+        AddressRangeSet removed = exclusions.intersection(lo, hi);
+        exclusions.remove(lo, hi);
+        borrowed.removeAll(removed);
+        recount();
+        return removed.size();
+    }
+
+    @Override
+    public synchronized AddressCursor cursor(AddressState state) {
+        AddressRangeSet snapshot;
+        switch (state) {
+            case ALLOCATED:
+                snapshot = new AddressRangeSet(borrowed);
+                snapshot.removeAll(exclusions);
+                break;
+            case FREE:
+                snapshot = new AddressRangeSet();
+                if (start <= end) {
+                    snapshot.add(start, end);
+                    snapshot.removeAll(borrowed);
+                }
+                break;
+            case EXCLUDED:
+                snapshot = new AddressRangeSet(exclusions);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown address state " + state);
+        }
+        return snapshot.cursor();
+    }
+
+    /**
+     * Changes the range of the pool. Nothing needs to be copied, since borrowed addresses are tracked independently of
+     * the range, but borrowed addresses that were in the old range and aren't in the new one are reported.
+     * @param start First address of the pool, inclusive
+     * @param end Last address of the pool, inclusive
+     * @return Borrowed (not excluded) addresses that are outside the new range
+     */
+    @Override
+    public synchronized AddressRangeSet resize(byte[] start, byte[] end) {
+        long lo = AddressUtils.convertToLong(start), hi = AddressUtils.convertToLong(end);
+        AddressRangeSet dropped = this.start <= this.end ? borrowed.intersection(this.start, this.end) :
+                new AddressRangeSet();
+        if (lo <= hi) {
+            dropped.remove(lo, hi);
+        }
+        dropped.removeAll(exclusions);
+
+        this.start = lo;
+        this.end = hi;
+        recount();
+        return dropped;
+    }
+
+    @Override
+    public synchronized AllocationStrategy getAllocationStrategy() {
+        return strategy;
+    }
+
+    @Override
+    public synchronized void setAllocationStrategy(AllocationStrategy strategy) {
+        if (null == strategy) {
+            throw new IllegalArgumentException("Allocation strategy cannot be null");
+        }
+        this.strategy = strategy;
+    }
+
+    @Override
+    public PoolUtilization getUtilization() {
+        return utilization;
+    }
+
+    private boolean inRange(long address) {
+        return address >= start && address <= end;
+    }
+
+    /**
+     * Recalculates the utilization counts. This is O(k) in the number of ranges rather than the number of addresses, so
+     * it's used after range operations and changes to the start or end address instead of tracking the deltas.
+     */
+    private void recount() {
+        if (start > end) {
+            utilization.reset(0, 0, 0);
+        } else {
+            long excluded = exclusions.count(start, end);
+            utilization.reset(end - start + 1, borrowed.count(start, end) - excluded, excluded);
+        }
+    }
 }
@@ -0,0 +1,261 @@
+package org.code_revue.dhcp.server;
+
+import org.code_revue.dhcp.device.DeviceRegistry;
+import org.code_revue.dhcp.device.PrefetchingDeviceRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs several engines in parallel by partitioning clients on their hardware address (chaddr). Each shard is an engine
+ * with its own slice of the device registry, owned by a single thread, so all messages from one client are processed
+ * in order by the same thread and the shard's devices and configuration are never touched concurrently. Throughput
+ * scales with the number of shards without any per-device locking.
+ * <p>
+ * The shard engines should share the address pool, which is thread safe, but must not share a device registry.
+ * Anything that changes a shard's devices from outside, like a {@link org.code_revue.dhcp.server.LeaseReaper}, has to
+ * be given that shard's registry and should be driven with {@link #execute(int, Runnable)}. Messages that arrive while
+ * a shard's queue is full are dropped, the client will retry.
+ * </p>
+ * <p>
+ * If a shard's registry is a {@link org.code_revue.dhcp.device.PrefetchingDeviceRegistry}, the client's device is
+ * prefetched on the calling thread before the message is queued, so a device that has to come from disk is usually
+ * loaded by the time the shard gets to it.
+ * </p>
+ *
+ * @author Mike Fanning
+ */
+public class ShardedEngine implements AsyncDhcpEngine {
+
+    private static final Logger logger = LoggerFactory.getLogger(ShardedEngine.class);
+
+    public static final int DEFAULT_QUEUE_CAPACITY = 1024;
+
+    private static final int CHADDR_OFFSET = 28;
+    private static final int CHADDR_LENGTH = 16;
+
+    private final List<DhcpEngine> shards;
+    private final ThreadPoolExecutor[] executors;
+    private final AtomicLong droppedCount = new AtomicLong(0);
+
+    /**
+     * Creates a sharded engine with queues of {@link #DEFAULT_QUEUE_CAPACITY} messages.
+     * @param shards Engines, one per shard, each with its own device registry
+     */
+    public ShardedEngine(List<? extends DhcpEngine> shards) {
+        this(shards, DEFAULT_QUEUE_CAPACITY);
+    }
+
+    /**
+     * Creates a sharded engine and starts a thread for each shard.
+     * @param shards Engines, one per shard, each with its own device registry
+     * @param queueCapacity Number of messages that can wait for each shard
+     */
+    public ShardedEngine(List<? extends DhcpEngine> shards, int queueCapacity) {
+        if (shards.isEmpty()) {
+            throw new IllegalArgumentException("At least one shard is required");
+        }
+        this.shards = Collections.unmodifiableList(new ArrayList<DhcpEngine>(shards));
+        this.executors = new ThreadPoolExecutor[shards.size()];
+        for (int i = 0; i < executors.length; i++) {
+            final String name = "dhcp-shard-" + i;
+            executors[i] = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+                    new ArrayBlockingQueue<Runnable>(queueCapacity), new ThreadFactory() {
+                        @Override
+                        public Thread newThread(Runnable runnable) {
+                            Thread thread = new Thread(runnable, name);
+                            thread.setDaemon(true);
+                            return thread;
+                        }
+                    });
+            executors[i].prestartCoreThread();
+        }
+    }
+
+    /**
+     * Processes a payload on its shard and waits for the response.
+     * @param payload Client address information and message data sent to the server
+     * @return Response message, or null if there was an error or the message was dropped
+     */
+    @Override
+    public DhcpPayload processDhcpPayload(final DhcpPayload payload) {
+        final int shard = prepare(payload);
+        Future<DhcpPayload> future;
+        try {
+            future = executors[shard].submit(new Callable<DhcpPayload>() {
+                @Override
+                public DhcpPayload call() {
+                    return shards.get(shard).processDhcpPayload(payload);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            dropped(shard);
+            return null;
+        }
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (ExecutionException e) {
+            logger.error("Error processing DHCP message on shard " + shard, e.getCause());
+            return null;
+        }
+    }
+
+    @Override
+    public void processDhcpPayload(final DhcpPayload payload, final Callback callback) {
+        final int shard = prepare(payload);
+        try {
+            executors[shard].execute(new Runnable() {
+                @Override
+                public void run() {
+                    DhcpPayload response;
+                    try {
+                        response = shards.get(shard).processDhcpPayload(payload);
+                    } catch (RuntimeException e) {
+                        logger.error("Error processing DHCP message on shard " + shard, e);
+                        response = null;
+                    }
+                    callback.completed(response);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            dropped(shard);
+        }
+    }
+
+    /**
+     * Sets the hardware address of every shard. Call this before messages start arriving.
+     * @param hardwareAddress
+     */
+    @Override
+    public void setHardwareAddress(byte[] hardwareAddress) {
+        for (DhcpEngine shard: shards) {
+            shard.setHardwareAddress(hardwareAddress);
+        }
+    }
+
+    /**
+     * Sets the server IP address of every shard. Call this before messages start arriving.
+     * @param serverIpAddress
+     */
+    @Override
+    public void setServerIpAddress(byte[] serverIpAddress) {
+        for (DhcpEngine shard: shards) {
+            shard.setServerIpAddress(serverIpAddress);
+        }
+    }
+
+    /**
+     * Runs a task on a shard's thread, e.g. to change devices in that shard's registry without racing its messages.
+     * @param shard Shard number
+     * @param task Task to run
+     * @throws java.util.concurrent.RejectedExecutionException If the shard's queue is full or it has been shut down
+     */
+    public void execute(int shard, Runnable task) {
+        executors[shard].execute(task);
+    }
+
+    /**
+     * Find the shard that handles a client.
+     * @param hardwareAddress Client hardware address
+     * @return Shard number
+     */
+    public int shardFor(byte[] hardwareAddress) {
+        return shardFor(hardwareAddress, 0, hardwareAddress.length);
+    }
+
+    public DhcpEngine getShard(int shard) {
+        return shards.get(shard);
+    }
+
+    public int getShardCount() {
+        return shards.size();
+    }
+
+    /**
+     * Number of messages dropped because a shard's queue was full or the engine was shut down.
+     * @return Number of dropped messages
+     */
+    public long getDroppedCount() {
+        return droppedCount.get();
+    }
+
+    /**
+     * Stops the shard threads once the messages already queued have been processed.
+     * @param timeout Maximum time to wait
+     * @param unit Unit of the timeout
+     * @return True if all shards finished in time
+     * @throws InterruptedException If interrupted while waiting
+     */
+    public boolean shutdown(long timeout, TimeUnit unit) throws InterruptedException {
+        for (ThreadPoolExecutor executor: executors) {
+            executor.shutdown();
+        }
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        boolean terminated = true;
+        for (ThreadPoolExecutor executor: executors) {
+            terminated &= executor.awaitTermination(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+        }
+        return terminated;
+    }
+
+    /**
+     * Finds the shard for a payload and prefetches the client's device from the shard's registry.
+     */
+    private int prepare(DhcpPayload payload) {
+        ByteBuffer data = payload.getData();
+        if (data.capacity() < CHADDR_OFFSET + CHADDR_LENGTH) {
+            // Too short to be a DHCP message, let the first shard reject it.
+            return 0;
+        }
+        int length = Math.min(data.get(2) & 0xff, CHADDR_LENGTH);
+        byte[] chaddr = new byte[length];
+        for (int i = 0; i < length; i++) {
+            chaddr[i] = data.get(CHADDR_OFFSET + i);
+        }
+        int shard = shardFor(chaddr, 0, length);
+
+        DhcpEngine engine = shards.get(shard);
+        if (engine instanceof AbstractEngine) {
+            DeviceRegistry registry = ((AbstractEngine) engine).getDeviceRegistry();
+            if (registry instanceof PrefetchingDeviceRegistry) {
+                ((PrefetchingDeviceRegistry) registry).prefetch(chaddr);
+            }
+        }
+        return shard;
+    }
+
+    private int shardFor(byte[] hardwareAddress, int offset, int length) {
+        // FNV-1a, then fold the high bits in so that the low bits depend on the whole address.
+        int hash = 0x811c9dc5;
+        for (int i = offset; i < offset + length; i++) {
+            hash ^= hardwareAddress[i] & 0xff;
+            hash *= 0x01000193;
+        }
+        hash ^= hash >>> 16;
+        return (hash & 0x7fffffff) % shards.size();
+    }
+
+    private void dropped(int shard) {
+        long count = droppedCount.incrementAndGet();
+        if (logger.isWarnEnabled() && Long.bitCount(count) == 1) {
+            logger.warn("Shard {} is overloaded, {} message(s) dropped so far", shard, count);
+        }
+    }
+
+}
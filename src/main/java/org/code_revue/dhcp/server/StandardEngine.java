@@ -3,13 +3,19 @@ package org.code_revue.dhcp.server;
 import org.code_revue.dhcp.device.DeviceStatus;
 import org.code_revue.dhcp.device.NetworkDevice;
 import org.code_revue.dhcp.message.*;
+import org.code_revue.dhcp.persist.JournalCommit;
+import org.code_revue.dhcp.persist.LeaseEvent;
+import org.code_revue.dhcp.persist.LeaseJournal;
 import org.code_revue.dhcp.util.AddressUtils;
+import org.code_revue.dhcp.util.Clock;
+import org.code_revue.dhcp.util.CoarseClock;
 import org.code_revue.dhcp.util.LoggerUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.math.BigInteger;
 import java.net.*;
+import java.nio.ByteBuffer;
 import java.util.*;
 
 /**
@@ -18,9 +24,11 @@ import java.util.*;
 public class StandardEngine extends AbstractEngine {
 
     public static final int DEFAULT_TTL = 86400;
+    public static final long DEFAULT_OFFER_TIMEOUT = 60 * 1000;
 
     private static final Logger logger = LoggerFactory.getLogger(StandardEngine.class);
     private static final byte[] EMPTY_ADDRESS = new byte[] { 0, 0, 0, 0 };
+    private static final DhcpOptionType[] CLIENT_OPTIONS = { DhcpOptionType.CLIENT_ID, DhcpOptionType.HOST_NAME };
     private static final SocketAddress BROADCAST_ADDRESS;
 
     static {
@@ -38,6 +46,22 @@ public class StandardEngine extends AbstractEngine {
 
     private DhcpAddressPool pool;
 
+    private ConflictDetector conflictDetector;
+
+    private AddressQuarantine quarantine;
+
+    private LeaseReaper leaseReaper;
+
+    private LeaseJournal leaseJournal;
+
+    private ReservationTable reservations;
+
+    private long offerTimeout = DEFAULT_OFFER_TIMEOUT;
+
+    private double leaseReuseThreshold = 0;
+
+    private Clock clock = CoarseClock.getInstance();
+
     // Like the devices, should probably move this into some separate component with interface.
     private Map<DhcpOptionType, DhcpOption> configuration = new HashMap<>();
 
@@ -81,15 +105,29 @@ public class StandardEngine extends AbstractEngine {
             return null;
         }
 
+        reapExpiredLeases();
+        quarantine.releaseExpired();
+
         byte[] borrowedAddress = null;
         DhcpOption reqAddr = options.get(DhcpOptionType.REQUESTED_IP_ADDR);
+        Reservation reservation = findReservation(message, options);
 
-        if (null != reqAddr) {
+        if (null != reservation) {
+            // Reserved addresses are excluded from the pool, there is nothing to borrow.
+            borrowedAddress = reservation.getIpAddress();
+        } else if (null != reqAddr &&
+                (null == conflictDetector || !conflictDetector.isConflict(reqAddr.getOptionData()))) {
             borrowedAddress = pool.borrowAddress(reqAddr.getOptionData());
+            if (null != borrowedAddress && null != conflictDetector) {
+                // Nobody has probed it, find out before the client requests it.
+                conflictDetector.probeAfterOffer(borrowedAddress);
+            }
         }
 
         if (null == borrowedAddress) {
-            borrowedAddress = pool.borrowAddress();
+            byte[] hardwareAddress = message.getClientHardwareAddress();
+            borrowedAddress = null == conflictDetector ? pool.borrowAddressFor(hardwareAddress) :
+                    conflictDetector.borrowAddressFor(hardwareAddress);
         }
 
         DhcpPayload response = null;
@@ -114,7 +152,7 @@ public class StandardEngine extends AbstractEngine {
                 for (byte param: parameterList) {
                     try {
                         DhcpOptionType offeredOptionType = DhcpOptionType.getByNumericCode(param);
-                        DhcpOption offeredOption = getConfiguration(offeredOptionType);
+                        DhcpOption offeredOption = getConfiguration(reservation, offeredOptionType);
                         if (null != offeredOption) {
                             builder.addOption(offeredOption);
                         }
@@ -124,11 +162,14 @@ public class StandardEngine extends AbstractEngine {
                 }
             }
 
-            Map<DhcpOptionType, DhcpOption> offeredOptions = new HashMap<>();
-            for (DhcpOption option: builder.getOptions()) {
-                offeredOptions.put(option.getType(), option);
+            // Clients that identify themselves expect the identifier back (RFC 6842).
+            DhcpOption clientId = options.get(DhcpOptionType.CLIENT_ID);
+            if (null != clientId) {
+                builder.addOption(clientId);
             }
 
+            DhcpOptionSet offeredOptions = DhcpOptionSet.of(builder.getOptions());
+
             response = new DhcpPayload(BROADCAST_ADDRESS, true, builder.build());
 
             // Update device state.
@@ -137,13 +178,17 @@ public class StandardEngine extends AbstractEngine {
                         AddressUtils.hardwareAddressToString(device.getHardwareAddress()));
             }
 
+            long now = clock.currentTimeMillis();
             device.setStatus(DeviceStatus.OFFERED);
             device.setIpAddress(borrowedAddress);
-            Calendar expiration = Calendar.getInstance();
-            expiration.add(Calendar.SECOND, getIpAddressLeaseTime());
-            device.setLeaseExpiration(expiration.getTime());
+            device.setLeaseExpirationMillis(now + getIpAddressLeaseTime() * 1000L);
             device.setOptions(offeredOptions);
+            recordClientOptions(device, options);
             deviceRegistry.updateDevice(device);
+            if (null != leaseReaper) {
+                leaseReaper.scheduleOffer(device, now + offerTimeout);
+            }
+            response.setCommit(journal(LeaseEvent.OFFER, device));
         }
 
         return response;
@@ -162,8 +207,11 @@ public class StandardEngine extends AbstractEngine {
             return null;
         }
 
+        reapExpiredLeases();
         DhcpOption serverId = options.get(DhcpOptionType.SERVER_ID);
         DhcpOption requestedIpAddress = options.get(DhcpOptionType.REQUESTED_IP_ADDR);
+        Reservation reservation = findReservation(message, options);
+        LeaseEvent event = LeaseEvent.ACK;
         if (null == serverId) {
             byte[] requestedAddress;
             if (null == requestedIpAddress) {
@@ -179,32 +227,42 @@ public class StandardEngine extends AbstractEngine {
                 requestedAddress = requestedIpAddress.getOptionData();
             }
 
-            Date leaseExpiration = device.getLeaseExpiration();
-            if (leaseExpiration != null && (new Date()).compareTo(leaseExpiration) <= 0) {
-                Calendar now = Calendar.getInstance();
-                now.add(Calendar.SECOND, getIpAddressLeaseTime());
-                device.setLeaseExpiration(now.getTime());
-                device.getOptions().put(DhcpOptionType.IP_ADDR_LEASE_TIME,
-                        configuration.get(DhcpOptionType.IP_ADDR_LEASE_TIME));
+            if (isReservedElsewhere(reservation, requestedAddress)) {
+                // Either the client has a reservation for another address, or someone else has one for this address.
+                logger.info("Client {} requested {}, which doesn't match the reservations",
+                        AddressUtils.hardwareAddressToString(device.getHardwareAddress()),
+                        AddressUtils.convertToString(requestedAddress));
+                return nak(message);
+            }
+
+            long now = clock.currentTimeMillis();
+            long leaseExpiration = device.getLeaseExpirationMillis();
+            if (isReusable(device, requestedAddress, options, leaseExpiration - now)) {
+                // Most of the lease is left, acknowledge it as it stands without touching the registry or journal.
+                int remaining = (int) ((leaseExpiration - now) / 1000);
+                return new DhcpPayload(BROADCAST_ADDRESS, true, buildAck(message, device, remaining));
+            } else if (0 != leaseExpiration && now <= leaseExpiration) {
+                device.setLeaseExpirationMillis(now + getIpAddressLeaseTime() * 1000L);
+                // Option sets are immutable and shared between devices, derive a new one.
+                device.setOptions(DhcpOptionSet.of(device.getOptions())
+                        .with(configuration.get(DhcpOptionType.IP_ADDR_LEASE_TIME)));
+                event = LeaseEvent.RENEW;
+            } else if (null == reservation && null != conflictDetector &&
+                    conflictDetector.isConflict(requestedAddress)) {
+                logger.info("Client {} requested {}, which answered a conflict probe",
+                        AddressUtils.hardwareAddressToString(device.getHardwareAddress()),
+                        AddressUtils.convertToString(requestedAddress));
+                return nak(message);
             } else {
-                byte[] offeredIpAddress =  pool.borrowAddress(requestedAddress);
+                byte[] offeredIpAddress = null == reservation ? pool.borrowAddress(requestedAddress) :
+                        reservation.getIpAddress();
 
                 if (null == offeredIpAddress) {
-                    DhcpMessageBuilder builder = new DhcpMessageBuilder();
-                    builder.setOpCode(DhcpOpCode.REPLY)
-                            .setHardwareType(HardwareType.ETHERNET)
-                            .setTransactionId(message.getTransactionId())
-                            .setServerIpAddress(getServerIpAddress())
-                            .setBroadcast(message.isBroadcast())
-                            .setGatewayIpAddress(EMPTY_ADDRESS)
-                            .setHardwareAddress(message.getClientHardwareAddress())
-                            .addOption(DhcpMessageType.NAK.getOption())
-                            .addOption(configuration.get(DhcpOptionType.SERVER_ID));
-                    return new DhcpPayload(BROADCAST_ADDRESS, true, builder.build());
+                    return nak(message);
                 } else {
                     device.setIpAddress(offeredIpAddress);
-                    device.getOptions().put(DhcpOptionType.REQUESTED_IP_ADDR,
-                            new ByteArrayOption(DhcpOptionType.REQUESTED_IP_ADDR, offeredIpAddress));
+                    device.setOptions(DhcpOptionSet.of(device.getOptions())
+                            .with(new ByteArrayOption(DhcpOptionType.REQUESTED_IP_ADDR, offeredIpAddress)));
                 }
             }
         } else if (!Arrays.equals(serverId.getOptionData(), getServerIpAddress())) {
@@ -215,6 +273,8 @@ public class StandardEngine extends AbstractEngine {
                         LoggerUtils.ipAddressToString(serverId.getOptionData()));
             }
             deviceRegistry.resetDevice(device.getHardwareAddress());
+            cancelDeadline(device);
+            journal(LeaseEvent.RELEASE, device);
             returnAddressToPool(device.getIpAddress());
             return null;
         } else {
@@ -224,8 +284,56 @@ public class StandardEngine extends AbstractEngine {
                         AddressUtils.hardwareAddressToString(device.getHardwareAddress()));
                 return null;
             }
+            byte[] offeredAddress = device.getIpAddress();
+            boolean reserved = null != reservations && null != reservations.getByIpAddress(offeredAddress);
+            if (null != conflictDetector && !reserved && conflictDetector.isConflict(offeredAddress)) {
+                // The probe sent after the Offer got an answer, so the address can't be acknowledged.
+                logger.info("Address {} offered to client {} answered a conflict probe, quarantining it",
+                        AddressUtils.convertToString(offeredAddress),
+                        AddressUtils.hardwareAddressToString(device.getHardwareAddress()));
+                quarantineLease(device, offeredAddress);
+                return nak(message);
+            }
         }
 
+        recordClientOptions(device, options);
+        ByteBuffer ack = buildAck(message, device, -1);
+
+        device.setStatus(DeviceStatus.ACKNOWLEDGED);
+        deviceRegistry.updateDevice(device);
+        if (null != leaseReaper) {
+            leaseReaper.scheduleLease(device);
+        }
+
+        DhcpPayload response = new DhcpPayload(BROADCAST_ADDRESS, true, ack);
+        response.setCommit(journal(event, device));
+        return response;
+    }
+
+    /**
+     * Checks whether a renewing client can be acknowledged with the lease it already has. That is the case if the
+     * reuse threshold is enabled, the client holds an acknowledged lease on the address it asked for, more than the
+     * threshold of the lease is left, and it hasn't sent a new client identifier or host name.
+     */
+    private boolean isReusable(NetworkDevice device, byte[] requestedAddress, Map<DhcpOptionType, DhcpOption> options,
+                               long remainingMillis) {
+        if (leaseReuseThreshold <= 0 || !DeviceStatus.ACKNOWLEDGED.equals(device.getStatus()) ||
+                !Arrays.equals(requestedAddress, device.getIpAddress()) || 0 == device.getLeaseExpirationMillis()) {
+            return false;
+        }
+        if (remainingMillis <= leaseReuseThreshold * getIpAddressLeaseTime() * 1000L) {
+            return false;
+        }
+        DhcpOptionSet current = DhcpOptionSet.of(device.getOptions());
+        return withClientOptions(current, options) == current;
+    }
+
+    /**
+     * Builds a DHCP Acknowledgement carrying the device's options.
+     * @param remaining Seconds left on the lease, to send in place of the device's lease time along with renewal and
+     *                  rebinding times scaled down to match, or -1 to send the device's options as they are
+     */
+    private ByteBuffer buildAck(DhcpMessageOverlay message, NetworkDevice device, int remaining) {
         DhcpMessageBuilder builder = new DhcpMessageBuilder();
         builder.setOpCode(DhcpOpCode.REPLY)
                 .setHardwareType(HardwareType.ETHERNET)
@@ -239,29 +347,63 @@ public class StandardEngine extends AbstractEngine {
                 .addOption(DhcpMessageType.ACK.getOption());
 
         Map<DhcpOptionType, DhcpOption> devOptions = device.getOptions();
+        DhcpOption granted = devOptions.get(DhcpOptionType.IP_ADDR_LEASE_TIME);
+        long leaseTime = null == granted ? 0 : AddressUtils.convertToInt(granted.getOptionData()) & 0xffffffffL;
         for (DhcpOption option: devOptions.values()) {
-            if (!DhcpOptionType.MESSAGE_TYPE.equals(option.getType())) {
-                builder.addOption(option);
+            if (DhcpOptionType.MESSAGE_TYPE.equals(option.getType())) {
+                continue;
+            }
+            // A host name the client told us about is kept for lookups, only send one that is configured.
+            if (DhcpOptionType.HOST_NAME.equals(option.getType()) && null == getConfiguration(DhcpOptionType.HOST_NAME)) {
+                continue;
+            }
+            if (remaining >= 0 && leaseTime > 0) {
+                switch (option.getType()) {
+                    case IP_ADDR_LEASE_TIME:
+                        option = new ByteArrayOption(option.getType(), AddressUtils.convertToByteArray(remaining));
+                        break;
+                    case RENEWAL_TIME_VALUE:
+                    case REBINDING_TIME_VALUE:
+                        // Keep T1 and T2 the same share of what is left as they were of the whole lease.
+                        long time = AddressUtils.convertToInt(option.getOptionData()) & 0xffffffffL;
+                        option = new ByteArrayOption(option.getType(),
+                                AddressUtils.convertToByteArray((int) (time * remaining / leaseTime)));
+                        break;
+                }
             }
+            builder.addOption(option);
         }
-
-        device.setStatus(DeviceStatus.ACKNOWLEDGED);
-        deviceRegistry.updateDevice(device);
-
-        return new DhcpPayload(BROADCAST_ADDRESS, true, builder.build());
+        return builder.build();
     }
 
     @Override
     protected void handleDhcpDecline(DhcpMessageOverlay message) {
 
-        // Validate message, update device status to reflect that it will not use the supplied IP address and return it
-        // to the pool
+        // Validate message, update device status to reflect that it will not use the supplied IP address and quarantine
+        // it. Returning it to the pool straight away would just hand the conflict to the next client. Clients decline
+        // after the Acknowledgement, when their ARP check finds the address in use (RFC 2131 section 3.1), but some
+        // decline the Offer, so both are accepted.
         NetworkDevice device = deviceRegistry.getDevice(message.getClientHardwareAddress());
-        if (DeviceStatus.OFFERED.equals(device.getStatus())) {
-            deviceRegistry.resetDevice(device.getHardwareAddress());
-            returnAddressToPool(device.getIpAddress());
+        if (!DeviceStatus.OFFERED.equals(device.getStatus()) && !DeviceStatus.ACKNOWLEDGED.equals(device.getStatus())) {
+            return;
+        }
+
+        DhcpOption requestedIpAddress = message.getOptions().get(DhcpOptionType.REQUESTED_IP_ADDR);
+        byte[] declinedAddress = null == requestedIpAddress ? null : requestedIpAddress.getOptionData();
+        if (null == declinedAddress || !Arrays.equals(declinedAddress, device.getIpAddress())) {
+            if (logger.isWarnEnabled()) {
+                logger.warn("Client {} declined {}, which isn't the address it was given",
+                        AddressUtils.hardwareAddressToString(device.getHardwareAddress()),
+                        null == declinedAddress ? "no address" : AddressUtils.convertToString(declinedAddress));
+            }
+            return;
         }
 
+        logger.info("Client {} declined address {}, quarantining it",
+                AddressUtils.hardwareAddressToString(device.getHardwareAddress()),
+                AddressUtils.convertToString(declinedAddress));
+        quarantineLease(device, declinedAddress);
+
     }
 
     @Override
@@ -271,6 +413,8 @@ public class StandardEngine extends AbstractEngine {
         NetworkDevice device = deviceRegistry.getDevice(message.getClientHardwareAddress());
         if (DeviceStatus.ACKNOWLEDGED.equals(device.getStatus())) {
             deviceRegistry.resetDevice(device.getHardwareAddress());
+            cancelDeadline(device);
+            journal(LeaseEvent.RELEASE, device);
             returnAddressToPool(device.getIpAddress());
         }
 
@@ -339,12 +483,179 @@ public class StandardEngine extends AbstractEngine {
         return (new BigInteger(option.getOptionData())).intValue();
     }
 
+    /**
+     * Get the static address reservations.
+     * @return Reservation table, or null if every client gets an address from the pool
+     */
+    public ReservationTable getReservations() {
+        return reservations;
+    }
+
+    /**
+     * Set the static address reservations. Clients with a reservation are always offered their reserved address, and
+     * options in the reservation take the place of the engine's configuration for them. The table should exclude the
+     * reserved addresses from the same pool as this engine. By default there are no reservations.
+     * @param reservations Reservation table, or null to disable
+     */
+    public void setReservations(ReservationTable reservations) {
+        this.reservations = reservations;
+    }
+
     public DhcpAddressPool getAddressPool() {
         return pool;
     }
 
+    /**
+     * Set the pool that addresses are borrowed from. This also creates a new
+     * {@link org.code_revue.dhcp.server.AddressQuarantine} for declined addresses that returns them to the pool.
+     * @param pool Address pool
+     */
     public void setAddressPool(DhcpAddressPool pool) {
         this.pool = pool;
+        this.quarantine = new AddressQuarantine(pool);
+        this.quarantine.setClock(clock);
+    }
+
+    /**
+     * Get the reaper that reclaims expired leases and offers.
+     * @return Lease reaper, or null if leases are never reclaimed
+     */
+    public LeaseReaper getLeaseReaper() {
+        return leaseReaper;
+    }
+
+    /**
+     * Set the reaper that reclaims expired leases and offers. The engine schedules a deadline with the reaper whenever
+     * it sends an Offer or Acknowledgement, and cancels it when a client releases or declines its address. The reaper
+     * should use the same pool, device registry and clock as this engine, and belong to it alone: the engine reaps
+     * expired deadlines before it handles each Discover or Request, on the thread processing the message, so the
+     * reaper never races a renewal. By default there is no reaper.
+     * @param leaseReaper Lease reaper, or null to disable
+     */
+    public void setLeaseReaper(LeaseReaper leaseReaper) {
+        this.leaseReaper = leaseReaper;
+    }
+
+    /**
+     * Get the journal that lease state transitions are recorded in.
+     * @return Lease journal, or null if leases only live in memory
+     */
+    public LeaseJournal getLeaseJournal() {
+        return leaseJournal;
+    }
+
+    /**
+     * Set the journal that lease state transitions are recorded in. Offer and Acknowledgement payloads returned by
+     * the engine then carry the {@link org.code_revue.dhcp.persist.JournalCommit} of their record, and should only be
+     * sent once it is durable, which {@link org.code_revue.dhcp.server.DhcpServer} takes care of. By default there is
+     * no journal.
+     * @param leaseJournal Lease journal, or null to disable
+     */
+    public void setLeaseJournal(LeaseJournal leaseJournal) {
+        this.leaseJournal = leaseJournal;
+    }
+
+    /**
+     * Get the number of milliseconds an offered address is held for a client that hasn't requested it yet.
+     * @return Offer timeout in milliseconds
+     */
+    public long getOfferTimeout() {
+        return offerTimeout;
+    }
+
+    /**
+     * Set the number of milliseconds an offered address is held for a client that hasn't requested it yet. Only used if
+     * there is a lease reaper. Default is {@link #DEFAULT_OFFER_TIMEOUT}.
+     * @param offerTimeout Offer timeout in milliseconds
+     */
+    public void setOfferTimeout(long offerTimeout) {
+        this.offerTimeout = offerTimeout;
+    }
+
+    /**
+     * Get the fraction of the lease time that must be left for a renewal to reuse the existing lease.
+     * @return Lease reuse threshold, 0 if every renewal extends the lease
+     */
+    public double getLeaseReuseThreshold() {
+        return leaseReuseThreshold;
+    }
+
+    /**
+     * Set the fraction of the lease time that must be left for a renewal to reuse the existing lease. If a client
+     * renews an acknowledged lease with more than this fraction of the lease time remaining, the Acknowledgement
+     * carries the time that is left and the device, registry, journal and reaper are left alone, so renewals don't
+     * write anything. A threshold of 0.4 reuses leases renewed at the usual half way point (T1) but extends those renewed
+     * closer to expiry. Default is 0, which disables reuse.
+     * @param leaseReuseThreshold Fraction of the lease time, from 0 up to but not including 1
+     */
+    public void setLeaseReuseThreshold(double leaseReuseThreshold) {
+        if (leaseReuseThreshold < 0 || leaseReuseThreshold >= 1) {
+            throw new IllegalArgumentException("Lease reuse threshold must be at least 0 and less than 1");
+        }
+        this.leaseReuseThreshold = leaseReuseThreshold;
+    }
+
+    /**
+     * Get the source of the current time used for lease expirations and offer timeouts.
+     * @return Clock
+     */
+    public Clock getClock() {
+        return clock;
+    }
+
+    /**
+     * Set the source of the current time used for lease expirations and offer timeouts, which is also passed on to
+     * the quarantine. The lease reaper should use the same clock. Default is the shared
+     * {@link org.code_revue.dhcp.util.CoarseClock}.
+     * @param clock Clock
+     */
+    public void setClock(Clock clock) {
+        this.clock = clock;
+        if (null != quarantine) {
+            quarantine.setClock(clock);
+        }
+    }
+
+    /**
+     * Get the quarantine that holds addresses clients have declined.
+     * @return Address quarantine, or null if no pool has been set
+     */
+    public AddressQuarantine getQuarantine() {
+        return quarantine;
+    }
+
+    /**
+     * Replace the quarantine that holds addresses clients have declined, e.g. to share it with a
+     * {@link org.code_revue.dhcp.server.ConflictDetector} or change the quarantine time. It must return addresses to
+     * the same pool as this engine.
+     * @param quarantine Address quarantine
+     */
+    public void setQuarantine(AddressQuarantine quarantine) {
+        this.quarantine = quarantine;
+    }
+
+    /**
+     * Get the conflict detector used to probe addresses before they are offered, if any.
+     * @return Conflict detector, or null if addresses are offered without probing
+     */
+    public ConflictDetector getConflictDetector() {
+        return conflictDetector;
+    }
+
+    /**
+     * Set a conflict detector that will supply probed addresses for DHCP Offer messages. The detector should borrow
+     * from the same pool as this engine. By default there is no detector and addresses are offered without probing.
+     * <p>
+     * Addresses the detector hasn't probed yet, because they were borrowed on demand or requested by the client, are
+     * offered straight away and probed in the background. If that probe gets an answer before the client's Request
+     * arrives, the Request is NAKed and the address is quarantined; a Request that beats the probe is acknowledged, and
+     * it is up to the client's own ARP check to decline the address. Requests for addresses that recently answered a
+     * probe are always NAKed. Reserved addresses are never probed.
+     * </p>
+     * @param conflictDetector Conflict detector, or null to disable probing
+     */
+    public void setConflictDetector(ConflictDetector conflictDetector) {
+        this.conflictDetector = conflictDetector;
     }
 
     /**
@@ -398,6 +709,97 @@ public class StandardEngine extends AbstractEngine {
         return configuration.remove(optionType);
     }
 
+    /**
+     * Stores the client identifier and host name a client sent with the device, so the registry can index them.
+     */
+    private void recordClientOptions(NetworkDevice device, Map<DhcpOptionType, DhcpOption> options) {
+        DhcpOptionSet current = DhcpOptionSet.of(device.getOptions());
+        DhcpOptionSet updated = withClientOptions(current, options);
+        if (updated != current) {
+            device.setOptions(updated);
+        }
+    }
+
+    /**
+     * Returns the option set with the client identifier and host name the client sent, or the same set if they were
+     * already there.
+     */
+    private DhcpOptionSet withClientOptions(DhcpOptionSet current, Map<DhcpOptionType, DhcpOption> options) {
+        DhcpOptionSet updated = current;
+        for (DhcpOptionType type: CLIENT_OPTIONS) {
+            updated = updated.with(options.get(type));
+        }
+        return updated;
+    }
+
+    private Reservation findReservation(DhcpMessageOverlay message, Map<DhcpOptionType, DhcpOption> options) {
+        if (null == reservations) {
+            return null;
+        }
+        DhcpOption clientId = options.get(DhcpOptionType.CLIENT_ID);
+        return reservations.find(message.getClientHardwareAddress(),
+                null == clientId ? null : clientId.getOptionData());
+    }
+
+    private boolean isReservedElsewhere(Reservation reservation, byte[] address) {
+        if (null != reservation) {
+            return !Arrays.equals(reservation.getIpAddress(), address);
+        }
+        return null != reservations && null != reservations.getByIpAddress(address);
+    }
+
+    private DhcpOption getConfiguration(Reservation reservation, DhcpOptionType optionType) {
+        DhcpOption option = null == reservation ? null : reservation.getOptions().get(optionType);
+        return null == option ? getConfiguration(optionType) : option;
+    }
+
+    private DhcpPayload nak(DhcpMessageOverlay message) {
+        DhcpMessageBuilder builder = new DhcpMessageBuilder();
+        builder.setOpCode(DhcpOpCode.REPLY)
+                .setHardwareType(HardwareType.ETHERNET)
+                .setTransactionId(message.getTransactionId())
+                .setServerIpAddress(getServerIpAddress())
+                .setBroadcast(message.isBroadcast())
+                .setGatewayIpAddress(EMPTY_ADDRESS)
+                .setHardwareAddress(message.getClientHardwareAddress())
+                .addOption(DhcpMessageType.NAK.getOption())
+                .addOption(configuration.get(DhcpOptionType.SERVER_ID));
+        return new DhcpPayload(BROADCAST_ADDRESS, true, builder.build());
+    }
+
+    /**
+     * Takes an address from a device because another host is using it, and quarantines the address rather than
+     * returning it to the pool, which would just hand the conflict to the next client.
+     */
+    private void quarantineLease(NetworkDevice device, byte[] address) {
+        deviceRegistry.resetDevice(device.getHardwareAddress());
+        cancelDeadline(device);
+        journal(LeaseEvent.DECLINE, device);
+        device.setIpAddress(null);
+        deviceRegistry.updateDevice(device);
+        if (null == reservations || null == reservations.getByIpAddress(address)) {
+            // Reserved addresses aren't in the pool, so they mustn't go back to it when the quarantine ends.
+            quarantine.quarantine(address);
+        }
+    }
+
+    private JournalCommit journal(LeaseEvent event, NetworkDevice device) {
+        return null == leaseJournal ? null : leaseJournal.append(event, device);
+    }
+
+    // Runs on the thread processing the message, so the reaper never resets a device while it is being renewed.
+    private void reapExpiredLeases() {
+        if (null != leaseReaper) {
+            leaseReaper.reap();
+        }
+    }
+
+    private void cancelDeadline(NetworkDevice device) {
+        if (null != leaseReaper) {
+            leaseReaper.cancel(device.getHardwareAddress());
+        }
+    }
+
     private void returnAddressToPool(byte[] address) {
         if (address != null) {
             logger.debug("Returning address to pool");
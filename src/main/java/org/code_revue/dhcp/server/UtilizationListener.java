@@ -0,0 +1,24 @@
+package org.code_revue.dhcp.server;
+
+/**
+ * Receives notifications when the utilization of a {@link org.code_revue.dhcp.server.DhcpAddressPool} crosses the
+ * watermarks configured on its {@link org.code_revue.dhcp.server.PoolUtilization}. Listeners are called while the pool
+ * is locked, so they should return quickly and hand anything expensive (sending alerts, etc.) off to another thread.
+ *
+ * @author Mike Fanning
+ */
+public interface UtilizationListener {
+
+    /**
+     * Called when the number of used addresses rises to the high watermark.
+     * @param utilization Current pool utilization
+     */
+    public void highWatermarkReached(PoolUtilization utilization);
+
+    /**
+     * Called when the number of used addresses falls back to the low watermark after the high watermark was reached.
+     * @param utilization Current pool utilization
+     */
+    public void lowWatermarkReached(PoolUtilization utilization);
+
+}
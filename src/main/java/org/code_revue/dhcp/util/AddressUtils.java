@@ -9,6 +9,8 @@ import java.util.StringTokenizer;
  */
 public class AddressUtils {
 
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
     public static final Comparator<Integer> ADDRESS_COMPARATOR = new Comparator<Integer>() {
         @Override
         public int compare(Integer i1, Integer i2) {
@@ -26,6 +28,15 @@ public class AddressUtils {
                 (address[0] & 0xff) << 24;
     }
 
+    /**
+     * Converts an IPv4 address to an unsigned value, so that addresses sort in their natural order.
+     * @param address IPv4 address
+     * @return Address as a value between 0 and 0xffffffff
+     */
+    public static long convertToLong(byte[] address) {
+        return convertToInt(address) & 0xffffffffL;
+    }
+
     public static byte[] convertToByteArray(int address) {
         return new byte[] {
                 (byte) ((address >> 24) & 0xff),
@@ -64,17 +75,52 @@ public class AddressUtils {
     }
 
     public static String hardwareAddressToString(byte[] address) {
-        StringBuilder builder = new StringBuilder((address.length * 3) - 1);
-        boolean cherry = false;
-        for (byte segment: address) {
-            if (cherry) {
-                builder.append(':');
-            } else {
-                cherry = true;
+        if (0 == address.length) {
+            return "";
+        }
+        char[] chars = new char[address.length * 3 - 1];
+        for (int i = 0; i < address.length; i++) {
+            if (i > 0) {
+                chars[i * 3 - 1] = ':';
             }
-            builder.append(String.format("%02x", segment & 0xff));
+            chars[i * 3] = HEX_DIGITS[(address[i] >> 4) & 0xf];
+            chars[i * 3 + 1] = HEX_DIGITS[address[i] & 0xf];
         }
-        return builder.toString();
+        return new String(chars);
+    }
+
+    /**
+     * Packs a 48 bit (Ethernet) hardware address into the low bits of a long, so it can be used as a primitive key.
+     * @param address Hardware address, must be 6 bytes long
+     * @return Packed address
+     * @throws java.lang.IllegalArgumentException If the address isn't 6 bytes long
+     */
+    public static long hardwareAddressToLong(byte[] address) {
+        if (address.length != 6) {
+            throw new IllegalArgumentException("Hardware address is not 48 bits");
+        }
+        return  (address[5] & 0xffL) |
+                (address[4] & 0xffL) << 8 |
+                (address[3] & 0xffL) << 16 |
+                (address[2] & 0xffL) << 24 |
+                (address[1] & 0xffL) << 32 |
+                (address[0] & 0xffL) << 40;
+    }
+
+    /**
+     * Reverses {@link #hardwareAddressToLong(byte[])}.
+     * @param address Packed address
+     * @return 6 byte hardware address
+     */
+    public static byte[] longToHardwareAddress(long address) {
+        return new byte[] {
+                (byte) (address >> 40),
+                (byte) (address >> 32),
+                (byte) (address >> 24),
+                (byte) (address >> 16),
+                (byte) (address >> 8),
+                (byte) address
+        };
     }
 
 }
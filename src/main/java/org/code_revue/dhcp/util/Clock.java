@@ -0,0 +1,46 @@
+package org.code_revue.dhcp.util;
+
+/**
+ * Source of the current time for everything that deals with lease expirations, offer timeouts and quarantine times.
+ * Components take a clock instead of calling {@link System#currentTimeMillis()} themselves, so the hot path can use a
+ * cached {@link org.code_revue.dhcp.util.CoarseClock} and tests can drive time with a
+ * {@link org.code_revue.dhcp.util.VirtualClock}.
+ * <p>
+ * Implementations must be thread safe. Elapsed times that are only used for statistics are still measured with
+ * {@link System#nanoTime()}, since they shouldn't depend on the clock.
+ * </p>
+ *
+ * @author Mike Fanning
+ */
+public abstract class Clock {
+
+    /**
+     * Reads {@link System#currentTimeMillis()} every time.
+     */
+    public static final Clock SYSTEM = new Clock() {
+        @Override
+        public long currentTimeMillis() {
+            return System.currentTimeMillis();
+        }
+
+        @Override
+        public String toString() {
+            return "SystemClock";
+        }
+    };
+
+    /**
+     * Get the current time.
+     * @return Milliseconds since the epoch
+     */
+    public abstract long currentTimeMillis();
+
+    /**
+     * Get the current time to the second, which is all lease expirations need.
+     * @return Seconds since the epoch
+     */
+    public long currentTimeSeconds() {
+        return currentTimeMillis() / 1000;
+    }
+
+}
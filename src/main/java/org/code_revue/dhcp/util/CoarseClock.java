@@ -0,0 +1,120 @@
+package org.code_revue.dhcp.util;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * {@link org.code_revue.dhcp.util.Clock} that caches the current time in volatile fields and refreshes them from a
+ * daemon thread once per resolution period, so reading the time on the hot path is a plain memory read. The time lags
+ * the system clock by up to one period, which is irrelevant for lease expirations measured in seconds.
+ * <p>
+ * Most callers should share the instance returned by {@link #getInstance()}, which is started on first use and runs
+ * until the JVM exits.
+ * </p>
+ *
+ * @author Mike Fanning
+ */
+public class CoarseClock extends Clock {
+
+    private static final Logger logger = LoggerFactory.getLogger(CoarseClock.class);
+
+    public static final long DEFAULT_RESOLUTION = 100;
+
+    private static CoarseClock instance;
+
+    private final long resolutionMillis;
+
+    private volatile long millis;
+    private volatile long seconds;
+
+    private volatile boolean running = true;
+
+    private final Thread ticker;
+
+    /**
+     * Creates and starts a new clock with a resolution of {@link #DEFAULT_RESOLUTION} milliseconds.
+     */
+    public CoarseClock() {
+        this(DEFAULT_RESOLUTION);
+    }
+
+    /**
+     * Creates and starts a new clock.
+     * @param resolutionMillis Number of milliseconds between refreshes
+     */
+    public CoarseClock(long resolutionMillis) {
+        if (resolutionMillis <= 0) {
+            throw new IllegalArgumentException("Resolution must be positive");
+        }
+        this.resolutionMillis = resolutionMillis;
+        refresh();
+        ticker = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (running) {
+                    try {
+                        Thread.sleep(CoarseClock.this.resolutionMillis);
+                    } catch (InterruptedException e) {
+                        if (!running) {
+                            break;
+                        }
+                    }
+                    refresh();
+                }
+                logger.debug("Coarse clock stopped");
+            }
+        }, "dhcp-clock");
+        ticker.setDaemon(true);
+        ticker.start();
+    }
+
+    /**
+     * Get the clock shared by the whole server, starting it if necessary.
+     * @return Shared clock with a resolution of {@link #DEFAULT_RESOLUTION} milliseconds
+     */
+    public static synchronized CoarseClock getInstance() {
+        if (null == instance) {
+            instance = new CoarseClock();
+        }
+        return instance;
+    }
+
+    private void refresh() {
+        long now = System.currentTimeMillis();
+        seconds = now / 1000;
+        millis = now;
+    }
+
+    @Override
+    public long currentTimeMillis() {
+        return millis;
+    }
+
+    @Override
+    public long currentTimeSeconds() {
+        return seconds;
+    }
+
+    public long getResolution() {
+        return resolutionMillis;
+    }
+
+    /**
+     * Stops refreshing the time. The clock keeps returning the last time it read. Don't stop the shared instance.
+     */
+    public void stop() {
+        running = false;
+        ticker.interrupt();
+        try {
+            ticker.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "CoarseClock{resolution=" + resolutionMillis + "ms}";
+    }
+
+}
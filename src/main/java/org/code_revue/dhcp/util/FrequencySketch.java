@@ -0,0 +1,115 @@
+package org.code_revue.dhcp.util;
+
+/**
+ * Count-min sketch that estimates how often <code>long</code> keys have been seen recently, in a fixed amount of
+ * memory: 4 bit counters packed sixteen to a <code>long</code>, with each key counted in four of them. The estimate is
+ * the smallest of the four, so it can be too high when keys collide but is never too low. Counters stop at 15, and once
+ * ten times the table's nominal size in increments have been recorded every counter is halved, so the sketch forgets
+ * old popularity and follows changes in the workload. This is the "TinyLFU" admission filter: a cache only needs to
+ * know whether a new key has been seen more often than the one it would evict.
+ * <p>
+ * This class is not thread safe.
+ * </p>
+ *
+ * @see <a href="https://arxiv.org/abs/1512.00727">TinyLFU: A Highly Efficient Cache Admission Policy</a>
+ * @author Mike Fanning
+ */
+public class FrequencySketch {
+
+    public static final int MAX_FREQUENCY = 15;
+
+    private static final long[] SEEDS = {
+            0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L
+    };
+    private static final long RESET_MASK = 0x7777777777777777L;
+
+    private final long[] table;
+    private final int tableMask;
+    private final int sampleSize;
+    private int additions = 0;
+
+    /**
+     * Creates a sketch for a cache of the supplied size.
+     * @param maximumSize Number of entries the cache holds
+     */
+    public FrequencySketch(int maximumSize) {
+        if (maximumSize <= 0) {
+            throw new IllegalArgumentException("Maximum size must be positive");
+        }
+        int length = 16;
+        while (length < maximumSize && length < (1 << 30)) {
+            length <<= 1;
+        }
+        this.table = new long[length];
+        this.tableMask = length - 1;
+        this.sampleSize = (int) Math.min(10L * maximumSize, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Estimate how often a key has been seen.
+     * @param key Key
+     * @return Estimated frequency, between 0 and {@link #MAX_FREQUENCY}
+     */
+    public int frequency(long key) {
+        int hash = spread(key);
+        int start = (hash & 3) << 2;
+        int frequency = MAX_FREQUENCY;
+        for (int i = 0; i < 4; i++) {
+            int offset = (start + i) << 2;
+            int count = (int) ((table[indexOf(hash, i)] >>> offset) & 0xfL);
+            frequency = Math.min(frequency, count);
+        }
+        return frequency;
+    }
+
+    /**
+     * Records an occurrence of a key.
+     * @param key Key
+     */
+    public void increment(long key) {
+        int hash = spread(key);
+        int start = (hash & 3) << 2;
+        boolean added = false;
+        for (int i = 0; i < 4; i++) {
+            int index = indexOf(hash, i);
+            int offset = (start + i) << 2;
+            if (((table[index] >>> offset) & 0xfL) != MAX_FREQUENCY) {
+                table[index] += 1L << offset;
+                added = true;
+            }
+        }
+        if (added && ++additions >= sampleSize) {
+            reset();
+        }
+    }
+
+    /**
+     * Halves every counter.
+     */
+    public void reset() {
+        for (int i = 0; i < table.length; i++) {
+            table[i] = (table[i] >>> 1) & RESET_MASK;
+        }
+        additions >>>= 1;
+    }
+
+    /**
+     * Number of increments that have to be recorded before the counters are halved.
+     * @return Sample size
+     */
+    public int getSampleSize() {
+        return sampleSize;
+    }
+
+    private int indexOf(int hash, int i) {
+        long h = (hash + SEEDS[i]) * SEEDS[i];
+        h += h >>> 32;
+        return (int) h & tableMask;
+    }
+
+    private static int spread(long key) {
+        long h = key * 0x9e3779b97f4a7c15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+}
@@ -0,0 +1,193 @@
+package org.code_revue.dhcp.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Open addressing hash map from primitive <code>int</code> keys to objects, for keys like IPv4 addresses where boxing
+ * every lookup would be wasteful. Collisions are resolved by linear probing, and removals shift the following entries
+ * back instead of leaving tombstones, like {@link org.code_revue.dhcp.util.LongHashIndex}.
+ * <p>
+ * The key 0 marks unused slots and can't be used. This class is not thread safe.
+ * </p>
+ *
+ * @param <V> Type of the values
+ * @author Mike Fanning
+ */
+public class IntHashMap<V> {
+
+    private static final int MIN_CAPACITY = 16;
+    private static final double MAX_LOAD_FACTOR = 0.6;
+
+    private int[] keys;
+    private Object[] values;
+    private int mask;
+    private int size = 0;
+    private int threshold;
+
+    public IntHashMap() {
+        this(MIN_CAPACITY);
+    }
+
+    /**
+     * Creates a new map, big enough for the supplied number of entries.
+     * @param expectedSize Number of entries the map should hold without resizing
+     */
+    public IntHashMap(int expectedSize) {
+        int capacity = MIN_CAPACITY;
+        while (capacity < (1 << 30) && capacity * MAX_LOAD_FACTOR < expectedSize) {
+            capacity <<= 1;
+        }
+        allocate(capacity);
+    }
+
+    private void allocate(int capacity) {
+        keys = new int[capacity];
+        values = new Object[capacity];
+        mask = capacity - 1;
+        threshold = (int) (capacity * MAX_LOAD_FACTOR);
+    }
+
+    /**
+     * Get the value for a key.
+     * @param key Key to look up
+     * @return Value, or null if the key isn't present
+     */
+    @SuppressWarnings("unchecked")
+    public V get(int key) {
+        int slot = find(key);
+        return slot < 0 ? null : (V) values[slot];
+    }
+
+    /**
+     * Associates a value with a key, replacing any existing value.
+     * @param key Key, anything but 0
+     * @param value Value
+     * @return Previous value, or null if the key wasn't present
+     * @throws java.lang.IllegalArgumentException If the key is 0
+     */
+    @SuppressWarnings("unchecked")
+    public V put(int key, V value) {
+        if (0 == key) {
+            throw new IllegalArgumentException("Invalid key");
+        }
+        int slot = hash(key) & mask;
+        while (0 != keys[slot]) {
+            if (keys[slot] == key) {
+                V previous = (V) values[slot];
+                values[slot] = value;
+                return previous;
+            }
+            slot = (slot + 1) & mask;
+        }
+        keys[slot] = key;
+        values[slot] = value;
+        if (++size > threshold) {
+            rehash();
+        }
+        return null;
+    }
+
+    /**
+     * Removes a key from the map.
+     * @param key Key to remove
+     * @return Value that was removed, or null if the key wasn't present
+     */
+    @SuppressWarnings("unchecked")
+    public V remove(int key) {
+        int slot = find(key);
+        if (slot < 0) {
+            return null;
+        }
+        V previous = (V) values[slot];
+
+        int hole = slot;
+        int next = (hole + 1) & mask;
+        while (0 != keys[next]) {
+            int ideal = hash(keys[next]) & mask;
+            if (((next - ideal) & mask) >= ((next - hole) & mask)) {
+                keys[hole] = keys[next];
+                values[hole] = values[next];
+                hole = next;
+            }
+            next = (next + 1) & mask;
+        }
+        keys[hole] = 0;
+        values[hole] = null;
+        size--;
+        return previous;
+    }
+
+    public boolean containsKey(int key) {
+        return find(key) >= 0;
+    }
+
+    public void clear() {
+        Arrays.fill(keys, 0);
+        Arrays.fill(values, null);
+        size = 0;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Copies the values out of the map, in no particular order.
+     * @return New list of the values
+     */
+    @SuppressWarnings("unchecked")
+    public List<V> values() {
+        List<V> answer = new ArrayList<>(size);
+        for (int slot = 0; slot < keys.length; slot++) {
+            if (0 != keys[slot]) {
+                answer.add((V) values[slot]);
+            }
+        }
+        return answer;
+    }
+
+    private int find(int key) {
+        if (0 == key) {
+            return -1;
+        }
+        int slot = hash(key) & mask;
+        while (0 != keys[slot]) {
+            if (keys[slot] == key) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    private void rehash() {
+        int[] oldKeys = keys;
+        Object[] oldValues = values;
+        allocate(keys.length * 2);
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (0 != oldKeys[i]) {
+                int slot = hash(oldKeys[i]) & mask;
+                while (0 != keys[slot]) {
+                    slot = (slot + 1) & mask;
+                }
+                keys[slot] = oldKeys[i];
+                values[slot] = oldValues[i];
+            }
+        }
+    }
+
+    /**
+     * Finalizer from MurmurHash3, so that consecutive addresses don't end up in one long run.
+     */
+    private static int hash(int key) {
+        key ^= key >>> 16;
+        key *= 0x85ebca6b;
+        key ^= key >>> 13;
+        key *= 0xc2b2ae35;
+        key ^= key >>> 16;
+        return key;
+    }
+
+}
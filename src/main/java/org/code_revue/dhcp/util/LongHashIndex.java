@@ -0,0 +1,219 @@
+package org.code_revue.dhcp.util;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Open addressing hash table that maps primitive <code>long</code> keys to <code>long</code> values, without boxing and
+ * without allocating anything per entry. Entries are stored in a single {@link java.nio.ByteBuffer} as 16 byte slots
+ * (key followed by value), which can be allocated off-heap so that a large index doesn't add to the garbage
+ * collector's work. Collisions are resolved by linear probing, and removals shift the following entries back instead of
+ * leaving tombstones, so lookups never slow down as entries come and go.
+ * <p>
+ * {@link #EMPTY_KEY} marks unused slots and can't be used as a key. The table doubles in size when it is more than
+ * {@link #MAX_LOAD_FACTOR} full. This class is not thread safe.
+ * </p>
+ *
+ * @author Mike Fanning
+ */
+public class LongHashIndex {
+
+    public static final long EMPTY_KEY = Long.MIN_VALUE;
+    public static final double MAX_LOAD_FACTOR = 0.6;
+
+    private static final int SLOT_SIZE = 16;
+    private static final int MIN_CAPACITY = 16;
+    private static final int MAX_CAPACITY = 1 << 26;
+
+    private final boolean direct;
+
+    private ByteBuffer slots;
+    private int mask;
+    private int size = 0;
+    private int threshold;
+
+    /**
+     * Creates a new index on the heap, big enough for the supplied number of entries.
+     * @param expectedSize Number of entries the index should hold without resizing
+     */
+    public LongHashIndex(int expectedSize) {
+        this(expectedSize, false);
+    }
+
+    /**
+     * Creates a new index, big enough for the supplied number of entries.
+     * @param expectedSize Number of entries the index should hold without resizing
+     * @param direct True to store the table outside the Java heap
+     */
+    public LongHashIndex(int expectedSize, boolean direct) {
+        this.direct = direct;
+        int capacity = MIN_CAPACITY;
+        while (capacity < MAX_CAPACITY && capacity * MAX_LOAD_FACTOR < expectedSize) {
+            capacity <<= 1;
+        }
+        allocate(capacity);
+    }
+
+    private void allocate(int capacity) {
+        slots = direct ? ByteBuffer.allocateDirect(capacity * SLOT_SIZE) : ByteBuffer.allocate(capacity * SLOT_SIZE);
+        for (int i = 0; i < capacity; i++) {
+            slots.putLong(i * SLOT_SIZE, EMPTY_KEY);
+        }
+        mask = capacity - 1;
+        threshold = (int) (capacity * MAX_LOAD_FACTOR);
+    }
+
+    /**
+     * Get the value for a key.
+     * @param key Key to look up
+     * @param missing Value to return if the key isn't present
+     * @return Value associated with the key, or the missing value
+     */
+    public long get(long key, long missing) {
+        int slot = find(key);
+        return slot < 0 ? missing : slots.getLong(slot * SLOT_SIZE + 8);
+    }
+
+    public boolean containsKey(long key) {
+        return find(key) >= 0;
+    }
+
+    /**
+     * Associates a value with a key, replacing any existing value.
+     * @param key Key, anything but {@link #EMPTY_KEY}
+     * @param value Value
+     * @return True if the key was not already present
+     * @throws java.lang.IllegalArgumentException If the key is {@link #EMPTY_KEY}
+     */
+    public boolean put(long key, long value) {
+        if (EMPTY_KEY == key) {
+            throw new IllegalArgumentException("Invalid key");
+        }
+        if (size >= mask) {
+            throw new IllegalStateException("Index is full");
+        }
+        int slot = hash(key) & mask;
+        long current;
+        while (EMPTY_KEY != (current = slots.getLong(slot * SLOT_SIZE))) {
+            if (current == key) {
+                slots.putLong(slot * SLOT_SIZE + 8, value);
+                return false;
+            }
+            slot = (slot + 1) & mask;
+        }
+        slots.putLong(slot * SLOT_SIZE, key);
+        slots.putLong(slot * SLOT_SIZE + 8, value);
+        if (++size > threshold) {
+            rehash();
+        }
+        return true;
+    }
+
+    /**
+     * Removes a key from the index.
+     * @param key Key to remove
+     * @return True if the key was present
+     */
+    public boolean remove(long key) {
+        int slot = find(key);
+        if (slot < 0) {
+            return false;
+        }
+
+        // Shift back any entries in the same run that would no longer be reachable from their ideal slot.
+        int hole = slot;
+        int next = (hole + 1) & mask;
+        long nextKey;
+        while (EMPTY_KEY != (nextKey = slots.getLong(next * SLOT_SIZE))) {
+            int ideal = hash(nextKey) & mask;
+            if (((next - ideal) & mask) >= ((next - hole) & mask)) {
+                slots.putLong(hole * SLOT_SIZE, nextKey);
+                slots.putLong(hole * SLOT_SIZE + 8, slots.getLong(next * SLOT_SIZE + 8));
+                hole = next;
+            }
+            next = (next + 1) & mask;
+        }
+        slots.putLong(hole * SLOT_SIZE, EMPTY_KEY);
+        size--;
+        return true;
+    }
+
+    /**
+     * Removes every entry from the index. The table keeps its current capacity.
+     */
+    public void clear() {
+        for (int i = 0; i <= mask; i++) {
+            slots.putLong(i * SLOT_SIZE, EMPTY_KEY);
+        }
+        size = 0;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Number of slots in the table.
+     * @return Capacity of the table
+     */
+    public int capacity() {
+        return mask + 1;
+    }
+
+    /**
+     * Number of bytes used by the table.
+     * @return Size of the table in bytes
+     */
+    public long getFootprint() {
+        return (long) capacity() * SLOT_SIZE;
+    }
+
+    public boolean isDirect() {
+        return direct;
+    }
+
+    private int find(long key) {
+        int slot = hash(key) & mask;
+        long current;
+        while (EMPTY_KEY != (current = slots.getLong(slot * SLOT_SIZE))) {
+            if (current == key) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    private void rehash() {
+        if (capacity() >= MAX_CAPACITY) {
+            return;
+        }
+        ByteBuffer old = slots;
+        int oldCapacity = capacity();
+        allocate(oldCapacity * 2);
+        for (int i = 0; i < oldCapacity; i++) {
+            long key = old.getLong(i * SLOT_SIZE);
+            if (EMPTY_KEY != key) {
+                int slot = hash(key) & mask;
+                while (EMPTY_KEY != slots.getLong(slot * SLOT_SIZE)) {
+                    slot = (slot + 1) & mask;
+                }
+                slots.putLong(slot * SLOT_SIZE, key);
+                slots.putLong(slot * SLOT_SIZE + 8, old.getLong(i * SLOT_SIZE + 8));
+            }
+        }
+    }
+
+    /**
+     * Finalizer from MurmurHash3, spreads keys that only differ in a few bits (like consecutive MAC addresses) over the
+     * whole table.
+     */
+    private static int hash(long key) {
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        key *= 0xc4ceb9fe1a85ec53L;
+        key ^= key >>> 33;
+        return (int) key;
+    }
+
+}
@@ -0,0 +1,250 @@
+package org.code_revue.dhcp.util;
+
+import org.code_revue.dhcp.message.DhcpOption;
+import org.code_revue.dhcp.message.DhcpOptionType;
+
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * Immutable IPv4 subnet, i.e. a network address and prefix length as written in CIDR notation (192.168.1.0/24).
+ * Address pools use it to work out which addresses of the subnet can be handed out: everything except the network and
+ * broadcast addresses, and the addresses of infrastructure (routers, the DHCP server itself, DNS servers) listed in the
+ * DHCP options.
+ * <p>
+ * Point to point subnets (/31, see RFC 3021) and single host subnets (/32) have no network or broadcast address, so
+ * every address in them is usable.
+ * </p>
+ *
+ * @author Mike Fanning
+ */
+public class Subnet {
+
+    /**
+     * Options whose addresses are never handed out to clients.
+     */
+    public static final DhcpOptionType[] RESERVED_OPTIONS = new DhcpOptionType[] {
+            DhcpOptionType.ROUTER,
+            DhcpOptionType.SERVER_ID,
+            DhcpOptionType.DNS_SERVER,
+            DhcpOptionType.BROADCAST_ADDR
+    };
+
+    private final int network;
+    private final int prefixLength;
+
+    /**
+     * Creates a new subnet. Host bits in the address are ignored, so 192.168.1.77/24 is the same as 192.168.1.0/24.
+     * @param address Any IPv4 address in the subnet
+     * @param prefixLength Number of network bits, between 0 and 32
+     * @throws java.lang.IllegalArgumentException If the address or prefix length is invalid
+     */
+    public Subnet(byte[] address, int prefixLength) {
+        if (null == address || address.length != 4) {
+            throw new IllegalArgumentException("Invalid IPv4 Address");
+        }
+        if (prefixLength < 0 || prefixLength > 32) {
+            throw new IllegalArgumentException("Invalid prefix length " + prefixLength);
+        }
+        this.prefixLength = prefixLength;
+        this.network = AddressUtils.convertToInt(address) & mask(prefixLength);
+    }
+
+    /**
+     * Parses a subnet in CIDR notation, e.g. "10.0.0.0/8". An address without a prefix length is treated as a /32.
+     * @param cidr Subnet in CIDR notation
+     * @return Subnet
+     * @throws java.lang.IllegalArgumentException If the string can't be parsed
+     */
+    public static Subnet parse(String cidr) {
+        int slash = cidr.indexOf('/');
+        String address = slash < 0 ? cidr : cidr.substring(0, slash);
+        int prefixLength;
+        try {
+            prefixLength = slash < 0 ? 32 : Integer.parseInt(cidr.substring(slash + 1).trim());
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid subnet " + cidr, e);
+        }
+        return new Subnet(AddressUtils.convertToByteArray(address.trim()), prefixLength);
+    }
+
+    /**
+     * Creates a subnet from an address and a subnet mask.
+     * @param address Any IPv4 address in the subnet
+     * @param mask Subnet mask, which must be a contiguous run of ones followed by zeroes
+     * @return Subnet
+     * @throws java.lang.IllegalArgumentException If the address or mask is invalid
+     */
+    public static Subnet fromMask(byte[] address, byte[] mask) {
+        if (null == mask || mask.length != 4) {
+            throw new IllegalArgumentException("Invalid subnet mask");
+        }
+        int bits = AddressUtils.convertToInt(mask);
+        int prefixLength = Integer.bitCount(bits);
+        if (bits != mask(prefixLength)) {
+            throw new IllegalArgumentException("Subnet mask " + AddressUtils.convertToString(mask) +
+                    " is not contiguous");
+        }
+        return new Subnet(address, prefixLength);
+    }
+
+    /**
+     * Creates a subnet from an address and the {@link org.code_revue.dhcp.message.DhcpOptionType#SUBNET_MASK} option.
+     * @param address Any IPv4 address in the subnet
+     * @param options DHCP options, which must include the subnet mask
+     * @return Subnet
+     * @throws java.lang.IllegalArgumentException If there is no subnet mask option or it is invalid
+     */
+    public static Subnet fromOptions(byte[] address, Map<DhcpOptionType, DhcpOption> options) {
+        DhcpOption mask = options.get(DhcpOptionType.SUBNET_MASK);
+        if (null == mask) {
+            throw new IllegalArgumentException("No subnet mask option");
+        }
+        return fromMask(address, mask.getOptionData());
+    }
+
+    private static int mask(int prefixLength) {
+        return 0 == prefixLength ? 0 : -1 << (32 - prefixLength);
+    }
+
+    public byte[] getNetwork() {
+        return AddressUtils.convertToByteArray(network);
+    }
+
+    public byte[] getMask() {
+        return AddressUtils.convertToByteArray(mask(prefixLength));
+    }
+
+    public byte[] getBroadcast() {
+        return AddressUtils.convertToByteArray(network | ~mask(prefixLength));
+    }
+
+    public int getPrefixLength() {
+        return prefixLength;
+    }
+
+    /**
+     * Number of addresses in the subnet, including the network and broadcast addresses.
+     * @return Size of the subnet
+     */
+    public long getSize() {
+        return 1L << (32 - prefixLength);
+    }
+
+    /**
+     * First address that can be assigned to a host, i.e. the address after the network address.
+     * @return First host address
+     */
+    public byte[] getFirstHost() {
+        return AddressUtils.convertToByteArray(prefixLength >= 31 ? network : network + 1);
+    }
+
+    /**
+     * Last address that can be assigned to a host, i.e. the address before the broadcast address.
+     * @return Last host address
+     */
+    public byte[] getLastHost() {
+        int broadcast = network | ~mask(prefixLength);
+        return AddressUtils.convertToByteArray(prefixLength >= 31 ? broadcast : broadcast - 1);
+    }
+
+    /**
+     * Check whether an address is part of this subnet.
+     * @param address IPv4 address
+     * @return True if the address is in the subnet
+     */
+    public boolean contains(byte[] address) {
+        return address.length == 4 && (AddressUtils.convertToInt(address) & mask(prefixLength)) == network;
+    }
+
+    /**
+     * Check whether an address is part of this subnet.
+     * @param address IPv4 address in the format of {@link AddressUtils#convertToInt(byte[])}
+     * @return True if the address is in the subnet
+     */
+    public boolean contains(int address) {
+        return (address & mask(prefixLength)) == network;
+    }
+
+    /**
+     * Check whether an address is a host address of this subnet, i.e. it is in the subnet and is not the network or
+     * broadcast address.
+     * @param address IPv4 address
+     * @return True if the address could be assigned to a host
+     */
+    public boolean isHost(byte[] address) {
+        if (!contains(address)) {
+            return false;
+        }
+        long addr = AddressUtils.convertToLong(address);
+        return addr >= AddressUtils.convertToLong(getFirstHost()) && addr <= AddressUtils.convertToLong(getLastHost());
+    }
+
+    /**
+     * Collects the host addresses of this subnet that are used by infrastructure according to the
+     * {@link #RESERVED_OPTIONS}, and so should not be handed out. Addresses outside the subnet (e.g. public DNS servers)
+     * are ignored.
+     * @param options DHCP options
+     * @return Sorted, distinct IPv4 addresses in the format of {@link AddressUtils#convertToInt(byte[])}
+     * @throws java.lang.IllegalArgumentException If the options include a subnet mask that doesn't match this subnet
+     */
+    public int[] getReservedAddresses(Map<DhcpOptionType, DhcpOption> options) {
+        DhcpOption mask = options.get(DhcpOptionType.SUBNET_MASK);
+        if (null != mask && !Arrays.equals(getMask(), mask.getOptionData())) {
+            throw new IllegalArgumentException("Subnet mask option " + AddressUtils.convertToString(mask.getOptionData())
+                    + " doesn't match subnet " + this);
+        }
+
+        int count = 0;
+        long[] reserved = new long[8];
+        for (DhcpOptionType type: RESERVED_OPTIONS) {
+            DhcpOption option = options.get(type);
+            if (null == option) {
+                continue;
+            }
+            byte[] data = option.getOptionData();
+            for (int i = 0; i + 4 <= data.length; i += 4) {
+                byte[] address = Arrays.copyOfRange(data, i, i + 4);
+                if (isHost(address)) {
+                    if (count == reserved.length) {
+                        reserved = Arrays.copyOf(reserved, count * 2);
+                    }
+                    reserved[count++] = AddressUtils.convertToLong(address);
+                }
+            }
+        }
+
+        Arrays.sort(reserved, 0, count);
+        int[] answer = new int[count];
+        int distinct = 0;
+        for (int i = 0; i < count; i++) {
+            if (0 == i || reserved[i] != reserved[i - 1]) {
+                answer[distinct++] = (int) reserved[i];
+            }
+        }
+        return Arrays.copyOf(answer, distinct);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof Subnet)) {
+            return false;
+        }
+        Subnet other = (Subnet) o;
+        return network == other.network && prefixLength == other.prefixLength;
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * network + prefixLength;
+    }
+
+    @Override
+    public String toString() {
+        return AddressUtils.convertToString(network) + "/" + prefixLength;
+    }
+
+}
@@ -0,0 +1,206 @@
+package org.code_revue.dhcp.util;
+
+import java.util.Collection;
+
+/**
+ * Hierarchical timing wheel for tracking a large number of deadlines, like DHCP lease expirations. Time is divided into
+ * ticks, and each of the {@link #LEVELS} wheels has {@link #SLOTS} slots: a slot in the first wheel covers one tick, a
+ * slot in the second wheel covers {@link #SLOTS} ticks, and so on, so four levels cover 2<sup>32</sup> ticks. Entries
+ * are kept in intrusive doubly linked lists, which makes scheduling and cancelling O(1). As time advances, the entries
+ * in a slot of a higher wheel are moved down ("cascaded") when the lower wheel comes around to them, so each entry is
+ * touched at most once per level.
+ * <p>
+ * Deadlines further away than the wheels can represent are parked in the top wheel and rescheduled each time it comes
+ * around. Entries whose deadline has already passed expire on the next call to {@link #advance(long, Collection)}.
+ * </p>
+ * <p>
+ * This class is not thread safe.
+ * </p>
+ *
+ * @param <T> Type of the items being scheduled
+ * @author Mike Fanning
+ */
+public class TimingWheel<T> {
+
+    public static final int LEVELS = 4;
+    public static final int SLOT_BITS = 8;
+    public static final int SLOTS = 1 << SLOT_BITS;
+
+    private static final int SLOT_MASK = SLOTS - 1;
+
+    private final long tickMillis;
+
+    // Sentinel nodes of circular lists, indexed by level * SLOTS + slot.
+    private final Timeout<T>[] slots;
+
+    // Every tick before this one has been processed.
+    private long currentTick;
+
+    private int size = 0;
+
+    /**
+     * Creates a new wheel.
+     * @param tickMillis Length of a tick in milliseconds, i.e. the resolution of the wheel
+     * @param nowMillis Current time in milliseconds
+     */
+    @SuppressWarnings("unchecked")
+    public TimingWheel(long tickMillis, long nowMillis) {
+        if (tickMillis <= 0) {
+            throw new IllegalArgumentException("Tick must be positive");
+        }
+        this.tickMillis = tickMillis;
+        this.currentTick = nowMillis / tickMillis;
+        this.slots = (Timeout<T>[]) new Timeout<?>[LEVELS * SLOTS];
+        for (int i = 0; i < slots.length; i++) {
+            Timeout<T> sentinel = new Timeout<>(null, 0);
+            sentinel.next = sentinel;
+            sentinel.previous = sentinel;
+            slots[i] = sentinel;
+        }
+    }
+
+    /**
+     * Schedules an item.
+     * @param item Item to schedule
+     * @param deadlineMillis Time at which the item expires, in milliseconds
+     * @return Handle that can be used to cancel the item
+     */
+    public Timeout<T> schedule(T item, long deadlineMillis) {
+        Timeout<T> timeout = new Timeout<>(item, deadlineMillis / tickMillis);
+        place(timeout);
+        size++;
+        return timeout;
+    }
+
+    /**
+     * Cancels a scheduled item.
+     * @param timeout Handle returned by {@link #schedule(Object, long)}
+     * @return True if the item was still scheduled
+     */
+    public boolean cancel(Timeout<T> timeout) {
+        if (null == timeout.next) {
+            return false;
+        }
+        unlink(timeout);
+        size--;
+        return true;
+    }
+
+    /**
+     * Moves the wheel forward to the supplied time, collecting every item whose deadline is at or before it.
+     * @param nowMillis Current time in milliseconds
+     * @param expired Receives the expired items
+     * @return Number of expired items
+     */
+    public int advance(long nowMillis, Collection<? super T> expired) {
+        long nowTick = nowMillis / tickMillis;
+        int count = 0;
+        while (currentTick <= nowTick) {
+            if (0 == size) {
+                currentTick = nowTick + 1;
+                break;
+            }
+
+            Timeout<T> sentinel = slots[(int) (currentTick & SLOT_MASK)];
+            while (sentinel.next != sentinel) {
+                Timeout<T> timeout = sentinel.next;
+                unlink(timeout);
+                size--;
+                expired.add(timeout.item);
+                count++;
+            }
+
+            currentTick++;
+            for (int level = 1; level < LEVELS && 0 == (currentTick & ((1L << (SLOT_BITS * level)) - 1)); level++) {
+                cascade(level, (int) ((currentTick >>> (SLOT_BITS * level)) & SLOT_MASK));
+            }
+        }
+        return count;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public long getTickMillis() {
+        return tickMillis;
+    }
+
+    private void cascade(int level, int slot) {
+        Timeout<T> sentinel = slots[level * SLOTS + slot];
+        Timeout<T> timeout = sentinel.next;
+        sentinel.next = sentinel;
+        sentinel.previous = sentinel;
+        while (timeout != sentinel) {
+            Timeout<T> next = timeout.next;
+            timeout.next = null;
+            timeout.previous = null;
+            place(timeout);
+            timeout = next;
+        }
+    }
+
+    /**
+     * Puts an entry in the lowest wheel whose higher order bits match the current tick, i.e. the wheel that will come
+     * around to the entry's slot next.
+     */
+    private void place(Timeout<T> timeout) {
+        long tick = Math.max(timeout.tick, currentTick);
+        int index = -1;
+        for (int level = 0; level < LEVELS; level++) {
+            int shift = SLOT_BITS * (level + 1);
+            if ((tick >>> shift) == (currentTick >>> shift)) {
+                index = level * SLOTS + (int) ((tick >>> (SLOT_BITS * level)) & SLOT_MASK);
+                break;
+            }
+        }
+        if (index < 0) {
+            // Too far away, park it in the top wheel slot that was cascaded most recently so it is looked at again
+            // after a full rotation.
+            int top = LEVELS - 1;
+            index = top * SLOTS + (int) (((currentTick >>> (SLOT_BITS * top)) - 1) & SLOT_MASK);
+        }
+
+        Timeout<T> sentinel = slots[index];
+        timeout.previous = sentinel.previous;
+        timeout.next = sentinel;
+        sentinel.previous.next = timeout;
+        sentinel.previous = timeout;
+    }
+
+    private static <T> void unlink(Timeout<T> timeout) {
+        timeout.previous.next = timeout.next;
+        timeout.next.previous = timeout.previous;
+        timeout.next = null;
+        timeout.previous = null;
+    }
+
+    /**
+     * Handle for a scheduled item.
+     * @param <T> Type of the item
+     */
+    public static class Timeout<T> {
+
+        private final T item;
+        private final long tick;
+        private Timeout<T> previous, next;
+
+        private Timeout(T item, long tick) {
+            this.item = item;
+            this.tick = tick;
+        }
+
+        public T getItem() {
+            return item;
+        }
+
+        /**
+         * Check whether the item is still waiting to expire.
+         * @return True if the item has neither expired nor been cancelled
+         */
+        public boolean isScheduled() {
+            return null != next;
+        }
+    }
+
+}
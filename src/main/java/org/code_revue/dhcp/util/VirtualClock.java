@@ -0,0 +1,62 @@
+package org.code_revue.dhcp.util;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * {@link org.code_revue.dhcp.util.Clock} that only moves when it is told to, for simulating days of lease churn in a
+ * test without waiting for them.
+ *
+ * @author Mike Fanning
+ */
+public class VirtualClock extends Clock {
+
+    private final AtomicLong millis;
+
+    /**
+     * Creates a new clock that starts at the current system time.
+     */
+    public VirtualClock() {
+        this(System.currentTimeMillis());
+    }
+
+    /**
+     * Creates a new clock.
+     * @param startMillis Initial time in milliseconds since the epoch
+     */
+    public VirtualClock(long startMillis) {
+        this.millis = new AtomicLong(startMillis);
+    }
+
+    @Override
+    public long currentTimeMillis() {
+        return millis.get();
+    }
+
+    /**
+     * Moves the clock forward.
+     * @param duration Amount of time to move forward by, must not be negative
+     * @param unit Unit of the duration
+     * @return New time in milliseconds
+     */
+    public long advance(long duration, TimeUnit unit) {
+        if (duration < 0) {
+            throw new IllegalArgumentException("Virtual time can't go backwards");
+        }
+        return millis.addAndGet(unit.toMillis(duration));
+    }
+
+    /**
+     * Sets the clock to a particular time, which may be in the past.
+     * @param timeMillis Time in milliseconds since the epoch
+     */
+    public void setTimeMillis(long timeMillis) {
+        millis.set(timeMillis);
+    }
+
+    @Override
+    public String toString() {
+        return "VirtualClock{" + millis.get() + "}";
+    }
+
+}
@@ -0,0 +1,175 @@
+package org.code_revue.dhcp.device;
+
+import org.code_revue.dhcp.message.ByteArrayOption;
+import org.code_revue.dhcp.message.DhcpOption;
+import org.code_revue.dhcp.message.DhcpOptionType;
+import org.junit.Test;
+
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author Mike Fanning
+ */
+public class TestCompactDeviceRegistry {
+
+    private final byte[] mac1 = new byte[] { 0x00, 0x1a, 0x2b, 0x3c, 0x4d, 0x5e };
+    private final byte[] mac2 = new byte[] { 0x00, 0x1a, 0x2b, 0x3c, 0x4d, 0x5f };
+    private final byte[] infiniband = new byte[] { 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15, 16 };
+
+    private Map<DhcpOptionType, DhcpOption> options(int leaseTime) {
+        Map<DhcpOptionType, DhcpOption> options = new HashMap<>();
+        options.put(DhcpOptionType.SUBNET_MASK,
+                new ByteArrayOption(DhcpOptionType.SUBNET_MASK, new byte[] { (byte) 255, (byte) 255, (byte) 255, 0 }));
+        options.put(DhcpOptionType.IP_ADDR_LEASE_TIME,
+                new ByteArrayOption(DhcpOptionType.IP_ADDR_LEASE_TIME, new byte[] { 0, 0, 0, (byte) leaseTime }));
+        return options;
+    }
+
+    @Test
+    public void viewsShareState() {
+        CompactDeviceRegistry registry = new CompactDeviceRegistry(4, false);
+        NetworkDevice device = registry.getDevice(mac1);
+        assertEquals(DeviceStatus.DISCOVERED, device.getStatus());
+        assertArrayEquals(mac1, device.getHardwareAddress());
+        assertNull(device.getIpAddress());
+        assertNull(device.getLeaseExpiration());
+        assertTrue(device.getOptions().isEmpty());
+
+        Date expiration = new Date(1500000000000L);
+        device.setStatus(DeviceStatus.ACKNOWLEDGED);
+        device.setIpAddress(new byte[] { 10, 0, 0, 1 });
+        device.setLeaseExpiration(new Date(expiration.getTime() + 999));
+
+        NetworkDevice other = registry.getDevice(mac1.clone());
+        assertEquals(DeviceStatus.ACKNOWLEDGED, other.getStatus());
+        assertArrayEquals(new byte[] { 10, 0, 0, 1 }, other.getIpAddress());
+        assertEquals(expiration, other.getLeaseExpiration());
+
+        registry.resetDevice(mac1);
+        assertEquals(DeviceStatus.DISCOVERED, device.getStatus());
+        device.setIpAddress(null);
+        assertNull(other.getIpAddress());
+    }
+
+    @Test
+    public void optionSetsAreInterned() {
+        CompactDeviceRegistry registry = new CompactDeviceRegistry();
+        NetworkDevice device1 = registry.getDevice(mac1);
+        NetworkDevice device2 = registry.getDevice(mac2);
+        device1.setOptions(options(60));
+        device2.setOptions(options(60));
+        assertSame(device1.getOptions(), device2.getOptions());
+        assertEquals(2, registry.getLeaseTable().getOptionSetCount());
+
+        device2.setOptions(options(120));
+        assertNotSame(device1.getOptions(), device2.getOptions());
+        assertEquals(3, registry.getLeaseTable().getOptionSetCount());
+        assertArrayEquals(new byte[] { 0, 0, 0, 120 },
+                device2.getOptions().get(DhcpOptionType.IP_ADDR_LEASE_TIME).getOptionData());
+    }
+
+    @Test
+    public void perDeviceOptionsAreNotInterned() {
+        CompactDeviceRegistry registry = new CompactDeviceRegistry();
+        for (int i = 0; i < 1000; i++) {
+            NetworkDevice device = registry.getDevice(new byte[] { 0x00, 0x1a, 0x2b, 0x3c, (byte) (i >> 8), (byte) i });
+            Map<DhcpOptionType, DhcpOption> options = options(60);
+            options.put(DhcpOptionType.CLIENT_ID,
+                    new ByteArrayOption(DhcpOptionType.CLIENT_ID, new byte[] { 1, (byte) (i >> 8), (byte) i }));
+            device.setOptions(options);
+            registry.updateDevice(device);
+        }
+        assertEquals(2, registry.getLeaseTable().getOptionSetCount());
+
+        for (int i = 0; i < 1000; i += 111) {
+            byte[] clientId = new byte[] { 1, (byte) (i >> 8), (byte) i };
+            NetworkDevice device = registry.getDeviceByClientId(clientId);
+            assertArrayEquals(new byte[] { 0x00, 0x1a, 0x2b, 0x3c, (byte) (i >> 8), (byte) i },
+                    device.getHardwareAddress());
+            Map<DhcpOptionType, DhcpOption> options = device.getOptions();
+            assertEquals(3, options.size());
+            assertArrayEquals(clientId, options.get(DhcpOptionType.CLIENT_ID).getOptionData());
+            assertArrayEquals(new byte[] { 0, 0, 0, 60 },
+                    options.get(DhcpOptionType.IP_ADDR_LEASE_TIME).getOptionData());
+        }
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void optionSetsAreReadOnly() {
+        NetworkDevice device = new CompactDeviceRegistry().getDevice(mac1);
+        device.setOptions(options(60));
+        device.getOptions().remove(DhcpOptionType.SUBNET_MASK);
+    }
+
+    @Test
+    public void updateDevice() {
+        CompactDeviceRegistry registry = new CompactDeviceRegistry();
+        NetworkDevice device = new NetworkDevice();
+        device.setHardwareAddress(mac1);
+        device.setStatus(DeviceStatus.OFFERED);
+        device.setIpAddress(new byte[] { 10, 0, 0, 2 });
+        device.setOptions(options(60));
+
+        NetworkDevice stored = registry.updateDevice(device);
+        assertEquals(DeviceStatus.OFFERED, stored.getStatus());
+        assertArrayEquals(new byte[] { 10, 0, 0, 2 }, registry.getDevice(mac1).getIpAddress());
+        assertEquals(2, registry.getDevice(mac1).getOptions().size());
+        assertSame(stored, registry.updateDevice(stored));
+
+        registry.getDevice(infiniband);
+        assertEquals(2, registry.size());
+        assertEquals(2, registry.getAllDevices().size());
+    }
+
+    @Test
+    public void growsPastExpectedSize() {
+        CompactDeviceRegistry registry = new CompactDeviceRegistry(16, true);
+        for (int i = 0; i < 1000; i++) {
+            byte[] mac = new byte[] { 0x02, 0, 0, 0, (byte) (i >>> 8), (byte) i };
+            registry.getDevice(mac).setIpAddress(new byte[] { 10, 0, (byte) (i >>> 8), (byte) (i + 1) });
+        }
+        assertEquals(1000, registry.size());
+        assertArrayEquals(new byte[] { 10, 0, 3, (byte) 232 },
+                registry.getDevice(new byte[] { 0x02, 0, 0, 0, 3, (byte) 231 }).getIpAddress());
+        assertTrue(registry.getLeaseTable().getFootprint() >= 1000L * LeaseTable.BYTES_PER_DEVICE);
+    }
+
+    @Test
+    public void secondaryIndexes() {
+        CompactDeviceRegistry registry = new CompactDeviceRegistry();
+        NetworkDevice device = registry.getDevice(mac1);
+        device.setStatus(DeviceStatus.OFFERED);
+        device.setIpAddress(new byte[] { 10, 0, 0, 5 });
+        Map<DhcpOptionType, DhcpOption> options = new HashMap<>();
+        options.put(DhcpOptionType.CLIENT_ID, new ByteArrayOption(DhcpOptionType.CLIENT_ID, new byte[] { 1, 2, 3 }));
+        options.put(DhcpOptionType.HOST_NAME, new ByteArrayOption(DhcpOptionType.HOST_NAME, "Laptop".getBytes()));
+        device.setOptions(options);
+        assertNull(registry.getDeviceByIpAddress(new byte[] { 10, 0, 0, 5 }));
+        registry.updateDevice(device);
+
+        assertArrayEquals(mac1, registry.getDeviceByIpAddress(new byte[] { 10, 0, 0, 5 }).getHardwareAddress());
+        assertArrayEquals(mac1, registry.getDeviceByClientId(new byte[] { 1, 2, 3 }).getHardwareAddress());
+        assertArrayEquals(mac1, registry.getDeviceByHostName("laptop").getHardwareAddress());
+        assertNull(registry.getDeviceByHostName("desktop"));
+
+        // Moving to another address drops the old entry, resetting drops the address entirely.
+        device.setIpAddress(new byte[] { 10, 0, 0, 6 });
+        registry.updateDevice(device);
+        assertNull(registry.getDeviceByIpAddress(new byte[] { 10, 0, 0, 5 }));
+        assertNotNull(registry.getDeviceByIpAddress(new byte[] { 10, 0, 0, 6 }));
+        registry.resetDevice(mac1);
+        assertNull(registry.getDeviceByIpAddress(new byte[] { 10, 0, 0, 6 }));
+        assertNotNull(registry.getDeviceByClientId(new byte[] { 1, 2, 3 }));
+
+        NetworkDevice other = registry.getDevice(infiniband);
+        other.setStatus(DeviceStatus.ACKNOWLEDGED);
+        other.setIpAddress(new byte[] { 10, 0, 0, 7 });
+        registry.updateDevice(other);
+        assertArrayEquals(infiniband, registry.getDeviceByIpAddress(new byte[] { 10, 0, 0, 7 }).getHardwareAddress());
+    }
+
+}
@@ -0,0 +1,165 @@
+package org.code_revue.dhcp.device;
+
+import org.code_revue.dhcp.message.DhcpOption;
+import org.code_revue.dhcp.message.DhcpOptionType;
+import org.code_revue.dhcp.util.AddressUtils;
+import org.code_revue.dhcp.util.Subnet;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author Mike Fanning
+ */
+public class TestLeaseQuery {
+
+    private static final int DEVICES = 10000;
+    private static final long NOW = 1500000000000L;
+
+    private final byte[] infiniband = new byte[] { 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15, 16 };
+
+    /**
+     * Every tenth device is only discovered, the rest are acknowledged with leases that expire i seconds from now.
+     * Even devices have an OUI of 00:1a:2b, odd ones 00:1a:2c.
+     */
+    private DeviceRegistry populate(DeviceRegistry registry) {
+        for (int i = 0; i < DEVICES; i++) {
+            NetworkDevice device = registry.getDevice(mac(i));
+            if (0 != i % 10) {
+                device.setStatus(DeviceStatus.ACKNOWLEDGED);
+                device.setIpAddress(AddressUtils.convertToByteArray(0x0a000000 + i));
+                device.setLeaseExpiration(new Date(NOW + i * 1000L));
+            }
+            registry.updateDevice(device);
+        }
+        NetworkDevice device = registry.getDevice(infiniband);
+        device.setStatus(DeviceStatus.OFFERED);
+        device.setIpAddress(new byte[] { 10, 1, 0, 1 });
+        registry.updateDevice(device);
+        return registry;
+    }
+
+    private static byte[] mac(int i) {
+        return new byte[] { 0x00, 0x1a, (byte) (0x2b + (i & 1)), (byte) (i >>> 16), (byte) (i >>> 8), (byte) i };
+    }
+
+    private static DeviceRegistry[] registries() {
+        return new DeviceRegistry[] {
+                new SimpleDeviceRegistry(), new LongKeyDeviceRegistry(), new CompactDeviceRegistry()
+        };
+    }
+
+    private static int count(DeviceRegistry registry, LeaseQuery query) {
+        final int[] count = new int[1];
+        registry.visitDevices(query, new LeaseQuery.Visitor() {
+            @Override
+            public boolean visit(NetworkDevice device) {
+                count[0]++;
+                return true;
+            }
+        });
+        return count[0];
+    }
+
+    @Test
+    public void filters() {
+        for (DeviceRegistry registry: registries()) {
+            populate(registry);
+            assertEquals(DEVICES + 1, count(registry, new LeaseQuery()));
+            assertEquals(DEVICES / 10, count(registry, new LeaseQuery().status(DeviceStatus.DISCOVERED)));
+            assertEquals(DEVICES - DEVICES / 10 + 1,
+                    count(registry, new LeaseQuery().status(DeviceStatus.ACKNOWLEDGED, DeviceStatus.OFFERED)));
+
+            // 10.0.0.0/24 holds devices 1 to 255, less the 25 discovered ones.
+            assertEquals(230, count(registry, new LeaseQuery().subnet(Subnet.parse("10.0.0.0/24"))));
+            assertEquals(1, count(registry, new LeaseQuery().subnet(Subnet.parse("10.1.0.0/16"))));
+
+            // Leases expiring in the first minute: devices 1 to 59, less 10, 20, ... 50.
+            assertEquals(54, count(registry, new LeaseQuery().expiringBetween(new Date(NOW), new Date(NOW + 60000))));
+
+            assertEquals(DEVICES / 2, count(registry,
+                    new LeaseQuery().hardwareAddressPrefix(new byte[] { 0x00, 0x1a, 0x2b })));
+            assertEquals(1, count(registry, new LeaseQuery().hardwareAddressPrefix(new byte[] { 1, 2, 3, 4, 5, 6, 7 })));
+            assertEquals(DEVICES / 2 - DEVICES / 10, count(registry, new LeaseQuery()
+                    .hardwareAddressPrefix(new byte[] { 0x00, 0x1a, 0x2b }).status(DeviceStatus.ACKNOWLEDGED)));
+        }
+    }
+
+    @Test
+    public void paging() {
+        for (DeviceRegistry registry: registries()) {
+            populate(registry);
+            List<NetworkDevice> all = new ArrayList<>();
+            byte[] cursor = null;
+            int pages = 0;
+            do {
+                LeasePage page = new LeaseQuery().status(DeviceStatus.ACKNOWLEDGED, DeviceStatus.OFFERED)
+                        .pageSize(1000).after(cursor).page(registry);
+                assertTrue(page.getDevices().size() <= 1000);
+                all.addAll(page.getDevices());
+                cursor = page.getNextCursor();
+                pages++;
+            } while (null != cursor);
+
+            assertEquals(10, pages);
+            assertEquals(DEVICES - DEVICES / 10 + 1, all.size());
+            for (int i = 1; i < all.size(); i++) {
+                assertTrue(LeaseQuery.HARDWARE_ADDRESS_ORDER.compare(
+                        all.get(i - 1).getHardwareAddress(), all.get(i).getHardwareAddress()) < 0);
+            }
+            assertArrayEquals(infiniband, all.get(all.size() - 1).getHardwareAddress());
+        }
+    }
+
+    @Test
+    public void visitorGetsCopies() {
+        for (DeviceRegistry registry: registries()) {
+            populate(registry);
+            final List<NetworkDevice> visited = new ArrayList<>();
+            registry.visitDevices(new LeaseQuery(), new LeaseQuery.Visitor() {
+                @Override
+                public boolean visit(NetworkDevice device) {
+                    visited.add(device);
+                    return visited.size() < 5;
+                }
+            });
+            assertEquals(5, visited.size());
+
+            NetworkDevice copy = visited.get(0);
+            DeviceStatus status = copy.getStatus();
+            copy.setStatus(DeviceStatus.DISCOVERED == status ? DeviceStatus.OFFERED : DeviceStatus.DISCOVERED);
+            assertEquals(status, registry.getDevice(copy.getHardwareAddress()).getStatus());
+        }
+    }
+
+    @Test
+    public void onlyMatchesAreCopied() {
+        // Copying a device reads its options, matching it doesn't.
+        final int[] reads = new int[1];
+        DeviceRegistry[] registries = new DeviceRegistry[] { new SimpleDeviceRegistry(), new LongKeyDeviceRegistry() };
+        for (DeviceRegistry registry: registries) {
+            for (int i = 0; i < 1000; i++) {
+                NetworkDevice device = new NetworkDevice() {
+                    @Override
+                    public Map<DhcpOptionType, DhcpOption> getOptions() {
+                        reads[0]++;
+                        return super.getOptions();
+                    }
+                };
+                device.setHardwareAddress(new byte[] { 0x02, 0, 0, 0, (byte) (i >>> 8), (byte) i });
+                registry.updateDevice(device);
+            }
+            reads[0] = 0;
+
+            LeasePage page = new LeaseQuery().after(new byte[] { 0x02, 0, 0, 0, 3, (byte) 221 }).page(registry);
+            assertEquals(10, page.getDevices().size());
+            assertEquals(10, reads[0]);
+        }
+    }
+
+}
@@ -0,0 +1,105 @@
+package org.code_revue.dhcp.device;
+
+import org.code_revue.dhcp.message.ByteArrayOption;
+import org.code_revue.dhcp.message.DhcpOption;
+import org.code_revue.dhcp.message.DhcpOptionType;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author Mike Fanning
+ */
+public class TestLongKeyDeviceRegistry {
+
+    private final byte[] mac1 = new byte[] { 0x00, 0x1a, 0x2b, 0x3c, 0x4d, 0x5e };
+    private final byte[] mac2 = new byte[] { 0x00, 0x1a, 0x2b, 0x3c, 0x4d, 0x5f };
+    private final byte[] infiniband = new byte[] { 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15, 16 };
+
+    @Test
+    public void getDevice() {
+        LongKeyDeviceRegistry registry = new LongKeyDeviceRegistry(4, true);
+        NetworkDevice device = registry.getDevice(mac1);
+        assertEquals(DeviceStatus.DISCOVERED, device.getStatus());
+        assertSame(device, registry.getDevice(new byte[] { 0x00, 0x1a, 0x2b, 0x3c, 0x4d, 0x5e }));
+        assertNotSame(device, registry.getDevice(mac2));
+
+        device.setStatus(DeviceStatus.ACKNOWLEDGED);
+        assertSame(device, registry.resetDevice(mac1));
+        assertEquals(DeviceStatus.DISCOVERED, device.getStatus());
+    }
+
+    @Test
+    public void updateDevice() {
+        LongKeyDeviceRegistry registry = new LongKeyDeviceRegistry();
+        registry.getDevice(mac1);
+        NetworkDevice replacement = new NetworkDevice();
+        replacement.setHardwareAddress(mac1);
+        assertSame(replacement, registry.updateDevice(replacement));
+        assertSame(replacement, registry.getDevice(mac1));
+
+        NetworkDevice other = new NetworkDevice();
+        other.setHardwareAddress(mac2);
+        assertSame(other, registry.updateDevice(other));
+        assertEquals(2, registry.getAllDevices().size());
+    }
+
+    @Test
+    public void otherHardwareTypes() {
+        LongKeyDeviceRegistry registry = new LongKeyDeviceRegistry();
+        NetworkDevice device = registry.getDevice(infiniband);
+        assertSame(device, registry.getDevice(infiniband.clone()));
+        registry.getDevice(mac1);
+        assertEquals(2, registry.size());
+        assertTrue(registry.getAllDevices().contains(device));
+    }
+
+    @Test
+    public void grows() {
+        LongKeyDeviceRegistry registry = new LongKeyDeviceRegistry(4, false);
+        for (int i = 0; i < 10000; i++) {
+            registry.getDevice(new byte[] { 0, 0, 0, 0, (byte) (i >> 8), (byte) i });
+        }
+        assertEquals(10000, registry.size());
+        assertEquals(DeviceStatus.DISCOVERED, registry.getDevice(new byte[] { 0, 0, 0, 0, 0x12, 0x34 }).getStatus());
+        assertEquals(10000, registry.size());
+    }
+
+    @Test
+    public void secondaryIndexes() {
+        LongKeyDeviceRegistry registry = new LongKeyDeviceRegistry();
+        NetworkDevice device = registry.getDevice(mac1);
+        device.setStatus(DeviceStatus.OFFERED);
+        device.setIpAddress(new byte[] { 10, 0, 0, 5 });
+        Map<DhcpOptionType, DhcpOption> options = new HashMap<>();
+        options.put(DhcpOptionType.CLIENT_ID, new ByteArrayOption(DhcpOptionType.CLIENT_ID, new byte[] { 1, 2, 3 }));
+        options.put(DhcpOptionType.HOST_NAME, new ByteArrayOption(DhcpOptionType.HOST_NAME, "Laptop".getBytes()));
+        device.setOptions(options);
+        assertNull(registry.getDeviceByIpAddress(new byte[] { 10, 0, 0, 5 }));
+        registry.updateDevice(device);
+
+        assertArrayEquals(mac1, registry.getDeviceByIpAddress(new byte[] { 10, 0, 0, 5 }).getHardwareAddress());
+        assertArrayEquals(mac1, registry.getDeviceByClientId(new byte[] { 1, 2, 3 }).getHardwareAddress());
+        assertArrayEquals(mac1, registry.getDeviceByHostName("laptop").getHardwareAddress());
+        assertNull(registry.getDeviceByHostName("desktop"));
+
+        // Moving to another address drops the old entry, resetting drops the address entirely.
+        device.setIpAddress(new byte[] { 10, 0, 0, 6 });
+        registry.updateDevice(device);
+        assertNull(registry.getDeviceByIpAddress(new byte[] { 10, 0, 0, 5 }));
+        assertNotNull(registry.getDeviceByIpAddress(new byte[] { 10, 0, 0, 6 }));
+        registry.resetDevice(mac1);
+        assertNull(registry.getDeviceByIpAddress(new byte[] { 10, 0, 0, 6 }));
+        assertNotNull(registry.getDeviceByClientId(new byte[] { 1, 2, 3 }));
+
+        NetworkDevice other = registry.getDevice(infiniband);
+        other.setStatus(DeviceStatus.ACKNOWLEDGED);
+        other.setIpAddress(new byte[] { 10, 0, 0, 7 });
+        registry.updateDevice(other);
+        assertArrayEquals(infiniband, registry.getDeviceByIpAddress(new byte[] { 10, 0, 0, 7 }).getHardwareAddress());
+    }
+
+}
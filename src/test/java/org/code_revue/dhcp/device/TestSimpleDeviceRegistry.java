@@ -0,0 +1,133 @@
+package org.code_revue.dhcp.device;
+
+import org.code_revue.dhcp.message.ByteArrayOption;
+import org.code_revue.dhcp.message.DhcpOption;
+import org.code_revue.dhcp.message.DhcpOptionType;
+import org.code_revue.dhcp.util.AddressUtils;
+import org.code_revue.dhcp.util.VirtualClock;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author Mike Fanning
+ */
+public class TestSimpleDeviceRegistry {
+
+    @Test
+    public void floodStaysBounded() {
+        SimpleDeviceRegistry registry = new SimpleDeviceRegistry(16, 0);
+        NetworkDevice leased = lease(registry, 1, 1);
+
+        for (long mac = 1000; mac < 101000; mac++) {
+            registry.getDevice(AddressUtils.longToHardwareAddress(mac));
+            assertTrue(registry.size() <= 16);
+        }
+        assertEquals(16, registry.size());
+        assertEquals(100000 - 15, registry.getEvictedCount());
+        assertSame(leased, registry.getDevice(AddressUtils.longToHardwareAddress(1)));
+        assertSame(leased, registry.getDeviceByIpAddress(AddressUtils.convertToByteArray(1)));
+    }
+
+    @Test
+    public void recentlyUsedDevicesGetASecondChance() {
+        SimpleDeviceRegistry registry = new SimpleDeviceRegistry(4, 0);
+        for (long mac = 1; mac <= 4; mac++) {
+            registry.getDevice(AddressUtils.longToHardwareAddress(mac));
+        }
+        // The first insert clears every reference bit, after which only device 2 is looked up again.
+        registry.getDevice(AddressUtils.longToHardwareAddress(5));
+        NetworkDevice busy = registry.getDevice(AddressUtils.longToHardwareAddress(2));
+        registry.getDevice(AddressUtils.longToHardwareAddress(6));
+        assertSame(busy, registry.getDevice(AddressUtils.longToHardwareAddress(2)));
+        assertEquals(4, registry.size());
+    }
+
+    @Test
+    public void fullOfLeasesHandsOutUnstoredDevices() {
+        SimpleDeviceRegistry registry = new SimpleDeviceRegistry(2, 0);
+        lease(registry, 1, 1);
+        lease(registry, 2, 2);
+
+        byte[] stranger = AddressUtils.longToHardwareAddress(3);
+        NetworkDevice device = registry.getDevice(stranger);
+        assertEquals(DeviceStatus.DISCOVERED, device.getStatus());
+        assertEquals(2, registry.size());
+        assertEquals(1, registry.getRejectedCount());
+
+        // Once the engine gets somewhere with the device it is stored anyway.
+        device.setStatus(DeviceStatus.OFFERED);
+        assertSame(device, registry.updateDevice(device));
+        assertSame(device, registry.getDevice(stranger));
+        assertEquals(3, registry.size());
+    }
+
+    @Test
+    public void floodAgainstFullRegistry() {
+        SimpleDeviceRegistry registry = new SimpleDeviceRegistry(10000, 0);
+        for (int i = 1; i <= 10000; i++) {
+            lease(registry, i, i);
+        }
+        assertEquals(0, registry.getEvictableCount());
+
+        // Nothing can be evicted, so unknown devices are turned away without walking the ring.
+        for (long mac = 100000; mac < 200000; mac++) {
+            registry.getDevice(AddressUtils.longToHardwareAddress(mac));
+        }
+        assertEquals(100000, registry.getRejectedCount());
+        assertEquals(10000, registry.size());
+
+        // Once a client gives up its lease, its device makes room for the next one.
+        registry.resetDevice(AddressUtils.longToHardwareAddress(5000));
+        assertEquals(1, registry.getEvictableCount());
+        for (long mac = 200000; registry.getEvictedCount() == 0 && mac < 201000; mac++) {
+            registry.getDevice(AddressUtils.longToHardwareAddress(mac));
+        }
+        assertEquals(1, registry.getEvictedCount());
+        assertEquals(10000, registry.size());
+    }
+
+    @Test
+    public void idleDevicesExpire() {
+        VirtualClock clock = new VirtualClock(0);
+        SimpleDeviceRegistry registry = new SimpleDeviceRegistry(100, 60 * 1000);
+        registry.setClock(clock);
+
+        NetworkDevice leased = lease(registry, 1, 1);
+        NetworkDevice named = registry.getDevice(AddressUtils.longToHardwareAddress(2));
+        Map<DhcpOptionType, DhcpOption> options = new HashMap<>();
+        options.put(DhcpOptionType.HOST_NAME, new ByteArrayOption(DhcpOptionType.HOST_NAME, "printer".getBytes()));
+        named.setOptions(options);
+        registry.updateDevice(named);
+        for (long mac = 3; mac <= 10; mac++) {
+            registry.getDevice(AddressUtils.longToHardwareAddress(mac));
+        }
+
+        clock.advance(30, TimeUnit.SECONDS);
+        assertEquals(0, registry.evictIdle());
+        registry.getDevice(AddressUtils.longToHardwareAddress(10));
+
+        clock.advance(45, TimeUnit.SECONDS);
+        assertEquals(8, registry.evictIdle());
+        assertEquals(2, registry.size());
+        assertNull(registry.getDeviceByHostName("printer"));
+        assertSame(leased, registry.getDevice(AddressUtils.longToHardwareAddress(1)));
+
+        clock.advance(1, TimeUnit.HOURS);
+        assertEquals(1, registry.evictIdle());
+        assertEquals(DeviceStatus.ACKNOWLEDGED, registry.getDevice(AddressUtils.longToHardwareAddress(1)).getStatus());
+    }
+
+    private static NetworkDevice lease(DeviceRegistry registry, long mac, int ipAddress) {
+        NetworkDevice device = registry.getDevice(AddressUtils.longToHardwareAddress(mac));
+        device.setStatus(DeviceStatus.ACKNOWLEDGED);
+        device.setIpAddress(AddressUtils.convertToByteArray(ipAddress));
+        registry.updateDevice(device);
+        return device;
+    }
+
+}
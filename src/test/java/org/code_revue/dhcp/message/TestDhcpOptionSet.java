@@ -0,0 +1,86 @@
+package org.code_revue.dhcp.message;
+
+import org.code_revue.dhcp.device.NetworkDevice;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author Mike Fanning
+ */
+public class TestDhcpOptionSet {
+
+    private static final byte[] MASK = new byte[] { (byte) 255, (byte) 255, (byte) 255, 0 };
+
+    @Test
+    public void sharedOptionsAreInterned() {
+        NetworkDevice device1 = new NetworkDevice();
+        NetworkDevice device2 = new NetworkDevice();
+        device1.setOptions(options(3600, 2));
+        device2.setOptions(options(3600, 3));
+
+        DhcpOptionSet options1 = (DhcpOptionSet) device1.getOptions();
+        DhcpOptionSet options2 = (DhcpOptionSet) device2.getOptions();
+        assertSame(options1.getShared(), options2.getShared());
+        assertEquals(3, options1.size());
+        assertEquals(2, options1.getShared().size());
+        assertEquals(options(3600, 2), options1);
+        assertEquals(options1, options(3600, 2));
+        assertEquals(options(3600, 2).hashCode(), options1.hashCode());
+        assertArrayEquals(new byte[] { 10, 0, 0, 3 }, options2.get(DhcpOptionType.REQUESTED_IP_ADDR).getOptionData());
+        assertArrayEquals(MASK, options2.get(DhcpOptionType.SUBNET_MASK).getOptionData());
+
+        assertNotSame(options1.getShared(), DhcpOptionSet.of(options(7200, 2)).getShared());
+    }
+
+    @Test
+    public void with() {
+        DhcpOptionSet options = DhcpOptionSet.of(options(3600, 2));
+        DhcpOption leaseTime = new ByteArrayOption(DhcpOptionType.IP_ADDR_LEASE_TIME, new byte[] { 0, 0, 0x1c, 0x20 });
+        DhcpOptionSet renewed = options.with(leaseTime);
+        assertEquals(3, renewed.size());
+        assertSame(leaseTime, renewed.get(DhcpOptionType.IP_ADDR_LEASE_TIME));
+        assertEquals(DhcpOptionSet.of(options(7200, 2)), renewed);
+        assertArrayEquals(new byte[] { 0, 0, 0x0e, 0x10 },
+                options.get(DhcpOptionType.IP_ADDR_LEASE_TIME).getOptionData());
+
+        assertSame(renewed, renewed.with(null));
+        assertSame(renewed, renewed.with(new ByteArrayOption(DhcpOptionType.IP_ADDR_LEASE_TIME,
+                new byte[] { 0, 0, 0x1c, 0x20 })));
+    }
+
+    @Test
+    public void iteration() {
+        DhcpOptionSet options = DhcpOptionSet.of(options(3600, 2));
+        int count = 0;
+        for (Map.Entry<DhcpOptionType, DhcpOption> entry: options.entrySet()) {
+            assertSame(entry.getKey(), entry.getValue().getType());
+            count++;
+        }
+        assertEquals(3, count);
+        assertTrue(DhcpOptionSet.EMPTY.isEmpty());
+        assertSame(DhcpOptionSet.EMPTY, DhcpOptionSet.of(new HashMap<DhcpOptionType, DhcpOption>()));
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void immutable() {
+        Iterator<DhcpOption> it = DhcpOptionSet.of(options(3600, 2)).values().iterator();
+        it.next();
+        it.remove();
+    }
+
+    private static Map<DhcpOptionType, DhcpOption> options(int leaseTime, int host) {
+        Map<DhcpOptionType, DhcpOption> options = new HashMap<>();
+        options.put(DhcpOptionType.SUBNET_MASK, new ByteArrayOption(DhcpOptionType.SUBNET_MASK, MASK));
+        options.put(DhcpOptionType.IP_ADDR_LEASE_TIME, new ByteArrayOption(DhcpOptionType.IP_ADDR_LEASE_TIME,
+                new byte[] { 0, 0, (byte) (leaseTime >> 8), (byte) leaseTime }));
+        options.put(DhcpOptionType.REQUESTED_IP_ADDR, new ByteArrayOption(DhcpOptionType.REQUESTED_IP_ADDR,
+                new byte[] { 10, 0, 0, (byte) host }));
+        return options;
+    }
+
+}
@@ -0,0 +1,217 @@
+package org.code_revue.dhcp.persist;
+
+import org.code_revue.dhcp.device.DeviceStatus;
+import org.code_revue.dhcp.device.NetworkDevice;
+import org.code_revue.dhcp.device.SimpleDeviceRegistry;
+import org.code_revue.dhcp.message.ByteArrayOption;
+import org.code_revue.dhcp.message.DhcpOption;
+import org.code_revue.dhcp.message.DhcpOptionType;
+import org.code_revue.dhcp.server.BitSetAddressPool;
+import org.code_revue.dhcp.util.AddressUtils;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author Mike Fanning
+ */
+public class TestIscLeases {
+
+    private static final String LEASES =
+            "# The format of this file is documented in the dhcpd.leases(5) manual page.\n" +
+            "# This lease file was written by isc-dhcp-4.4.1\n" +
+            "\n" +
+            "# authoring-byte-order entry is generated, DO NOT DELETE\n" +
+            "authoring-byte-order little-endian;\n" +
+            "\n" +
+            "server-duid \"\\000\\001\\000\\001#\\253\\315\\357\\000\\014)\\001\\002\\003\";\n" +
+            "\n" +
+            "failover peer \"dhcp-failover\" state {\n" +
+            "  my state normal at 3 2019/01/02 03:04:05;\n" +
+            "  partner state normal at 3 2019/01/02 03:04:05;\n" +
+            "}\n" +
+            "lease 10.0.0.10 {\n" +
+            "  starts 3 2019/01/02 03:04:05;\n" +
+            "  ends 5 2099/01/02 03:04:05;\n" +
+            "  cltt 3 2019/01/02 03:04:05;\n" +
+            "  binding state active;\n" +
+            "  next binding state free;\n" +
+            "  rewind binding state free;\n" +
+            "  hardware ethernet 00:1a:2b:3c:4d:5e;\n" +
+            "  uid \"\\001\\000\\032+<M^\";\n" +
+            "  set vendor-class-identifier = \"MSFT 5.0\";\n" +
+            "  client-hostname \"printer-1\";\n" +
+            "  on expiry { set ddns-fwd-name = \"x\"; }\n" +
+            "}\n" +
+            "lease 10.0.0.11 {\n" +
+            "  starts 3 2019/01/02 03:04:05;\n" +
+            "  ends never;\n" +
+            "  binding state active;\n" +
+            "  hardware ethernet 0:1a:2b:3c:4d:5f;\n" +
+            "  uid 01:00:1a:2b:3c:4d:5f;\n" +
+            "}\n" +
+            "lease 10.0.0.12 {\n" +
+            "  starts epoch 1546398245; # Wed Jan 02 03:04:05 2019\n" +
+            "  ends epoch 1546441445; # Wed Jan 02 15:04:05 2019\n" +
+            "  binding state active;\n" +
+            "  hardware ethernet 00:1a:2b:3c:4d:60;\n" +
+            "}\n" +
+            "host printer { hardware ethernet 00:1a:2b:3c:4d:61; fixed-address 10.0.0.250; }\n" +
+            "lease 10.0.0.13 {\n" +
+            "  starts 3 2019/01/02 03:04:05;\n" +
+            "  ends 5 2099/01/02 03:04:05;\n" +
+            "  binding state active;\n" +
+            "  hardware ethernet 00:1a:2b:3c:4d:62;\n" +
+            "}\n" +
+            "lease 10.0.0.13 {\n" +
+            "  starts 3 2019/01/02 04:04:05;\n" +
+            "  ends 3 2019/01/02 04:04:05;\n" +
+            "  tstp 3 2019/01/02 04:04:05;\n" +
+            "  binding state free;\n" +
+            "  hardware ethernet 00:1a:2b:3c:4d:62;\n" +
+            "}\n" +
+            "lease 10.0.0.14 {\n" +
+            "  starts 3 2019/01/02 03:04:05;\n" +
+            "  ends 5 2099/01/02 03:04:05;\n" +
+            "  binding state active;\n" +
+            "  hardware ethernet 00:1a:2b:3c:4d:63;\n" +
+            "}\n" +
+            "lease 10.0.0.15 {\n" +
+            "  starts 3 2019/01/02 05:04:05;\n" +
+            "  ends 5 2099/01/02 05:04:05;\n" +
+            "  binding state active;\n" +
+            "  hardware ethernet 00:1a:2b:3c:4d:63;\n" +
+            "}\n";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void parse() throws IOException {
+        final List<LeaseRecord> records = new ArrayList<>();
+        long count = new IscLeaseParser().parse(write(LEASES), new LeaseJournal.Handler() {
+            @Override
+            public void handle(LeaseRecord record) {
+                records.add(record);
+            }
+        });
+        assertEquals(7, count);
+        assertEquals(7, records.size());
+
+        LeaseRecord first = records.get(0);
+        assertEquals(LeaseEvent.ACK, first.getEvent());
+        assertArrayEquals(new byte[] { 10, 0, 0, 10 }, first.getIpAddress());
+        assertArrayEquals(new byte[] { 0x00, 0x1a, 0x2b, 0x3c, 0x4d, 0x5e }, first.getHardwareAddress());
+        assertEquals(1546398245000L, first.getTimestamp());
+        assertEquals(4071006245000L, first.getLeaseExpiration());
+        assertArrayEquals(new byte[] { 1, 0x00, 0x1a, 0x2b, 0x3c, 0x4d, 0x5e },
+                first.getOptions().get(DhcpOptionType.CLIENT_ID).getOptionData());
+        assertArrayEquals("printer-1".getBytes(StandardCharsets.US_ASCII),
+                first.getOptions().get(DhcpOptionType.HOST_NAME).getOptionData());
+
+        assertEquals(0, records.get(1).getLeaseExpiration());
+        assertArrayEquals(new byte[] { 1, 0x00, 0x1a, 0x2b, 0x3c, 0x4d, 0x5f },
+                records.get(1).getOptions().get(DhcpOptionType.CLIENT_ID).getOptionData());
+        assertEquals(1546398245000L, records.get(2).getTimestamp());
+        assertEquals(1546441445000L, records.get(2).getLeaseExpiration());
+        assertEquals(LeaseEvent.RELEASE, records.get(4).getEvent());
+    }
+
+    @Test
+    public void importLeases() throws IOException {
+        SimpleDeviceRegistry registry = new SimpleDeviceRegistry();
+        BitSetAddressPool pool = new BitSetAddressPool("10.0.0.1", "10.0.0.100");
+        IscLeaseImporter.Summary summary = new IscLeaseImporter(registry, pool).importLeases(write(LEASES));
+
+        // .12 has expired, .13 was freed and the client of .14 moved to .15.
+        assertEquals(7, summary.getEntries());
+        assertEquals(3, summary.getImported());
+        assertEquals(1, summary.getExpired());
+        assertEquals(3, summary.getClaimed());
+        assertEquals(97, pool.getUtilization().getFree());
+
+        NetworkDevice printer = registry.getDeviceByHostName("PRINTER-1");
+        assertNotNull(printer);
+        assertEquals(DeviceStatus.ACKNOWLEDGED, printer.getStatus());
+        assertArrayEquals(new byte[] { 10, 0, 0, 10 }, printer.getIpAddress());
+        assertEquals(new Date(4071006245000L), printer.getLeaseExpiration());
+        assertNull(registry.getDeviceByIpAddress(new byte[] { 10, 0, 0, 12 }));
+        assertNull(registry.getDeviceByIpAddress(new byte[] { 10, 0, 0, 13 }));
+        assertNull(registry.getDeviceByIpAddress(new byte[] { 10, 0, 0, 14 }));
+        assertArrayEquals(new byte[] { 0x00, 0x1a, 0x2b, 0x3c, 0x4d, 0x63 },
+                registry.getDeviceByIpAddress(new byte[] { 10, 0, 0, 15 }).getHardwareAddress());
+        assertNull(registry.getDeviceByIpAddress(new byte[] { 10, 0, 0, 11 }).getLeaseExpiration());
+    }
+
+    @Test
+    public void roundTrip() throws IOException {
+        SimpleDeviceRegistry registry = new SimpleDeviceRegistry();
+        long expiration = (System.currentTimeMillis() / 1000 + 86400) * 1000;
+        for (int i = 0; i < 5000; i++) {
+            NetworkDevice device = registry.getDevice(
+                    new byte[] { 0x02, 0, 0, (byte) (i >>> 16), (byte) (i >>> 8), (byte) i });
+            device.setStatus(0 == i % 100 ? DeviceStatus.OFFERED : DeviceStatus.ACKNOWLEDGED);
+            device.setIpAddress(AddressUtils.convertToByteArray(0x0a000002 + i));
+            device.setLeaseExpiration(new Date(expiration + i * 1000L));
+            Map<DhcpOptionType, DhcpOption> options = new EnumMap<>(DhcpOptionType.class);
+            options.put(DhcpOptionType.HOST_NAME, new ByteArrayOption(DhcpOptionType.HOST_NAME,
+                    ("host \"" + i + "\"").getBytes(StandardCharsets.US_ASCII)));
+            device.setOptions(options);
+            registry.updateDevice(device);
+        }
+
+        Path path = folder.getRoot().toPath().resolve("dhcpd.leases");
+        assertEquals(4950, new IscLeaseWriter().write(registry, path));
+
+        // Small chunks, so the file is parsed in many pieces on several threads.
+        SimpleDeviceRegistry imported = new SimpleDeviceRegistry();
+        BitSetAddressPool pool = new BitSetAddressPool("10.0.0.1", "10.0.255.254");
+        IscLeaseImporter importer = new IscLeaseImporter(imported, pool);
+        importer.setParser(new IscLeaseParser(4096, 4));
+        IscLeaseImporter.Summary summary = importer.importLeases(path);
+        assertEquals(4950, summary.getEntries());
+        assertEquals(4950, summary.getImported());
+        assertEquals(4950, summary.getClaimed());
+
+        for (int i = 1; i < 5000; i += 7) {
+            byte[] ipAddress = AddressUtils.convertToByteArray(0x0a000002 + i);
+            NetworkDevice device = imported.getDeviceByIpAddress(ipAddress);
+            if (0 == i % 100) {
+                assertNull(device);
+                continue;
+            }
+            assertArrayEquals(new byte[] { 0x02, 0, 0, (byte) (i >>> 16), (byte) (i >>> 8), (byte) i },
+                    device.getHardwareAddress());
+            assertEquals(new Date(expiration + i * 1000L), device.getLeaseExpiration());
+            assertArrayEquals(("host \"" + i + "\"").getBytes(StandardCharsets.US_ASCII),
+                    device.getOptions().get(DhcpOptionType.HOST_NAME).getOptionData());
+        }
+    }
+
+    @Test
+    public void formatTime() {
+        assertEquals("3 2019/01/02 03:04:05", IscLeaseWriter.formatTime(1546398245000L));
+        assertEquals("4 1970/01/01 00:00:00", IscLeaseWriter.formatTime(0));
+        assertEquals("0 2000/02/27 12:00:00", IscLeaseWriter.formatTime(951652800000L));
+        assertEquals(11016, IscLeaseParser.daysFromCivil(2000, 2, 29));
+    }
+
+    private Path write(String text) throws IOException {
+        Path path = folder.newFile("dhcpd.leases").toPath();
+        Files.write(path, text.getBytes(StandardCharsets.US_ASCII));
+        return path;
+    }
+
+}
@@ -0,0 +1,275 @@
+package org.code_revue.dhcp.persist;
+
+import org.code_revue.dhcp.device.DeviceStatus;
+import org.code_revue.dhcp.device.NetworkDevice;
+import org.code_revue.dhcp.device.SimpleDeviceRegistry;
+import org.code_revue.dhcp.message.ByteArrayOption;
+import org.code_revue.dhcp.message.DhcpOption;
+import org.code_revue.dhcp.message.DhcpOptionType;
+import org.code_revue.dhcp.util.AddressUtils;
+import org.junit.Test;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Runs the registry against a minimal in-memory stand-in for a JDBC database, which understands just the statements
+ * the registry uses.
+ *
+ * @author Mike Fanning
+ */
+public class TestJdbcDeviceRegistry {
+
+    private static final long NEVER = TimeUnit.HOURS.toMillis(1);
+
+    private static byte[] address(int i) {
+        return new byte[] { 0x02, 0, 0, 0, 0, (byte) i };
+    }
+
+    private static NetworkDevice lease(int i, int ip) {
+        NetworkDevice device = new NetworkDevice();
+        device.setHardwareAddress(address(i));
+        device.setStatus(DeviceStatus.ACKNOWLEDGED);
+        device.setIpAddress(AddressUtils.convertToByteArray(ip));
+        device.setLeaseExpirationMillis(1234567890000L + i);
+        Map<DhcpOptionType, DhcpOption> options = new EnumMap<>(DhcpOptionType.class);
+        options.put(DhcpOptionType.HOST_NAME, new ByteArrayOption(DhcpOptionType.HOST_NAME,
+                ("host-" + i).getBytes(StandardCharsets.US_ASCII)));
+        device.setOptions(options);
+        return device;
+    }
+
+    @Test
+    public void coalesceAndBatchWrites() throws Exception {
+        FakeDatabase database = new FakeDatabase();
+        JdbcDeviceRegistry registry = new JdbcDeviceRegistry(database.connect(), new SimpleDeviceRegistry(), NEVER, 2);
+        for (int ip = 0x0a000002; ip < 0x0a000005; ip++) {
+            registry.updateDevice(lease(1, ip));
+        }
+        registry.updateDevice(lease(2, 0x0a000010));
+        registry.resetDevice(address(3));
+        assertEquals(3, registry.getQueueDepth());
+        assertEquals(5, registry.getQueuedCount());
+        assertEquals(2, registry.getCoalescedCount());
+        assertTrue(database.rows.isEmpty());
+
+        // Lookups never wait for the database.
+        assertEquals(DeviceStatus.ACKNOWLEDGED, registry.getDevice(address(1)).getStatus());
+        assertArrayEquals(address(2), registry.getDeviceByHostName("HOST-2").getHardwareAddress());
+
+        int commits = database.commits;
+        registry.flush();
+        assertEquals(0, registry.getQueueDepth());
+        assertEquals(3, database.rows.size());
+        assertEquals(commits + 2, database.commits);
+        assertEquals(1, registry.getFlushCount());
+        assertEquals(3, registry.getWrittenCount());
+        assertTrue(registry.getMaxFlushTime(TimeUnit.NANOSECONDS) > 0);
+        assertEquals("10.0.0.4", database.rows.get("02:00:00:00:00:01")[2]);
+        assertEquals("host-1", database.rows.get("02:00:00:00:00:01")[4]);
+        assertEquals("DISCOVERED", database.rows.get("02:00:00:00:00:03")[1]);
+        registry.close();
+    }
+
+    @Test
+    public void loadFromDatabase() throws Exception {
+        FakeDatabase database = new FakeDatabase();
+        JdbcDeviceRegistry registry = new JdbcDeviceRegistry(database.connect(), new SimpleDeviceRegistry(), NEVER, 10);
+        registry.updateDevice(lease(1, 0x0a000002));
+        registry.updateDevice(lease(2, 0x0a000003));
+        registry.close();
+        assertEquals(2, database.rows.size());
+
+        registry = new JdbcDeviceRegistry(database.connect(), new SimpleDeviceRegistry(), NEVER, 10);
+        assertEquals(2, registry.getAllDevices().size());
+        NetworkDevice device = registry.getDeviceByIpAddress(new byte[] { 10, 0, 0, 3 });
+        assertArrayEquals(address(2), device.getHardwareAddress());
+        assertEquals(DeviceStatus.ACKNOWLEDGED, device.getStatus());
+        assertEquals(1234567890002L, device.getLeaseExpirationMillis());
+        assertEquals("host-2", new String(device.getOptions().get(DhcpOptionType.HOST_NAME).getOptionData(),
+                StandardCharsets.US_ASCII));
+        registry.close();
+    }
+
+    @Test
+    public void retryFailedFlush() throws Exception {
+        FakeDatabase database = new FakeDatabase();
+        JdbcDeviceRegistry registry = new JdbcDeviceRegistry(database.connect(), new SimpleDeviceRegistry(), NEVER, 10);
+        registry.updateDevice(lease(1, 0x0a000002));
+        database.failInserts = true;
+        try {
+            registry.flush();
+            fail("Flush should have failed");
+        } catch (SQLException e) {
+            // Expected.
+        }
+        assertEquals(1, registry.getQueueDepth());
+        assertEquals(1, registry.getFailedFlushCount());
+
+        // A newer copy queued in the meantime wins over the one being retried.
+        registry.updateDevice(lease(1, 0x0a000009));
+        database.failInserts = false;
+        registry.flush();
+        assertEquals(0, registry.getQueueDepth());
+        assertEquals("10.0.0.9", database.rows.get("02:00:00:00:00:01")[2]);
+        registry.close();
+    }
+
+    @Test
+    public void writeBehind() throws Exception {
+        FakeDatabase database = new FakeDatabase();
+        JdbcDeviceRegistry registry = new JdbcDeviceRegistry(database.connect(), new SimpleDeviceRegistry(), 10, 10);
+        registry.updateDevice(lease(1, 0x0a000002));
+        for (int i = 0; i < 500 && registry.getWrittenCount() < 1; i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(1, registry.getWrittenCount());
+        assertTrue(database.rows.containsKey("02:00:00:00:00:01"));
+        registry.close();
+    }
+
+    /**
+     * Table of rows keyed by hardware address, with just enough of JDBC to create, read, delete and insert them.
+     */
+    private static class FakeDatabase {
+
+        private final Map<String, Object[]> rows = new LinkedHashMap<>();
+        private int commits = 0;
+        private volatile boolean failInserts = false;
+
+        private Connection connect() {
+            return proxy(Connection.class, new InvocationHandler() {
+                @Override
+                public Object invoke(Object proxy, Method method, Object[] args) {
+                    switch (method.getName()) {
+                        case "createStatement":
+                            return statement();
+                        case "prepareStatement":
+                            return preparedStatement((String) args[0]);
+                        case "commit":
+                            synchronized (FakeDatabase.this) {
+                                commits++;
+                            }
+                            return null;
+                        default:
+                            return null;
+                    }
+                }
+            });
+        }
+
+        private Statement statement() {
+            return proxy(Statement.class, new InvocationHandler() {
+                @Override
+                public Object invoke(Object proxy, Method method, Object[] args) {
+                    switch (method.getName()) {
+                        case "execute":
+                            return true;
+                        case "executeQuery":
+                            return resultSet();
+                        default:
+                            return null;
+                    }
+                }
+            });
+        }
+
+        private PreparedStatement preparedStatement(final String sql) {
+            final Object[] parameters = new Object[6];
+            final List<Object[]> batch = new ArrayList<>();
+            return proxy(PreparedStatement.class, new InvocationHandler() {
+                @Override
+                public Object invoke(Object proxy, Method method, Object[] args) throws SQLException {
+                    switch (method.getName()) {
+                        case "setString":
+                        case "setLong":
+                        case "setBytes":
+                            parameters[(Integer) args[0] - 1] = args[1];
+                            return null;
+                        case "setNull":
+                            parameters[(Integer) args[0] - 1] = null;
+                            return null;
+                        case "addBatch":
+                            batch.add(parameters.clone());
+                            return null;
+                        case "executeBatch":
+                            return executeBatch(sql, batch);
+                        default:
+                            return null;
+                    }
+                }
+            });
+        }
+
+        private synchronized int[] executeBatch(String sql, List<Object[]> batch) throws SQLException {
+            try {
+                if (sql.startsWith("INSERT") && failInserts) {
+                    throw new SQLException("Disk full");
+                }
+                for (Object[] parameters: batch) {
+                    if (sql.startsWith("DELETE")) {
+                        rows.remove((String) parameters[0]);
+                    } else {
+                        rows.put((String) parameters[0], parameters);
+                    }
+                }
+                int[] counts = new int[batch.size()];
+                Arrays.fill(counts, 1);
+                return counts;
+            } finally {
+                batch.clear();
+            }
+        }
+
+        private synchronized ResultSet resultSet() {
+            final Iterator<Object[]> iterator = new ArrayList<>(rows.values()).iterator();
+            return proxy(ResultSet.class, new InvocationHandler() {
+                private Object[] row;
+
+                @Override
+                public Object invoke(Object proxy, Method method, Object[] args) {
+                    switch (method.getName()) {
+                        case "next":
+                            row = iterator.hasNext() ? iterator.next() : null;
+                            return null != row;
+                        case "getString":
+                        case "getLong":
+                        case "getBytes":
+                            return column(args);
+                        default:
+                            return null;
+                    }
+                }
+
+                private Object column(Object[] args) {
+                    // Rows are stored in insert order, the query leaves out the host name.
+                    int index = (Integer) args[0] - 1;
+                    return row[index < 4 ? index : index + 1];
+                }
+            });
+        }
+
+        private static <T> T proxy(Class<T> type, InvocationHandler handler) {
+            return type.cast(Proxy.newProxyInstance(TestJdbcDeviceRegistry.class.getClassLoader(),
+                    new Class<?>[] { type }, handler));
+        }
+    }
+
+}
@@ -0,0 +1,191 @@
+package org.code_revue.dhcp.persist;
+
+import org.code_revue.dhcp.device.DeviceStatus;
+import org.code_revue.dhcp.device.NetworkDevice;
+import org.code_revue.dhcp.message.ByteArrayOption;
+import org.code_revue.dhcp.message.DhcpOption;
+import org.code_revue.dhcp.message.DhcpOptionType;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author Mike Fanning
+ */
+public class TestLeaseJournal {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static NetworkDevice device(int i) {
+        NetworkDevice device = new NetworkDevice();
+        device.setHardwareAddress(new byte[] { 0x02, 0, 0, 0, (byte) (i >>> 8), (byte) i });
+        device.setStatus(DeviceStatus.ACKNOWLEDGED);
+        device.setIpAddress(new byte[] { 10, 0, (byte) (i >>> 8), (byte) i });
+        device.setLeaseExpiration(new Date(1500000000000L + i));
+        Map<DhcpOptionType, DhcpOption> options = new HashMap<>();
+        options.put(DhcpOptionType.IP_ADDR_LEASE_TIME,
+                new ByteArrayOption(DhcpOptionType.IP_ADDR_LEASE_TIME, new byte[] { 0, 0, 0x0e, 0x10 }));
+        device.setOptions(options);
+        return device;
+    }
+
+    private static List<LeaseRecord> replay(Path path) throws IOException {
+        final List<LeaseRecord> records = new ArrayList<>();
+        LeaseJournal.replay(path, new LeaseJournal.Handler() {
+            @Override
+            public void handle(LeaseRecord record) {
+                records.add(record);
+            }
+        });
+        return records;
+    }
+
+    @Test
+    public void appendAndReplay() throws Exception {
+        Path path = folder.newFile("leases.journal").toPath();
+        try (LeaseJournal journal = new LeaseJournal(path)) {
+            assertTrue(journal.append(LeaseEvent.OFFER, device(1)).await(5, TimeUnit.SECONDS));
+            NetworkDevice released = device(2);
+            released.setIpAddress(null);
+            released.setOptions(Collections.<DhcpOptionType, DhcpOption>emptyMap());
+            assertTrue(journal.append(LeaseEvent.RELEASE, released).await(5, TimeUnit.SECONDS));
+        }
+
+        List<LeaseRecord> records = replay(path);
+        assertEquals(2, records.size());
+        LeaseRecord offer = records.get(0);
+        assertEquals(LeaseEvent.OFFER, offer.getEvent());
+        assertEquals(DeviceStatus.OFFERED, offer.getStatus());
+        assertArrayEquals(device(1).getHardwareAddress(), offer.getHardwareAddress());
+        assertArrayEquals(new byte[] { 10, 0, 0, 1 }, offer.getIpAddress());
+        assertEquals(1500000000001L, offer.getLeaseExpiration());
+        assertArrayEquals(new byte[] { 0, 0, 0x0e, 0x10 },
+                offer.getOptions().get(DhcpOptionType.IP_ADDR_LEASE_TIME).getOptionData());
+
+        NetworkDevice restored = new NetworkDevice();
+        records.get(1).applyTo(restored);
+        assertEquals(DeviceStatus.DISCOVERED, restored.getStatus());
+        assertNull(restored.getIpAddress());
+        assertTrue(restored.getOptions().isEmpty());
+    }
+
+    @Test
+    public void groupCommit() throws Exception {
+        Path path = folder.newFile("leases.journal").toPath();
+        final int threads = 4;
+        final int perThread = 500;
+        final List<JournalCommit> commits = Collections.synchronizedList(new ArrayList<JournalCommit>());
+        try (final LeaseJournal journal = new LeaseJournal(path, 5, TimeUnit.MILLISECONDS)) {
+            List<Thread> workers = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                final int base = t * perThread;
+                Thread worker = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        for (int i = 0; i < perThread; i++) {
+                            commits.add(journal.append(LeaseEvent.ACK, device(base + i)));
+                        }
+                    }
+                });
+                workers.add(worker);
+                worker.start();
+            }
+            for (Thread worker: workers) {
+                worker.join();
+            }
+            for (JournalCommit commit: commits) {
+                assertTrue(commit.await(10, TimeUnit.SECONDS));
+            }
+            assertEquals(threads * perThread, journal.getRecordCount());
+            assertTrue(journal.getSyncCount() < journal.getRecordCount() / 10);
+        }
+        assertEquals(threads * perThread, replay(path).size());
+    }
+
+    @Test
+    public void listenerRunsWhenDurable() throws Exception {
+        Path path = folder.newFile("leases.journal").toPath();
+        try (LeaseJournal journal = new LeaseJournal(path)) {
+            final JournalCommit commit = journal.append(LeaseEvent.ACK, device(1));
+            final boolean[] durable = new boolean[1];
+            commit.addListener(new Runnable() {
+                @Override
+                public void run() {
+                    durable[0] = commit.isDurable();
+                }
+            });
+            commit.await();
+            journal.close();
+            assertTrue(durable[0]);
+        }
+    }
+
+    @Test
+    public void replayStopsAtTornRecord() throws Exception {
+        Path path = folder.newFile("leases.journal").toPath();
+        try (LeaseJournal journal = new LeaseJournal(path, 0, TimeUnit.MILLISECONDS)) {
+            for (int i = 0; i < 3; i++) {
+                journal.append(LeaseEvent.ACK, device(i));
+            }
+        }
+        try (RandomAccessFile file = new RandomAccessFile(path.toFile(), "rw")) {
+            file.setLength(file.length() - 3);
+        }
+        assertEquals(2, replay(path).size());
+
+        // A corrupt record hides everything after it.
+        try (RandomAccessFile file = new RandomAccessFile(path.toFile(), "rw")) {
+            file.seek(4);
+            file.write(0x7f);
+        }
+        assertEquals(0, replay(path).size());
+    }
+
+    @Test
+    public void reopenAfterTornRecord() throws Exception {
+        Path path = folder.newFile("leases.journal").toPath();
+        try (LeaseJournal journal = new LeaseJournal(path, 0, TimeUnit.MILLISECONDS)) {
+            for (int i = 0; i < 3; i++) {
+                journal.append(LeaseEvent.ACK, device(i));
+            }
+        }
+        long intact;
+        try (RandomAccessFile file = new RandomAccessFile(path.toFile(), "rw")) {
+            intact = file.length();
+            // The crash left half of a fourth record behind.
+            file.seek(intact);
+            file.writeInt(100);
+            file.write(new byte[20]);
+        }
+
+        try (LeaseJournal journal = new LeaseJournal(path, 0, TimeUnit.MILLISECONDS)) {
+            assertEquals(intact, path.toFile().length());
+            assertTrue(journal.append(LeaseEvent.ACK, device(3)).await(5, TimeUnit.SECONDS));
+        }
+        List<LeaseRecord> records = replay(path);
+        assertEquals(4, records.size());
+        assertArrayEquals(device(3).getHardwareAddress(), records.get(3).getHardwareAddress());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void appendAfterClose() throws Exception {
+        LeaseJournal journal = new LeaseJournal(folder.newFile("leases.journal").toPath());
+        journal.close();
+        journal.append(LeaseEvent.ACK, device(1));
+    }
+
+}
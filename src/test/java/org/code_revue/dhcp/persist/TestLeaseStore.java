@@ -0,0 +1,154 @@
+package org.code_revue.dhcp.persist;
+
+import org.code_revue.dhcp.device.CompactDeviceRegistry;
+import org.code_revue.dhcp.device.DeviceRegistry;
+import org.code_revue.dhcp.device.DeviceStatus;
+import org.code_revue.dhcp.device.NetworkDevice;
+import org.code_revue.dhcp.device.SimpleDeviceRegistry;
+import org.code_revue.dhcp.server.BitSetAddressPool;
+import org.code_revue.dhcp.server.DhcpAddressPool;
+import org.code_revue.dhcp.server.Reservation;
+import org.code_revue.dhcp.server.ReservationTable;
+import org.code_revue.dhcp.util.AddressUtils;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Date;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author Mike Fanning
+ */
+public class TestLeaseStore {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static NetworkDevice lease(int i, DeviceStatus status, long expiration) {
+        NetworkDevice device = new NetworkDevice();
+        device.setHardwareAddress(new byte[] { 0x02, 0, 0, (byte) (i >>> 16), (byte) (i >>> 8), (byte) i });
+        device.setStatus(status);
+        device.setIpAddress(AddressUtils.convertToByteArray(0x0a000002 + i));
+        device.setLeaseExpiration(new Date(expiration));
+        return device;
+    }
+
+    private static DhcpAddressPool pool() {
+        return new BitSetAddressPool("10.0.0.1", "10.255.255.254");
+    }
+
+    private static long later() {
+        return System.currentTimeMillis() + 3600 * 1000;
+    }
+
+    @Test
+    public void recoverFromJournal() throws Exception {
+        File directory = folder.newFolder("leases");
+        LeaseStore store = new LeaseStore(directory.toPath());
+        LeaseJournal journal = store.recover(new SimpleDeviceRegistry(), pool(), null);
+        journal.append(LeaseEvent.OFFER, lease(1, DeviceStatus.OFFERED, later()));
+        journal.append(LeaseEvent.ACK, lease(1, DeviceStatus.ACKNOWLEDGED, later()));
+        journal.append(LeaseEvent.ACK, lease(2, DeviceStatus.ACKNOWLEDGED, later()));
+        journal.append(LeaseEvent.RELEASE, lease(2, DeviceStatus.DISCOVERED, later()));
+        journal.append(LeaseEvent.ACK, lease(3, DeviceStatus.ACKNOWLEDGED, System.currentTimeMillis() - 1000));
+        store.close();
+
+        DeviceRegistry registry = new SimpleDeviceRegistry();
+        DhcpAddressPool pool = pool();
+        store = new LeaseStore(directory.toPath());
+        store.recover(registry, pool, null);
+        store.close();
+
+        assertEquals(1, registry.getAllDevices().size());
+        NetworkDevice device = registry.getDevice(lease(1, DeviceStatus.DISCOVERED, 0).getHardwareAddress());
+        assertEquals(DeviceStatus.ACKNOWLEDGED, device.getStatus());
+        assertArrayEquals(new byte[] { 10, 0, 0, 3 }, device.getIpAddress());
+        assertNull(pool.borrowAddress(new byte[] { 10, 0, 0, 3 }));
+        assertNotNull(pool.borrowAddress(new byte[] { 10, 0, 0, 4 }));
+    }
+
+    @Test
+    public void recoverReservedLeases() throws Exception {
+        File directory = folder.newFolder("leases");
+        LeaseStore store = new LeaseStore(directory.toPath());
+        LeaseJournal journal = store.recover(new SimpleDeviceRegistry(), pool(), null);
+        journal.append(LeaseEvent.ACK, lease(1, DeviceStatus.ACKNOWLEDGED, later()));
+        journal.append(LeaseEvent.ACK, lease(2, DeviceStatus.ACKNOWLEDGED, later()));
+        store.close();
+
+        // Reservations are loaded first. Client 1 has its address reserved, client 2's address is now reserved for
+        // somebody else.
+        DhcpAddressPool pool = pool();
+        ReservationTable reservations = new ReservationTable(pool);
+        reservations.reload(Arrays.asList(
+                new Reservation(lease(1, null, 0).getHardwareAddress(), new byte[] { 10, 0, 0, 3 }),
+                new Reservation(lease(9, null, 0).getHardwareAddress(), new byte[] { 10, 0, 0, 4 })));
+        DeviceRegistry registry = new SimpleDeviceRegistry();
+        store = new LeaseStore(directory.toPath());
+        store.recover(registry, pool, reservations, null);
+        store.close();
+
+        assertEquals(1, registry.getAllDevices().size());
+        NetworkDevice device = registry.getDeviceByIpAddress(new byte[] { 10, 0, 0, 3 });
+        assertArrayEquals(lease(1, null, 0).getHardwareAddress(), device.getHardwareAddress());
+        assertEquals(DeviceStatus.ACKNOWLEDGED, device.getStatus());
+        assertEquals(0, pool.getUtilization().getUsed());
+    }
+
+    @Test
+    public void snapshotCompactsJournal() throws Exception {
+        File directory = folder.newFolder("leases");
+        LeaseStore store = new LeaseStore(directory.toPath());
+        LeaseJournal journal = store.recover(new SimpleDeviceRegistry(), pool(), null);
+        for (int i = 0; i < 100; i++) {
+            journal.append(LeaseEvent.ACK, lease(i, DeviceStatus.ACKNOWLEDGED, later()));
+        }
+        journal.append(LeaseEvent.RELEASE, lease(0, DeviceStatus.DISCOVERED, later()));
+        store.snapshot();
+        assertEquals(1, store.getSnapshotSequence());
+        assertEquals(2, directory.list().length);
+
+        // Records after the rotation go to the new segment, and a second snapshot folds in the first.
+        journal.append(LeaseEvent.ACK, lease(100, DeviceStatus.ACKNOWLEDGED, later()));
+        journal.append(LeaseEvent.RELEASE, lease(1, DeviceStatus.DISCOVERED, later()));
+        store.snapshot();
+        journal.append(LeaseEvent.ACK, lease(101, DeviceStatus.ACKNOWLEDGED, later())).await();
+        store.close();
+        assertEquals(2, directory.list().length);
+
+        CompactDeviceRegistry registry = new CompactDeviceRegistry();
+        store = new LeaseStore(directory.toPath());
+        store.recover(registry, pool(), null);
+        store.close();
+        assertEquals(100, registry.size());
+        assertEquals(DeviceStatus.ACKNOWLEDGED, registry.getDevice(lease(101, null, 0).getHardwareAddress()).getStatus());
+    }
+
+    @Test
+    public void recoverManyLeases() throws Exception {
+        File directory = folder.newFolder("leases");
+        LeaseStore store = new LeaseStore(directory.toPath());
+        LeaseJournal journal = store.recover(new SimpleDeviceRegistry(), pool(), null);
+        long expiration = later();
+        JournalCommit last = null;
+        for (int i = 0; i < 50000; i++) {
+            last = journal.append(LeaseEvent.ACK, lease(i, DeviceStatus.ACKNOWLEDGED, expiration));
+        }
+        assertTrue(last.await());
+        store.snapshot();
+        store.close();
+
+        CompactDeviceRegistry registry = new CompactDeviceRegistry(50000, false);
+        DhcpAddressPool pool = pool();
+        store = new LeaseStore(directory.toPath());
+        store.recover(registry, pool, null);
+        store.close();
+        assertEquals(50000, registry.size());
+        assertEquals(50000, pool.getUtilization().getUsed());
+    }
+
+}
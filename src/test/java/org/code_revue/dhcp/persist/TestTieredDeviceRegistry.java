@@ -0,0 +1,224 @@
+package org.code_revue.dhcp.persist;
+
+import org.code_revue.dhcp.device.DeviceStatus;
+import org.code_revue.dhcp.device.NetworkDevice;
+import org.code_revue.dhcp.message.ByteArrayOption;
+import org.code_revue.dhcp.message.DhcpOption;
+import org.code_revue.dhcp.message.DhcpOptionType;
+import org.code_revue.dhcp.util.AddressUtils;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.EnumMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author Mike Fanning
+ */
+public class TestTieredDeviceRegistry {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static byte[] address(int i) {
+        return new byte[] { 0x02, 0, 0, (byte) (i >>> 16), (byte) (i >>> 8), (byte) i };
+    }
+
+    private static void lease(TieredDeviceRegistry registry, int i) {
+        NetworkDevice device = registry.getDevice(address(i));
+        device.setStatus(DeviceStatus.ACKNOWLEDGED);
+        device.setIpAddress(AddressUtils.convertToByteArray(0x0a000002 + i));
+        device.setLeaseExpirationMillis(System.currentTimeMillis() + 3600 * 1000);
+        registry.updateDevice(device);
+    }
+
+    private Path path() throws Exception {
+        return folder.newFile("devices").toPath();
+    }
+
+    @Test
+    public void coldDevicesSurviveEviction() throws Exception {
+        Path path = path();
+        TieredDeviceRegistry registry = new TieredDeviceRegistry(path, 4);
+        for (int i = 0; i < 20; i++) {
+            lease(registry, i);
+        }
+        assertTrue(registry.size() <= 4);
+        assertTrue(registry.getEvictionCount() >= 16);
+        assertTrue(registry.getWriteCount() >= 16);
+
+        for (int i = 0; i < 20; i++) {
+            NetworkDevice device = registry.getDevice(address(i));
+            assertEquals(DeviceStatus.ACKNOWLEDGED, device.getStatus());
+            assertArrayEquals(AddressUtils.convertToByteArray(0x0a000002 + i), device.getIpAddress());
+        }
+        NetworkDevice holder = registry.getDeviceByIpAddress(AddressUtils.convertToByteArray(0x0a000002 + 7));
+        assertArrayEquals(address(7), holder.getHardwareAddress());
+        assertEquals(20, registry.getAllDevices().size());
+        registry.close();
+
+        registry = new TieredDeviceRegistry(path, 4);
+        assertEquals(20, registry.getAllDevices().size());
+        holder = registry.getDeviceByIpAddress(AddressUtils.convertToByteArray(0x0a000002 + 11));
+        assertArrayEquals(address(11), holder.getHardwareAddress());
+        assertEquals(DeviceStatus.ACKNOWLEDGED, holder.getStatus());
+        registry.close();
+    }
+
+    @Test
+    public void coldDevicesFoundByClientIdAndHostName() throws Exception {
+        Path path = path();
+        TieredDeviceRegistry registry = new TieredDeviceRegistry(path, 2);
+        for (int i = 0; i < 10; i++) {
+            NetworkDevice device = registry.getDevice(address(i));
+            Map<DhcpOptionType, DhcpOption> options = new EnumMap<>(DhcpOptionType.class);
+            options.put(DhcpOptionType.CLIENT_ID,
+                    new ByteArrayOption(DhcpOptionType.CLIENT_ID, new byte[] { 1, (byte) i }));
+            options.put(DhcpOptionType.HOST_NAME,
+                    new ByteArrayOption(DhcpOptionType.HOST_NAME, ("Host-" + i).getBytes(StandardCharsets.US_ASCII)));
+            device.setOptions(options);
+            registry.updateDevice(device);
+        }
+        assertEquals(8, registry.getStore().size());
+
+        assertArrayEquals(address(3), registry.getDeviceByClientId(new byte[] { 1, 3 }).getHardwareAddress());
+        assertArrayEquals(address(4), registry.getDeviceByHostName("host-4").getHardwareAddress());
+        assertNull(registry.getDeviceByClientId(new byte[] { 1, 10 }));
+
+        // A device that drops its host name while cold can't be found by it any more.
+        NetworkDevice device = registry.getDevice(address(5));
+        device.setOptions(new EnumMap<DhcpOptionType, DhcpOption>(DhcpOptionType.class));
+        registry.updateDevice(device);
+        assertNull(registry.getDeviceByHostName("HOST-5"));
+        registry.close();
+
+        registry = new TieredDeviceRegistry(path, 2);
+        assertArrayEquals(address(6), registry.getDeviceByHostName("HOST-6").getHardwareAddress());
+        assertArrayEquals(address(7), registry.getDeviceByClientId(new byte[] { 1, 7 }).getHardwareAddress());
+        registry.close();
+    }
+
+    @Test
+    public void frequentDevicesStayHot() throws Exception {
+        TieredDeviceRegistry registry = new TieredDeviceRegistry(path(), 100);
+        for (int round = 0; round < 3; round++) {
+            for (int i = 0; i < 50; i++) {
+                lease(registry, i);
+            }
+        }
+
+        // A flood of one-off addresses, with the regular devices still coming back now and then.
+        long popularLookups = 0, popularHits = 0;
+        for (int i = 0; i < 20000; i++) {
+            registry.getDevice(address(1000 + i));
+            if (0 == i % 10) {
+                long hits = registry.getHitCount();
+                registry.getDevice(address(i / 10 % 50));
+                popularHits += registry.getHitCount() - hits;
+                popularLookups++;
+            }
+        }
+        assertTrue(popularHits > popularLookups * 0.95);
+        assertTrue(registry.getAdmissionRejectedCount() > 0);
+
+        // Empty devices aren't worth writing to disk.
+        assertEquals(0, registry.getStore().size());
+        registry.close();
+    }
+
+    @Test
+    public void prefetchLoadsInBackground() throws Exception {
+        TieredDeviceRegistry registry = new TieredDeviceRegistry(path(), 2);
+        for (int i = 0; i < 5; i++) {
+            lease(registry, i);
+        }
+        assertTrue(registry.getStore().contains(AddressUtils.hardwareAddressToLong(address(2))));
+
+        registry.prefetch(address(2));
+        for (int i = 0; i < 500 && registry.getLoadCount() < 1; i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(1, registry.getLoadCount());
+        long hits = registry.getHitCount();
+        assertEquals(DeviceStatus.ACKNOWLEDGED, registry.getDevice(address(2)).getStatus());
+        assertEquals(hits + 1, registry.getHitCount());
+
+        long misses = registry.getMissCount();
+        assertEquals(DeviceStatus.ACKNOWLEDGED, registry.getDevice(address(3)).getStatus());
+        assertEquals(misses + 1, registry.getMissCount());
+        assertEquals(2, registry.getLoadCount());
+        assertTrue(registry.getAverageLoadNanos() > 0);
+        assertTrue(registry.getHitRate() > 0 && registry.getHitRate() < 1);
+        registry.close();
+    }
+
+    @Test
+    public void compactStore() throws Exception {
+        Path path = path();
+        DiskDeviceStore store = new DiskDeviceStore(path);
+        NetworkDevice device = new NetworkDevice();
+        device.setHardwareAddress(address(1));
+        for (int i = 0; i < 10; i++) {
+            device.setStatus(DeviceStatus.ACKNOWLEDGED);
+            device.setIpAddress(AddressUtils.convertToByteArray(0x0a000002 + i));
+            store.write(device);
+        }
+        device.setHardwareAddress(address(2));
+        store.write(device);
+        assertEquals(2, store.size());
+        assertTrue(store.getGarbageBytes() > 0);
+
+        long live = store.getLiveBytes();
+        store.compact();
+        assertEquals(0, store.getGarbageBytes());
+        assertEquals(live, store.getLiveBytes());
+        assertEquals(live, path.toFile().length());
+        assertArrayEquals(new byte[] { 10, 0, 0, 11 },
+                store.read(AddressUtils.hardwareAddressToLong(address(1))).getIpAddress());
+        store.close();
+
+        store = new DiskDeviceStore(path);
+        assertEquals(2, store.size());
+        assertEquals(0, store.getGarbageBytes());
+        assertArrayEquals(new byte[] { 10, 0, 0, 11 },
+                store.read(AddressUtils.hardwareAddressToLong(address(2))).getIpAddress());
+        store.close();
+    }
+
+    @Test
+    public void writesLeaveCompactionToBackground() throws Exception {
+        Path path = path();
+        DiskDeviceStore store = new DiskDeviceStore(path);
+        NetworkDevice device = new NetworkDevice();
+        device.setHardwareAddress(address(1));
+        device.setStatus(DeviceStatus.ACKNOWLEDGED);
+        for (int i = 0; !store.isCompactionDue(); i++) {
+            device.setIpAddress(AddressUtils.convertToByteArray(0x0a000002 + i));
+            store.write(device);
+        }
+        assertEquals(0, store.getCompactionCount());
+        store.close();
+
+        TieredDeviceRegistry registry = new TieredDeviceRegistry(path, 4);
+        for (int i = 0; i < 20; i++) {
+            lease(registry, i);
+        }
+        long deadline = System.currentTimeMillis() + 10000;
+        while (0 == registry.getStore().getCompactionCount() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(1, registry.getStore().getCompactionCount());
+        assertFalse(registry.getStore().isCompactionDue());
+        for (int i = 0; i < 20; i++) {
+            assertArrayEquals(AddressUtils.convertToByteArray(0x0a000002 + i),
+                    registry.getDevice(address(i)).getIpAddress());
+        }
+        registry.close();
+    }
+
+}
@@ -0,0 +1,59 @@
+package org.code_revue.dhcp.server;
+
+import org.code_revue.dhcp.util.AddressUtils;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author Mike Fanning
+ */
+public class TestAddressQuarantine {
+
+    private BitSetAddressPool pool;
+    private AddressQuarantine quarantine;
+
+    @Before
+    public void setup() {
+        pool = new BitSetAddressPool("10.0.0.1", "10.0.0.100");
+        quarantine = new AddressQuarantine(pool, 1000);
+    }
+
+    @Test
+    public void releasedInOrder() {
+        for (int i = 0; i < 40; i++) {
+            quarantine.quarantine(AddressUtils.convertToInt(pool.borrowAddress()), i * 100);
+        }
+        assertEquals(40, quarantine.size());
+        assertEquals(40, pool.getUtilization().getUsed());
+
+        assertEquals(0, quarantine.releaseExpired(999));
+        assertEquals(1, quarantine.releaseExpired(1000));
+        assertEquals(10, quarantine.releaseExpired(2000));
+        assertEquals(29, quarantine.size());
+        assertEquals("10.0.0.12", AddressUtils.convertToString(quarantine.getAddresses()[0]));
+        assertEquals(29, pool.getUtilization().getUsed());
+        assertNotNull(pool.borrowAddress(AddressUtils.convertToByteArray("10.0.0.11")));
+        assertNull(pool.borrowAddress(AddressUtils.convertToByteArray("10.0.0.12")));
+
+        assertEquals(29, quarantine.releaseAll());
+        assertEquals(40, quarantine.getQuarantinedCount());
+        assertEquals(40, quarantine.getReleasedCount());
+    }
+
+    @Test
+    public void wrapsAround() {
+        long now = 0;
+        for (int round = 0; round < 10; round++) {
+            for (int i = 0; i < 12; i++) {
+                quarantine.quarantine(AddressUtils.convertToInt(pool.borrowAddress()), now);
+            }
+            now += 1000;
+            assertEquals(12, quarantine.releaseExpired(now));
+        }
+        assertEquals(0, quarantine.size());
+        assertEquals(0, pool.getUtilization().getUsed());
+    }
+
+}
@@ -0,0 +1,82 @@
+package org.code_revue.dhcp.server;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author Mike Fanning
+ */
+public class TestAddressRangeSet {
+
+    @Test
+    public void addMergesAdjacentRanges() {
+        AddressRangeSet set = new AddressRangeSet();
+        assertEquals(10, set.add(10, 19));
+        assertEquals(10, set.add(30, 39));
+        assertEquals(2, set.getRangeCount());
+
+        assertEquals(10, set.add(20, 29));
+        assertEquals(1, set.getRangeCount());
+        assertEquals(30, set.size());
+        assertEquals(10, set.first());
+    }
+
+    @Test
+    public void addOverlappingRange() {
+        AddressRangeSet set = new AddressRangeSet();
+        set.add(10, 19);
+        set.add(25, 29);
+        assertEquals(10, set.add(5, 27));
+        assertEquals(1, set.getRangeCount());
+        assertEquals(25, set.size());
+        assertFalse(set.add(17));
+    }
+
+    @Test
+    public void removeSplitsRanges() {
+        AddressRangeSet set = new AddressRangeSet();
+        set.add(0, 99);
+        assertEquals(10, set.remove(40, 49));
+        assertEquals(2, set.getRangeCount());
+        assertEquals(90, set.size());
+        assertFalse(set.contains(45));
+        assertTrue(set.contains(39));
+        assertTrue(set.contains(50));
+
+        assertEquals(20, set.remove(30, 59));
+        assertEquals(70, set.size());
+        assertEquals(0, set.remove(40, 49));
+    }
+
+    @Test
+    public void nextPresentAndAbsent() {
+        AddressRangeSet set = new AddressRangeSet();
+        set.add(10, 19);
+        set.add(30, 39);
+        assertEquals(10, set.nextPresent(0));
+        assertEquals(15, set.nextPresent(15));
+        assertEquals(30, set.nextPresent(20));
+        assertEquals(-1, set.nextPresent(40));
+
+        assertEquals(0, set.nextAbsent(0));
+        assertEquals(20, set.nextAbsent(10));
+        assertEquals(40, set.nextAbsent(35));
+    }
+
+    @Test
+    public void pollFirst() {
+        AddressRangeSet set = new AddressRangeSet();
+        set.add(AddressRangeSet.MAX_ADDRESS - 1, AddressRangeSet.MAX_ADDRESS);
+        assertEquals(AddressRangeSet.MAX_ADDRESS - 1, set.pollFirst());
+        assertEquals(AddressRangeSet.MAX_ADDRESS, set.pollFirst());
+        assertEquals(-1, set.pollFirst());
+        assertTrue(set.isEmpty());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void invalidRange() {
+        new AddressRangeSet().add(10, 9);
+    }
+
+}
@@ -0,0 +1,180 @@
+package org.code_revue.dhcp.server;
+
+import org.code_revue.dhcp.util.AddressUtils;
+import org.junit.Test;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author Mike Fanning
+ */
+public class TestAllocationStrategy {
+
+    private final byte[] start = new byte[] { (byte) 192, (byte) 168, 1, 1 };
+    private final byte[] end = new byte[] { (byte) 192, (byte) 168, 1, 100 };
+
+    private final byte[] mac1 = new byte[] { 0x00, 0x1a, 0x2b, 0x3c, 0x4d, 0x5e };
+    private final byte[] mac2 = new byte[] { 0x00, 0x1a, 0x2b, 0x3c, 0x4d, 0x5f };
+
+    @Test
+    public void firstFreeIsDefault() {
+        DhcpAddressPool pool = new BitSetAddressPool(start, end);
+        assertTrue(pool.getAllocationStrategy() instanceof FirstFreeAllocationStrategy);
+        assertEquals("192.168.1.1", AddressUtils.convertToString(pool.borrowAddressFor(mac1)));
+        pool.returnAddress(start);
+        assertEquals("192.168.1.1", AddressUtils.convertToString(pool.borrowAddressFor(mac2)));
+    }
+
+    @Test
+    public void roundRobin() {
+        roundRobin(new BitSetAddressPool(start, end));
+        roundRobin(new SetBasedAddressPool(start, end));
+    }
+
+    private void roundRobin(DhcpAddressPool pool) {
+        pool.setAllocationStrategy(new RoundRobinAllocationStrategy());
+        byte[] first = pool.borrowAddress();
+        pool.borrowAddress();
+        pool.returnAddress(first);
+        assertEquals("192.168.1.3", AddressUtils.convertToString(pool.borrowAddress()));
+
+        // Wraps around to the returned address once the rest of the pool has been used.
+        for (int i = 0; i < 97; i++) {
+            pool.borrowAddress();
+        }
+        assertEquals("192.168.1.1", AddressUtils.convertToString(pool.borrowAddress()));
+    }
+
+    @Test
+    public void randomStaysInRange() {
+        DhcpAddressPool pool = new SetBasedAddressPool(start, end);
+        pool.setAllocationStrategy(new RandomAllocationStrategy());
+        Set<Integer> borrowed = new HashSet<>();
+        for (int i = 0; i < 100; i++) {
+            assertTrue(borrowed.add(AddressUtils.convertToInt(pool.borrowAddress())));
+        }
+        assertEquals(0, pool.getUtilization().getFree());
+    }
+
+    @Test
+    public void hardwareHashIsSticky() {
+        hardwareHashIsSticky(new BitSetAddressPool(start, end));
+        hardwareHashIsSticky(new SetBasedAddressPool(start, end));
+    }
+
+    private void hardwareHashIsSticky(DhcpAddressPool pool) {
+        pool.setAllocationStrategy(new HardwareHashAllocationStrategy());
+        byte[] address1 = pool.borrowAddressFor(mac1);
+        byte[] address2 = pool.borrowAddressFor(mac2);
+        assertFalse(AddressUtils.convertToInt(address1) == AddressUtils.convertToInt(address2));
+
+        pool.returnAddress(address1);
+        pool.borrowAddress();
+        pool.borrowAddress();
+        assertArrayEquals(address1, pool.borrowAddressFor(mac1));
+    }
+
+    @Test
+    public void hardwareHashProbesPastCollisions() {
+        DhcpAddressPool pool = new BitSetAddressPool(start, end);
+        pool.setAllocationStrategy(new HardwareHashAllocationStrategy());
+        byte[] preferred = pool.borrowAddressFor(mac1);
+        pool.returnAddress(preferred);
+
+        // Someone else takes the preferred address, so the client gets the next one up (or the start of the range).
+        pool.borrowAddress(preferred);
+        int next = AddressUtils.convertToInt(pool.borrowAddressFor(mac1));
+        int expected = AddressUtils.convertToInt(preferred) + 1;
+        if (expected > AddressUtils.convertToInt(end)) {
+            expected = AddressUtils.convertToInt(start);
+        }
+        assertEquals(expected, next);
+    }
+
+    @Test
+    public void leastRecentlyReleased() {
+        leastRecentlyReleased(new BitSetAddressPool(start, end));
+        leastRecentlyReleased(new SetBasedAddressPool(start, end));
+    }
+
+    private void leastRecentlyReleased(DhcpAddressPool pool) {
+        LeastRecentlyReleasedAllocationStrategy strategy = new LeastRecentlyReleasedAllocationStrategy();
+        pool.setAllocationStrategy(strategy);
+        byte[][] addresses = new byte[100][];
+        for (int i = 0; i < addresses.length; i++) {
+            addresses[i] = pool.borrowAddress();
+        }
+
+        pool.returnAddress(addresses[50]);
+        pool.returnAddress(addresses[10]);
+        pool.returnAddress(addresses[70]);
+        pool.returnAddress(addresses[30]);
+        assertEquals(4, strategy.getReleasedCount());
+
+        // Somebody asks for one of the released addresses specifically, so it drops out of the queue.
+        pool.borrowAddress(addresses[10]);
+        assertArrayEquals(addresses[50], pool.borrowAddress());
+        assertArrayEquals(addresses[70], pool.borrowAddress());
+        pool.returnAddress(addresses[50]);
+        assertArrayEquals(addresses[30], pool.borrowAddress());
+        assertArrayEquals(addresses[50], pool.borrowAddress());
+        assertEquals(0, strategy.getReleasedCount());
+    }
+
+    @Test
+    public void leastRecentlyReleasedRequeuesReleasedAgain() {
+        LeastRecentlyReleasedAllocationStrategy strategy = new LeastRecentlyReleasedAllocationStrategy();
+        for (int i = 0; i < 3; i++) {
+            strategy.borrowed(i);
+        }
+        for (int i = 0; i < 3; i++) {
+            strategy.returned(i);
+        }
+
+        // 1 is borrowed and released again, its old place in the queue doesn't count any more.
+        strategy.borrowed(1);
+        strategy.returned(1);
+        assertEquals(0, strategy.select(3, null));
+        strategy.borrowed(0);
+        assertEquals(2, strategy.select(3, null));
+        strategy.borrowed(2);
+        assertEquals(1, strategy.select(3, null));
+        strategy.borrowed(1);
+        assertEquals(0, strategy.getReleasedCount());
+
+        // Same again, with enough churn in between that the queue has to compact.
+        for (int i = 0; i < 3; i++) {
+            strategy.returned(i);
+        }
+        strategy.borrowed(1);
+        strategy.returned(1);
+        for (int i = 0; i < 100; i++) {
+            strategy.borrowed(0);
+            strategy.returned(0);
+        }
+        assertEquals(2, strategy.select(3, null));
+        strategy.borrowed(2);
+        assertEquals(1, strategy.select(3, null));
+        strategy.borrowed(1);
+        assertEquals(0, strategy.select(3, null));
+    }
+
+    @Test
+    public void leastRecentlyReleasedPrefersUnusedAddresses() {
+        DhcpAddressPool pool = new BitSetAddressPool(start, end);
+        pool.setAllocationStrategy(new LeastRecentlyReleasedAllocationStrategy());
+        byte[] first = pool.borrowAddress();
+        pool.returnAddress(first);
+        assertEquals("192.168.1.2", AddressUtils.convertToString(pool.borrowAddress()));
+
+        // Lots of churn, to make the queue wrap around and compact.
+        for (int i = 0; i < 1000; i++) {
+            pool.returnAddress(pool.borrowAddress());
+        }
+        assertEquals(100, pool.getUtilization().getFree() + pool.getUtilization().getUsed());
+    }
+
+}
@@ -2,11 +2,22 @@ package org.code_revue.dhcp.server;
 
 import static org.junit.Assert.*;
 
+import org.code_revue.dhcp.message.ByteArrayOption;
+import org.code_revue.dhcp.message.DhcpOption;
+import org.code_revue.dhcp.message.DhcpOptionType;
 import org.code_revue.dhcp.util.AddressUtils;
+import org.code_revue.dhcp.util.Subnet;
 import org.junit.Test;
 
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
 import java.util.Set;
 import java.util.concurrent.*;
 
@@ -286,4 +297,193 @@ public class TestBitSetAddressPool {
 
     }
 
+    @Test
+    public void bulkBorrowAndReturn() {
+        BitSetAddressPool pool = new BitSetAddressPool(address9, address7);
+        int[] addresses = new int[] {
+                AddressUtils.convertToInt(address6),
+                AddressUtils.convertToInt(address8),
+                AddressUtils.convertToInt(address8),
+                AddressUtils.convertToInt(address7)
+        };
+        assertEquals(3, pool.borrowAddresses(addresses, 0, addresses.length));
+        assertNull(pool.borrowAddress(address8));
+        assertEquals(2, pool.returnAddresses(addresses, 0, 2));
+        assertNotNull(pool.borrowAddress(address8));
+    }
+
+    @Test
+    public void rangeOperations() {
+        // 192.168.1.5 to 192.168.1.19
+        BitSetAddressPool pool = new BitSetAddressPool(address9, address7);
+        assertEquals(3, pool.addExclusionRange(address6, address8));
+        assertEquals(12, pool.borrowRange(address9, address7));
+        assertEquals(12, pool.returnRange(address9, address7));
+        assertNull(pool.borrowAddress(address6));
+        assertEquals(3, pool.removeExclusionRange(address9, address7));
+        assertNotNull(pool.borrowAddress(address6));
+    }
+
+    @Test
+    public void cursors() {
+        // 192.168.1.5 to 192.168.1.12
+        BitSetAddressPool pool = new BitSetAddressPool(address9, address8);
+        pool.addExclusion(address6);
+        pool.borrowAddress(address8);
+        pool.borrowAddress(address9);
+
+        assertArrayEquals(new int[] { 5, 12 }, lastOctets(pool.cursor(AddressState.ALLOCATED)));
+        assertArrayEquals(new int[] { 6, 7, 8, 9, 11 }, lastOctets(pool.cursor(AddressState.FREE)));
+        assertArrayEquals(new int[] { 10 }, lastOctets(pool.cursor(AddressState.EXCLUDED)));
+    }
+
+    private static int[] lastOctets(AddressCursor cursor) {
+        int[] result = new int[256];
+        int count = 0;
+        while (cursor.next()) {
+            result[count++] = cursor.getAddress() & 0xff;
+        }
+        return Arrays.copyOf(result, count);
+    }
+
+    @Test
+    public void utilizationTracksChanges() {
+        BitSetAddressPool pool = new BitSetAddressPool(address6, address7);
+        PoolUtilization utilization = pool.getUtilization();
+        int[] addresses = new int[4];
+        for (int i = 0; i < addresses.length; i++) {
+            addresses[i] = AddressUtils.convertToInt(pool.borrowAddress());
+        }
+        assertEquals(4, utilization.getUsed());
+        assertEquals(2, pool.returnAddresses(addresses, 0, 2));
+        assertEquals(2, utilization.getUsed());
+
+        pool.addExclusionRange(address8, address7);
+        assertEquals(8, utilization.getExcluded());
+        assertEquals(0, utilization.getUsed());
+        assertEquals(2, utilization.getFree());
+
+        pool.removeExclusionRange(address8, address7);
+        pool.setEnd(address8);
+        assertEquals(3, utilization.getSize());
+        assertEquals(0, utilization.getExcluded());
+        assertEquals(3, utilization.getFree());
+    }
+
+    @Test
+    public void resizePreservesBorrowedAddresses() {
+        BitSetAddressPool pool = new BitSetAddressPool("10.0.0.100", "10.0.1.99");
+        int[] addresses = new int[] {
+                AddressUtils.convertToInt(AddressUtils.convertToByteArray("10.0.0.100")),
+                AddressUtils.convertToInt(AddressUtils.convertToByteArray("10.0.0.170")),
+                AddressUtils.convertToInt(AddressUtils.convertToByteArray("10.0.1.50")),
+                AddressUtils.convertToInt(AddressUtils.convertToByteArray("10.0.1.99"))
+        };
+        assertEquals(4, pool.borrowAddresses(addresses, 0, addresses.length));
+        pool.addExclusion(AddressUtils.convertToByteArray("10.0.0.20"));
+
+        // Grow at the start by an amount that isn't a multiple of the word size.
+        assertTrue(pool.resize(AddressUtils.convertToByteArray("10.0.0.3"),
+                AddressUtils.convertToByteArray("10.0.1.99")).isEmpty());
+        for (int address: addresses) {
+            assertNull(pool.borrowAddress(AddressUtils.convertToByteArray(address)));
+        }
+        assertNull(pool.borrowAddress(AddressUtils.convertToByteArray("10.0.0.20")));
+        assertEquals(4, pool.getUtilization().getUsed());
+        assertEquals(1, pool.getUtilization().getExcluded());
+
+        // Shrink from both ends, the addresses at either end are reported.
+        AddressRangeSet dropped = pool.resize(AddressUtils.convertToByteArray("10.0.0.101"),
+                AddressUtils.convertToByteArray("10.0.1.98"));
+        assertEquals(2, dropped.size());
+        assertTrue(dropped.contains(addresses[0] & 0xffffffffL));
+        assertTrue(dropped.contains(addresses[3] & 0xffffffffL));
+        assertEquals(2, pool.getUtilization().getUsed());
+        assertEquals(0, pool.getUtilization().getExcluded());
+        assertNull(pool.borrowAddress(AddressUtils.convertToByteArray(addresses[1])));
+        assertNotNull(pool.borrowAddress(AddressUtils.convertToByteArray("10.0.0.101")));
+    }
+
+    @Test
+    public void relocateMatchesBitByBitCopy() {
+        Random random = new Random(42);
+        for (int trial = 0; trial < 200; trial++) {
+            int oldRange = 1 + random.nextInt(500);
+            BitSet old = new BitSet(oldRange);
+            for (int i = 0; i < oldRange; i++) {
+                old.set(i, random.nextBoolean());
+            }
+            long oldStart = 1000;
+            long newStart = oldStart - 300 + random.nextInt(600);
+            int newRange = 1 + random.nextInt(500);
+
+            BitSet expected = new BitSet();
+            AddressRangeSet expectedDropped = new AddressRangeSet();
+            for (int i = old.nextSetBit(0); i >= 0; i = old.nextSetBit(i + 1)) {
+                long offset = oldStart + i - newStart;
+                if (offset >= 0 && offset < newRange) {
+                    expected.set((int) offset);
+                } else {
+                    expectedDropped.add(oldStart + i);
+                }
+            }
+
+            AddressRangeSet dropped = new AddressRangeSet();
+            assertEquals(expected, BitSetAddressPool.relocate(old, oldStart, newStart, newRange, dropped));
+            assertEquals(expectedDropped.getRanges(), dropped.getRanges());
+        }
+    }
+
+    @Test
+    public void resizeWhileBorrowing() throws Exception {
+        final BitSetAddressPool pool = new BitSetAddressPool("10.0.0.1", "10.0.255.254");
+        final int threads = 4, borrowsPerThread = 2000;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        List<Future<Set<Integer>>> results = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            results.add(executor.submit(new Callable<Set<Integer>>() {
+                @Override
+                public Set<Integer> call() {
+                    Set<Integer> borrowed = new HashSet<>();
+                    for (int i = 0; i < borrowsPerThread; i++) {
+                        borrowed.add(AddressUtils.convertToInt(pool.borrowAddress()));
+                    }
+                    return borrowed;
+                }
+            }));
+        }
+        for (int i = 0; i < 20; i++) {
+            pool.setEnd(AddressUtils.convertToByteArray(i % 2 == 0 ? "10.1.255.254" : "10.0.255.254"));
+        }
+        pool.setEnd(AddressUtils.convertToByteArray("10.1.255.254"));
+
+        Set<Integer> all = new HashSet<>();
+        for (Future<Set<Integer>> result: results) {
+            all.addAll(result.get());
+        }
+        executor.shutdown();
+
+        assertEquals(threads * borrowsPerThread, all.size());
+        assertEquals(all.size(), pool.getUtilization().getUsed());
+        for (int address: all) {
+            assertNull(pool.borrowAddress(AddressUtils.convertToByteArray(address)));
+        }
+    }
+
+    @Test
+    public void subnetConstructor() {
+        Map<DhcpOptionType, DhcpOption> options = new HashMap<>();
+        options.put(DhcpOptionType.ROUTER, new ByteArrayOption(DhcpOptionType.ROUTER,
+                AddressUtils.convertToByteArray("10.1.0.1")));
+        BitSetAddressPool pool = new BitSetAddressPool(Subnet.parse("10.1.0.0/29"), options);
+        assertEquals("10.1.0.1", AddressUtils.convertToString(pool.getStart()));
+        assertEquals("10.1.0.6", AddressUtils.convertToString(pool.getEnd()));
+        assertEquals(5, pool.getUtilization().getFree());
+        assertEquals("10.1.0.2", AddressUtils.convertToString(pool.borrowAddress()));
+
+        pool = new BitSetAddressPool(Subnet.parse("10.1.0.4/31"));
+        assertEquals("10.1.0.4", AddressUtils.convertToString(pool.borrowAddress()));
+        assertEquals("10.1.0.5", AddressUtils.convertToString(pool.borrowAddress()));
+    }
+
 }
@@ -0,0 +1,85 @@
+package org.code_revue.dhcp.server;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author Mike Fanning
+ */
+public class TestConflictDetector {
+
+    private final byte[] address1 = new byte[] { (byte) 192, (byte) 168, 1, 2 };
+    private final byte[] address2 = new byte[] { (byte) 192, (byte) 168, 1, 3 };
+    private final byte[] address3 = new byte[] { (byte) 192, (byte) 168, 1, 4 };
+    private final byte[] address4 = new byte[] { (byte) 192, (byte) 168, 1, 5 };
+
+    // Runs probes on the calling thread, which keeps the tests deterministic.
+    private final Executor directExecutor = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    private BitSetAddressPool pool;
+    private LocalConflictProber prober;
+    private ConflictDetector detector;
+
+    @Before
+    public void setup() {
+        pool = new BitSetAddressPool(address1, address4);
+        prober = new LocalConflictProber();
+        detector = new ConflictDetector(pool, prober, directExecutor);
+        detector.setPrefetch(2);
+    }
+
+    @Test
+    public void skipsAddressInUse() {
+        prober.addHost(address1);
+        assertArrayEquals(address2, detector.borrowAddress());
+        assertTrue(detector.isConflict(address1));
+        assertFalse(detector.isConflict(address2));
+        assertEquals(1, detector.getQuarantineSize());
+        assertEquals(1, detector.getConflictCount());
+    }
+
+    @Test
+    public void prefetchesAheadOfDemand() {
+        detector.refill();
+        assertEquals(2, detector.getReadyCount());
+        assertEquals(2, prober.getProbeCount());
+
+        assertArrayEquals(address1, detector.borrowAddress());
+        assertEquals(2, detector.getReadyCount());
+        assertEquals(3, prober.getProbeCount());
+    }
+
+    @Test
+    public void quarantinedAddressesAreReturned() {
+        detector.setQuarantineTime(0);
+        detector.setCacheTtl(-1);
+        prober.addHost(address1);
+        detector.refill();
+        assertEquals(1, detector.getQuarantineSize());
+
+        prober.removeHost(address1);
+        detector.setPrefetch(0);
+        detector.drain();
+        assertArrayEquals(address1, detector.borrowAddress());
+        assertEquals(0, detector.getQuarantineSize());
+    }
+
+    @Test
+    public void poolExhausted() {
+        prober.addHost(address1);
+        prober.addHost(address2);
+        prober.addHost(address3);
+        prober.addHost(address4);
+        assertNull(detector.borrowAddress());
+    }
+
+}
@@ -0,0 +1,147 @@
+package org.code_revue.dhcp.server;
+
+import org.code_revue.dhcp.message.*;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.Inet4Address;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author Mike Fanning
+ */
+public class TestInterceptorChain {
+
+    private SocketAddress clientAddress;
+    private StandardEngine engine;
+    private InterceptorChain chain;
+    private List<String> calls;
+
+    @Before
+    public void setup() throws Exception {
+        clientAddress = new InetSocketAddress(Inet4Address.getByAddress(new byte[] { 0, 0, 0, 0 }), 68);
+        engine = new StandardEngine(new byte[] { 10, 0, 0, 1 });
+        engine.setAddressPool(new BitSetAddressPool(new byte[] { 10, 0, 0, 2 }, new byte[] { 10, 0, 0, 10 }));
+        chain = new InterceptorChain(engine);
+        calls = new ArrayList<>();
+    }
+
+    @Test
+    public void emptyChain() {
+        DhcpPayload response = chain.processDhcpPayload(discover(1));
+        assertEquals(DhcpMessageType.OFFER, messageType(new DhcpMessageOverlay(response.getData())));
+    }
+
+    @Test
+    public void hooksRunInOrder() {
+        Recorder first = new Recorder("first", false);
+        Recorder second = new Recorder("second", false);
+        chain.addInterceptor(first);
+        chain.addInterceptor(second);
+        assertEquals(Arrays.<InterceptorChain.Interceptor>asList(first, second), chain.getInterceptors());
+
+        DhcpPayload response = chain.processDhcpPayload(discover(1));
+        assertEquals(Arrays.asList("first.before", "second.before", "second.after", "first.after"), calls);
+        assertEquals(DhcpMessageType.OFFER, messageType(new DhcpMessageOverlay(response.getData())));
+        assertEquals(1, engine.getDeviceRegistry().getAllDevices().size());
+
+        // Both saw the same parsed options.
+        assertSame(first.options, second.options);
+        assertArrayEquals(DhcpMessageType.DISCOVER.getOption().getOptionData(),
+                first.options.get(DhcpOptionType.MESSAGE_TYPE).getOptionData());
+
+        assertEquals(1, chain.getInvocationCount(first));
+        assertEquals(0, chain.getShortCircuitCount(first));
+        assertTrue(chain.getTotalNanos(first) > 0);
+        assertEquals(chain.getTotalNanos(second), chain.getAverageNanos(second));
+    }
+
+    @Test
+    public void shortCircuit() {
+        Recorder first = new Recorder("first", true);
+        Recorder second = new Recorder("second", false);
+        chain.addInterceptor(first);
+        chain.addInterceptor(second);
+
+        DhcpPayload request = discover(1);
+        DhcpPayload response = chain.processDhcpPayload(request);
+        assertSame(request, response);
+        assertEquals(Arrays.asList("first.before", "first.after"), calls);
+        assertTrue(first.shortCircuited);
+        assertEquals(0, engine.getDeviceRegistry().getAllDevices().size());
+        assertEquals(1, chain.getShortCircuitCount(first));
+        assertEquals(0, chain.getInvocationCount(second));
+
+        // The context is reused, but nothing carries over from the last payload.
+        assertTrue(chain.removeInterceptor(first));
+        assertFalse(chain.removeInterceptor(first));
+        calls.clear();
+        chain.processDhcpPayload(discover(2));
+        assertEquals(Arrays.asList("second.before", "second.after"), calls);
+        assertFalse(second.shortCircuited);
+        assertNull(second.attribute);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void unknownInterceptor() {
+        chain.getTotalNanos(new Recorder("stranger", false));
+    }
+
+    /**
+     * Records its calls, and optionally answers every payload with the request itself.
+     */
+    private class Recorder implements InterceptorChain.Interceptor {
+
+        private final String name;
+        private final boolean respond;
+        private Map<DhcpOptionType, DhcpOption> options;
+        private Object attribute;
+        private boolean shortCircuited;
+
+        private Recorder(String name, boolean respond) {
+            this.name = name;
+            this.respond = respond;
+        }
+
+        @Override
+        public DhcpPayload before(InterceptorChain.Context context) {
+            calls.add(name + ".before");
+            options = context.getOptions();
+            attribute = context.getAttribute("seen");
+            context.setAttribute("seen", name);
+            return respond ? context.getPayload() : null;
+        }
+
+        @Override
+        public DhcpPayload after(InterceptorChain.Context context, DhcpPayload response) {
+            calls.add(name + ".after");
+            shortCircuited = context.isShortCircuited();
+            return response;
+        }
+    }
+
+    private static DhcpMessageType messageType(DhcpMessageOverlay message) {
+        DhcpOption option = message.getOptions().get(DhcpOptionType.MESSAGE_TYPE);
+        return DhcpMessageType.getByNumericCode(option.getOptionData()[0]);
+    }
+
+    private DhcpPayload discover(int i) {
+        ByteBuffer message = new DhcpMessageBuilder()
+                .setOpCode(DhcpOpCode.REQUEST)
+                .setHardwareType(HardwareType.ETHERNET)
+                .setTransactionId(i)
+                .setHardwareAddress(new byte[] { 0x00, 0x1c, 0x42, 0, 0, (byte) i })
+                .addOption(DhcpMessageType.DISCOVER.getOption())
+                .build();
+        return new DhcpPayload(clientAddress, message);
+    }
+
+}
@@ -0,0 +1,92 @@
+package org.code_revue.dhcp.server;
+
+import org.code_revue.dhcp.device.DeviceStatus;
+import org.code_revue.dhcp.device.NetworkDevice;
+import org.code_revue.dhcp.device.SimpleDeviceRegistry;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Date;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author Mike Fanning
+ */
+public class TestLeaseReaper {
+
+    private final byte[] mac1 = new byte[] { 0x00, 0x1a, 0x2b, 0x3c, 0x4d, 0x5e };
+    private final byte[] mac2 = new byte[] { 0x00, 0x1a, 0x2b, 0x3c, 0x4d, 0x5f };
+
+    private BitSetAddressPool pool;
+    private SimpleDeviceRegistry registry;
+    private LeaseReaper reaper;
+    private long now;
+
+    @Before
+    public void setup() {
+        pool = new BitSetAddressPool("10.0.0.1", "10.0.0.10");
+        registry = new SimpleDeviceRegistry();
+        reaper = new LeaseReaper(pool, registry);
+        now = System.currentTimeMillis();
+    }
+
+    private NetworkDevice lease(byte[] hardwareAddress, DeviceStatus status, long expiration) {
+        NetworkDevice device = registry.getDevice(hardwareAddress);
+        device.setIpAddress(pool.borrowAddress());
+        device.setStatus(status);
+        device.setLeaseExpiration(new Date(expiration));
+        return device;
+    }
+
+    @Test
+    public void reclaimsExpiredOffer() {
+        NetworkDevice device = lease(mac1, DeviceStatus.OFFERED, now + 60000);
+        reaper.scheduleOffer(device, now + 5000);
+        assertEquals(1, reaper.getScheduledCount());
+
+        assertEquals(0, reaper.reap(now + 4000));
+        assertEquals(1, reaper.reap(now + 6000));
+        assertEquals(DeviceStatus.DISCOVERED, device.getStatus());
+        assertNull(device.getIpAddress());
+        assertEquals(0, pool.getUtilization().getUsed());
+        assertEquals(1, reaper.getReapedCount());
+    }
+
+    @Test
+    public void reclaimsExpiredLeasesInBatches() {
+        NetworkDevice device1 = lease(mac1, DeviceStatus.ACKNOWLEDGED, now + 10000);
+        NetworkDevice device2 = lease(mac2, DeviceStatus.ACKNOWLEDGED, now + 20000);
+        reaper.scheduleLease(device1);
+        reaper.scheduleLease(device2);
+        assertEquals(2, reaper.reap(now + 30000));
+        assertEquals(0, pool.getUtilization().getUsed());
+    }
+
+    @Test
+    public void ignoresDevicesThatMovedOn() {
+        NetworkDevice offered = lease(mac1, DeviceStatus.OFFERED, now + 60000);
+        reaper.scheduleOffer(offered, now + 5000);
+        offered.setStatus(DeviceStatus.ACKNOWLEDGED);
+
+        NetworkDevice renewed = lease(mac2, DeviceStatus.ACKNOWLEDGED, now + 10000);
+        reaper.scheduleLease(renewed);
+        renewed.setLeaseExpiration(new Date(now + 100000));
+
+        assertEquals(0, reaper.reap(now + 20000));
+        assertEquals(2, pool.getUtilization().getUsed());
+        assertEquals(1, reaper.getScheduledCount());
+        assertEquals(1, reaper.reap(now + 200000));
+    }
+
+    @Test
+    public void cancel() {
+        NetworkDevice device = lease(mac1, DeviceStatus.ACKNOWLEDGED, now + 10000);
+        reaper.scheduleLease(device);
+        reaper.scheduleLease(device);
+        assertEquals(1, reaper.getScheduledCount());
+        assertTrue(reaper.cancel(mac1));
+        assertEquals(0, reaper.reap(now + 20000));
+    }
+
+}
@@ -0,0 +1,85 @@
+package org.code_revue.dhcp.server;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author Mike Fanning
+ */
+public class TestPoolUtilization {
+
+    private final byte[] start = new byte[] { (byte) 192, (byte) 168, 1, 1 };
+    private final byte[] end = new byte[] { (byte) 192, (byte) 168, 1, 10 };
+
+    @Test
+    public void watermarkHysteresis() {
+        BitSetAddressPool pool = new BitSetAddressPool(start, end);
+        final List<String> events = new ArrayList<>();
+        pool.getUtilization().setWatermarks(0.8, 0.5);
+        pool.getUtilization().addListener(new UtilizationListener() {
+            @Override
+            public void highWatermarkReached(PoolUtilization utilization) {
+                events.add("high:" + utilization.getUsed());
+            }
+
+            @Override
+            public void lowWatermarkReached(PoolUtilization utilization) {
+                events.add("low:" + utilization.getUsed());
+            }
+        });
+
+        List<byte[]> borrowed = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            borrowed.add(pool.borrowAddress());
+        }
+        assertEquals(1, events.size());
+        assertEquals("high:8", events.get(0));
+        assertTrue(pool.getUtilization().isHigh());
+
+        // Dropping below the high watermark doesn't notify anybody until the pool reaches the low watermark.
+        pool.returnAddress(borrowed.remove(0));
+        pool.borrowAddress();
+        pool.returnAddress(borrowed.remove(0));
+        pool.returnAddress(borrowed.remove(0));
+        assertEquals(1, events.size());
+
+        pool.returnAddress(borrowed.remove(0));
+        assertEquals(2, events.size());
+        assertEquals("low:5", events.get(1));
+        assertFalse(pool.getUtilization().isHigh());
+    }
+
+    @Test
+    public void exclusionsChangeCapacity() {
+        SetBasedAddressPool pool = new SetBasedAddressPool(start, end);
+        PoolUtilization utilization = pool.getUtilization();
+        assertEquals(10, utilization.getSize());
+        assertEquals(10, utilization.getFree());
+
+        byte[] address = pool.borrowAddress();
+        pool.addExclusion(address);
+        pool.addExclusion(new byte[] { (byte) 192, (byte) 168, 1, 5 });
+        pool.addExclusion(new byte[] { (byte) 192, (byte) 168, 2, 5 });
+        assertEquals(0, utilization.getUsed());
+        assertEquals(2, utilization.getExcluded());
+        assertEquals(8, utilization.getFree());
+
+        pool.borrowAddress();
+        pool.borrowAddress();
+        assertEquals(0.25, utilization.getUtilization(), 0.0001);
+
+        pool.removeExclusion(address);
+        assertEquals(1, utilization.getExcluded());
+        assertEquals(7, utilization.getFree());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void invalidWatermarks() {
+        new PoolUtilization(10).setWatermarks(0.5, 0.8);
+    }
+
+}
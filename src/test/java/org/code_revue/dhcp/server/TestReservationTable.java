@@ -0,0 +1,118 @@
+package org.code_revue.dhcp.server;
+
+import org.code_revue.dhcp.message.ByteArrayOption;
+import org.code_revue.dhcp.message.DhcpOption;
+import org.code_revue.dhcp.message.DhcpOptionType;
+import org.code_revue.dhcp.util.AddressUtils;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author Mike Fanning
+ */
+public class TestReservationTable {
+
+    private static final byte[] PRINTER = new byte[] { 0x00, 0x1b, 0x78, 0x01, 0x02, 0x03 };
+    private static final byte[] ACCESS_POINT = new byte[] { 0x00, 0x1b, 0x78, 0x01, 0x02, 0x04 };
+    private static final byte[] SERVER_ID = new byte[] { 1, 's', 'r', 'v' };
+
+    private BitSetAddressPool pool;
+    private ReservationTable table;
+
+    @Before
+    public void setup() {
+        pool = new BitSetAddressPool(new byte[] { 10, 0, 0, 1 }, new byte[] { 10, 0, 0, 100 });
+        table = new ReservationTable(pool);
+    }
+
+    @Test
+    public void lookups() {
+        List<DhcpOption> options = new ArrayList<>();
+        options.add(new ByteArrayOption(DhcpOptionType.ROUTER, new byte[] { 10, 0, 0, (byte) 254 }));
+        table.reload(Arrays.asList(
+                new Reservation(PRINTER, ip(10)),
+                new Reservation(null, SERVER_ID, ip(11), options),
+                new Reservation(new byte[] { 1, 2, 3, 4, 5, 6, 7, 8 }, ip(12))));
+
+        assertEquals(3, table.size());
+        assertArrayEquals(ip(10), table.find(PRINTER, null).getIpAddress());
+        assertArrayEquals(ip(11), table.find(PRINTER, SERVER_ID).getIpAddress());
+        assertArrayEquals(ip(11), table.find(ACCESS_POINT, SERVER_ID).getIpAddress());
+        assertEquals(options.get(0), table.find(null, SERVER_ID).getOptions().get(DhcpOptionType.ROUTER));
+        assertArrayEquals(ip(12), table.find(new byte[] { 1, 2, 3, 4, 5, 6, 7, 8 }, null).getIpAddress());
+        assertNull(table.find(ACCESS_POINT, null));
+        assertNull(table.find(ACCESS_POINT, new byte[] { 1 }));
+
+        assertArrayEquals(PRINTER, table.getByIpAddress(ip(10)).getHardwareAddress());
+        assertNull(table.getByIpAddress(ip(13)));
+        assertNull(table.getByIpAddress(new byte[] { 0, 0, 0, 0 }));
+    }
+
+    @Test
+    public void reloadUpdatesExclusions() {
+        pool.addExclusion(ip(50));
+        table.reload(Arrays.asList(new Reservation(PRINTER, ip(10)), new Reservation(ACCESS_POINT, ip(50))));
+        assertNull(pool.borrowAddress(ip(10)));
+        assertEquals(98, pool.getUtilization().getFree());
+
+        table.reload(Arrays.asList(new Reservation(PRINTER, ip(20)), new Reservation(ACCESS_POINT, ip(50))));
+        assertArrayEquals(ip(20), table.find(PRINTER, null).getIpAddress());
+        assertNull(pool.borrowAddress(ip(20)));
+        assertArrayEquals(ip(10), pool.borrowAddress(ip(10)));
+
+        // The exclusion for .50 was there before the table, so it stays.
+        table.reload(Collections.<Reservation>emptyList());
+        assertEquals(0, table.size());
+        assertNull(table.find(PRINTER, null));
+        assertArrayEquals(ip(20), pool.borrowAddress(ip(20)));
+        assertNull(pool.borrowAddress(ip(50)));
+    }
+
+    @Test
+    public void rejectsClashes() {
+        table.reload(Arrays.asList(new Reservation(PRINTER, ip(10))));
+        try {
+            table.reload(Arrays.asList(new Reservation(PRINTER, ip(20)), new Reservation(ACCESS_POINT, ip(20))));
+            fail("Expected IllegalArgumentException");
+        } catch (IllegalArgumentException e) {
+            // Expected
+        }
+        try {
+            table.reload(Arrays.asList(new Reservation(PRINTER, ip(20)), new Reservation(PRINTER, ip(21))));
+            fail("Expected IllegalArgumentException");
+        } catch (IllegalArgumentException e) {
+            // Expected
+        }
+        assertArrayEquals(ip(10), table.find(PRINTER, null).getIpAddress());
+        assertArrayEquals(ip(20), pool.borrowAddress(ip(20)));
+        assertNull(pool.borrowAddress(ip(10)));
+    }
+
+    @Test
+    public void largeTable() {
+        List<Reservation> reservations = new ArrayList<>();
+        for (int i = 0; i < 50000; i++) {
+            byte[] hardwareAddress = new byte[] { 0x02, 0, 0, (byte) (i >>> 16), (byte) (i >>> 8), (byte) i };
+            reservations.add(new Reservation(hardwareAddress, AddressUtils.convertToByteArray(0xac100000 + i + 1)));
+        }
+        table = new ReservationTable(null);
+        table.reload(reservations);
+        for (int i = 0; i < 50000; i += 997) {
+            byte[] hardwareAddress = new byte[] { 0x02, 0, 0, (byte) (i >>> 16), (byte) (i >>> 8), (byte) i };
+            assertArrayEquals(AddressUtils.convertToByteArray(0xac100000 + i + 1),
+                    table.find(hardwareAddress, null).getIpAddress());
+        }
+    }
+
+    private static byte[] ip(int host) {
+        return new byte[] { 10, 0, 0, (byte) host };
+    }
+
+}
@@ -3,9 +3,11 @@ package org.code_revue.dhcp.server;
 import org.code_revue.dhcp.util.AddressUtils;
 import org.junit.Test;
 
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 import java.util.HashSet;
 import java.util.Set;
+import java.util.concurrent.*;
 
 import static org.junit.Assert.*;
 
@@ -176,4 +178,155 @@ public class TestSetBasedAddressPool {
         assertNull(pool.borrowAddress(address7));
     }
 
+    @Test
+    public void reuseReturnedAddress() {
+        SetBasedAddressPool pool = new SetBasedAddressPool(address9, address7);
+        for (int c = 0; c < 10; c++) {
+            pool.borrowAddress();
+        }
+        pool.returnAddress(address6);
+        assertArrayEquals(address6, pool.borrowAddress());
+    }
+
+    @Test
+    public void highAddressRange() {
+        SetBasedAddressPool pool = new SetBasedAddressPool(address3, address4);
+        assertArrayEquals(address3, pool.borrowAddress());
+    }
+
+    @Test
+    public void concurrentBorrow() throws InterruptedException {
+
+        final SetBasedAddressPool pool = new SetBasedAddressPool(address1, address2);
+        final int numThreads = 50;
+        final int numAddresses = 1000;
+        final CyclicBarrier barrier = new CyclicBarrier(numThreads);
+        final CountDownLatch latch = new CountDownLatch(numThreads);
+        final BlockingQueue<Integer> addresses = new ArrayBlockingQueue<Integer>(numThreads * numAddresses);
+
+        Runnable borrower = new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    barrier.await(5, TimeUnit.SECONDS);
+
+                    for (int c = 0; c < numAddresses; c++) {
+                        byte[] addr = pool.borrowAddress();
+                        addresses.add(ByteBuffer.wrap(addr).getInt());
+                    }
+
+                    latch.countDown();
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
+        };
+
+        ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+
+        for (int c = 0; c < numThreads; c++) {
+            executor.submit(borrower);
+        }
+
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+
+        Set<Integer> checker = new ConcurrentSkipListSet<>();
+        for (Integer i: addresses) {
+            assertTrue(checker.add(i));
+        }
+        assertEquals(numThreads * numAddresses, checker.size());
+
+        executor.shutdown();
+
+    }
+
+    @Test
+    public void bulkBorrowAndReturn() {
+        SetBasedAddressPool pool = new SetBasedAddressPool(address9, address7);
+        int[] addresses = new int[] {
+                AddressUtils.convertToInt(address6),
+                AddressUtils.convertToInt(address8),
+                AddressUtils.convertToInt(address8),
+                AddressUtils.convertToInt(address7)
+        };
+        assertEquals(3, pool.borrowAddresses(addresses, 0, addresses.length));
+        assertNull(pool.borrowAddress(address8));
+        assertEquals(2, pool.returnAddresses(addresses, 0, 2));
+        assertNotNull(pool.borrowAddress(address8));
+    }
+
+    @Test
+    public void rangeOperations() {
+        // 192.168.1.5 to 192.168.1.19
+        SetBasedAddressPool pool = new SetBasedAddressPool(address9, address7);
+        assertEquals(3, pool.addExclusionRange(address6, address8));
+        assertEquals(12, pool.borrowRange(address9, address7));
+        assertEquals(12, pool.returnRange(address9, address7));
+        assertNull(pool.borrowAddress(address6));
+        assertEquals(3, pool.removeExclusionRange(address9, address7));
+        assertNotNull(pool.borrowAddress(address6));
+    }
+
+    @Test
+    public void cursors() {
+        // 192.168.1.5 to 192.168.1.12
+        SetBasedAddressPool pool = new SetBasedAddressPool(address9, address8);
+        pool.addExclusion(address6);
+        pool.borrowAddress(address8);
+        pool.borrowAddress(address9);
+
+        assertArrayEquals(new int[] { 5, 12 }, lastOctets(pool.cursor(AddressState.ALLOCATED)));
+        assertArrayEquals(new int[] { 6, 7, 8, 9, 11 }, lastOctets(pool.cursor(AddressState.FREE)));
+        assertArrayEquals(new int[] { 10 }, lastOctets(pool.cursor(AddressState.EXCLUDED)));
+    }
+
+    private static int[] lastOctets(AddressCursor cursor) {
+        int[] result = new int[256];
+        int count = 0;
+        while (cursor.next()) {
+            result[count++] = cursor.getAddress() & 0xff;
+        }
+        return Arrays.copyOf(result, count);
+    }
+
+    @Test
+    public void utilizationTracksChanges() {
+        SetBasedAddressPool pool = new SetBasedAddressPool(address6, address7);
+        PoolUtilization utilization = pool.getUtilization();
+        int[] addresses = new int[4];
+        for (int i = 0; i < addresses.length; i++) {
+            addresses[i] = AddressUtils.convertToInt(pool.borrowAddress());
+        }
+        assertEquals(4, utilization.getUsed());
+        assertEquals(2, pool.returnAddresses(addresses, 0, 2));
+        assertEquals(2, utilization.getUsed());
+
+        pool.addExclusionRange(address8, address7);
+        assertEquals(8, utilization.getExcluded());
+        assertEquals(0, utilization.getUsed());
+        assertEquals(2, utilization.getFree());
+
+        pool.removeExclusionRange(address8, address7);
+        pool.setEnd(address8);
+        assertEquals(3, utilization.getSize());
+        assertEquals(0, utilization.getExcluded());
+        assertEquals(3, utilization.getFree());
+    }
+
+    @Test
+    public void resizeReportsDroppedAddresses() {
+        SetBasedAddressPool pool = new SetBasedAddressPool(address6, address7);
+        pool.borrowAddress(address6);
+        pool.borrowAddress(address8);
+        pool.addExclusion(address7);
+
+        AddressRangeSet dropped = pool.resize(address9, address8);
+        assertEquals(0, dropped.size());
+        dropped = pool.resize(address8, address7);
+        assertEquals(1, dropped.size());
+        assertTrue(dropped.contains(AddressUtils.convertToLong(address6)));
+        assertEquals(1, pool.getUtilization().getUsed());
+        assertEquals(1, pool.getUtilization().getExcluded());
+    }
+
 }
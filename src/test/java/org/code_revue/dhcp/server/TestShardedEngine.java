@@ -0,0 +1,175 @@
+package org.code_revue.dhcp.server;
+
+import org.code_revue.dhcp.device.NetworkDevice;
+import org.code_revue.dhcp.message.*;
+import org.code_revue.dhcp.util.AddressUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.Inet4Address;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author Mike Fanning
+ */
+public class TestShardedEngine {
+
+    private static final int SHARDS = 4;
+
+    private byte[] serverIpAddress = new byte[] { 10, 0, 0, 1 };
+    private SocketAddress clientAddress;
+    private DhcpAddressPool pool;
+    private ShardedEngine engine;
+
+    @Before
+    public void setup() throws Exception {
+        clientAddress = new InetSocketAddress(Inet4Address.getByAddress(new byte[] { 0, 0, 0, 0 }), 68);
+        pool = new BitSetAddressPool(new byte[] { 10, 0, 0, 2 }, new byte[] { 10, 0, 3, (byte) 254 });
+        List<StandardEngine> shards = new ArrayList<>();
+        for (int i = 0; i < SHARDS; i++) {
+            StandardEngine shard = new StandardEngine(serverIpAddress);
+            shard.setAddressPool(pool);
+            shards.add(shard);
+        }
+        engine = new ShardedEngine(shards);
+    }
+
+    @After
+    public void teardown() throws Exception {
+        assertTrue(engine.shutdown(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void sameClientSameShard() {
+        for (int i = 0; i < 100; i++) {
+            byte[] hardwareAddress = hardwareAddress(i);
+            int shard = engine.shardFor(hardwareAddress);
+            assertTrue(shard >= 0 && shard < SHARDS);
+            assertEquals(shard, engine.shardFor(hardwareAddress.clone()));
+        }
+    }
+
+    @Test
+    public void discover() {
+        byte[] hardwareAddress = hardwareAddress(1);
+        DhcpPayload response = engine.processDhcpPayload(discover(hardwareAddress, 1));
+        assertNotNull(response);
+        DhcpMessageOverlay offer = new DhcpMessageOverlay(response.getData());
+        assertEquals(DhcpMessageType.OFFER, messageType(offer));
+        assertArrayEquals(hardwareAddress, offer.getClientHardwareAddress());
+
+        // Only the shard that owns the client knows about it.
+        StandardEngine owner = (StandardEngine) engine.getShard(engine.shardFor(hardwareAddress));
+        NetworkDevice device = owner.getDeviceRegistry().getDeviceByIpAddress(offer.getYourIpAddress());
+        assertNotNull(device);
+        assertArrayEquals(hardwareAddress, device.getHardwareAddress());
+        for (int i = 0; i < SHARDS; i++) {
+            if (engine.getShard(i) != owner) {
+                StandardEngine other = (StandardEngine) engine.getShard(i);
+                assertNull(other.getDeviceRegistry().getDeviceByIpAddress(offer.getYourIpAddress()));
+            }
+        }
+    }
+
+    @Test
+    public void concurrentClients() throws Exception {
+        final int clients = 500;
+        final CountDownLatch latch = new CountDownLatch(clients);
+        final AtomicInteger offers = new AtomicInteger(0);
+        final Set<String> addresses = new HashSet<>();
+        AsyncDhcpEngine.Callback callback = new AsyncDhcpEngine.Callback() {
+            @Override
+            public void completed(DhcpPayload response) {
+                if (null != response) {
+                    DhcpMessageOverlay offer = new DhcpMessageOverlay(response.getData());
+                    if (DhcpMessageType.OFFER.equals(messageType(offer))) {
+                        offers.incrementAndGet();
+                        synchronized (addresses) {
+                            addresses.add(AddressUtils.convertToString(offer.getYourIpAddress()));
+                        }
+                    }
+                }
+                latch.countDown();
+            }
+        };
+
+        int[] perShard = new int[SHARDS];
+        for (int i = 0; i < clients; i++) {
+            byte[] hardwareAddress = hardwareAddress(i);
+            perShard[engine.shardFor(hardwareAddress)]++;
+            engine.processDhcpPayload(discover(hardwareAddress, i), callback);
+        }
+
+        assertTrue(latch.await(10, TimeUnit.SECONDS));
+        assertEquals(0, engine.getDroppedCount());
+        assertEquals(clients, offers.get());
+        assertEquals(clients, addresses.size());
+        for (int count: perShard) {
+            assertTrue(count > clients / SHARDS / 2);
+        }
+    }
+
+    @Test
+    public void dropsWhenOverloaded() throws Exception {
+        List<StandardEngine> shards = new ArrayList<>();
+        StandardEngine shard = new StandardEngine(serverIpAddress);
+        shard.setAddressPool(pool);
+        shards.add(shard);
+        ShardedEngine small = new ShardedEngine(shards, 1);
+
+        final CountDownLatch blocked = new CountDownLatch(1);
+        small.execute(0, new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    blocked.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        AsyncDhcpEngine.Callback ignore = new AsyncDhcpEngine.Callback() {
+            @Override
+            public void completed(DhcpPayload response) { }
+        };
+        for (int i = 0; i < 3; i++) {
+            small.processDhcpPayload(discover(hardwareAddress(i), i), ignore);
+        }
+        blocked.countDown();
+        assertTrue(small.shutdown(5, TimeUnit.SECONDS));
+        assertTrue(small.getDroppedCount() >= 1);
+    }
+
+    private static DhcpMessageType messageType(DhcpMessageOverlay message) {
+        DhcpOption option = message.getOptions().get(DhcpOptionType.MESSAGE_TYPE);
+        return DhcpMessageType.getByNumericCode(option.getOptionData()[0]);
+    }
+
+    private DhcpPayload discover(byte[] hardwareAddress, int transactionId) {
+        ByteBuffer message = new DhcpMessageBuilder()
+                .setOpCode(DhcpOpCode.REQUEST)
+                .setHardwareType(HardwareType.ETHERNET)
+                .setTransactionId(transactionId)
+                .setHardwareAddress(hardwareAddress)
+                .addOption(DhcpMessageType.DISCOVER.getOption())
+                .build();
+        return new DhcpPayload(clientAddress, message);
+    }
+
+    private static byte[] hardwareAddress(int i) {
+        return new byte[] { 0x00, 0x1c, 0x42, (byte) (i >>> 16), (byte) (i >>> 8), (byte) i };
+    }
+
+}
@@ -1,7 +1,14 @@
 package org.code_revue.dhcp.server;
 
+import org.code_revue.dhcp.device.CompactDeviceRegistry;
+import org.code_revue.dhcp.device.DeviceStatus;
+import org.code_revue.dhcp.device.NetworkDevice;
 import org.code_revue.dhcp.message.*;
+import org.code_revue.dhcp.persist.LeaseEvent;
+import org.code_revue.dhcp.persist.LeaseJournal;
+import org.code_revue.dhcp.persist.LeaseRecord;
 import org.code_revue.dhcp.util.AddressUtils;
+import org.code_revue.dhcp.util.VirtualClock;
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.BeforeClass;
@@ -14,7 +21,14 @@ import java.net.InetSocketAddress;
 import java.net.SocketAddress;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
 
 /**
  * @author Mike Fanning
@@ -190,4 +204,448 @@ public class TestStandardEngine {
         }
     }
 
+    @Test
+    public void discoverSkipsConflictingAddress() {
+        // The discover message requests 192.168.1.8, which belongs to a squatting host.
+        byte[] squatted = new byte[] { (byte) 192, (byte) 168, 1, 8 };
+        byte[] free = new byte[] { (byte) 192, (byte) 168, 1, 9 };
+        BitSetAddressPool pool = new BitSetAddressPool(squatted, addressPoolEnd);
+        LocalConflictProber prober = new LocalConflictProber();
+        prober.addHost(squatted);
+        ConflictDetector detector = new ConflictDetector(pool, prober, new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                command.run();
+            }
+        });
+        detector.refill();
+        engine.setAddressPool(pool);
+        engine.setConflictDetector(detector);
+
+        DhcpPayload outgoing = engine.processDhcpPayload(new DhcpPayload(clientWireAddress, discoverMessage));
+        DhcpMessageOverlay response = new DhcpMessageOverlay(outgoing.getData());
+        Assert.assertArrayEquals(free, response.getYourIpAddress());
+        Assert.assertEquals(1, detector.getQuarantineSize());
+    }
+
+    @Test
+    public void requestForConflictingOfferIsNaked() {
+        // The discover message requests 192.168.1.8, which nobody has probed yet, so it is offered and probed after.
+        byte[] squatted = new byte[] { (byte) 192, (byte) 168, 1, 8 };
+        LocalConflictProber prober = new LocalConflictProber();
+        prober.addHost(squatted);
+        ConflictDetector detector = new ConflictDetector(engine.getAddressPool(), prober, new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                command.run();
+            }
+        });
+        engine.setConflictDetector(detector);
+
+        DhcpMessageOverlay discover = new DhcpMessageOverlay(discoverMessage);
+        DhcpPayload outgoing = engine.processDhcpPayload(new DhcpPayload(clientWireAddress, discoverMessage));
+        Assert.assertArrayEquals(squatted, new DhcpMessageOverlay(outgoing.getData()).getYourIpAddress());
+        Assert.assertTrue(detector.isConflict(squatted));
+
+        ByteBuffer request = new DhcpMessageBuilder()
+                .setOpCode(DhcpOpCode.REQUEST)
+                .setHardwareType(HardwareType.ETHERNET)
+                .setTransactionId(discover.getTransactionId())
+                .setHardwareAddress(discover.getClientHardwareAddress())
+                .addOption(DhcpMessageType.REQUEST.getOption())
+                .addOption(new ByteArrayOption(DhcpOptionType.REQUESTED_IP_ADDR, squatted))
+                .addOption(new ByteArrayOption(DhcpOptionType.SERVER_ID, serverIpAddress))
+                .build();
+        outgoing = engine.processDhcpPayload(new DhcpPayload(clientWireAddress, request));
+        Map<DhcpOptionType, DhcpOption> options = new DhcpMessageOverlay(outgoing.getData()).getOptions();
+        Assert.assertEquals(DhcpMessageType.NAK,
+                DhcpMessageType.getByNumericCode(options.get(DhcpOptionType.MESSAGE_TYPE).getOptionData()[0]));
+        NetworkDevice device = engine.getDeviceRegistry().getDevice(discover.getClientHardwareAddress());
+        Assert.assertEquals(DeviceStatus.DISCOVERED, device.getStatus());
+        Assert.assertNull(device.getIpAddress());
+        Assert.assertEquals(1, engine.getQuarantine().size());
+        Assert.assertNull(engine.getAddressPool().borrowAddress(squatted));
+
+        // Once the client is back to square one it is offered another address.
+        discoverMessage.position(0);
+        outgoing = engine.processDhcpPayload(new DhcpPayload(clientWireAddress, discoverMessage));
+        Assert.assertFalse(Arrays.equals(squatted, new DhcpMessageOverlay(outgoing.getData()).getYourIpAddress()));
+    }
+
+    @Test
+    public void declinedAddressIsQuarantined() {
+        DhcpMessageOverlay discover = new DhcpMessageOverlay(discoverMessage);
+        DhcpPayload discPayload = new DhcpPayload(clientWireAddress, discoverMessage);
+        DhcpMessageOverlay offer = new DhcpMessageOverlay(engine.processDhcpPayload(discPayload).getData());
+        byte[] offered = offer.getYourIpAddress();
+
+        DhcpMessageBuilder builder = new DhcpMessageBuilder();
+        builder.setOpCode(DhcpOpCode.REQUEST)
+                .setHardwareType(HardwareType.ETHERNET)
+                .setTransactionId(discover.getTransactionId())
+                .setHardwareAddress(discover.getClientHardwareAddress())
+                .addOption(DhcpMessageType.DECLINE.getOption())
+                .addOption(new ByteArrayOption(DhcpOptionType.REQUESTED_IP_ADDR, offered))
+                .addOption(new ByteArrayOption(DhcpOptionType.SERVER_ID, offer.getServerIpAddress()));
+        Assert.assertNull(engine.processDhcpPayload(new DhcpPayload(clientWireAddress, builder.build())));
+
+        AddressQuarantine quarantine = engine.getQuarantine();
+        Assert.assertEquals(1, quarantine.size());
+        Assert.assertNull(engine.getAddressPool().borrowAddress(offered));
+
+        Assert.assertEquals(1, quarantine.releaseExpired(Long.MAX_VALUE));
+        Assert.assertArrayEquals(offered, engine.getAddressPool().borrowAddress(offered));
+    }
+
+    @Test
+    public void declineAfterAcknowledgement() {
+        LeaseReaper reaper = new LeaseReaper(engine.getAddressPool(), engine.getDeviceRegistry());
+        engine.setLeaseReaper(reaper);
+        DhcpMessageOverlay discover = new DhcpMessageOverlay(discoverMessage);
+        DhcpPayload discPayload = new DhcpPayload(clientWireAddress, discoverMessage);
+        DhcpMessageOverlay offer = new DhcpMessageOverlay(engine.processDhcpPayload(discPayload).getData());
+        byte[] leased = offer.getYourIpAddress();
+
+        DhcpMessageBuilder builder = new DhcpMessageBuilder();
+        builder.setOpCode(DhcpOpCode.REQUEST)
+                .setHardwareType(HardwareType.ETHERNET)
+                .setTransactionId(discover.getTransactionId())
+                .setHardwareAddress(discover.getClientHardwareAddress())
+                .addOption(DhcpMessageType.REQUEST.getOption())
+                .addOption(new ByteArrayOption(DhcpOptionType.REQUESTED_IP_ADDR, leased))
+                .addOption(new ByteArrayOption(DhcpOptionType.SERVER_ID, offer.getServerIpAddress()));
+        Assert.assertNotNull(engine.processDhcpPayload(new DhcpPayload(clientWireAddress, builder.build())));
+        NetworkDevice device = engine.getDeviceRegistry().getDevice(discover.getClientHardwareAddress());
+        Assert.assertEquals(DeviceStatus.ACKNOWLEDGED, device.getStatus());
+
+        // A Decline for an address the client wasn't given is ignored.
+        byte[] other = Arrays.equals(leased, addressPoolEnd) ? addressPoolStart : addressPoolEnd;
+        Assert.assertNull(engine.processDhcpPayload(new DhcpPayload(clientWireAddress, decline(discover, other))));
+        Assert.assertEquals(DeviceStatus.ACKNOWLEDGED, device.getStatus());
+        Assert.assertEquals(0, engine.getQuarantine().size());
+
+        // The ARP check after the Acknowledgement found the address in use.
+        Assert.assertNull(engine.processDhcpPayload(new DhcpPayload(clientWireAddress, decline(discover, leased))));
+        device = engine.getDeviceRegistry().getDevice(discover.getClientHardwareAddress());
+        Assert.assertEquals(DeviceStatus.DISCOVERED, device.getStatus());
+        Assert.assertNull(device.getIpAddress());
+        Assert.assertEquals(0, reaper.getScheduledCount());
+        Assert.assertEquals(1, engine.getQuarantine().size());
+        Assert.assertNull(engine.getAddressPool().borrowAddress(leased));
+    }
+
+    private static ByteBuffer decline(DhcpMessageOverlay discover, byte[] address) {
+        return new DhcpMessageBuilder()
+                .setOpCode(DhcpOpCode.REQUEST)
+                .setHardwareType(HardwareType.ETHERNET)
+                .setTransactionId(discover.getTransactionId())
+                .setHardwareAddress(discover.getClientHardwareAddress())
+                .addOption(DhcpMessageType.DECLINE.getOption())
+                .addOption(new ByteArrayOption(DhcpOptionType.REQUESTED_IP_ADDR, address))
+                .addOption(new ByteArrayOption(DhcpOptionType.SERVER_ID, serverIpAddress))
+                .build();
+    }
+
+    @Test
+    public void expiredOfferIsReclaimed() {
+        LeaseReaper reaper = new LeaseReaper(engine.getAddressPool(), engine.getDeviceRegistry());
+        engine.setLeaseReaper(reaper);
+        engine.setOfferTimeout(1000);
+
+        DhcpPayload outgoing = engine.processDhcpPayload(new DhcpPayload(clientWireAddress, discoverMessage));
+        byte[] offered = new DhcpMessageOverlay(outgoing.getData()).getYourIpAddress();
+        Assert.assertEquals(1, reaper.getScheduledCount());
+        Assert.assertEquals(1, engine.getAddressPool().getUtilization().getUsed());
+
+        Assert.assertEquals(1, reaper.reap(System.currentTimeMillis() + 5000));
+        Assert.assertEquals(0, engine.getAddressPool().getUtilization().getUsed());
+        Assert.assertArrayEquals(offered, engine.getAddressPool().borrowAddress(offered));
+    }
+
+    @Test
+    public void engineReapsBeforeDiscover() {
+        VirtualClock clock = new VirtualClock(1500000000000L);
+        engine.setAddressPool(new BitSetAddressPool(addressPoolStart, addressPoolStart));
+        engine.setClock(clock);
+        LeaseReaper reaper = new LeaseReaper(engine.getAddressPool(), engine.getDeviceRegistry(),
+                LeaseReaper.DEFAULT_TICK, clock);
+        engine.setLeaseReaper(reaper);
+
+        DhcpPayload outgoing = engine.processDhcpPayload(new DhcpPayload(clientWireAddress, discoverMessage));
+        Assert.assertArrayEquals(addressPoolStart, new DhcpMessageOverlay(outgoing.getData()).getYourIpAddress());
+
+        ByteBuffer otherDiscover = new DhcpMessageBuilder()
+                .setOpCode(DhcpOpCode.REQUEST)
+                .setHardwareType(HardwareType.ETHERNET)
+                .setTransactionId(2)
+                .setHardwareAddress(new byte[] { 0x00, 0x1c, 0x42, 0x00, 0x00, 0x02 })
+                .addOption(DhcpMessageType.DISCOVER.getOption())
+                .build();
+
+        // The first offer runs out, the next Discover reclaims it without anyone calling the reaper.
+        clock.advance(StandardEngine.DEFAULT_OFFER_TIMEOUT + 2000, TimeUnit.MILLISECONDS);
+        outgoing = engine.processDhcpPayload(new DhcpPayload(clientWireAddress, otherDiscover));
+        Assert.assertArrayEquals(addressPoolStart, new DhcpMessageOverlay(outgoing.getData()).getYourIpAddress());
+        Assert.assertEquals(1, reaper.getReapedCount());
+    }
+
+    @Test
+    public void requestWithCompactRegistry() {
+        CompactDeviceRegistry registry = new CompactDeviceRegistry();
+        engine.setDeviceRegistry(registry);
+        DhcpMessageOverlay discover = new DhcpMessageOverlay(discoverMessage);
+        DhcpMessageOverlay offer = new DhcpMessageOverlay(
+                engine.processDhcpPayload(new DhcpPayload(clientWireAddress, discoverMessage)).getData());
+
+        DhcpMessageBuilder builder = new DhcpMessageBuilder();
+        builder.setOpCode(DhcpOpCode.REQUEST)
+                .setHardwareType(HardwareType.ETHERNET)
+                .setTransactionId(discover.getTransactionId())
+                .setServerIpAddress(offer.getServerIpAddress())
+                .setHardwareAddress(discover.getClientHardwareAddress())
+                .addOption(DhcpMessageType.REQUEST.getOption())
+                .addOption(new ByteArrayOption(DhcpOptionType.REQUESTED_IP_ADDR, offer.getYourIpAddress()))
+                .addOption(new ByteArrayOption(DhcpOptionType.SERVER_ID, offer.getServerIpAddress()));
+        DhcpMessageOverlay ack = new DhcpMessageOverlay(
+                engine.processDhcpPayload(new DhcpPayload(clientWireAddress, builder.build())).getData());
+        Assert.assertArrayEquals(offer.getYourIpAddress(), ack.getYourIpAddress());
+
+        NetworkDevice device = registry.getDevice(discover.getClientHardwareAddress());
+        Assert.assertEquals(DeviceStatus.ACKNOWLEDGED, device.getStatus());
+        Assert.assertArrayEquals(device.getHardwareAddress(),
+                registry.getDeviceByIpAddress(offer.getYourIpAddress()).getHardwareAddress());
+        Assert.assertArrayEquals(offer.getYourIpAddress(), device.getIpAddress());
+        Assert.assertNotNull(device.getLeaseExpiration());
+    }
+
+    @Test
+    public void offerWaitsForJournal() throws Exception {
+        Path path = Files.createTempFile("leases", ".journal");
+        try (LeaseJournal journal = new LeaseJournal(path)) {
+            engine.setLeaseJournal(journal);
+            DhcpPayload outgoing = engine.processDhcpPayload(new DhcpPayload(clientWireAddress, discoverMessage));
+            Assert.assertNotNull(outgoing.getCommit());
+            Assert.assertTrue(outgoing.getCommit().await(5, TimeUnit.SECONDS));
+        }
+
+        final List<LeaseRecord> records = new ArrayList<>();
+        LeaseJournal.replay(path, new LeaseJournal.Handler() {
+            @Override
+            public void handle(LeaseRecord record) {
+                records.add(record);
+            }
+        });
+        Files.delete(path);
+        Assert.assertEquals(1, records.size());
+        Assert.assertEquals(LeaseEvent.OFFER, records.get(0).getEvent());
+    }
+
+    @Test
+    public void reservedAddress() {
+        DhcpMessageOverlay discover = new DhcpMessageOverlay(discoverMessage);
+        byte[] reservedAddress = new byte[] { (byte) 192, (byte) 168, 1, 7 };
+        byte[] subnetMask = new byte[] { (byte) 255, (byte) 255, (byte) 255, 0 };
+        byte[] reservedMask = new byte[] { (byte) 255, (byte) 255, 0, 0 };
+        engine.setConfiguration(new ByteArrayOption(DhcpOptionType.SUBNET_MASK, subnetMask));
+
+        ReservationTable reservations = new ReservationTable(engine.getAddressPool());
+        List<DhcpOption> reservedOptions = new ArrayList<>();
+        reservedOptions.add(new ByteArrayOption(DhcpOptionType.SUBNET_MASK, reservedMask));
+        reservations.reload(Arrays.asList(
+                new Reservation(discover.getClientHardwareAddress(), null, reservedAddress, reservedOptions)));
+        engine.setReservations(reservations);
+
+        DhcpMessageOverlay offer = new DhcpMessageOverlay(
+                engine.processDhcpPayload(new DhcpPayload(clientWireAddress, discoverMessage)).getData());
+        Assert.assertArrayEquals(reservedAddress, offer.getYourIpAddress());
+        Assert.assertArrayEquals(reservedMask, offer.getOptions().get(DhcpOptionType.SUBNET_MASK).getOptionData());
+
+        // Nobody else can borrow the reserved address, and the client can't request any other.
+        Assert.assertNull(engine.getAddressPool().borrowAddress(reservedAddress));
+        DhcpMessageBuilder builder = new DhcpMessageBuilder();
+        builder.setOpCode(DhcpOpCode.REQUEST)
+                .setHardwareType(HardwareType.ETHERNET)
+                .setTransactionId(discover.getTransactionId())
+                .setHardwareAddress(discover.getClientHardwareAddress())
+                .addOption(DhcpMessageType.REQUEST.getOption())
+                .addOption(new ByteArrayOption(DhcpOptionType.REQUESTED_IP_ADDR, addressPoolStart));
+        DhcpMessageOverlay nak = new DhcpMessageOverlay(
+                engine.processDhcpPayload(new DhcpPayload(clientWireAddress, builder.build())).getData());
+        Assert.assertArrayEquals(DhcpMessageType.NAK.getOption().getOptionData(),
+                nak.getOptions().get(DhcpOptionType.MESSAGE_TYPE).getOptionData());
+    }
+
+    @Test
+    public void leaseChurnWithVirtualClock() {
+        VirtualClock clock = new VirtualClock(1500000000000L);
+        engine = new StandardEngine(serverIpAddress, 3600);
+        engine.setAddressPool(new BitSetAddressPool(addressPoolStart, addressPoolEnd));
+        engine.setClock(clock);
+        LeaseReaper reaper = new LeaseReaper(engine.getAddressPool(), engine.getDeviceRegistry(),
+                LeaseReaper.DEFAULT_TICK, clock);
+        engine.setLeaseReaper(reaper);
+
+        DhcpMessageOverlay discover = new DhcpMessageOverlay(discoverMessage);
+        DhcpMessageOverlay offer = new DhcpMessageOverlay(
+                engine.processDhcpPayload(new DhcpPayload(clientWireAddress, discoverMessage)).getData());
+        byte[] leased = offer.getYourIpAddress();
+        DhcpMessageBuilder builder = new DhcpMessageBuilder();
+        builder.setOpCode(DhcpOpCode.REQUEST)
+                .setHardwareType(HardwareType.ETHERNET)
+                .setTransactionId(discover.getTransactionId())
+                .setHardwareAddress(discover.getClientHardwareAddress())
+                .addOption(DhcpMessageType.REQUEST.getOption())
+                .addOption(new ByteArrayOption(DhcpOptionType.REQUESTED_IP_ADDR, leased))
+                .addOption(new ByteArrayOption(DhcpOptionType.SERVER_ID, offer.getServerIpAddress()));
+        Assert.assertNotNull(engine.processDhcpPayload(new DhcpPayload(clientWireAddress, builder.build())));
+        NetworkDevice device = engine.getDeviceRegistry().getDevice(discover.getClientHardwareAddress());
+        Assert.assertEquals(clock.currentTimeMillis() + 3600 * 1000, device.getLeaseExpirationMillis());
+
+        // Two days of renewals at half the lease time keep the address.
+        for (int i = 0; i < 96; i++) {
+            clock.advance(30, TimeUnit.MINUTES);
+            Assert.assertEquals(0, reaper.reap());
+            builder = new DhcpMessageBuilder();
+            builder.setOpCode(DhcpOpCode.REQUEST)
+                    .setHardwareType(HardwareType.ETHERNET)
+                    .setTransactionId(discover.getTransactionId() + i)
+                    .setClientIpAddress(leased)
+                    .setHardwareAddress(discover.getClientHardwareAddress())
+                    .addOption(DhcpMessageType.REQUEST.getOption());
+            DhcpMessageOverlay ack = new DhcpMessageOverlay(
+                    engine.processDhcpPayload(new DhcpPayload(clientWireAddress, builder.build())).getData());
+            Assert.assertArrayEquals(leased, ack.getYourIpAddress());
+        }
+        device = engine.getDeviceRegistry().getDevice(discover.getClientHardwareAddress());
+        Assert.assertEquals(clock.currentTimeMillis() + 3600 * 1000, device.getLeaseExpirationMillis());
+
+        // Then the client goes away and the lease runs out.
+        clock.advance(59, TimeUnit.MINUTES);
+        Assert.assertEquals(0, reaper.reap());
+        clock.advance(2, TimeUnit.MINUTES);
+        Assert.assertEquals(1, reaper.reap());
+        Assert.assertEquals(0, engine.getAddressPool().getUtilization().getUsed());
+        device = engine.getDeviceRegistry().getDevice(discover.getClientHardwareAddress());
+        Assert.assertEquals(DeviceStatus.DISCOVERED, device.getStatus());
+    }
+
+    @Test
+    public void reuseLeaseOnEarlyRenewal() throws Exception {
+        VirtualClock clock = new VirtualClock(1500000000000L);
+        engine = new StandardEngine(serverIpAddress, 3600);
+        engine.setAddressPool(new BitSetAddressPool(addressPoolStart, addressPoolEnd));
+        engine.setClock(clock);
+        engine.setLeaseReuseThreshold(0.4);
+        Path path = Files.createTempFile("leases", ".journal");
+        try (LeaseJournal journal = new LeaseJournal(path)) {
+            engine.setLeaseJournal(journal);
+
+            DhcpMessageOverlay discover = new DhcpMessageOverlay(discoverMessage);
+            DhcpMessageOverlay offer = new DhcpMessageOverlay(
+                    engine.processDhcpPayload(new DhcpPayload(clientWireAddress, discoverMessage)).getData());
+            byte[] leased = offer.getYourIpAddress();
+            DhcpMessageBuilder builder = new DhcpMessageBuilder();
+            builder.setOpCode(DhcpOpCode.REQUEST)
+                    .setHardwareType(HardwareType.ETHERNET)
+                    .setTransactionId(discover.getTransactionId())
+                    .setHardwareAddress(discover.getClientHardwareAddress())
+                    .addOption(DhcpMessageType.REQUEST.getOption())
+                    .addOption(new ByteArrayOption(DhcpOptionType.REQUESTED_IP_ADDR, leased))
+                    .addOption(new ByteArrayOption(DhcpOptionType.SERVER_ID, offer.getServerIpAddress()));
+            engine.processDhcpPayload(new DhcpPayload(clientWireAddress, builder.build()));
+            NetworkDevice device = engine.getDeviceRegistry().getDevice(discover.getClientHardwareAddress());
+            long expiration = device.getLeaseExpirationMillis();
+
+            // Renewing at T1 leaves half the lease, which is above the threshold, so nothing is written.
+            clock.advance(30, TimeUnit.MINUTES);
+            builder = new DhcpMessageBuilder();
+            builder.setOpCode(DhcpOpCode.REQUEST)
+                    .setHardwareType(HardwareType.ETHERNET)
+                    .setTransactionId(discover.getTransactionId() + 1)
+                    .setClientIpAddress(leased)
+                    .setHardwareAddress(discover.getClientHardwareAddress())
+                    .addOption(DhcpMessageType.REQUEST.getOption());
+            ByteBuffer renew = builder.build();
+            DhcpPayload outgoing = engine.processDhcpPayload(new DhcpPayload(clientWireAddress, renew.duplicate()));
+            Assert.assertNull(outgoing.getCommit());
+            DhcpMessageOverlay ack = new DhcpMessageOverlay(outgoing.getData());
+            Assert.assertArrayEquals(leased, ack.getYourIpAddress());
+            Assert.assertEquals(1800, AddressUtils.convertToInt(
+                    ack.getOptions().get(DhcpOptionType.IP_ADDR_LEASE_TIME).getOptionData()));
+            Assert.assertEquals(expiration, device.getLeaseExpirationMillis());
+
+            // Closer to expiry the lease is extended as usual.
+            clock.advance(10, TimeUnit.MINUTES);
+            outgoing = engine.processDhcpPayload(new DhcpPayload(clientWireAddress, renew.duplicate()));
+            Assert.assertNotNull(outgoing.getCommit());
+            ack = new DhcpMessageOverlay(outgoing.getData());
+            Assert.assertEquals(3600, AddressUtils.convertToInt(
+                    ack.getOptions().get(DhcpOptionType.IP_ADDR_LEASE_TIME).getOptionData()));
+            Assert.assertEquals(clock.currentTimeMillis() + 3600 * 1000, device.getLeaseExpirationMillis());
+        } finally {
+            Files.delete(path);
+        }
+    }
+
+    @Test
+    public void reusedLeaseScalesRenewalTimes() throws Exception {
+        VirtualClock clock = new VirtualClock(1500000000000L);
+        engine = new StandardEngine(serverIpAddress, 3600);
+        engine.setAddressPool(new BitSetAddressPool(addressPoolStart, addressPoolEnd));
+        engine.setClock(clock);
+        engine.setLeaseReuseThreshold(0.4);
+        engine.setConfiguration(new ByteArrayOption(DhcpOptionType.RENEWAL_TIME_VALUE,
+                AddressUtils.convertToByteArray(1800)));
+        engine.setConfiguration(new ByteArrayOption(DhcpOptionType.REBINDING_TIME_VALUE,
+                AddressUtils.convertToByteArray(3150)));
+
+        byte[] hardwareAddress = new byte[] { 0x00, 0x1a, 0x2b, 0x3c, 0x4d, 0x5e };
+        ByteBuffer discover = new DhcpMessageBuilder()
+                .setOpCode(DhcpOpCode.REQUEST)
+                .setHardwareType(HardwareType.ETHERNET)
+                .setTransactionId(1)
+                .setHardwareAddress(hardwareAddress)
+                .addOption(DhcpMessageType.DISCOVER.getOption())
+                .addOption(new ByteArrayOption(DhcpOptionType.PARAMETER_REQUEST_LIST, new byte[] { 1, 58, 59 }))
+                .build();
+        DhcpMessageOverlay offer = new DhcpMessageOverlay(
+                engine.processDhcpPayload(new DhcpPayload(clientWireAddress, discover)).getData());
+        byte[] leased = offer.getYourIpAddress();
+        ByteBuffer request = new DhcpMessageBuilder()
+                .setOpCode(DhcpOpCode.REQUEST)
+                .setHardwareType(HardwareType.ETHERNET)
+                .setTransactionId(2)
+                .setHardwareAddress(hardwareAddress)
+                .addOption(DhcpMessageType.REQUEST.getOption())
+                .addOption(new ByteArrayOption(DhcpOptionType.REQUESTED_IP_ADDR, leased))
+                .addOption(new ByteArrayOption(DhcpOptionType.SERVER_ID, offer.getServerIpAddress()))
+                .build();
+        Map<DhcpOptionType, DhcpOption> options = new DhcpMessageOverlay(
+                engine.processDhcpPayload(new DhcpPayload(clientWireAddress, request)).getData()).getOptions();
+        Assert.assertEquals(1800, AddressUtils.convertToInt(
+                options.get(DhcpOptionType.RENEWAL_TIME_VALUE).getOptionData()));
+        Assert.assertEquals(3150, AddressUtils.convertToInt(
+                options.get(DhcpOptionType.REBINDING_TIME_VALUE).getOptionData()));
+
+        // An early renewal, with 2400 of the 3600 seconds left, keeps T1 and T2 at the same share of the lease.
+        clock.advance(20, TimeUnit.MINUTES);
+        ByteBuffer renew = new DhcpMessageBuilder()
+                .setOpCode(DhcpOpCode.REQUEST)
+                .setHardwareType(HardwareType.ETHERNET)
+                .setTransactionId(3)
+                .setClientIpAddress(leased)
+                .setHardwareAddress(hardwareAddress)
+                .addOption(DhcpMessageType.REQUEST.getOption())
+                .build();
+        DhcpPayload outgoing = engine.processDhcpPayload(new DhcpPayload(clientWireAddress, renew));
+        Assert.assertNull(outgoing.getCommit());
+        options = new DhcpMessageOverlay(outgoing.getData()).getOptions();
+        Assert.assertEquals(2400, AddressUtils.convertToInt(
+                options.get(DhcpOptionType.IP_ADDR_LEASE_TIME).getOptionData()));
+        Assert.assertEquals(1200, AddressUtils.convertToInt(
+                options.get(DhcpOptionType.RENEWAL_TIME_VALUE).getOptionData()));
+        Assert.assertEquals(2100, AddressUtils.convertToInt(
+                options.get(DhcpOptionType.REBINDING_TIME_VALUE).getOptionData()));
+    }
+
 }
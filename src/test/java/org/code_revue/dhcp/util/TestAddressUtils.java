@@ -33,4 +33,12 @@ public class TestAddressUtils {
         assertEquals("80:08", AddressUtils.hardwareAddressToString(new byte[] { (byte) 128, 8 }));
     }
 
+    @Test
+    public void hardwareAddressToLong() {
+        byte[] address = new byte[] { 0x00, 0x1a, 0x2b, 0x3c, 0x4d, (byte) 0xfe };
+        assertEquals(0x001a2b3c4dfeL, AddressUtils.hardwareAddressToLong(address));
+        assertArrayEquals(address, AddressUtils.longToHardwareAddress(0x001a2b3c4dfeL));
+        assertEquals(0xffffffffffffL, AddressUtils.hardwareAddressToLong(new byte[] { -1, -1, -1, -1, -1, -1 }));
+    }
+
 }
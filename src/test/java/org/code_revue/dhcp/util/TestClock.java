@@ -0,0 +1,48 @@
+package org.code_revue.dhcp.util;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author Mike Fanning
+ */
+public class TestClock {
+
+    @Test
+    public void virtualClock() {
+        VirtualClock clock = new VirtualClock(1000);
+        assertEquals(1000, clock.currentTimeMillis());
+        assertEquals(1, clock.currentTimeSeconds());
+        assertEquals(1000 + 86400 * 1000L, clock.advance(1, TimeUnit.DAYS));
+        assertEquals(86401, clock.currentTimeSeconds());
+        clock.setTimeMillis(500);
+        assertEquals(0, clock.currentTimeSeconds());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void virtualClockCantGoBackwards() {
+        new VirtualClock().advance(-1, TimeUnit.MILLISECONDS);
+    }
+
+    @Test
+    public void coarseClock() throws Exception {
+        CoarseClock clock = new CoarseClock(10);
+        try {
+            long before = System.currentTimeMillis();
+            Thread.sleep(50);
+            long now = clock.currentTimeMillis();
+            assertTrue(now >= before);
+            assertTrue(now <= System.currentTimeMillis());
+            assertEquals(now / 1000, clock.currentTimeSeconds(), 1);
+        } finally {
+            clock.stop();
+        }
+        long stopped = clock.currentTimeMillis();
+        Thread.sleep(50);
+        assertEquals(stopped, clock.currentTimeMillis());
+    }
+
+}
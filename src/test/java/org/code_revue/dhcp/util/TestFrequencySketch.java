@@ -0,0 +1,48 @@
+package org.code_revue.dhcp.util;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author Mike Fanning
+ */
+public class TestFrequencySketch {
+
+    @Test
+    public void estimatesFrequency() {
+        FrequencySketch sketch = new FrequencySketch(1024);
+        for (int i = 0; i < 5; i++) {
+            sketch.increment(42);
+        }
+        sketch.increment(43);
+        assertEquals(5, sketch.frequency(42));
+        assertEquals(1, sketch.frequency(43));
+        assertEquals(0, sketch.frequency(44));
+    }
+
+    @Test
+    public void saturatesAndHalves() {
+        FrequencySketch sketch = new FrequencySketch(1024);
+        for (int i = 0; i < 100; i++) {
+            sketch.increment(0x0200000000ffL);
+        }
+        assertEquals(FrequencySketch.MAX_FREQUENCY, sketch.frequency(0x0200000000ffL));
+        sketch.reset();
+        assertEquals(7, sketch.frequency(0x0200000000ffL));
+    }
+
+    @Test
+    public void agesAfterSample() {
+        FrequencySketch sketch = new FrequencySketch(16);
+        for (int i = 0; i < 8; i++) {
+            sketch.increment(-1);
+        }
+        // Once the sample is full the counters are halved, so old popularity fades.
+        for (long key = 0; key < sketch.getSampleSize(); key++) {
+            sketch.increment(key);
+        }
+        assertTrue(sketch.frequency(-1) < 8);
+    }
+
+}
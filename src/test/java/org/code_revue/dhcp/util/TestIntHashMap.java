@@ -0,0 +1,54 @@
+package org.code_revue.dhcp.util;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author Mike Fanning
+ */
+public class TestIntHashMap {
+
+    @Test
+    public void putGetRemove() {
+        IntHashMap<String> map = new IntHashMap<>();
+        assertNull(map.put(0x0a000001, "a"));
+        assertEquals("a", map.put(0x0a000001, "b"));
+        assertEquals("b", map.get(0x0a000001));
+        assertNull(map.get(0x0a000002));
+        assertEquals(1, map.size());
+        assertEquals("b", map.remove(0x0a000001));
+        assertNull(map.remove(0x0a000001));
+        assertFalse(map.containsKey(0x0a000001));
+        assertEquals(0, map.size());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void zeroKey() {
+        new IntHashMap<String>().put(0, "a");
+    }
+
+    @Test
+    public void matchesHashMap() {
+        IntHashMap<Integer> map = new IntHashMap<>();
+        Map<Integer, Integer> expected = new HashMap<>();
+        Random random = new Random(42);
+        for (int i = 0; i < 100000; i++) {
+            int key = 0x0a000000 + random.nextInt(5000) + 1;
+            if (random.nextInt(3) == 0) {
+                assertEquals(expected.remove(key), map.remove(key));
+            } else {
+                assertEquals(expected.put(key, i), map.put(key, i));
+            }
+        }
+        assertEquals(expected.size(), map.size());
+        for (Map.Entry<Integer, Integer> entry: expected.entrySet()) {
+            assertEquals(entry.getValue(), map.get(entry.getKey()));
+        }
+    }
+
+}
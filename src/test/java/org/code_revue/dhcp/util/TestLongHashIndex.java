@@ -0,0 +1,59 @@
+package org.code_revue.dhcp.util;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author Mike Fanning
+ */
+public class TestLongHashIndex {
+
+    @Test
+    public void putGetRemove() {
+        LongHashIndex index = new LongHashIndex(4);
+        assertTrue(index.put(42, 1));
+        assertFalse(index.put(42, 2));
+        assertEquals(2, index.get(42, -1));
+        assertEquals(-1, index.get(43, -1));
+        assertTrue(index.remove(42));
+        assertFalse(index.remove(42));
+        assertEquals(0, index.size());
+    }
+
+    @Test
+    public void matchesHashMap() {
+        matchesHashMap(new LongHashIndex(16, false));
+        matchesHashMap(new LongHashIndex(16, true));
+    }
+
+    private void matchesHashMap(LongHashIndex index) {
+        Map<Long, Long> expected = new HashMap<>();
+        Random random = new Random(7);
+        for (int i = 0; i < 50000; i++) {
+            // Small key space so there are plenty of collisions, updates and removals.
+            long key = random.nextInt(5000);
+            if (random.nextInt(3) == 0) {
+                assertEquals(null != expected.remove(key), index.remove(key));
+            } else {
+                assertEquals(null == expected.put(key, (long) i), index.put(key, i));
+            }
+        }
+        assertEquals(expected.size(), index.size());
+        for (long key = 0; key < 5000; key++) {
+            Long value = expected.get(key);
+            assertEquals(null == value ? -1 : value, index.get(key, -1));
+        }
+        assertTrue(index.capacity() * LongHashIndex.MAX_LOAD_FACTOR >= index.size());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void emptyKey() {
+        new LongHashIndex(16).put(LongHashIndex.EMPTY_KEY, 0);
+    }
+
+}
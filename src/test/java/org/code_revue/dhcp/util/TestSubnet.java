@@ -0,0 +1,84 @@
+package org.code_revue.dhcp.util;
+
+import org.code_revue.dhcp.message.ByteArrayOption;
+import org.code_revue.dhcp.message.DhcpOption;
+import org.code_revue.dhcp.message.DhcpOptionType;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author Mike Fanning
+ */
+public class TestSubnet {
+
+    @Test
+    public void parse() {
+        Subnet subnet = Subnet.parse("192.168.1.77/24");
+        assertEquals("192.168.1.0", AddressUtils.convertToString(subnet.getNetwork()));
+        assertEquals("192.168.1.255", AddressUtils.convertToString(subnet.getBroadcast()));
+        assertEquals("255.255.255.0", AddressUtils.convertToString(subnet.getMask()));
+        assertEquals("192.168.1.1", AddressUtils.convertToString(subnet.getFirstHost()));
+        assertEquals("192.168.1.254", AddressUtils.convertToString(subnet.getLastHost()));
+        assertEquals(256, subnet.getSize());
+        assertEquals("192.168.1.0/24", subnet.toString());
+        assertEquals(subnet, Subnet.fromMask(AddressUtils.convertToByteArray("192.168.1.5"), subnet.getMask()));
+    }
+
+    @Test
+    public void pointToPoint() {
+        Subnet subnet = Subnet.parse("10.0.0.6/31");
+        assertEquals("10.0.0.6", AddressUtils.convertToString(subnet.getFirstHost()));
+        assertEquals("10.0.0.7", AddressUtils.convertToString(subnet.getLastHost()));
+
+        subnet = Subnet.parse("10.0.0.6");
+        assertEquals(32, subnet.getPrefixLength());
+        assertArrayEquals(subnet.getFirstHost(), subnet.getLastHost());
+    }
+
+    @Test
+    public void contains() {
+        Subnet subnet = Subnet.parse("172.16.0.0/12");
+        assertTrue(subnet.contains(AddressUtils.convertToByteArray("172.31.255.255")));
+        assertFalse(subnet.contains(AddressUtils.convertToByteArray("172.32.0.0")));
+        assertFalse(subnet.isHost(AddressUtils.convertToByteArray("172.16.0.0")));
+        assertTrue(subnet.isHost(AddressUtils.convertToByteArray("172.16.0.1")));
+    }
+
+    @Test
+    public void reservedAddresses() {
+        Subnet subnet = Subnet.parse("192.168.1.0/24");
+        Map<DhcpOptionType, DhcpOption> options = new HashMap<>();
+        options.put(DhcpOptionType.SUBNET_MASK, new ByteArrayOption(DhcpOptionType.SUBNET_MASK, subnet.getMask()));
+        options.put(DhcpOptionType.ROUTER, new ByteArrayOption(DhcpOptionType.ROUTER,
+                AddressUtils.convertToByteArray("192.168.1.1")));
+        options.put(DhcpOptionType.SERVER_ID, new ByteArrayOption(DhcpOptionType.SERVER_ID,
+                AddressUtils.convertToByteArray("192.168.1.2")));
+        options.put(DhcpOptionType.DNS_SERVER, new ByteArrayOption(DhcpOptionType.DNS_SERVER,
+                new byte[] { (byte) 192, (byte) 168, 1, 2, 8, 8, 8, 8 }));
+        options.put(DhcpOptionType.BROADCAST_ADDR, new ByteArrayOption(DhcpOptionType.BROADCAST_ADDR,
+                subnet.getBroadcast()));
+
+        int[] reserved = subnet.getReservedAddresses(options);
+        assertEquals(2, reserved.length);
+        assertEquals("192.168.1.1", AddressUtils.convertToString(reserved[0]));
+        assertEquals("192.168.1.2", AddressUtils.convertToString(reserved[1]));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void mismatchedMask() {
+        Map<DhcpOptionType, DhcpOption> options = new HashMap<>();
+        options.put(DhcpOptionType.SUBNET_MASK, new ByteArrayOption(DhcpOptionType.SUBNET_MASK,
+                AddressUtils.convertToByteArray("255.255.0.0")));
+        Subnet.parse("192.168.1.0/24").getReservedAddresses(options);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void nonContiguousMask() {
+        Subnet.fromMask(AddressUtils.convertToByteArray("10.0.0.0"), AddressUtils.convertToByteArray("255.0.255.0"));
+    }
+
+}
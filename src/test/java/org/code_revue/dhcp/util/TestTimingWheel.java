@@ -0,0 +1,95 @@
+package org.code_revue.dhcp.util;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author Mike Fanning
+ */
+public class TestTimingWheel {
+
+    @Test
+    public void expiresInOrder() {
+        TimingWheel<String> wheel = new TimingWheel<>(10, 1000);
+        wheel.schedule("c", 1000 + 70000);
+        wheel.schedule("a", 1005);
+        wheel.schedule("b", 1000 + 2560);
+        assertEquals(3, wheel.size());
+
+        List<String> expired = new ArrayList<>();
+        assertEquals(1, wheel.advance(1009, expired));
+        assertEquals(0, wheel.advance(3500, expired));
+        assertEquals(1, wheel.advance(3560, expired));
+        assertEquals(1, wheel.advance(1000000, expired));
+        assertEquals(Arrays.asList("a", "b", "c"), expired);
+        assertEquals(0, wheel.size());
+    }
+
+    @Test
+    public void cancel() {
+        TimingWheel<String> wheel = new TimingWheel<>(1, 0);
+        TimingWheel.Timeout<String> timeout = wheel.schedule("a", 100000);
+        assertTrue(timeout.isScheduled());
+        assertTrue(wheel.cancel(timeout));
+        assertFalse(wheel.cancel(timeout));
+        assertFalse(timeout.isScheduled());
+
+        List<String> expired = new ArrayList<>();
+        wheel.advance(200000, expired);
+        assertTrue(expired.isEmpty());
+    }
+
+    @Test
+    public void pastDeadline() {
+        TimingWheel<String> wheel = new TimingWheel<>(1000, 50000);
+        wheel.schedule("late", 1000);
+        List<String> expired = new ArrayList<>();
+        assertEquals(1, wheel.advance(50000, expired));
+    }
+
+    @Test
+    public void matchesBruteForce() {
+        Random random = new Random(3);
+        TimingWheel<Long> wheel = new TimingWheel<>(1, 0);
+        List<Long> pending = new ArrayList<>();
+        List<TimingWheel.Timeout<Long>> timeouts = new ArrayList<>();
+        long now = 0;
+        for (int round = 0; round < 200; round++) {
+            for (int i = 0; i < 50; i++) {
+                // Mix of near and far deadlines, so every level gets used.
+                long deadline = now + (long) Math.pow(2, random.nextInt(34)) + random.nextInt(1000);
+                pending.add(deadline);
+                timeouts.add(wheel.schedule(deadline, deadline));
+            }
+            if (random.nextBoolean()) {
+                int index = random.nextInt(timeouts.size());
+                if (wheel.cancel(timeouts.get(index))) {
+                    pending.remove(timeouts.get(index).getItem());
+                }
+            }
+
+            now += random.nextInt(1 << (random.nextInt(4) * 8));
+            List<Long> expired = new ArrayList<>();
+            wheel.advance(now, expired);
+            List<Long> expected = new ArrayList<>();
+            for (Long deadline: pending) {
+                if (deadline <= now) {
+                    expected.add(deadline);
+                }
+            }
+            pending.removeAll(expected);
+            Collections.sort(expected);
+            Collections.sort(expired);
+            assertEquals(expected, expired);
+            assertEquals(pending.size(), wheel.size());
+        }
+    }
+
+}